@@ -0,0 +1,40 @@
+package com.mlongbo.sunflower.commondb;
+
+import com.mlongbo.sunflower.commondb.pool.StatementCache;
+import org.apache.commons.dbutils.QueryRunner;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * 使用连接池PreparedStatement缓存的QueryRunner，连接不是内置连接池的连接或未开启缓存时与QueryRunner相同
+ * 当前线程的事务设置了超时时，语句的超时为事务的剩余时间
+ * @author malongbo
+ */
+final class CachingQueryRunner extends QueryRunner {
+    @Override
+    protected PreparedStatement prepareStatement(Connection conn, String sql) throws SQLException {
+        int timeout = DbConnectionManager.getInstance().queryTimeout();
+        StatementCache cache = StatementCache.of(conn);
+        PreparedStatement stmt = cache == null ? super.prepareStatement(conn, sql) : cache.prepare(sql);
+        if (timeout > 0)
+            stmt.setQueryTimeout(timeout);
+        return stmt;
+    }
+
+    @Override
+    protected void close(Statement stmt) throws SQLException {
+        StatementCache cache = StatementCache.owner(stmt);
+        if (cache == null) {
+            super.close(stmt);
+            return;
+        }
+        //缓存的PreparedStatement会被其他事务复用
+        if (stmt.getQueryTimeout() != 0)
+            stmt.setQueryTimeout(0);
+        if (!cache.release(stmt))
+            super.close(stmt);
+    }
+}
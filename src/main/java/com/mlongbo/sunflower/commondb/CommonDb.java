@@ -1,27 +1,88 @@
 package com.mlongbo.sunflower.commondb;
 
+import com.mlongbo.sunflower.commondb.cache.EntityCache;
+import com.mlongbo.sunflower.commondb.cache.QueryCache;
 import com.mlongbo.sunflower.commondb.exception.DbException;
+import com.mlongbo.sunflower.commondb.exception.DbRuntimeException;
+import com.mlongbo.sunflower.commondb.exception.StaleEntityException;
+import com.mlongbo.sunflower.commondb.mapper.BeanMapper;
+import com.mlongbo.sunflower.commondb.mapper.ColumnBatch;
+import com.mlongbo.sunflower.commondb.mapper.PrimitiveColumns;
+import com.mlongbo.sunflower.commondb.mapper.ProjectionMapper;
+import com.mlongbo.sunflower.commondb.mapper.RowMapper;
+import com.mlongbo.sunflower.commondb.shard.ShardStrategy;
 import com.mlongbo.sunflower.commondb.util.StringUtils;
 import org.apache.commons.dbutils.ResultSetHandler;
-import org.apache.commons.dbutils.handlers.BeanHandler;
-import org.apache.commons.dbutils.handlers.BeanListHandler;
 import org.apache.commons.dbutils.handlers.ScalarHandler;
 
+import java.lang.reflect.Array;
 import java.lang.reflect.ParameterizedType;
+import java.math.BigInteger;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Date;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 /**
  * 数据库公共操作类库
  * @author malongbo
  */
 public abstract class CommonDb<T> {
+    private static final ScalarHandler COUNT_HANDLER = new ScalarHandler("count");
     private String tableName;
     private Object tableId = "id";
     private Class<T> clazz;
+    private BeanMapper<T> beanMapper;
     private String defaultQueryFields = "*";
-    private ThreadLocal<String> queryFields = new ThreadLocal<String>();
+    private final SqlCache sqlCache = new SqlCache();
+    private String[] insertFields;
+    private volatile InsertTemplate insertTemplate;
+    private int batchSize = 500;
+    private EntityCache<Object, T> entityCache;
+    /**
+     * 实体缓存的失效次数，查询期间发生失效时不缓存查询结果
+     */
+    private final AtomicLong cacheEpoch = new AtomicLong();
+    private boolean queryCacheEnabled;
+    private int multiParallelism = 1;
+    private volatile WriteBatcher writeBatcher;
+    private String shardKey;
+    private ShardStrategy shardStrategy;
+    private String versionField;
+    private volatile UpdateTemplate updateTemplate;
+    private volatile EntitySnapshots snapshots;
+    private ResultSetHandler<T> trackingBeanHandler;
+    private ResultSetHandler<List<T>> trackingListHandler;
+    private final ConcurrentMap<List<String>, KeySqlCache> seekSqlCaches = new ConcurrentHashMap<List<String>, KeySqlCache>();
+
+    /**
+     * getMulti的IN列表长度，与IN_CHUNK_KEYS一一对应
+     */
+    private static final int[] IN_CHUNK_SIZES = {1, 8, 32, 128};
+    private static final String[] IN_CHUNK_KEYS = {"1", "8", "32", "128"};
 
     /**
      * 默认的主键字段将使用"id"
@@ -34,6 +95,7 @@ public abstract class CommonDb<T> {
         this.tableName = tableName;
         ParameterizedType type = (ParameterizedType) this.getClass().getGenericSuperclass();
         this.clazz = (Class<T>) type.getActualTypeArguments()[0];
+        this.beanMapper = BeanMapper.of(this.clazz);
     }
 
     /**
@@ -47,29 +109,186 @@ public abstract class CommonDb<T> {
     }
 
     /**
-     * 设置所有查询操作查询出的字段
+     * 指定查询字段，返回只查询这些字段的视图，不改变当前对象
+     * 视图不可变，可以保存下来重复使用或在多个线程间共享，如db.includeField("id", "name").getById(id)
      * @param fieldName 字段名与数据库中对应
+     * @return
+     */
+    public QueryView<T> includeField(String... fieldName) {
+        return new QueryView<T>(this, StringUtils.join(fieldName, ","));
+    }
+
+    /**
+     * 设置默认查询字段，当调用queryFileds不存在时，将使用默认查询字段
+     * @param defaultQueryField 字段名与数据库中对应
+     */
+    public CommonDb<T> setDefaultQueryFields(String... defaultQueryField) {
+        this.defaultQueryFields = StringUtils.join(defaultQueryField, ",");
+        return this;
+    }
+
+    /**
+     * 设置插入时写入的字段，不设置时使用实体类中所有可读写的属性
+     * @param insertField 字段名与数据库中对应，也必须是实体类的属性
+     */
+    public CommonDb<T> setInsertFields(String... insertField) {
+        this.insertFields = insertField;
+        this.insertTemplate = null;
+        this.updateTemplate = null;
+        return this;
+    }
+
+    /**
+     * 设置批量插入时每批的记录数，默认500
+     * @param batchSize
+     */
+    public CommonDb<T> setBatchSize(int batchSize) {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("batchSize must be positive");
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * 设置实体缓存，getById与getMulti将优先读取缓存
+     * 通过当前对象的deleteById、deleteByCondition、execute、upsertAll写入时使缓存失效，
+     * 绕过当前对象直接修改数据库(如DbKit.execute)时需自行调用invalidateCachedEntity
+     * 缓存中的bean会被多次返回，调用方不应修改；开启脏字段跟踪时查询不读写缓存，写入仍使缓存失效
+     * @param entityCache 为null时关闭缓存
+     */
+    public CommonDb<T> setEntityCache(EntityCache<Object, T> entityCache) {
+        this.entityCache = entityCache;
+        return this;
+    }
+
+    /**
+     * 使指定主键的实体缓存失效，与正在进行的查询并发时，查询结果不会被写回缓存
+     * @param id 主键值
+     */
+    public void invalidateCachedEntity(Object id) {
+        if (entityCache != null)
+            invalidateCached(id);
+    }
+
+    /**
+     * 获取实体缓存
+     * @return 未设置时返回null
+     */
+    public EntityCache<Object, T> getEntityCache() {
+        return entityCache;
+    }
+
+    /**
+     * 开启查询结果缓存，count、countByCondition、fetchList与fetchListByCondition的结果
+     * 将缓存在Database.me.setQueryCache设置的QueryCache中
+     * @param queryCacheEnabled
      */
-    public CommonDb<T> includeField(String... fieldName) {
-        this.queryFields.set(StringUtils.join(fieldName, ","));
+    public CommonDb<T> setQueryCacheEnabled(boolean queryCacheEnabled) {
+        this.queryCacheEnabled = queryCacheEnabled;
         return this;
     }
 
     /**
-     * 重置查询字段，每次查询完成后会调用该函数
+     * 设置getMulti的并行度，id超过128个时分块查询，并行度大于1时多个块在不同连接上并行查询
+     * 事务中始终在事务连接上依次查询
+     * @param multiParallelism 默认1，即依次查询
      * @return
      */
-    private CommonDb<T> resetQueryFileds() {
-        this.queryFields.set(null);
+    public CommonDb<T> setMultiParallelism(int multiParallelism) {
+        if (multiParallelism < 1)
+            throw new IllegalArgumentException("multiParallelism must be positive");
+        this.multiParallelism = multiParallelism;
         return this;
     }
 
     /**
-     * 设置默认查询字段，当调用queryFileds不存在时，将使用默认查询字段
-     * @param defaultQueryField 字段名与数据库中对应
+     * 开启脏字段跟踪，通过当前对象查询或插入的实体将记录字段快照，update时只写入与快照不同的字段
+     * 快照随实体回收；includeField查询的实体未查询的字段保持默认值，不修改时不会被写入
+     * 字段值为可变对象(如Date)时请赋新值而不是原地修改
+     * 开启后getById与getMulti不读写实体缓存，每次查询返回各自的实体与快照，修改不会影响其他调用方
+     * @param dirtyTracking
+     * @return
      */
-    public CommonDb<T> setDefaultQueryFields(String... defaultQueryField) {
-        this.defaultQueryFields = StringUtils.join(defaultQueryField, ",");
+    public CommonDb<T> setDirtyTracking(boolean dirtyTracking) {
+        if (!dirtyTracking) {
+            this.snapshots = null;
+            return this;
+        }
+        if (this.snapshots != null)
+            return this;
+
+        final ResultSetHandler<T> beanHandler = beanMapper.beanHandler();
+        final ResultSetHandler<List<T>> listHandler = beanMapper.beanListHandler();
+        this.trackingBeanHandler = new ResultSetHandler<T>() {
+            @Override
+            public T handle(ResultSet rs) throws SQLException {
+                return track(beanHandler.handle(rs));
+            }
+        };
+        this.trackingListHandler = new ResultSetHandler<List<T>>() {
+            @Override
+            public List<T> handle(ResultSet rs) throws SQLException {
+                List<T> list = listHandler.handle(rs);
+                for (T entity : list) {
+                    track(entity);
+                }
+                return list;
+            }
+        };
+        this.snapshots = new EntitySnapshots();
+        return this;
+    }
+
+    /**
+     * 设置乐观锁版本号字段，update时要求数据库中的版本号与实体一致并将其加1，不一致时抛出StaleEntityException
+     * @param versionField 整数类型的字段，为null时不使用乐观锁
+     * @return
+     */
+    public CommonDb<T> setVersionField(String versionField) {
+        this.versionField = versionField;
+        this.updateTemplate = null;
+        return this;
+    }
+
+    /**
+     * 按分片键将数据分布到Database.me.addShard添加的多个库
+     * getById、getMulti、deleteById与插入按分片键路由到所在的库，withShardKey中的操作只访问分片键所在的库；
+     * 其他查询与写入在所有库并行执行后合并结果：计数相加，列表依次拼接，分页与键集分页按排序归并
+     * 分片键不是主键时按id的操作也在所有库执行；跨库的写入不是原子的，事务中只能访问事务所在的库
+     * @param shardKey 分片键字段，为null时使用主键
+     * @param shardStrategy 分片策略，为null时不分片
+     * @return
+     */
+    public CommonDb<T> setSharding(String shardKey, ShardStrategy shardStrategy) {
+        this.shardKey = shardKey == null ? this.tableId.toString() : shardKey;
+        this.shardStrategy = shardStrategy;
+        return this;
+    }
+
+    /**
+     * 在分片键所在的库中执行操作，如db.withShardKey(userId, () -&gt; db.fetchListByCondition("user_id=?", userId))
+     * 操作中的查询与写入只访问该库，可在其中开启事务
+     * @param key 分片键的值
+     * @param task 数据库操作
+     * @param <V>
+     * @return
+     * @throws Exception
+     */
+    public final <V> V withShardKey(Object key, Callable<V> task) throws Exception {
+        if (shardStrategy == null)
+            throw new IllegalStateException("Sharding is not configured for table " + this.tableName);
+        return DbConnectionManager.getInstance().onShard(shardOf(key), task);
+    }
+
+    /**
+     * 设置合并提交的写入器，executeBatched与deleteByIdBatched将通过该写入器执行
+     * 多个CommonDb可以共用一个写入器，关闭写入器由调用方负责
+     * 写入器只合并连续的相同sql，executeBatched与deleteByIdBatched交替提交时每条单独执行，只合并提交
+     * @param writeBatcher 为null时或配置了分片时executeBatched与deleteByIdBatched退化为异步执行
+     * @return
+     */
+    public CommonDb<T> setWriteBatcher(WriteBatcher writeBatcher) {
+        this.writeBatcher = writeBatcher;
         return this;
     }
 
@@ -83,7 +302,313 @@ public abstract class CommonDb<T> {
      * @throws java.sql.SQLException
      */
     public final Integer execute(String sql, Object... params) throws SQLException {
-        return DbKit.execute(sql, params);
+        try {
+            if (!fanOut())
+                return DbKit.execute(sql, params);
+
+            int rows = 0;
+            for (Integer shardRows : allShards(executing(sql, params))) {
+                rows += shardRows;
+            }
+            return rows;
+        } finally {
+            if (entityCache != null)
+                invalidateAllCached();
+        }
+    }
+
+    /**
+     * 插入一条记录，主键为null时写入数据库生成的主键
+     * @param entity
+     * @return sql执行影响的行数
+     * @throws Exception
+     */
+    public final Integer insert(T entity) throws Exception {
+        return insertAll(Collections.singletonList(entity), true);
+    }
+
+    /**
+     * 批量插入，字段取自实体类的属性(或setInsertFields设置的字段)，按setBatchSize分批执行
+     * 主键为null的记录不写入主键字段；批次之间不保证原子性，需要时请在事务中调用
+     * @param entities
+     * @return sql执行影响的行数
+     * @throws Exception
+     */
+    public final Integer insertAll(Collection<T> entities) throws Exception {
+        return insertAll(entities, false);
+    }
+
+    /**
+     * 批量插入
+     * @param entities
+     * @param generatedKeys 为true时将数据库生成的主键写入主键为null的记录
+     * @return sql执行影响的行数
+     * @throws Exception
+     */
+    public final Integer insertAll(Collection<T> entities, boolean generatedKeys) throws Exception {
+        return insertAll(entities, false, generatedKeys);
+    }
+
+    /**
+     * 批量插入或更新，主键或唯一键冲突时更新其余字段(INSERT ... ON DUPLICATE KEY UPDATE)
+     * @param entities
+     * @return sql执行影响的行数，MySQL中被更新的记录计为2行
+     * @throws Exception
+     */
+    public final Integer upsertAll(Collection<T> entities) throws Exception {
+        return insertAll(entities, true, false);
+    }
+
+    private Integer insertAll(Collection<T> entities, final boolean upsert, final boolean generatedKeys) throws Exception {
+        //保证表名称字段与主键字段有效
+        validateTableName().validatePrimaryKey();
+        if (entities.isEmpty())
+            return 0;
+
+        if (fanOut()) {
+            //在各自的库中插入，分片键须在插入前赋值
+            int rows = 0;
+            for (Map.Entry<Integer, List<T>> group : groupByShard(entities).entrySet()) {
+                final List<T> shardEntities = group.getValue();
+                rows += DbConnectionManager.getInstance().onShard(group.getKey(), new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        return insertAll(shardEntities, upsert, generatedKeys);
+                    }
+                });
+            }
+            return rows;
+        }
+
+        InsertTemplate template = insertTemplate();
+        List<T> withId = new ArrayList<T>(entities.size());
+        List<T> withoutId = new ArrayList<T>();
+        for (T entity : entities) {
+            if (template.idIndex < 0 || beanMapper.getProperty(entity, template.idIndex) != null) {
+                withId.add(entity);
+            } else {
+                withoutId.add(entity);
+            }
+        }
+
+        try {
+            int rows = insertChunks(withId, template.withIdColumns,
+                    upsert ? template.upsertWithId : template.insertWithId, -1);
+            rows += insertChunks(withoutId, template.withoutIdColumns,
+                    upsert ? template.upsertWithoutId : template.insertWithoutId, generatedKeys ? template.idIndex : -1);
+            if (snapshots != null) {
+                for (T entity : entities) {
+                    track(entity);
+                }
+            }
+            return rows;
+        } catch (SQLException e) {
+            throw new DbException(e);
+        } finally {
+            //upsert可能更新已缓存的记录
+            if (upsert && entityCache != null && template.idIndex >= 0) {
+                for (T entity : withId) {
+                    invalidateCached(beanMapper.getProperty(entity, template.idIndex));
+                }
+            }
+        }
+    }
+
+    /**
+     * 分批插入
+     * @param keyIndex 主键的属性序号，大于等于0时回写生成的主键
+     */
+    private int insertChunks(List<T> entities, int[] columns, String sql, int keyIndex) throws SQLException {
+        int rows = 0;
+        for (int from = 0; from < entities.size(); from += batchSize) {
+            int to = Math.min(from + batchSize, entities.size());
+            Object[][] params = new Object[to - from][];
+            for (int i = from; i < to; i++) {
+                Object[] row = new Object[columns.length];
+                for (int c = 0; c < columns.length; c++) {
+                    row[c] = beanMapper.getProperty(entities.get(i), columns[c]);
+                }
+                params[i - from] = row;
+            }
+
+            List<Object> keys = keyIndex < 0 ? null : new ArrayList<Object>(to - from);
+            rows += DbKit.insertBatch(sql, params, keys);
+            if (keys != null) {
+                for (int i = 0; i < keys.size() && from + i < to; i++) {
+                    beanMapper.setProperty(entities.get(from + i), keyIndex, keys.get(i));
+                }
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * 获取插入语句模板，字段变化前只生成一次
+     */
+    private InsertTemplate insertTemplate() {
+        InsertTemplate template = insertTemplate;
+        if (template == null) {
+            template = new InsertTemplate(this.tableName, this.tableId.toString(), beanMapper, insertFields);
+            insertTemplate = template;
+        }
+        return template;
+    }
+
+    /**
+     * 按主键更新记录
+     * 开启了脏字段跟踪且实体有快照时只更新修改过的字段，没有修改时不执行sql；否则更新所有字段
+     * @param entity 主键不能为null
+     * @return sql执行影响的行数
+     * @throws StaleEntityException 设置了版本号字段且版本号不一致
+     * @throws Exception
+     */
+    public final Integer update(T entity) throws Exception {
+        return updateAll(Collections.singletonList(entity));
+    }
+
+    /**
+     * 按主键批量更新，更新的字段相同的记录合并为一次批处理，按setBatchSize分批执行
+     * 批次之间不保证原子性，使用版本号字段时请在事务中调用，以便冲突时回滚已更新的记录
+     * @param entities 主键不能为null
+     * @return sql执行影响的行数
+     * @throws StaleEntityException 设置了版本号字段且某条记录的版本号不一致
+     * @throws Exception
+     */
+    public final Integer updateAll(Collection<T> entities) throws Exception {
+        //保证表名称字段与主键字段有效
+        validateTableName().validatePrimaryKey();
+        if (entities.isEmpty())
+            return 0;
+
+        if (fanOut()) {
+            int rows = 0;
+            for (Map.Entry<Integer, List<T>> group : groupByShard(entities).entrySet()) {
+                final List<T> shardEntities = group.getValue();
+                rows += DbConnectionManager.getInstance().onShard(group.getKey(), new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        return updateAll(shardEntities);
+                    }
+                });
+            }
+            return rows;
+        }
+
+        UpdateTemplate template = updateTemplate();
+        EntitySnapshots snapshots = this.snapshots;
+        //按sql分组，保持每组内的顺序
+        Map<String, List<T>> shapes = new LinkedHashMap<String, List<T>>();
+        Map<String, List<Object[]>> shapeParams = new LinkedHashMap<String, List<Object[]>>();
+        for (T entity : entities) {
+            BitSet dirty = template.dirty(beanMapper, entity, snapshots == null ? null : snapshots.get(entity));
+            if (dirty.isEmpty())
+                continue;
+
+            String sql = template.sql(dirty);
+            List<T> shape = shapes.get(sql);
+            if (shape == null) {
+                shapes.put(sql, shape = new ArrayList<T>());
+                shapeParams.put(sql, new ArrayList<Object[]>());
+            }
+            shape.add(entity);
+            shapeParams.get(sql).add(template.params(beanMapper, entity, dirty));
+        }
+
+        int rows = 0;
+        try {
+            for (Map.Entry<String, List<T>> shape : shapes.entrySet()) {
+                String sql = shape.getKey();
+                List<T> shapeEntities = shape.getValue();
+                List<Object[]> params = shapeParams.get(sql);
+                for (int from = 0; from < params.size(); from += batchSize) {
+                    int to = Math.min(from + batchSize, params.size());
+                    int[] counts = to - from == 1
+                            ? new int[] {DbKit.execute(sql, params.get(from))}
+                            : DbKit.batch(sql, params.subList(from, to).toArray(new Object[to - from][]));
+                    for (int i = 0; i < counts.length; i++) {
+                        T entity = shapeEntities.get(from + i);
+                        if (counts[i] == 0 && template.versionIndex >= 0)
+                            throw new StaleEntityException("Stale entity of " + this.tableName + " with "
+                                    + this.tableId + "=" + beanMapper.getProperty(entity, template.idIndex));
+                        rows += counts[i] == Statement.SUCCESS_NO_INFO ? 1 : counts[i];
+                        template.updated(beanMapper, entity);
+                        if (snapshots != null)
+                            track(entity);
+                    }
+                }
+            }
+            return rows;
+        } catch (SQLException e) {
+            throw new DbException(e);
+        } finally {
+            if (entityCache != null) {
+                for (List<T> shape : shapes.values()) {
+                    for (T entity : shape) {
+                        invalidateCached(beanMapper.getProperty(entity, template.idIndex));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 获取更新语句模板，字段变化前只生成一次
+     */
+    private UpdateTemplate updateTemplate() {
+        UpdateTemplate template = updateTemplate;
+        if (template == null) {
+            template = new UpdateTemplate(this.tableName, this.tableId.toString(), versionField, beanMapper, insertFields);
+            updateTemplate = template;
+        }
+        return template;
+    }
+
+    /**
+     * 记录实体的字段快照
+     */
+    private T track(T entity) {
+        EntitySnapshots snapshots = this.snapshots;
+        if (entity != null && snapshots != null)
+            snapshots.put(entity, updateTemplate().snapshot(beanMapper, entity));
+        return entity;
+    }
+
+    /**
+     * 当前对象查询单个bean使用的handler，开启脏字段跟踪时记录快照
+     */
+    private ResultSetHandler<T> beanHandler() {
+        return snapshots == null ? beanMapper.beanHandler() : trackingBeanHandler;
+    }
+
+    private ResultSetHandler<List<T>> beanListHandler() {
+        return snapshots == null ? beanMapper.beanListHandler() : trackingListHandler;
+    }
+
+    private RowMapper<T> rowMapper() {
+        final RowMapper<T> mapper = beanMapper.rowMapper();
+        if (snapshots == null)
+            return mapper;
+        return new RowMapper<T>() {
+            @Override
+            public T mapRow(ResultSet rs) throws SQLException {
+                return track(mapper.mapRow(rs));
+            }
+        };
+    }
+
+    /**
+     * 按实体的分片键分组
+     */
+    private Map<Integer, List<T>> groupByShard(Collection<T> entities) {
+        Map<Integer, List<T>> groups = new TreeMap<Integer, List<T>>();
+        for (T entity : entities) {
+            Integer shard = shardOf(beanMapper.getProperty(entity, shardKey));
+            List<T> group = groups.get(shard);
+            if (group == null)
+                groups.put(shard, group = new ArrayList<T>());
+            group.add(entity);
+        }
+        return groups;
     }
 
     /**
@@ -96,12 +621,22 @@ public abstract class CommonDb<T> {
         //保证表名称字段与主键字段有效
         validateTableName().validatePrimaryKey();
         try {
-            String sql = new StringBuffer().append("DELETE FROM `").append(this.tableName).append("` WHERE ")
-                    .append(this.tableId).append("=?").toString();
+            String sql = sql(SqlCache.Operation.DELETE_BY_ID, null);
+            if (!fanOut())
+                return DbKit.execute(sql, id) > 0;
+            if (shardedById())
+                return onShard(shardOf(id), executing(sql, id)) > 0;
 
-            return execute(sql, id) > 0;
+            int rows = 0;
+            for (Integer shardRows : allShards(executing(sql, id))) {
+                rows += shardRows;
+            }
+            return rows > 0;
         } catch (SQLException e) {
             throw new DbException(e);
+        } finally {
+            if (entityCache != null)
+                invalidateCached(id);
         }
     }
 
@@ -116,17 +651,7 @@ public abstract class CommonDb<T> {
         //保证表名称字段有效
         validateTableName();
         try {
-            /*
-            拼接sql语句
-             */
-            String sql = new StringBuffer("DELETE FROM `").append(this.tableName).append("`").toString();
-
-            if (condition != null) {
-               sql = new StringBuffer(sql).append(" WHERE ")
-                       .append(condition).toString();
-            }
-
-            return execute(sql.toString(),params);
+            return execute(sql(SqlCache.Operation.DELETE, condition), params);
         } catch (SQLException e) {
             throw new DbException(e);
         }
@@ -152,14 +677,25 @@ public abstract class CommonDb<T> {
         //保证表名称字段有效
         validateTableName();
         try {
-            String sql = new StringBuffer("SELECT COUNT(*) `count` FROM ").append(this.tableName).toString();
-
-            if (condition != null) {
-                sql = new StringBuffer(sql).append(" WHERE ").append(condition).toString();
+            String sql = sql(SqlCache.Operation.COUNT, condition);
+            Object count;
+            if (fanOut()) {
+                final Callable<Object> task = querying(COUNT_HANDLER, sql, params);
+                count = cachedQuery(sql, params, new QueryCache.Loader<Object>() {
+                    @Override
+                    public Object load() throws SQLException {
+                        long sum = 0;
+                        for (Object shardCount : allShards(task)) {
+                            if (shardCount instanceof Number)
+                                sum += ((Number) shardCount).longValue();
+                        }
+                        return sum;
+                    }
+                });
+            } else {
+                count = cachedQuery(COUNT_HANDLER, sql, params);
             }
 
-            Object count = DbKit.query(new ScalarHandler("count"), sql, params);
-
             if (count instanceof Long) {
                 Long countL = (Long)count;
                 return countL.intValue();
@@ -174,6 +710,16 @@ public abstract class CommonDb<T> {
         }
     }
 
+    /**
+     * 按Query的条件count查询表，忽略排序与limit
+     * @param query 查询条件
+     * @return
+     * @throws Exception
+     */
+    public final Integer countByQuery(Query query) throws Exception {
+        return countByCondition(query.getWhere(), query.getParams());
+    }
+
     /**
      * 根据ID查询数据
      * @param id
@@ -181,17 +727,32 @@ public abstract class CommonDb<T> {
      * @throws Exception
      */
     public final T getById(Object id) throws Exception {
+        return selectById(null, id);
+    }
+
+    /**
+     * 以指定的查询字段根据ID查询数据
+     * @param fields includeField指定的查询字段，为null时使用默认查询字段
+     */
+    final T selectById(String fields, Object id) throws Exception {
         //保证表名称字段与主键字段有效
         validateTableName().validatePrimaryKey();
         try {
-            String sql = new StringBuffer("SELECT ").append(getQueryFields()).
-                    append(" FROM `").append(this.tableName).append("` WHERE ")
-                    .append(this.tableId).append("=?").toString();
-            return DbKit.query(new BeanHandler<T>(this.clazz), sql, id);
+            //使用includeField查询部分字段时不读写缓存
+            boolean cached = isEntityCacheable(fields);
+            long epoch = cacheEpoch.get();
+            if (cached) {
+                T entity = entityCache.get(cacheKey(id));
+                if (entity != null)
+                    return entity;
+            }
+
+            T entity = queryById(id, beanHandler(), sql(SqlCache.Operation.SELECT_BY_ID, fields, null), id);
+            if (cached && entity != null)
+                putCached(id, entity, epoch);
+            return entity;
         } catch (SQLException e) {
             throw new DbException(e);
-        } finally {
-            resetQueryFileds();
         }
     }
 
@@ -204,23 +765,7 @@ public abstract class CommonDb<T> {
      */
     @Deprecated
     public final T getFirstByCondition(String condition, Object... params) throws Exception {
-        //保证表名称字段有效
-        validateTableName();
-        try {
-            String sql = new StringBuffer("SELECT ").append(getQueryFields()).
-                    append(" FROM `").append(this.tableName).append("`").toString();
-
-            if (condition != null) {
-                sql = new StringBuffer(sql).append(" WHERE ")
-                        .append(condition).toString();
-            }
-
-            return DbKit.query(new BeanHandler<T>(this.clazz), sql, params);
-        } catch (SQLException e) {
-            throw new DbException(e);
-        }  finally {
-            resetQueryFileds();
-        }
+        return selectFirst(null, SqlCache.Operation.SELECT, condition, params);
     }
 
     /**
@@ -231,40 +776,101 @@ public abstract class CommonDb<T> {
      * @throws Exception
      */
     public T findFirst(String condition, Object... params) throws Exception {
+        return selectFirst(null, SqlCache.Operation.SELECT_FIRST, condition, params);
+    }
+
+    /**
+     * 以指定的查询字段查询第一条记录
+     * @param fields includeField指定的查询字段，为null时使用默认查询字段
+     * @param op SELECT或SELECT_FIRST
+     */
+    final T selectFirst(String fields, SqlCache.Operation op, String condition, Object... params) throws Exception {
         //保证表名称字段有效
         validateTableName();
-        StringBuffer buffer;
         try {
-            buffer = new StringBuffer();
-            buffer.append("SELECT ").append(getQueryFields()).
-                    append(" FROM `").append(this.tableName).append("`").append(" WHERE ");
-
-            if (condition != null) {
-                buffer.append(condition);
-            }
-
-            buffer.append(" LIMIT 1");
-
-            return DbKit.query(new BeanHandler<T>(this.clazz), buffer.toString(), params);
+            return queryFirst(beanHandler(), sql(op, fields, condition), params);
         } catch (SQLException e) {
             throw new DbException(e);
-        }  finally {
-            resetQueryFileds();
-            buffer = null;
         }
     }
 
+    /**
+     * 按Query的条件与排序查询第一条记录
+     * @param query 查询条件
+     * @return bean对象
+     * @throws Exception
+     */
+    public T findFirstByQuery(Query query) throws Exception {
+        return findFirst(query.getCondition(), query.getParams());
+    }
+
     /**
      * 根据id数组查询指定bean数据
-     * @param id 可变参数，可指定多个id
-     * @return  bean列表
+     * id作为预编译参数分块查询，每块的IN列表长度固定为1/8/32/128之一，最后一块以最后一个id补齐，
+     * 使sql的形状固定以便复用服务端预编译语句；setMultiParallelism大于1时多个块并行查询
+     * @param id 可变参数，可指定多个id，重复的id只返回一次
+     * @return  bean列表，按id参数的顺序排列，不存在的id被忽略
      * @throws Exception
      */
     public List<T> getMulti(Object... id) throws Exception {
+        return selectMulti(null, id);
+    }
+
+    /**
+     * 以指定的查询字段根据id数组查询
+     * @param fields includeField指定的查询字段，为null时使用默认查询字段
+     */
+    final List<T> selectMulti(String fields, Object... id) throws Exception {
         if (id.length < 1) return new ArrayList<T>();
 
-        String join = StringUtils.join(id, ",", "'");
-        return fetchListByCondition(" "+tableId+" in ("+join+") ");
+        validateTableName().validatePrimaryKey();
+        try {
+            //按调用方的顺序记录每个id的查询结果，命中实体缓存的直接填入
+            boolean cached = isEntityCacheable(fields);
+            long epoch = cacheEpoch.get();
+            boolean numericId = isIntegralId();
+            Map<Object, T> found = new LinkedHashMap<Object, T>(id.length * 4 / 3 + 1);
+            List<Object> missed = new ArrayList<Object>(id.length);
+            for (Object key : id) {
+                Object mergeKey = mergeKey(key, numericId);
+                if (found.containsKey(mergeKey))
+                    continue;
+                T entity = cached ? entityCache.get(cacheKey(key)) : null;
+                found.put(mergeKey, entity);
+                if (entity == null)
+                    missed.add(key);
+            }
+
+            List<T> unmatched = null;
+            if (!missed.isEmpty()) {
+                String idField = this.tableId.toString();
+                for (T entity : fetchMissed(fields, missed)) {
+                    Object key = beanMapper.getProperty(entity, idField);
+                    Object mergeKey = key == null ? null : mergeKey(key, numericId);
+                    if (mergeKey != null && found.containsKey(mergeKey)) {
+                        found.put(mergeKey, entity);
+                        if (cached)
+                            putCached(key, entity, epoch);
+                    } else {
+                        //查询字段不含主键时无法对应到id，按查询结果的顺序附加在最后
+                        if (unmatched == null)
+                            unmatched = new ArrayList<T>();
+                        unmatched.add(entity);
+                    }
+                }
+            }
+
+            List<T> list = new ArrayList<T>(found.size());
+            for (T entity : found.values()) {
+                if (entity != null)
+                    list.add(entity);
+            }
+            if (unmatched != null)
+                list.addAll(unmatched);
+            return list;
+        } catch (SQLException e) {
+            throw new DbException(e);
+        }
     }
 
     /**
@@ -273,17 +879,7 @@ public abstract class CommonDb<T> {
      * @throws Exception
      */
     public final List<T> fetchList() throws Exception {
-        //保证表名称字段有效
-        validateTableName();
-        try {
-            String sql = new StringBuffer("SELECT ").append(getQueryFields()).
-                    append(" FROM `").append(this.tableName).toString();
-            return DbKit.query(new BeanListHandler<T>(this.clazz), sql);
-        } catch (SQLException e) {
-            throw new DbException(e);
-        }  finally {
-            resetQueryFileds();
-        }
+        return selectList(null, null);
     }
 
     /**
@@ -294,28 +890,183 @@ public abstract class CommonDb<T> {
      * @throws Exception
      */
     public final List<T> fetchListByCondition(String condition, Object... params) throws Exception {
+        return selectList(null, condition, params);
+    }
+
+    /**
+     * 以指定的查询字段根据自定义条件查询列表
+     * @param fields includeField指定的查询字段，为null时使用默认查询字段
+     */
+    final List<T> selectList(String fields, String condition, Object... params) throws Exception {
         //保证表名称字段有效
         validateTableName();
         try {
-            String sql = new StringBuffer("SELECT ").append(getQueryFields()).
-                    append(" FROM `").append(this.tableName)
-                    .append("`").toString();
-
-            if (condition != null) {
-                sql = new StringBuffer(sql).append(" WHERE ")
-                        .append(condition).toString();
-            }
-
-            return DbKit.query(new BeanListHandler<T>(this.clazz), sql, params);
+            return queryList(sql(SqlCache.Operation.SELECT, fields, condition), params);
         } catch (SQLException e) {
             throw new DbException(e);
-        }  finally {
-            resetQueryFileds();
         }
     }
 
     /**
-     * 分页查询
+     * 按Query的条件与排序查询列表，设置了limit时最多返回limit条
+     * @param query 查询条件
+     * @return bean列表
+     * @throws Exception
+     */
+    public final List<T> fetchListByQuery(Query query) throws Exception {
+        if (query.getLimit() >= 0)
+            return paginateByQuery(query, 0, query.getLimit());
+        return fetchListByCondition(query.getCondition(), query.getParams());
+    }
+
+    /**
+     * 只查询投影类型需要的字段，映射为record或接口，不经过实体bean与查询结果缓存
+     * record按组件名、接口按getter的属性名作为查询字段，见ProjectionMapper
+     * <pre>
+     * record Summary(long id, String name) {}
+     * List&lt;Summary&gt; list = userDb.fetchProjections(Summary.class, "status = ?", 1);
+     * </pre>
+     * @param type record或接口
+     * @param condition where语句后的sql,为null时查询全表
+     * @param params 预编译填充参数
+     * @return 投影列表
+     * @throws Exception
+     */
+    public final <P> List<P> fetchProjections(Class<P> type, String condition, Object... params) throws Exception {
+        validateTableName();
+        ProjectionMapper<P> mapper = ProjectionMapper.of(type);
+        try {
+            List<List<P>> results = shardResults(mapper.listHandler(), mapper.getSelectList(), condition, params);
+            if (results.size() == 1)
+                return results.get(0);
+            List<P> all = new ArrayList<P>();
+            for (List<P> shardList : results) {
+                all.addAll(shardList);
+            }
+            return all;
+        } catch (SQLException e) {
+            throw new DbException(e);
+        }
+    }
+
+    /**
+     * 查询一个整数字段或表达式，读取为long数组，不创建包装对象，NULL值读取为0
+     * 可用于批量读取id，或读取MAX(id)等聚合值
+     * @param field 字段名或sql表达式
+     * @param condition where语句后的sql,为null时查询全表
+     * @param params 预编译填充参数
+     * @return
+     * @throws Exception
+     */
+    public final long[] fetchLongs(String field, String condition, Object... params) throws Exception {
+        return fetchArray(PrimitiveColumns.longs(), field, condition, params);
+    }
+
+    /**
+     * 查询一个整数字段或表达式，读取为int数组，NULL值读取为0
+     * @see #fetchLongs(String, String, Object...)
+     */
+    public final int[] fetchInts(String field, String condition, Object... params) throws Exception {
+        return fetchArray(PrimitiveColumns.ints(), field, condition, params);
+    }
+
+    /**
+     * 查询一个数值字段或表达式，读取为double数组，NULL值读取为0
+     * @see #fetchLongs(String, String, Object...)
+     */
+    public final double[] fetchDoubles(String field, String condition, Object... params) throws Exception {
+        return fetchArray(PrimitiveColumns.doubles(), field, condition, params);
+    }
+
+    /**
+     * 查询多个数值字段，按列存储为基本类型数组，适用于统计等读取大量行的场景
+     * @param fields 查询字段，以逗号分隔，可以是sql表达式
+     * @param condition where语句后的sql,为null时查询全表
+     * @param params 预编译填充参数
+     * @return
+     * @throws Exception
+     */
+    public final ColumnBatch fetchColumns(String fields, String condition, Object... params) throws Exception {
+        validateTableName();
+        try {
+            return ColumnBatch.concat(shardResults(ColumnBatch.handler(), fields, condition, params));
+        } catch (SQLException e) {
+            throw new DbException(e);
+        }
+    }
+
+    /**
+     * 根据自定义条件流式查询，适用于导出等大结果集场景，内存占用与表大小无关
+     * 请使用try-with-resources关闭返回的Stream以释放连接
+     * @param condition where语句后的sql,为null时查询全表
+     * @param params 预编译填充参数
+     * @return bean的Stream
+     * @throws Exception
+     */
+    public final Stream<T> stream(String condition, Object... params) throws Exception {
+        return selectStream(null, condition, params);
+    }
+
+    /**
+     * 以指定的查询字段流式查询
+     * @param fields includeField指定的查询字段，为null时使用默认查询字段
+     */
+    final Stream<T> selectStream(String fields, String condition, Object... params) throws Exception {
+        //保证表名称字段有效
+        validateTableName();
+        try {
+            String sql = sql(SqlCache.Operation.SELECT, fields, condition);
+            if (fanOut())
+                return streamShards(rowMapper(), sql, params);
+            return DbKit.stream(rowMapper(), sql, params);
+        } catch (SQLException e) {
+            throw new DbException(e);
+        }
+    }
+
+    /**
+     * 根据自定义条件流式查询，逐条回调
+     * @param condition where语句后的sql,为null时查询全表
+     * @param action 每条记录的处理
+     * @param params 预编译填充参数
+     * @throws Exception
+     */
+    public final void forEach(String condition, Consumer<? super T> action, Object... params) throws Exception {
+        selectEach(null, condition, action, params);
+    }
+
+    /**
+     * 以指定的查询字段流式查询，逐条回调
+     * @param fields includeField指定的查询字段，为null时使用默认查询字段
+     */
+    final void selectEach(String fields, String condition, Consumer<? super T> action, Object... params) throws Exception {
+        //保证表名称字段有效
+        validateTableName();
+        try {
+            final String sql = sql(SqlCache.Operation.SELECT, fields, condition);
+            if (!fanOut()) {
+                DbKit.forEach(rowMapper(), action, sql, params);
+                return;
+            }
+
+            //逐个分片依次回调
+            final RowMapper<T> mapper = rowMapper();
+            for (int shard = 0; shard < Database.me.getShards().size(); shard++) {
+                onShard(shard, new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        DbKit.forEach(mapper, action, sql, params);
+                        return null;
+                    }
+                });
+            }
+        } catch (SQLException e) {
+            throw new DbException(e);
+        }
+    }
+
+    /**
+     * 分页查询
      * @param start 开始行数
      * @param count  要查询出的记录树，如10条记录
      * @return bean列表
@@ -335,19 +1086,21 @@ public abstract class CommonDb<T> {
      * @throws Exception
      */
     public final List<T> paginate(String condition, Integer start, Integer count, Object... params) throws Exception {
+        return selectPage(null, condition, start, count, params);
+    }
+
+    /**
+     * 以指定的查询字段分页查询
+     * @param fields includeField指定的查询字段，为null时使用默认查询字段
+     */
+    final List<T> selectPage(String fields, String condition, Integer start, Integer count, Object... params) throws Exception {
         //保证表名称字段有效
         validateTableName();
         try {
-            String sql = new StringBuffer("SELECT ").append(getQueryFields()).
-                    append(" FROM `").append(this.tableName)
-                    .append("`").toString();
-
-            if (condition != null) {
-                sql = new StringBuffer(sql).append(" WHERE ")
-                        .append(condition).toString();
-            }
+            if (fanOut())
+                return paginateShards(fields, condition, start, count, params);
 
-            sql = new StringBuffer(sql).append(" LIMIT ?,?").toString();
+            String sql = sql(SqlCache.Operation.PAGINATE, fields, condition);
 
             /*
             合并参数
@@ -358,14 +1111,179 @@ public abstract class CommonDb<T> {
             paramTmp[params.length+1] = count;
 
 
-            return DbKit.query(new BeanListHandler<T>(this.clazz), sql, paramTmp);
+            return DbKit.query(beanListHandler(), sql, paramTmp);
+        } catch (SQLException e) {
+            throw new DbException(e);
+        }
+    }
+
+    /**
+     * 按Query的条件与排序分页查询，忽略limit
+     * @param query 查询条件
+     * @param start 开始行数
+     * @param count  要查询出的记录数，如10条记录
+     * @return bean列表
+     * @throws Exception
+     */
+    public final List<T> paginateByQuery(Query query, Integer start, Integer count) throws Exception {
+        return paginate(query.getCondition(), start, count, query.getParams());
+    }
+
+    /**
+     * 键集分页查询，按主键升序，查询耗时与翻页深度无关
+     * @param lastId 上一页最后一条记录的主键，即上一页的KeysetPage.getNextKey()，为null时查询第一页
+     * @param count  要查询出的记录数，如10条记录
+     * @return 当前页数据及下一页游标
+     * @throws Exception
+     */
+    public final KeysetPage<T> seek(Object lastId, Integer count) throws Exception {
+        return seekByCondition(null, lastId, count);
+    }
+
+    /**
+     * 根据自定义条件键集分页查询，按主键升序
+     * 生成 WHERE (condition) AND id > ? ORDER BY id LIMIT ? ，替代深度翻页时的LIMIT offset
+     * 查询字段中不含主键时自动追加，以便读取下一页的游标
+     * @param condition where语句后的sql,不能包含order by与limit子句
+     * @param lastId 上一页最后一条记录的主键，为null时查询第一页
+     * @param count  要查询出的记录数，如10条记录
+     * @param params 预编译填充参数
+     * @return 当前页数据及下一页游标
+     * @throws Exception
+     */
+    public final KeysetPage<T> seekByCondition(String condition, Object lastId, Integer count, Object... params) throws Exception {
+        return selectSeek(null, condition, lastId, count, params);
+    }
+
+    /**
+     * 以指定的查询字段键集分页查询
+     * @param fields includeField指定的查询字段，为null时使用默认查询字段
+     */
+    final KeysetPage<T> selectSeek(String fields, String condition, Object lastId, Integer count, Object... params) throws Exception {
+        //保证表名称字段与主键字段有效
+        validateTableName().validatePrimaryKey();
+        try {
+            String sql = sql(lastId == null ? SqlCache.Operation.SEEK_START : SqlCache.Operation.SEEK,
+                    withKeys(getQueryFields(fields), this.tableId.toString()), condition);
+            List<T> list = querySorted(OrderBy.ascending(this.tableId.toString()), sql,
+                    seekParams(params, lastId, null, count), count + 1);
+
+            boolean hasNext = list.size() > count;
+            if (hasNext)
+                list.remove(list.size() - 1);
+
+            Object nextKey = list.isEmpty() ? null : beanMapper.getProperty(list.get(list.size() - 1), this.tableId.toString());
+            return new KeysetPage<T>(list, nextKey, hasNext);
         } catch (SQLException e) {
             throw new DbException(e);
-        }  finally {
-            resetQueryFileds();
         }
     }
 
+    /**
+     * 按多字段排序键进行键集分页查询，按排序键升序
+     * 生成 WHERE (condition) AND (a,b) > (?,?) ORDER BY a,b LIMIT ? ，排序键的最后一个字段应保证唯一(如主键)
+     * 查询字段中不含排序键字段时自动追加，以便读取下一页的游标
+     * @param condition where语句后的sql,不能包含order by与limit子句
+     * @param keyFields 排序键字段，如 new String[]{"createTime", "id"}
+     * @param lastKey 上一页最后一条记录的排序键，即上一页的KeysetPage.getNextKey()，为null时查询第一页
+     * @param count  要查询出的记录数，如10条记录
+     * @param params 预编译填充参数
+     * @return 当前页数据及下一页游标
+     * @throws Exception
+     */
+    public final KeysetPage<T> seekByKeys(String condition, String[] keyFields, Object[] lastKey, Integer count, Object... params) throws Exception {
+        return selectSeekByKeys(null, condition, keyFields, lastKey, count, params);
+    }
+
+    /**
+     * 以指定的查询字段按多字段排序键进行键集分页查询
+     * @param fields includeField指定的查询字段，为null时使用默认查询字段
+     */
+    final KeysetPage<T> selectSeekByKeys(String fields, String condition, String[] keyFields, Object[] lastKey, Integer count, Object... params) throws Exception {
+        //保证表名称字段有效
+        validateTableName();
+        if (keyFields == null || keyFields.length == 0)
+            throw new IllegalArgumentException("keyFields can not be empty");
+        if (lastKey != null && lastKey.length != keyFields.length)
+            throw new IllegalArgumentException("lastKey does not match keyFields");
+
+        try {
+            KeySqlCache cache = seekSqlCaches.get(Arrays.asList(keyFields));
+            if (cache == null) {
+                cache = new KeySqlCache(StringUtils.join(keyFields, ","));
+                KeySqlCache old = seekSqlCaches.putIfAbsent(Arrays.asList(keyFields.clone()), cache);
+                if (old != null)
+                    cache = old;
+            }
+            String sql = cache.cache.get(lastKey == null ? SqlCache.Operation.SEEK_START : SqlCache.Operation.SEEK,
+                    this.tableName, cache.keys, withKeys(getQueryFields(fields), keyFields), condition);
+            List<T> list = querySorted(OrderBy.ascending(keyFields), sql, seekParams(params, null, lastKey, count), count + 1);
+
+            boolean hasNext = list.size() > count;
+            if (hasNext)
+                list.remove(list.size() - 1);
+
+            Object[] nextKey = null;
+            if (!list.isEmpty()) {
+                T last = list.get(list.size() - 1);
+                nextKey = new Object[keyFields.length];
+                for (int i = 0; i < keyFields.length; i++) {
+                    nextKey[i] = beanMapper.getProperty(last, keyFields[i]);
+                }
+            }
+            return new KeysetPage<T>(list, nextKey, hasNext);
+        } catch (SQLException e) {
+            throw new DbException(e);
+        }
+    }
+
+    /**
+     * 键集分页需要从每页的最后一条记录读取下一页的游标，查询字段中不含键字段时追加到末尾
+     * 无法确定是否已包含(如使用了别名)时同样追加，重复的查询字段不影响结果
+     * @param fields 查询字段
+     * @param keys 键字段
+     * @return
+     */
+    private static String withKeys(String fields, String... keys) {
+        String[] selected = fields.split(",");
+        StringBuilder builder = null;
+        for (String key : keys) {
+            boolean found = false;
+            for (String field : selected) {
+                String name = field.trim().replace("`", "");
+                int dot = name.lastIndexOf('.');
+                if (dot >= 0)
+                    name = name.substring(dot + 1);
+                if (name.equals("*") || name.equalsIgnoreCase(key)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                if (builder == null)
+                    builder = new StringBuilder(fields);
+                builder.append(',').append(key);
+            }
+        }
+        return builder == null ? fields : builder.toString();
+    }
+
+    /**
+     * 合并键集分页参数，多查询一条记录用于判断是否还有下一页
+     */
+    private Object[] seekParams(Object[] params, Object lastId, Object[] lastKey, Integer count) {
+        int keys = lastKey != null ? lastKey.length : (lastId != null ? 1 : 0);
+        Object[] paramTmp = new Object[params.length + keys + 1];
+        System.arraycopy(params, 0, paramTmp, 0, params.length);
+        if (lastKey != null) {
+            System.arraycopy(lastKey, 0, paramTmp, params.length, keys);
+        } else if (lastId != null) {
+            paramTmp[params.length] = lastId;
+        }
+        paramTmp[paramTmp.length - 1] = count + 1;
+        return paramTmp;
+    }
+
     /**
      * 自定义查询
      * @param rsh 自定义实现的ResultSetHandler
@@ -379,11 +1297,297 @@ public abstract class CommonDb<T> {
             return DbKit.query(rsh, sql, params);
         } catch (SQLException e) {
             throw new DbException(e);
-        }  finally {
-            resetQueryFileds();
         }
     }
 
+    /**
+     * 异步根据ID查询数据
+     * @param id
+     * @return
+     */
+    public final CompletableFuture<T> getByIdAsync(final Object id) {
+        return async(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                return getById(id);
+            }
+        });
+    }
+
+    /**
+     * 异步根据多个ID查询数据
+     * @param id
+     * @return
+     */
+    public final CompletableFuture<List<T>> getMultiAsync(final Object... id) {
+        return async(new Callable<List<T>>() {
+            @Override
+            public List<T> call() throws Exception {
+                return getMulti(id);
+            }
+        });
+    }
+
+    /**
+     * 异步查询第一条记录
+     * @param condition where语句后的sql
+     * @param params  预编译填充参数
+     * @return
+     */
+    public final CompletableFuture<T> findFirstAsync(final String condition, final Object... params) {
+        return async(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                return findFirst(condition, params);
+            }
+        });
+    }
+
+    /**
+     * 异步根据条件查询数据
+     * @param condition where语句后的sql
+     * @param params  预编译填充参数
+     * @return
+     */
+    public final CompletableFuture<List<T>> fetchListByConditionAsync(final String condition, final Object... params) {
+        return async(new Callable<List<T>>() {
+            @Override
+            public List<T> call() throws Exception {
+                return fetchListByCondition(condition, params);
+            }
+        });
+    }
+
+    /**
+     * 异步根据条件统计记录数
+     * @param condition where语句后的sql
+     * @param params  预编译填充参数
+     * @return
+     */
+    public final CompletableFuture<Integer> countByConditionAsync(final String condition, final Object... params) {
+        return async(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return countByCondition(condition, params);
+            }
+        });
+    }
+
+    /**
+     * 异步分页查询
+     * @param condition where语句后的sql
+     * @param start 起始位置
+     * @param count 查询条数
+     * @param params  预编译填充参数
+     * @return
+     */
+    public final CompletableFuture<List<T>> paginateAsync(final String condition, final Integer start, final Integer count, final Object... params) {
+        return async(new Callable<List<T>>() {
+            @Override
+            public List<T> call() throws Exception {
+                return paginate(condition, start, count, params);
+            }
+        });
+    }
+
+    /**
+     * 异步执行sql命令
+     * @param sql sql字符串
+     * @param params  预编译填充参数
+     * @return
+     */
+    public final CompletableFuture<Integer> executeAsync(final String sql, final Object... params) {
+        return async(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return execute(sql, params);
+            }
+        });
+    }
+
+    /**
+     * 通过WriteBatcher合并提交sql命令，适用于大量互不相关的小写入
+     * 不在调用方的事务中执行，写入提交后使实体缓存失效
+     * @param sql sql字符串
+     * @param params  预编译填充参数
+     * @return sql执行影响的行数
+     */
+    public final CompletableFuture<Integer> executeBatched(String sql, Object... params) {
+        WriteBatcher batcher = writeBatcher;
+        if (batcher == null || shardStrategy != null)
+            return executeAsync(sql, params);
+
+        return batcher.submit(sql, params).whenComplete(new BiConsumer<Integer, Throwable>() {
+            @Override
+            public void accept(Integer rows, Throwable error) {
+                if (entityCache != null)
+                    invalidateAllCached();
+            }
+        });
+    }
+
+    /**
+     * 通过WriteBatcher合并提交根据id删除记录
+     * @param id
+     * @return
+     */
+    public final CompletableFuture<Boolean> deleteByIdBatched(final Object id) {
+        validateTableName().validatePrimaryKey();
+        WriteBatcher batcher = writeBatcher;
+        if (batcher == null || shardStrategy != null) {
+            return async(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return deleteById(id);
+                }
+            });
+        }
+
+        return batcher.submit(sql(SqlCache.Operation.DELETE_BY_ID, null), id).handle(new BiFunction<Integer, Throwable, Boolean>() {
+            @Override
+            public Boolean apply(Integer rows, Throwable error) {
+                if (entityCache != null)
+                    invalidateCached(id);
+                if (error != null)
+                    throw error instanceof CompletionException ? (CompletionException) error : new CompletionException(error);
+                return rows > 0;
+            }
+        });
+    }
+
+    /**
+     * 异步执行任意数据库操作
+     * @param task 数据库操作
+     * @param <V>
+     * @return
+     */
+    public final <V> CompletableFuture<V> async(Callable<V> task) {
+        return async(null, task);
+    }
+
+    /**
+     * 在显式事务中异步执行数据库操作，如db.async(tx, () -&gt; db.getById(id))
+     * @param tx 显式事务，为null时不使用事务
+     * @param task 数据库操作
+     * @param <V>
+     * @return
+     */
+    public final <V> CompletableFuture<V> async(TransactionContext tx, Callable<V> task) {
+        return DbAsync.supply(tx, task);
+    }
+
+    /**
+     * 按IN列表分块查询
+     * @param ids 不重复的id
+     * @return 查询结果，顺序不确定
+     * @throws Exception
+     */
+    private List<T> fetchIn(String fields, List<Object> ids) throws Exception {
+        final List<String> sqls = new ArrayList<String>();
+        final List<Object[]> params = new ArrayList<Object[]>();
+        int offset = 0;
+        while (offset < ids.size()) {
+            int remaining = ids.size() - offset;
+            int shape = IN_CHUNK_SIZES.length - 1;
+            while (shape > 0 && IN_CHUNK_SIZES[shape - 1] >= remaining) {
+                shape--;
+            }
+            int size = IN_CHUNK_SIZES[shape];
+            int take = Math.min(size, remaining);
+            Object[] chunk = new Object[size];
+            for (int i = 0; i < size; i++) {
+                chunk[i] = ids.get(offset + Math.min(i, take - 1));
+            }
+            sqls.add(sql(SqlCache.Operation.SELECT_IN, fields, IN_CHUNK_KEYS[shape]));
+            params.add(chunk);
+            offset += take;
+        }
+
+        final int parallelism = Math.min(multiParallelism, sqls.size());
+        if (parallelism <= 1 || DbConnectionManager.getInstance().inTransaction())
+            return fetchChunks(sqls, params, 0, 1);
+
+        //第0组在当前线程中查询，其余各组异步查询
+        List<CompletableFuture<List<T>>> futures = new ArrayList<CompletableFuture<List<T>>>(parallelism - 1);
+        for (int group = 1; group < parallelism; group++) {
+            final int first = group;
+            futures.add(DbAsync.supply(new Callable<List<T>>() {
+                @Override
+                public List<T> call() throws Exception {
+                    return fetchChunks(sqls, params, first, parallelism);
+                }
+            }));
+        }
+
+        List<T> list = fetchChunks(sqls, params, 0, parallelism);
+        for (CompletableFuture<List<T>> future : futures) {
+            try {
+                list.addAll(future.get());
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Exception)
+                    throw (Exception) cause;
+                throw e;
+            }
+        }
+        return list;
+    }
+
+    /**
+     * 依次查询下标为first, first + step, ...的块
+     */
+    private List<T> fetchChunks(List<String> sqls, List<Object[]> params, int first, int step) throws SQLException {
+        List<T> list = new ArrayList<T>();
+        for (int i = first; i < sqls.size(); i += step) {
+            list.addAll(cachedQuery(beanListHandler(), sqls.get(i), params.get(i)));
+        }
+        return list;
+    }
+
+    /**
+     * 主键属性是否为整数类型，实体类没有主键属性时返回false
+     * @return
+     */
+    private boolean isIntegralId() {
+        int index = beanMapper.indexOf(this.tableId.toString());
+        if (index < 0)
+            return false;
+        Class<?> type = beanMapper.getPropertyType(index);
+        return type == Long.TYPE || type == Integer.TYPE || type == Short.TYPE || type == Byte.TYPE
+                || type == Long.class || type == Integer.class || type == Short.class || type == Byte.class
+                || type == BigInteger.class;
+    }
+
+    /**
+     * getMulti中对应id与查询结果的key
+     * 主键属性为整数类型时，数值与数字字符串统一为Long；否则数值转换为字符串，字符串保持原样，
+     * 以免字符串主键的"007"与"7"被当作同一个id
+     * @param id
+     * @param numericId 主键属性是否为整数类型
+     * @return
+     */
+    private static Object mergeKey(Object id, boolean numericId) {
+        boolean integral = id instanceof Long || id instanceof Integer || id instanceof Short || id instanceof Byte
+                || id instanceof BigInteger;
+        if (!numericId)
+            return integral ? id.toString() : id;
+        if (integral)
+            return id instanceof Long ? id : ((Number) id).longValue();
+        if (id instanceof String) {
+            String value = (String) id;
+            int length = value.length();
+            if (length > 0 && length < 19) {
+                for (int i = 0; i < length; i++) {
+                    char c = value.charAt(i);
+                    if (c < '0' || c > '9')
+                        return id;
+                }
+                return Long.parseLong(value);
+            }
+        }
+        return id;
+    }
+
     /**
      * 校验表名称是否有效
      * @return
@@ -405,12 +1609,613 @@ public abstract class CommonDb<T> {
     }
 
     /**
-     * 获取查询字段,优先使用includeField函数设置的值，否则使用setDefaultQueryFields函数设置的值 <br></br>，再否则就使用*了
+     * 获取缓存的sql模板
+     * @param op 操作类型
+     * @param condition where语句后的sql
+     * @return
+     */
+    private String sql(SqlCache.Operation op, String condition) {
+        return sql(op, null, condition);
+    }
+
+    /**
+     * 获取缓存的sql模板
+     * @param op 操作类型
+     * @param fields includeField指定的查询字段，为null时使用默认查询字段
+     * @param condition where语句后的sql
+     * @return
+     */
+    private String sql(SqlCache.Operation op, String fields, String condition) {
+        return sqlCache.get(op, this.tableName, this.tableId, getQueryFields(fields), condition);
+    }
+
+    /**
+     * 当前查询使用的查询结果缓存，事务中可能读到未提交的数据，不使用缓存；
+     * 单个分片的结果与合并后的结果sql相同，只缓存合并后的结果
+     * @return 未开启时返回null
+     */
+    private QueryCache queryCache() {
+        DbConnectionManager manager = DbConnectionManager.getInstance();
+        if (!queryCacheEnabled || manager.inTransaction() || manager.getShard() >= 0)
+            return null;
+        return Database.me.getQueryCache();
+    }
+
+    /**
+     * 查询，开启了查询结果缓存时优先读取缓存
+     */
+    private <V> V cachedQuery(final ResultSetHandler<V> rsh, final String sql, final Object... params) throws SQLException {
+        QueryCache queryCache = queryCache();
+        if (queryCache == null)
+            return DbKit.query(rsh, sql, params);
+
+        return queryCache.get(this.tableName, sql, params, new QueryCache.Loader<V>() {
+            @Override
+            public V load() throws SQLException {
+                return DbKit.query(rsh, sql, params);
+            }
+        });
+    }
+
+    /**
+     * 查询，开启了查询结果缓存时优先读取缓存，未命中时通过loader加载
+     */
+    private <V> V cachedQuery(String sql, Object[] params, QueryCache.Loader<V> loader) throws SQLException {
+        QueryCache queryCache = queryCache();
+        if (queryCache == null)
+            return loader.load();
+        return queryCache.get(this.tableName, sql, params, loader);
+    }
+
+    /**
+     * 查询bean列表，缓存的列表被多个调用方共享，返回其副本
+     */
+    private List<T> queryList(String sql, Object... params) throws SQLException {
+        if (fanOut()) {
+            final Callable<List<T>> task = querying(beanListHandler(), sql, params);
+            List<T> list = cachedQuery(sql, params, new QueryCache.Loader<List<T>>() {
+                @Override
+                public List<T> load() throws SQLException {
+                    List<T> all = new ArrayList<T>();
+                    for (List<T> shardList : allShards(task)) {
+                        all.addAll(shardList);
+                    }
+                    return all;
+                }
+            });
+            return queryCache() == null ? list : new ArrayList<T>(list);
+        }
+
+        if (queryCache() == null)
+            return DbKit.query(beanListHandler(), sql, params);
+        return new ArrayList<T>(cachedQuery(beanListHandler(), sql, params));
+    }
+
+    /**
+     * 查询基本类型数组，分片时按分片顺序拼接
+     */
+    private <A> A fetchArray(ResultSetHandler<A> rsh, String field, String condition, Object[] params) throws Exception {
+        validateTableName();
+        try {
+            List<A> results = shardResults(rsh, field, condition, params);
+            if (results.size() == 1)
+                return results.get(0);
+
+            int total = 0;
+            for (A result : results) {
+                total += Array.getLength(result);
+            }
+            @SuppressWarnings("unchecked")
+            A all = (A) Array.newInstance(results.get(0).getClass().getComponentType(), total);
+            int offset = 0;
+            for (A result : results) {
+                int length = Array.getLength(result);
+                System.arraycopy(result, 0, all, offset, length);
+                offset += length;
+            }
+            return all;
+        } catch (SQLException e) {
+            throw new DbException(e);
+        }
+    }
+
+    /**
+     * 以指定的查询字段查询，不使用查询结果缓存
+     * @return 分片时为按分片顺序排列的各分片结果，否则只有一个结果
+     */
+    private <V> List<V> shardResults(ResultSetHandler<V> rsh, String fields, String condition, Object[] params) throws SQLException {
+        String sql = sqlCache.get(SqlCache.Operation.SELECT, this.tableName, this.tableId, fields, condition);
+        if (!fanOut())
+            return Collections.singletonList(DbKit.query(rsh, sql, params));
+        return allShards(querying(rsh, sql, params));
+    }
+
+    /**
+     * 是否在所有分片上执行，已通过withShardKey或onShard指定分片时只访问该分片
+     * @return
+     */
+    private boolean fanOut() {
+        return shardStrategy != null && DbConnectionManager.getInstance().getShard() < 0;
+    }
+
+    /**
+     * 分片键是否为主键，是时按id的操作只需访问id所在的分片
+     * @return
+     */
+    private boolean shardedById() {
+        return shardKey.equals(this.tableId.toString());
+    }
+
+    private int shardOf(Object key) {
+        return shardStrategy.shard(key, Database.me.getShards().size());
+    }
+
+    /**
+     * 按主键查询单条记录，分片键为主键时只查询id所在的分片，否则返回第一个查到的分片的结果
+     */
+    private <V> V queryById(Object id, ResultSetHandler<V> rsh, String sql, Object... params) throws SQLException {
+        if (!fanOut())
+            return DbKit.query(rsh, sql, params);
+        if (shardedById())
+            return onShard(shardOf(id), querying(rsh, sql, params));
+        return firstOf(allShards(querying(rsh, sql, params)));
+    }
+
+    /**
+     * 查询单条记录，分片时返回第一个查到的分片的结果
+     */
+    private <V> V queryFirst(ResultSetHandler<V> rsh, String sql, Object... params) throws SQLException {
+        if (!fanOut())
+            return DbKit.query(rsh, sql, params);
+        return firstOf(allShards(querying(rsh, sql, params)));
+    }
+
+    private static <V> V firstOf(List<V> results) {
+        for (V result : results) {
+            if (result != null)
+                return result;
+        }
+        return null;
+    }
+
+    /**
+     * 查询已按order排序的列表，分片时归并各分片的结果
+     * @param limit sql中的LIMIT，归并后最多返回的条数
+     */
+    private List<T> querySorted(OrderBy order, String sql, Object[] params, int limit) throws SQLException {
+        if (!fanOut())
+            return DbKit.query(beanListHandler(), sql, params);
+        return OrderBy.merge(allShards(querying(beanListHandler(), sql, params)),
+                order.comparator(beanMapper), 0, limit);
+    }
+
+    /**
+     * 在所有分片上分页查询，每个分片查询前start + count条后按排序归并，
+     * 条件中没有ORDER BY时按主键排序；翻页越深每个分片读取的行越多，深度翻页请使用seek
+     */
+    private List<T> paginateShards(String fields, String condition, int start, int count, Object[] params) throws SQLException {
+        OrderBy order = OrderBy.parse(condition);
+        if (order == null) {
+            String key = this.tableId.toString();
+            condition = (condition == null ? "1=1" : condition) + " ORDER BY " + key;
+            order = OrderBy.ascending(key);
+        }
+
+        Object[] paramTmp = new Object[params.length + 2];
+        System.arraycopy(params, 0, paramTmp, 0, params.length);
+        paramTmp[params.length] = 0;
+        paramTmp[params.length + 1] = start + count;
+        List<List<T>> pages = allShards(querying(beanListHandler(), sql(SqlCache.Operation.PAGINATE, fields, condition), paramTmp));
+        return OrderBy.merge(pages, order.comparator(beanMapper), start, count);
+    }
+
+    /**
+     * 查询getMulti中未命中缓存的id，分片键为主键时按分片分组查询
+     */
+    private List<T> fetchMissed(final String fields, List<Object> ids) throws Exception {
+        if (!fanOut())
+            return fetchIn(fields, ids);
+
+        final List<T> list = new ArrayList<T>(ids.size());
+        if (!shardedById()) {
+            final List<Object> all = ids;
+            for (List<T> shardList : allShards(new Callable<List<T>>() {
+                @Override
+                public List<T> call() throws Exception {
+                    return fetchIn(fields, all);
+                }
+            })) {
+                list.addAll(shardList);
+            }
+            return list;
+        }
+
+        Map<Integer, List<Object>> groups = new TreeMap<Integer, List<Object>>();
+        for (Object id : ids) {
+            Integer shard = shardOf(id);
+            List<Object> group = groups.get(shard);
+            if (group == null)
+                groups.put(shard, group = new ArrayList<Object>());
+            group.add(id);
+        }
+        for (Map.Entry<Integer, List<Object>> group : groups.entrySet()) {
+            final List<Object> shardIds = group.getValue();
+            list.addAll(DbConnectionManager.getInstance().onShard(group.getKey(), new Callable<List<T>>() {
+                @Override
+                public List<T> call() throws Exception {
+                    return fetchIn(fields, shardIds);
+                }
+            }));
+        }
+        return list;
+    }
+
+    /**
+     * 依次流式读取各分片，读完一个分片后才打开下一个分片的连接
+     */
+    private Stream<T> streamShards(final RowMapper<T> mapper, final String sql, final Object... params) {
+        return IntStream.range(0, Database.me.getShards().size()).boxed().flatMap(new Function<Integer, Stream<T>>() {
+            @Override
+            public Stream<T> apply(Integer shard) {
+                try {
+                    return onShard(shard, new Callable<Stream<T>>() {
+                        @Override
+                        public Stream<T> call() throws Exception {
+                            return DbKit.stream(mapper, sql, params);
+                        }
+                    });
+                } catch (SQLException e) {
+                    throw new DbRuntimeException(e);
+                }
+            }
+        });
+    }
+
+    private static <V> Callable<V> querying(final ResultSetHandler<V> rsh, final String sql, final Object... params) {
+        return new Callable<V>() {
+            @Override
+            public V call() throws Exception {
+                return DbKit.query(rsh, sql, params);
+            }
+        };
+    }
+
+    private static Callable<Integer> executing(final String sql, final Object... params) {
+        return new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return DbKit.execute(sql, params);
+            }
+        };
+    }
+
+    /**
+     * 在指定分片上执行
+     */
+    private static <V> V onShard(int shard, Callable<V> task) throws SQLException {
+        try {
+            return DbConnectionManager.getInstance().onShard(shard, task);
+        } catch (Exception e) {
+            throw asSqlException(e);
+        }
+    }
+
+    /**
+     * 在所有分片上并行执行，第0个分片在当前线程执行，其余分片异步执行
+     * @return 按分片顺序排列的结果
+     */
+    private <V> List<V> allShards(final Callable<V> task) throws SQLException {
+        final DbConnectionManager manager = DbConnectionManager.getInstance();
+        if (manager.inTransaction())
+            throw new IllegalStateException("A transaction can not span shards, use withShardKey to access a single shard");
+
+        int shards = Database.me.getShards().size();
+
+        List<CompletableFuture<V>> futures = new ArrayList<CompletableFuture<V>>(Math.max(0, shards - 1));
+        for (int shard = 1; shard < shards; shard++) {
+            //在分片中提交，异步任务使用该分片的连接与并发限制
+            futures.add(onShard(shard, new Callable<CompletableFuture<V>>() {
+                @Override
+                public CompletableFuture<V> call() throws Exception {
+                    return DbAsync.supply(task);
+                }
+            }));
+        }
+
+        List<V> results = new ArrayList<V>(shards);
+        results.add(onShard(0, task));
+        for (CompletableFuture<V> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                throw asSqlException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for shards", e);
+            }
+        }
+        return results;
+    }
+
+    private static SQLException asSqlException(Throwable e) {
+        if (e instanceof SQLException)
+            return (SQLException) e;
+        if (e instanceof RuntimeException)
+            throw (RuntimeException) e;
+        if (e instanceof Error)
+            throw (Error) e;
+        return new SQLException(e);
+    }
+
+    /**
+     * 当前查询是否使用实体缓存，通过includeField指定了查询字段时、开启脏字段跟踪时与事务中不使用
+     * 跟踪的实体会被调用方修改后update，不能与其他调用方共享
+     * @param fields 指定的查询字段，为null时使用默认查询字段
      * @return
      */
-    private String getQueryFields() {
-        if (StringUtils.isNotEmpty(queryFields.get())) return queryFields.get();
+    private boolean isEntityCacheable(String fields) {
+        return entityCache != null && fields == null && snapshots == null
+                && !DbConnectionManager.getInstance().inTransaction();
+    }
+
+    /**
+     * 写回查询出的实体，查询开始后缓存被失效过时撤销写入
+     * 先写入再检查失效次数，失效发生在检查之后时由失效本身移除写入的实体
+     * @param epoch 查询开始前的失效次数
+     */
+    private void putCached(Object id, T entity, long epoch) {
+        Object key = cacheKey(id);
+        entityCache.put(key, entity);
+        if (cacheEpoch.get() != epoch)
+            entityCache.invalidate(key);
+    }
+
+    private void invalidateCached(Object id) {
+        cacheEpoch.incrementAndGet();
+        entityCache.invalidate(cacheKey(id));
+    }
+
+    private void invalidateAllCached() {
+        cacheEpoch.incrementAndGet();
+        entityCache.invalidateAll();
+    }
+
+    /**
+     * 缓存key，整数类型的主键统一为Long，避免Integer与Long的同一主键对应不同的缓存
+     * @param id
+     * @return
+     */
+    private static Object cacheKey(Object id) {
+        if (id instanceof Integer || id instanceof Short || id instanceof Byte)
+            return ((Number) id).longValue();
+        return id;
+    }
+
+    /**
+     * 获取查询字段,优先使用includeField函数指定的值，否则使用setDefaultQueryFields函数设置的值 <br></br>，再否则就使用*了
+     * @param fields includeField指定的查询字段，可为null
+     * @return
+     */
+    private String getQueryFields(String fields) {
+        if (fields != null) return fields;
 
         return defaultQueryFields;
     }
+
+    /**
+     * 多字段排序键对应的sql缓存
+     */
+    private static final class KeySqlCache {
+        private final String keys;
+        private final SqlCache cache = new SqlCache();
+
+        KeySqlCache(String keys) {
+            this.keys = keys;
+        }
+    }
+
+    /**
+     * 更新语句模板，可更新的字段与插入字段相同(不含主键与版本号)，按修改的字段集合缓存sql
+     */
+    private static final class UpdateTemplate {
+        private final String tableName;
+        private final String tableId;
+        private final String[] names;
+        private final int idIndex;
+        private final int versionIndex;
+        private final int[] columns;
+        private final ConcurrentMap<BitSet, String> sqls = new ConcurrentHashMap<BitSet, String>();
+
+        UpdateTemplate(String tableName, String tableId, String versionField, BeanMapper<?> mapper, String[] fields) {
+            this.tableName = tableName;
+            this.tableId = tableId;
+            this.names = mapper.getPropertyNames();
+            this.idIndex = mapper.indexOf(tableId);
+            if (idIndex < 0 || !mapper.isReadable(idIndex))
+                throw new IllegalArgumentException("No readable property for primary key: " + tableId);
+            this.versionIndex = versionField == null ? -1 : mapper.indexOf(versionField);
+            if (versionField != null && (versionIndex < 0 || !mapper.isReadable(versionIndex)))
+                throw new IllegalArgumentException("No readable property for version field: " + versionField);
+
+            List<Integer> columns = new ArrayList<Integer>();
+            if (fields == null) {
+                for (int i = 0; i < names.length; i++) {
+                    if (mapper.isReadable(i) && i != idIndex && i != versionIndex)
+                        columns.add(i);
+                }
+            } else {
+                for (String field : fields) {
+                    int index = mapper.indexOf(field);
+                    if (index < 0 || !mapper.isReadable(index))
+                        throw new IllegalArgumentException("No readable property for field: " + field);
+                    if (index != idIndex && index != versionIndex)
+                        columns.add(index);
+                }
+            }
+            this.columns = new int[columns.size()];
+            for (int i = 0; i < this.columns.length; i++) {
+                this.columns[i] = columns.get(i);
+            }
+        }
+
+        /**
+         * 可更新字段的当前值，可变的数组与日期保存副本
+         */
+        <T> Object[] snapshot(BeanMapper<T> mapper, T entity) {
+            Object[] values = new Object[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                Object value = mapper.getProperty(entity, columns[i]);
+                if (value instanceof byte[])
+                    value = ((byte[]) value).clone();
+                else if (value instanceof Date)
+                    value = ((Date) value).clone();
+                values[i] = value;
+            }
+            return values;
+        }
+
+        /**
+         * 与快照不同的字段，没有快照时为所有字段
+         */
+        <T> BitSet dirty(BeanMapper<T> mapper, T entity, Object[] snapshot) {
+            BitSet dirty = new BitSet(columns.length);
+            if (snapshot == null || snapshot.length != columns.length) {
+                dirty.set(0, columns.length);
+                return dirty;
+            }
+            for (int i = 0; i < columns.length; i++) {
+                if (!Objects.deepEquals(mapper.getProperty(entity, columns[i]), snapshot[i]))
+                    dirty.set(i);
+            }
+            return dirty;
+        }
+
+        String sql(BitSet dirty) {
+            String sql = sqls.get(dirty);
+            if (sql != null)
+                return sql;
+
+            StringBuilder builder = new StringBuilder("UPDATE `").append(tableName).append("` SET ");
+            boolean first = true;
+            for (int i = dirty.nextSetBit(0); i >= 0; i = dirty.nextSetBit(i + 1)) {
+                builder.append(first ? "`" : ",`").append(names[columns[i]]).append("`=?");
+                first = false;
+            }
+            if (versionIndex >= 0) {
+                String version = names[versionIndex];
+                builder.append(",`").append(version).append("`=`").append(version).append("`+1");
+            }
+            builder.append(" WHERE ").append(tableId).append("=?");
+            if (versionIndex >= 0)
+                builder.append(" AND `").append(names[versionIndex]).append("`=?");
+            sql = builder.toString();
+            //修改的字段组合很多时不再缓存
+            if (sqls.size() < SqlCache.MAX_ENTRIES)
+                sqls.putIfAbsent((BitSet) dirty.clone(), sql);
+            return sql;
+        }
+
+        <T> Object[] params(BeanMapper<T> mapper, T entity, BitSet dirty) {
+            Object[] params = new Object[dirty.cardinality() + (versionIndex >= 0 ? 2 : 1)];
+            int p = 0;
+            for (int i = dirty.nextSetBit(0); i >= 0; i = dirty.nextSetBit(i + 1)) {
+                params[p++] = mapper.getProperty(entity, columns[i]);
+            }
+            Object id = mapper.getProperty(entity, idIndex);
+            if (id == null)
+                throw new IllegalArgumentException("Can not update " + tableName + " without primary key");
+            params[p++] = id;
+            if (versionIndex >= 0) {
+                Object version = mapper.getProperty(entity, versionIndex);
+                if (version == null)
+                    throw new IllegalArgumentException("Can not update " + tableName + " without version");
+                params[p] = version;
+            }
+            return params;
+        }
+
+        /**
+         * 更新成功后将实体的版本号加1
+         */
+        <T> void updated(BeanMapper<T> mapper, T entity) {
+            if (versionIndex >= 0)
+                mapper.setProperty(entity, versionIndex, ((Number) mapper.getProperty(entity, versionIndex)).longValue() + 1);
+        }
+    }
+
+    /**
+     * 插入语句模板，字段为实体类的属性序号
+     */
+    private static final class InsertTemplate {
+        private final int idIndex;
+        private final int[] withIdColumns;
+        private final int[] withoutIdColumns;
+        private final String insertWithId;
+        private final String insertWithoutId;
+        private final String upsertWithId;
+        private final String upsertWithoutId;
+
+        InsertTemplate(String tableName, String tableId, BeanMapper<?> mapper, String[] fields) {
+            List<Integer> columns = new ArrayList<Integer>();
+            if (fields == null) {
+                String[] names = mapper.getPropertyNames();
+                for (int i = 0; i < names.length; i++) {
+                    if (mapper.isReadable(i))
+                        columns.add(i);
+                }
+            } else {
+                for (String field : fields) {
+                    int index = mapper.indexOf(field);
+                    if (index < 0 || !mapper.isReadable(index))
+                        throw new IllegalArgumentException("No readable property for field: " + field);
+                    columns.add(index);
+                }
+            }
+
+            int id = mapper.indexOf(tableId);
+            this.idIndex = columns.contains(id) ? id : -1;
+            this.withIdColumns = toArray(columns, -1);
+            this.withoutIdColumns = toArray(columns, idIndex);
+
+            String[] names = mapper.getPropertyNames();
+            this.insertWithId = insertSql(tableName, names, withIdColumns, null);
+            this.insertWithoutId = insertSql(tableName, names, withoutIdColumns, null);
+            this.upsertWithId = insertSql(tableName, names, withIdColumns, withoutIdColumns);
+            this.upsertWithoutId = insertSql(tableName, names, withoutIdColumns, withoutIdColumns);
+        }
+
+        private static int[] toArray(List<Integer> columns, int exclude) {
+            int[] array = new int[columns.size() - (exclude >= 0 ? 1 : 0)];
+            int i = 0;
+            for (Integer column : columns) {
+                if (column != exclude)
+                    array[i++] = column;
+            }
+            return array;
+        }
+
+        private static String insertSql(String tableName, String[] names, int[] columns, int[] updateColumns) {
+            StringBuilder builder = new StringBuilder("INSERT INTO `").append(tableName).append("` (");
+            for (int i = 0; i < columns.length; i++) {
+                builder.append(i == 0 ? "`" : ",`").append(names[columns[i]]).append('`');
+            }
+            builder.append(") VALUES (");
+            for (int i = 0; i < columns.length; i++) {
+                builder.append(i == 0 ? "?" : ",?");
+            }
+            builder.append(')');
+
+            if (updateColumns != null) {
+                builder.append(" ON DUPLICATE KEY UPDATE ");
+                if (updateColumns.length == 0) {
+                    builder.append('`').append(names[columns[0]]).append("`=`").append(names[columns[0]]).append('`');
+                }
+                for (int i = 0; i < updateColumns.length; i++) {
+                    String name = names[updateColumns[i]];
+                    builder.append(i == 0 ? "`" : ",`").append(name).append("`=VALUES(`").append(name).append("`)");
+                }
+            }
+            return builder.toString();
+        }
+    }
 }
@@ -1,5 +1,17 @@
 package com.mlongbo.sunflower.commondb;
 
+import com.mlongbo.sunflower.commondb.cache.QueryCache;
+import com.mlongbo.sunflower.commondb.metrics.CompositeListener;
+import com.mlongbo.sunflower.commondb.metrics.DbListener;
+import com.mlongbo.sunflower.commondb.route.Replica;
+import com.mlongbo.sunflower.commondb.route.RoundRobinStrategy;
+import com.mlongbo.sunflower.commondb.route.RoutingStrategy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
 /**
  * 配置数据库
  * @author malongbo
@@ -8,7 +20,23 @@ final public class Database {
     public static final Database me = new Database();
 
     private ConnectionProvider connectionProvider;
+    private Integer fetchSize;
+    private volatile QueryCache queryCache;
+    private final List<Replica> replicas = new ArrayList<Replica>();
+    private final List<ConnectionProvider> shards = new ArrayList<ConnectionProvider>();
+    private final List<ConnectionProvider> shardView = Collections.unmodifiableList(shards);
+    private RoutingStrategy routingStrategy = new RoundRobinStrategy();
+    private long replicaHealthCheckPeriod = 5000;
+    private int asyncConcurrency = 16;
+    private volatile Executor asyncExecutor;
+    private final List<DbListener> listeners = new ArrayList<DbListener>();
+    private volatile DbListener listener;
+    private volatile long transactionLeakThreshold;
 
+    /**
+     * 设置主库连接，写操作与事务中的读操作使用主库
+     * @param cp
+     */
     public void setConnectionProvider(ConnectionProvider cp) {
         this.connectionProvider = cp;
     }
@@ -16,4 +44,177 @@ final public class Database {
     public ConnectionProvider getConnectionProvider() {
         return connectionProvider;
     }
+
+    /**
+     * 设置流式查询每次从数据库读取的行数
+     * 不设置时MySQL使用Integer.MIN_VALUE逐行流式读取，其他数据库使用1000；
+     * MySQL连接串开启useCursorFetch=true时可设置为正数以使用游标读取
+     * @param fetchSize
+     */
+    public void setFetchSize(Integer fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    public Integer getFetchSize() {
+        return fetchSize;
+    }
+
+    /**
+     * 设置查询结果缓存，开启了查询缓存的CommonDb将使用该缓存，通过DbKit写入时按表失效
+     * @param queryCache 为null时关闭
+     */
+    public void setQueryCache(QueryCache queryCache) {
+        this.queryCache = queryCache;
+    }
+
+    public QueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    /**
+     * 添加从库，事务外的DbKit.query将路由到从库，没有可用从库时使用主库
+     * 从库存在复制延迟，写入后立即读取可能读到旧数据，需要读到最新数据时请在事务或连接作用域中读取
+     * @param cp 从库连接
+     */
+    public void addReplica(ConnectionProvider cp) {
+        addReplica(cp, 1);
+    }
+
+    /**
+     * 添加带权重的从库，权重用于WeightedStrategy
+     * @param cp 从库连接
+     * @param weight 权重
+     */
+    public void addReplica(ConnectionProvider cp, int weight) {
+        replicas.add(new Replica(cp, weight));
+    }
+
+    public List<Replica> getReplicas() {
+        return Collections.unmodifiableList(replicas);
+    }
+
+    /**
+     * 移除所有从库
+     */
+    public void clearReplicas() {
+        replicas.clear();
+    }
+
+    /**
+     * 添加分片库，配置了分片策略的CommonDb按分片键将数据分布到各分片库，分片下标为添加的顺序
+     * 须在启动时按固定顺序添加，调整分片数或顺序需要迁移数据
+     * @param cp 分片库连接
+     */
+    public void addShard(ConnectionProvider cp) {
+        shards.add(cp);
+    }
+
+    public List<ConnectionProvider> getShards() {
+        return shardView;
+    }
+
+    /**
+     * 移除所有分片库
+     */
+    public void clearShards() {
+        shards.clear();
+    }
+
+    /**
+     * 设置从库选择策略，默认轮询
+     * @param routingStrategy RoundRobinStrategy、LeastInFlightStrategy、WeightedStrategy或自定义实现
+     */
+    public void setRoutingStrategy(RoutingStrategy routingStrategy) {
+        this.routingStrategy = routingStrategy;
+    }
+
+    public RoutingStrategy getRoutingStrategy() {
+        return routingStrategy;
+    }
+
+    /**
+     * 设置从库健康检查间隔，默认5秒，小于等于0时不检查
+     * @param replicaHealthCheckPeriod 毫秒
+     */
+    public void setReplicaHealthCheckPeriod(long replicaHealthCheckPeriod) {
+        this.replicaHealthCheckPeriod = replicaHealthCheckPeriod;
+    }
+
+    public long getReplicaHealthCheckPeriod() {
+        return replicaHealthCheckPeriod;
+    }
+
+    /**
+     * 设置每个ConnectionProvider同时执行的异步任务数，默认16，应不大于连接池的最大连接数
+     * 须在第一次异步调用之前设置
+     * @param asyncConcurrency
+     */
+    public void setAsyncConcurrency(int asyncConcurrency) {
+        this.asyncConcurrency = asyncConcurrency;
+    }
+
+    public int getAsyncConcurrency() {
+        return asyncConcurrency;
+    }
+
+    /**
+     * 设置执行异步任务的执行器，不设置时Java 21及以上使用虚拟线程，更低版本使用守护线程池
+     * @param asyncExecutor
+     */
+    public void setAsyncExecutor(Executor asyncExecutor) {
+        this.asyncExecutor = asyncExecutor;
+    }
+
+    public Executor getAsyncExecutor() {
+        return asyncExecutor;
+    }
+
+    /**
+     * 设置事务泄漏检测阈值，事务开启超过该时间未结束时以WARN级别输出开启事务时的调用栈
+     * 开启后每次开启事务都会记录调用栈，默认0不检测
+     * @param transactionLeakThreshold 毫秒
+     */
+    public void setTransactionLeakThreshold(long transactionLeakThreshold) {
+        this.transactionLeakThreshold = transactionLeakThreshold;
+    }
+
+    public long getTransactionLeakThreshold() {
+        return transactionLeakThreshold;
+    }
+
+    /**
+     * 添加监听器，如MetricsRegistry、SlowQueryLog
+     * @param listener
+     */
+    public synchronized void addListener(DbListener listener) {
+        listeners.add(listener);
+        refreshListener();
+    }
+
+    /**
+     * 移除监听器
+     * @param listener
+     */
+    public synchronized void removeListener(DbListener listener) {
+        listeners.remove(listener);
+        refreshListener();
+    }
+
+    /**
+     * 获取回调所有监听器的监听器
+     * @return 没有监听器时返回null，此时DbKit不计时
+     */
+    public DbListener getListener() {
+        return listener;
+    }
+
+    private void refreshListener() {
+        if (listeners.isEmpty()) {
+            listener = null;
+        } else if (listeners.size() == 1) {
+            listener = listeners.get(0);
+        } else {
+            listener = new CompositeListener(listeners);
+        }
+    }
 }
@@ -0,0 +1,210 @@
+package com.mlongbo.sunflower.commondb;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 异步执行数据库操作
+ * 默认在Java 21及以上使用虚拟线程，更低版本使用守护线程池；
+ * 每个ConnectionProvider同时执行的任务数不超过Database.me.setAsyncConcurrency的配置，超出的任务排队而不占用线程
+ * 在DbConnectionManager.onShard中提交的任务在同一个分片上执行，并按分片库限制并发
+ * 执行器拒绝任务时(如自定义执行器已关闭)任务的future以RejectedExecutionException完成，不在调用方线程执行
+ * @author malongbo
+ */
+public final class DbAsync {
+    private static final Logger Log = LoggerFactory.getLogger(DbAsync.class);
+    private static final ConcurrentMap<ConnectionProvider, Limiter> limiters = new ConcurrentHashMap<ConnectionProvider, Limiter>();
+    private static volatile Executor defaultExecutor;
+
+    private DbAsync(){}
+
+    /**
+     * 异步执行任务
+     * @param task 数据库操作
+     * @param <V>
+     * @return 任务的结果
+     */
+    public static <V> CompletableFuture<V> supply(Callable<V> task) {
+        return supply(null, task);
+    }
+
+    /**
+     * 在显式事务中异步执行任务，同一事务的任务依次执行
+     * @param tx 显式事务，为null时不使用事务
+     * @param task 数据库操作
+     * @param <V>
+     * @return 任务的结果
+     */
+    public static <V> CompletableFuture<V> supply(final TransactionContext tx, final Callable<V> task) {
+        final CompletableFuture<V> future = new CompletableFuture<V>();
+        final DbConnectionManager manager = DbConnectionManager.getInstance();
+        final int shard = manager.getShard();
+        limiter(manager.currentProvider()).submit(new Runnable() {
+            @Override
+            public void run() {
+                if (future.isDone())
+                    return;
+                try {
+                    if (shard < 0) {
+                        future.complete(call(tx, task));
+                    } else {
+                        future.complete(manager.onShard(shard, new Callable<V>() {
+                            @Override
+                            public V call() throws Exception {
+                                return DbAsync.call(tx, task);
+                            }
+                        }));
+                    }
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        }, future);
+        return future;
+    }
+
+    private static <V> V call(TransactionContext tx, Callable<V> task) throws Exception {
+        return tx == null ? task.call() : tx.call(task);
+    }
+
+    /**
+     * 默认的执行器，Java 21及以上为每个任务一个虚拟线程
+     * @return
+     */
+    static Executor executor() {
+        Executor executor = Database.me.getAsyncExecutor();
+        if (executor != null)
+            return executor;
+
+        executor = defaultExecutor;
+        if (executor == null) {
+            synchronized (DbAsync.class) {
+                executor = defaultExecutor;
+                if (executor == null)
+                    executor = defaultExecutor = createDefaultExecutor();
+            }
+        }
+        return executor;
+    }
+
+    private static Executor createDefaultExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (Executor) method.invoke(null);
+        } catch (NoSuchMethodException e) {
+            //Java 21之前没有虚拟线程，并发数由Limiter限制，线程池无需限制大小
+        } catch (Exception e) {
+            Log.warn("Failed to create virtual thread executor, falling back to platform threads", e);
+        }
+
+        final AtomicInteger number = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "sunflower-async-" + number.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        return executor;
+    }
+
+    /**
+     * 移除连接提供者的并发限制，在连接提供者销毁时调用，已排队的任务仍会执行
+     * @param provider
+     */
+    static void forget(ConnectionProvider provider) {
+        limiters.remove(provider);
+    }
+
+    private static Limiter limiter(ConnectionProvider provider) {
+        Limiter limiter = limiters.get(provider);
+        if (limiter == null) {
+            limiter = new Limiter(Database.me.getAsyncConcurrency());
+            Limiter old = limiters.putIfAbsent(provider, limiter);
+            if (old != null)
+                limiter = old;
+        }
+        return limiter;
+    }
+
+    /**
+     * 限制同时执行的任务数，超出的任务进入队列，有任务结束时再提交
+     */
+    private static final class Limiter {
+        private final AtomicInteger permits;
+        private final Queue<Task> queue = new ConcurrentLinkedQueue<Task>();
+
+        Limiter(int permits) {
+            if (permits < 1)
+                throw new IllegalArgumentException("asyncConcurrency must be positive");
+            this.permits = new AtomicInteger(permits);
+        }
+
+        void submit(Runnable task, CompletableFuture<?> future) {
+            queue.offer(new Task(task, future));
+            drain();
+        }
+
+        private void drain() {
+            while (!queue.isEmpty()) {
+                int available = permits.get();
+                if (available <= 0)
+                    return;
+                if (!permits.compareAndSet(available, available - 1))
+                    continue;
+
+                final Task task = queue.poll();
+                if (task == null) {
+                    permits.incrementAndGet();
+                    continue;
+                }
+                Runnable wrapped = new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            task.body.run();
+                        } finally {
+                            permits.incrementAndGet();
+                            drain();
+                        }
+                    }
+                };
+                try {
+                    executor().execute(wrapped);
+                } catch (RejectedExecutionException e) {
+                    //执行器已关闭或饱和，调用方可能是其他任务的线程，不在当前线程执行
+                    permits.incrementAndGet();
+                    task.future.completeExceptionally(e);
+                }
+            }
+        }
+    }
+
+    private static final class Task {
+        private final Runnable body;
+        private final CompletableFuture<?> future;
+
+        Task(Runnable body, CompletableFuture<?> future) {
+            this.body = body;
+            this.future = future;
+        }
+    }
+}
@@ -1,12 +1,26 @@
 package com.mlongbo.sunflower.commondb;
 
+import com.mlongbo.sunflower.commondb.cache.QueryCache;
+import com.mlongbo.sunflower.commondb.metrics.DbListener;
+import com.mlongbo.sunflower.commondb.route.ReplicaRouter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTimeoutException;
+import java.sql.Savepoint;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 数据库连接管理器
@@ -15,9 +29,19 @@ import java.sql.Statement;
 public final class DbConnectionManager {
     private static final Logger Log = LoggerFactory.getLogger(DbConnectionManager.class);
     private ConnectionProvider connectionProvider;
+    private volatile ReplicaRouter replicaRouter;
+    private volatile boolean routerInitialized;
     private final Object providerLock = new Object();
-    private static final ThreadLocal<Connection> threadLocal = new ThreadLocal<Connection>();
-    private final ThreadLocal<String> transaction = new ThreadLocal<String>();
+    /**
+     * 当前线程的事务栈的栈顶
+     */
+    private final ThreadLocal<Transaction> current = new ThreadLocal<Transaction>();
+    private static volatile ScheduledExecutorService leakDetector;
+    private final ThreadLocal<ConnectionScope> scope = new ThreadLocal<ConnectionScope>();
+    /**
+     * 当前线程访问的分片下标，未设置时访问主库
+     */
+    private final ThreadLocal<Integer> shard = new ThreadLocal<Integer>();
     private static final DbConnectionManager instance = new DbConnectionManager();
 
     private DbConnectionManager(){};
@@ -37,8 +61,18 @@ public final class DbConnectionManager {
         synchronized (providerLock) {
             if (connectionProvider != null) {
                 connectionProvider.destroy();
+                DbAsync.forget(connectionProvider);
                 connectionProvider = null;
             }
+            if (replicaRouter != null) {
+                replicaRouter.destroy();
+                replicaRouter = null;
+            }
+            routerInitialized = false;
+            for (ConnectionProvider provider : Database.me.getShards()) {
+                provider.destroy();
+                DbAsync.forget(provider);
+            }
         }
     }
 
@@ -48,11 +82,161 @@ public final class DbConnectionManager {
      * @throws java.sql.SQLException
      */
     public Connection getThreadConnection() throws SQLException {
-        Connection connection = threadLocal.get();
+        Connection connection = threadConnection();
         if (connection != null)
             return connection;
 
-        return getConnectionProvider().getConnection();
+        return connect();
+    }
+
+    /**
+     * 获取DbKit读写使用的连接
+     * 依次使用当前线程的事务连接、当前连接作用域的连接，都没有时获取新连接；使用完毕后通过release释放
+     * @return
+     * @throws java.sql.SQLException
+     */
+    Connection acquire() throws SQLException {
+        Connection connection = threadConnection();
+        if (connection != null)
+            return connection;
+
+        ConnectionScope current = scope.get();
+        if (current != null && shard.get() == null)
+            return current.connection();
+
+        return connect();
+    }
+
+    /**
+     * 获取DbKit读操作使用的连接
+     * 当前线程处于事务中时使用事务连接；处于连接作用域中时，作用域内已有写操作则使用作用域的主库连接，否则使用作用域的从库连接；
+     * 其他情况使用从库连接，没有可用的从库时使用主库
+     * @return
+     * @throws java.sql.SQLException
+     */
+    Connection acquireRead() throws SQLException {
+        Connection connection = threadConnection();
+        if (connection != null)
+            return connection;
+
+        ConnectionScope current = scope.get();
+        if (current != null && shard.get() == null)
+            return current.readConnection();
+
+        return newReadConnection();
+    }
+
+    /**
+     * 释放acquire、acquireRead获取的连接，事务连接与作用域连接在事务或作用域结束时关闭
+     * @param connection
+     * @throws java.sql.SQLException
+     */
+    void release(Connection connection) throws SQLException {
+        if (connection == null || isHeld(connection))
+            return;
+
+        ReplicaRouter router = replicaRouter;
+        if (router != null && router.release(connection))
+            return;
+
+        if (connection.getAutoCommit())
+            close(connection);
+    }
+
+    /**
+     * 连接是否为当前线程的事务连接或作用域连接，这些连接在事务或作用域结束时关闭
+     * @param connection
+     * @return
+     */
+    boolean isHeld(Connection connection) {
+        if (connection == threadConnection())
+            return true;
+        ConnectionScope current = scope.get();
+        return current != null && current.owns(connection);
+    }
+
+    /**
+     * 当前线程是否绑定了事务连接
+     * @return
+     */
+    public boolean inTransaction() {
+        return threadConnection() != null;
+    }
+
+    private Connection threadConnection() {
+        Transaction tx = current.get();
+        return tx == null ? null : tx.connection;
+    }
+
+    /**
+     * 开启连接作用域，作用域内连续的DbKit调用共用同一个连接，第一次使用时才从连接池获取，作用域关闭时归还
+     * 作用域可嵌套，最外层关闭时才归还连接；当前线程处于事务中时DbKit使用事务连接
+     * <pre>
+     * try (ConnectionScope scope = DbConnectionManager.getInstance().openScope()) {
+     *     T entity = db.getById(id);
+     *     long count = db.countByCondition(...);
+     * }
+     * </pre>
+     * @return
+     */
+    public ConnectionScope openScope() {
+        ConnectionScope current = scope.get();
+        if (current != null) {
+            current.depth++;
+            return current;
+        }
+
+        current = new ConnectionScope();
+        scope.set(current);
+        return current;
+    }
+
+    /**
+     * 在指定的分片库上执行任务，任务中的DbKit调用、开启的事务与异步任务都使用该分片库的连接
+     * 分片库没有从库，连接作用域与分片无关，分片上的DbKit调用不使用作用域的连接
+     * @param index 分片下标，即Database.me.addShard的顺序
+     * @param task 数据库操作
+     * @param <V>
+     * @return 任务的结果
+     * @throws IllegalStateException 当前线程的事务属于其他库，事务不能跨分片
+     */
+    public <V> V onShard(int index, Callable<V> task) throws Exception {
+        List<ConnectionProvider> shards = Database.me.getShards();
+        if (index < 0 || index >= shards.size())
+            throw new IllegalArgumentException("Shard " + index + " is out of range, " + shards.size() + " shards configured");
+        Transaction tx = current.get();
+        if (tx != null && tx.connection != null && tx.shard != index)
+            throw new IllegalStateException("The transaction on the current thread belongs to another database, a transaction can not span shards");
+
+        Integer previous = shard.get();
+        shard.set(index);
+        try {
+            return task.call();
+        } finally {
+            if (previous == null) {
+                shard.remove();
+            } else {
+                shard.set(previous);
+            }
+        }
+    }
+
+    /**
+     * 当前线程访问的分片
+     * @return 分片下标，不在onShard中时返回-1
+     */
+    public int getShard() {
+        Integer index = shard.get();
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * 当前线程获取新连接使用的ConnectionProvider，在onShard中时为分片库，否则为主库
+     * @return
+     */
+    ConnectionProvider currentProvider() {
+        Integer index = shard.get();
+        return index == null ? getConnectionProvider() : Database.me.getShards().get(index);
     }
 
     /**
@@ -61,7 +245,111 @@ public final class DbConnectionManager {
      * @throws java.sql.SQLException
      */
     public Connection newConnection() throws SQLException {
-        return getConnectionProvider().getConnection();
+        return connect();
+    }
+
+    /**
+     * 连接作用域，只能在开启它的线程中使用和关闭
+     */
+    public final class ConnectionScope implements AutoCloseable {
+        private Connection connection;
+        private Connection readConnection;
+        private int depth = 1;
+
+        private ConnectionScope() {
+        }
+
+        private Connection connection() throws SQLException {
+            if (connection == null)
+                connection = connect();
+            return connection;
+        }
+
+        private Connection readConnection() throws SQLException {
+            if (connection != null || getReplicaRouter() == null)
+                return connection();
+            if (readConnection == null)
+                readConnection = newReadConnection();
+            return readConnection;
+        }
+
+        private boolean owns(Connection connection) {
+            return connection == this.connection || connection == this.readConnection;
+        }
+
+        /**
+         * 关闭作用域，最外层关闭时归还连接
+         */
+        @Override
+        public void close() {
+            if (depth == 0 || --depth > 0)
+                return;
+
+            scope.remove();
+            DbConnectionManager.this.close(connection);
+            connection = null;
+            if (readConnection != null) {
+                ReplicaRouter router = replicaRouter;
+                if (router == null || !router.release(readConnection))
+                    DbConnectionManager.this.close(readConnection);
+                readConnection = null;
+            }
+        }
+    }
+
+    /**
+     * 从从库获取连接，没有可用的从库时从主库获取
+     * @return
+     * @throws java.sql.SQLException
+     */
+    private Connection newReadConnection() throws SQLException {
+        ReplicaRouter router = shard.get() == null ? getReplicaRouter() : null;
+        if (router != null) {
+            DbListener listener = Database.me.getListener();
+            long start = listener == null ? 0 : System.nanoTime();
+            Connection connection = router.getConnection();
+            if (connection != null) {
+                if (listener != null)
+                    listener.connectionAcquired(System.nanoTime() - start);
+                return connection;
+            }
+        }
+        return connect();
+    }
+
+    /**
+     * 从主库获取连接，在onShard中时从分片库获取，注册了监听器时统计获取连接的耗时
+     * @return
+     * @throws java.sql.SQLException
+     */
+    Connection connect() throws SQLException {
+        DbListener listener = Database.me.getListener();
+        if (listener == null)
+            return currentProvider().getConnection();
+
+        long start = System.nanoTime();
+        Connection connection = currentProvider().getConnection();
+        listener.connectionAcquired(System.nanoTime() - start);
+        return connection;
+    }
+
+    /**
+     * 获取从库路由，未配置从库时返回null
+     * @return
+     */
+    public ReplicaRouter getReplicaRouter() {
+        if (!routerInitialized) {
+            synchronized (providerLock) {
+                if (!routerInitialized) {
+                    Database database = Database.me;
+                    if (!database.getReplicas().isEmpty())
+                        replicaRouter = new ReplicaRouter(database.getReplicas(), database.getRoutingStrategy(),
+                                database.getReplicaHealthCheckPeriod());
+                    routerInitialized = true;
+                }
+            }
+        }
+        return replicaRouter;
     }
 
     /**
@@ -80,23 +368,37 @@ public final class DbConnectionManager {
     }
 
     /**
-     * 开启数据库事务
-     *
+     * 开启数据库事务，须调用closeThreadTransactionConnection结束
+     * 当前线程已在事务中时加入该事务并返回事务连接，对应的closeThreadTransactionConnection不会结束事务
      * @return
      * @throws java.sql.SQLException
      */
     public Connection openTransactionConnection() throws SQLException {
-        Connection connection = null;
-
-        if (connection == null) {
-            connection = getConnectionProvider().getConnection();
-            threadLocal.set(connection);
+        Transaction tx = current.get();
+        if (tx != null && tx.connection != null) {
+            tx.legacyOpens++;
+            return tx.connection;
         }
+        return beginTransaction(false, -1, 0).connection;
+    }
+
+    /**
+     * 判断是否需要开启新事务，当前线程不在事务中时返回true
+     * @param name 不再使用
+     * @return
+     */
+    public boolean isFirstTransact(String name) {
+        return !inTransaction();
+    }
 
+    /**
+     *
+     * @return
+     * @throws java.sql.SQLException
+     */
+    public Connection getTransactionConnection() throws SQLException {
+        Connection connection = getThreadConnection();
         try {
-//            boolean autoCommit = true;
-//            boolean autoCommit = connection.getAutoCommit();
-//            if (autoCommit)
             connection.setAutoCommit(false);
             return connection;
         } catch (SQLException e) {
@@ -106,44 +408,403 @@ public final class DbConnectionManager {
     }
 
     /**
-     * 判断当前事务代理是否为一级代理
-     * @param name
-     * @return
+     * 记录当前事务中执行的写操作，事务结束时使查询结果缓存失效
+     * @param sql 写操作的sql
      */
-    public boolean isFirstTransact(String name) {
-        String s = transaction.get();
-        if (s == null) {
-            transaction.set(name);
-            return true;
+    void addTransactionWrite(String sql) {
+        Transaction tx = current.get();
+        if (tx == null || tx.connection == null)
+            return;
+        if (tx.writes == null)
+            tx.writes = new ArrayList<String>();
+        tx.writes.add(sql);
+    }
+
+    /**
+     * 使写操作涉及的表的查询缓存失效
+     * @param writes 写操作的sql
+     */
+    void invalidateQueryCache(List<String> writes) {
+        QueryCache queryCache = Database.me.getQueryCache();
+        if (queryCache != null && writes != null) {
+            for (String sql : writes) {
+                queryCache.invalidateBySql(sql);
+            }
         }
+    }
 
-        return s.equals(name);
+    /**
+     * 将显式事务的连接绑定到当前线程，当前线程中的DbKit调用及TransactionProxy代理的方法都将加入该事务
+     * 须在finally中调用unbind恢复当前线程原有的状态
+     * @param connection 事务连接，由调用方提交与关闭
+     * @return 绑定状态
+     */
+    Transaction bind(Connection connection) {
+        return push(new Transaction(Transaction.BOUND, current.get(), connection, false, -1, 0));
     }
 
     /**
-     *
+     * 恢复bind之前的状态
+     * @param binding bind的返回值
+     * @return 绑定期间执行的写操作
+     */
+    List<String> unbind(Transaction binding) {
+        endTransaction(binding);
+        return binding.writes;
+    }
+
+    /**
+     * 开启新事务并绑定到当前线程，当前线程原有的事务被挂起，须在finally中调用endTransaction结束
+     * 配置了Database.me.setTransactionLeakThreshold时，超过该时间未结束的事务将输出开启事务时的调用栈
+     * @param readOnly 只读事务，配置了从库时使用从库连接并设置Connection.setReadOnly(true)
+     * @param isolation 隔离级别，Connection.TRANSACTION_*常量，-1为连接的默认隔离级别
+     * @param timeout 超时时间，秒，小于等于0时不限制
      * @return
      * @throws java.sql.SQLException
      */
-    public Connection getTransactionConnection() throws SQLException {
-        Connection connection = getThreadConnection();
+    public Transaction beginTransaction(boolean readOnly, int isolation, int timeout) throws SQLException {
+        Connection connection = readOnly ? newReadConnection() : connect();
+        int previousIsolation = -1;
         try {
+            if (isolation != -1) {
+                int level = connection.getTransactionIsolation();
+                if (level != isolation) {
+                    connection.setTransactionIsolation(isolation);
+                    previousIsolation = level;
+                }
+            }
+            if (readOnly)
+                connection.setReadOnly(true);
             connection.setAutoCommit(false);
-            return connection;
+        } catch (SQLException e) {
+            restoreAndRelease(connection, readOnly, previousIsolation);
+            throw e;
+        }
+
+        long deadline = timeout > 0 ? System.nanoTime() + TimeUnit.SECONDS.toNanos(timeout) : 0;
+        Transaction tx = new Transaction(Transaction.NEW, current.get(), connection, readOnly, previousIsolation, deadline);
+        long leakThreshold = Database.me.getTransactionLeakThreshold();
+        if (leakThreshold > 0)
+            tx.leakTask = leakDetector().schedule(new LeakTask(tx.opener), leakThreshold, TimeUnit.MILLISECONDS);
+        return push(tx);
+    }
+
+    /**
+     * 挂起当前线程的事务，之后的DbKit调用以自动提交方式执行，须在finally中调用endTransaction恢复
+     * @return
+     */
+    public Transaction suspendTransaction() {
+        return push(new Transaction(Transaction.SUSPENDED, current.get(), null, false, -1, 0));
+    }
+
+    /**
+     * 加入当前线程的事务，须在finally中调用endTransaction
+     * 加入方回滚时将事务标记为只能回滚，开启事务的一方提交时回滚并抛出异常
+     * @return
+     * @throws IllegalStateException 当前线程不在事务中
+     */
+    public Transaction joinTransaction() {
+        Transaction owner = activeTransaction();
+        owner.depth++;
+        return new Transaction(Transaction.JOINED, owner, owner.connection, false, -1, 0);
+    }
+
+    /**
+     * 在当前线程的事务中创建保存点作为嵌套事务，须在finally中调用endTransaction
+     * 嵌套事务回滚时只回滚到保存点，不影响外层事务
+     * @return
+     * @throws java.sql.SQLException 驱动不支持保存点
+     * @throws IllegalStateException 当前线程不在事务中
+     */
+    public Transaction nestedTransaction() throws SQLException {
+        Transaction owner = activeTransaction();
+        Transaction tx = new Transaction(Transaction.NESTED, owner, owner.connection, false, -1, 0);
+        tx.savepoint = owner.connection.setSavepoint();
+        owner.depth++;
+        return tx;
+    }
+
+    /**
+     * 提交事务，已超时或被标记为只能回滚的事务将被回滚并抛出异常；
+     * 加入的事务与挂起状态不做任何操作，嵌套事务释放保存点
+     * @param tx
+     * @throws java.sql.SQLException
+     */
+    public void commit(Transaction tx) throws SQLException {
+        if (tx.completed || tx.kind == Transaction.SUSPENDED || tx.kind == Transaction.BOUND)
+            return;
+
+        tx.completed = true;
+        if (tx.kind == Transaction.JOINED)
+            return;
+        if (tx.kind == Transaction.NESTED) {
+            try {
+                tx.connection.releaseSavepoint(tx.savepoint);
+            } catch (SQLFeatureNotSupportedException e) {
+                //保存点在事务结束时释放
+            }
+            return;
+        }
+
+        if (tx.rollbackOnly) {
+            tx.rolledBack = true;
+            tx.connection.rollback();
+            throw new SQLException("Transaction rolled back because it has been marked as rollback-only");
+        }
+        if (tx.deadline != 0 && System.nanoTime() - tx.deadline > 0) {
+            tx.rolledBack = true;
+            tx.connection.rollback();
+            throw new SQLTimeoutException("Transaction timed out");
+        }
+        tx.connection.commit();
+    }
+
+    /**
+     * 回滚事务，加入的事务将事务标记为只能回滚，嵌套事务回滚到保存点
+     * @param tx
+     * @throws java.sql.SQLException
+     */
+    public void rollback(Transaction tx) throws SQLException {
+        if (tx.completed || tx.kind == Transaction.SUSPENDED || tx.kind == Transaction.BOUND)
+            return;
+
+        tx.completed = true;
+        tx.rolledBack = true;
+        if (tx.kind == Transaction.JOINED) {
+            tx.previous.rollbackOnly = true;
+        } else if (tx.kind == Transaction.NESTED) {
+            tx.connection.rollback(tx.savepoint);
+        } else {
+            tx.connection.rollback();
+        }
+    }
+
+    /**
+     * 结束事务：未提交的事务将被回滚，开启事务的一方归还连接并恢复当前线程原有的事务
+     * 在其之后开启但未结束的事务将先被回滚并结束
+     * @param tx
+     */
+    public void endTransaction(Transaction tx) {
+        if (tx.ended)
+            return;
+
+        if (!tx.completed) {
+            try {
+                rollback(tx);
+            } catch (SQLException e) {
+                Log.error(e.getMessage(), e);
+            }
+        }
+
+        if (tx.kind == Transaction.JOINED || tx.kind == Transaction.NESTED) {
+            tx.ended = true;
+            tx.previous.depth--;
+            return;
+        }
+
+        Transaction top = current.get();
+        while (top != null && top != tx) {
+            Log.warn("Ending transaction that was not ended by its opener", top.opener);
+            endTransaction(top);
+            top = current.get();
+        }
+        if (top == null) {
+            //不在当前线程的事务栈中
+            tx.ended = true;
+            return;
+        }
+
+        tx.ended = true;
+        if (tx.previous == null) {
+            current.remove();
+        } else {
+            current.set(tx.previous);
+        }
+        if (tx.kind != Transaction.NEW)
+            return;
+
+        if (tx.leakTask != null)
+            tx.leakTask.cancel(false);
+        invalidateQueryCache(tx.writes);
+        try {
+            tx.connection.setAutoCommit(true);
         } catch (SQLException e) {
             Log.error(e.getMessage(), e);
         }
-        return null;
+        restoreAndRelease(tx.connection, tx.readOnly, tx.previousIsolation);
+
+        DbListener listener = Database.me.getListener();
+        if (listener != null)
+            listener.transactionCompleted(System.nanoTime() - tx.startNanos, tx.rolledBack);
+    }
+
+    private Transaction push(Transaction tx) {
+        tx.shard = getShard();
+        current.set(tx);
+        return tx;
+    }
+
+    private Transaction activeTransaction() {
+        Transaction tx = current.get();
+        if (tx == null || tx.connection == null)
+            throw new IllegalStateException("No transaction is active on the current thread");
+        return tx;
+    }
+
+    private void restoreAndRelease(Connection connection, boolean readOnly, int previousIsolation) {
+        try {
+            if (readOnly)
+                connection.setReadOnly(false);
+            if (previousIsolation != -1)
+                connection.setTransactionIsolation(previousIsolation);
+        } catch (SQLException e) {
+            Log.error(e.getMessage(), e);
+        }
+
+        ReplicaRouter router = replicaRouter;
+        if (router == null || !router.release(connection))
+            close(connection);
+    }
+
+    /**
+     * 当前线程事务的剩余时间，用作语句的超时
+     * @return 秒，没有超时限制时为0
+     * @throws SQLTimeoutException 事务已超时
+     */
+    int queryTimeout() throws SQLTimeoutException {
+        Transaction tx = current.get();
+        if (tx == null || tx.deadline == 0)
+            return 0;
+
+        long remaining = tx.deadline - System.nanoTime();
+        if (remaining <= 0)
+            throw new SQLTimeoutException("Transaction timed out");
+        return (int) Math.max(1, TimeUnit.NANOSECONDS.toSeconds(remaining + TimeUnit.SECONDS.toNanos(1) - 1));
+    }
+
+    private static ScheduledExecutorService leakDetector() {
+        ScheduledExecutorService executor = leakDetector;
+        if (executor == null) {
+            synchronized (DbConnectionManager.class) {
+                executor = leakDetector;
+                if (executor == null) {
+                    ScheduledThreadPoolExecutor created = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "sunflower-transaction-leak-detector");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+                    created.setRemoveOnCancelPolicy(true);
+                    executor = leakDetector = created;
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * 事务开启超过leakThreshold未结束时输出开启事务时的调用栈
+     */
+    private static final class LeakTask implements Runnable {
+        private final Exception trace;
+        private final String threadName = Thread.currentThread().getName();
+
+        LeakTask(Exception trace) {
+            this.trace = trace;
+        }
+
+        @Override
+        public void run() {
+            Log.warn("Transaction leak detection triggered for transaction opened by thread " + threadName, trace);
+        }
+    }
+
+    /**
+     * 当前线程的事务栈中的一层：开启的事务、挂起状态或显式事务的绑定；
+     * 加入的事务与嵌套事务不入栈，previous指向所加入的事务
+     * 只能在创建它的线程中使用
+     */
+    public static final class Transaction {
+        private static final int NEW = 0;
+        private static final int SUSPENDED = 1;
+        private static final int BOUND = 2;
+        private static final int JOINED = 3;
+        private static final int NESTED = 4;
+
+        private final int kind;
+        private final Transaction previous;
+        private final Connection connection;
+        private final boolean readOnly;
+        private final int previousIsolation;
+        private final long deadline;
+        private final long startNanos = System.nanoTime();
+        private final Exception opener;
+        private List<String> writes;
+        private Savepoint savepoint;
+        private ScheduledFuture<?> leakTask;
+        private int depth;
+        private int legacyOpens;
+        /**
+         * 事务连接所属的分片，-1为主库
+         */
+        private int shard = -1;
+        private boolean rollbackOnly;
+        private boolean completed;
+        private boolean rolledBack;
+        private boolean ended;
+
+        private Transaction(int kind, Transaction previous, Connection connection, boolean readOnly,
+                            int previousIsolation, long deadline) {
+            this.kind = kind;
+            this.previous = previous;
+            this.connection = connection;
+            this.readOnly = readOnly;
+            this.previousIsolation = previousIsolation;
+            this.deadline = deadline;
+            this.opener = kind == NEW && Database.me.getTransactionLeakThreshold() > 0
+                    ? new Exception("Transaction opened here") : null;
+        }
+
+        /**
+         * 事务连接，挂起状态时为null
+         * @return
+         */
+        public Connection getConnection() {
+            return connection;
+        }
+
+        /**
+         * 加入该事务且尚未结束的调用数
+         * @return
+         */
+        public int getDepth() {
+            return depth;
+        }
+
+        /**
+         * 是否已被标记为只能回滚
+         * @return
+         */
+        public boolean isRollbackOnly() {
+            return rollbackOnly;
+        }
     }
 
     /**
      * 关闭事务连接
+     * 连接是当前线程的事务连接时等同于closeThreadTransactionConnection
      * @param conn
      * @param abortTransaction
      */
     public void closeTransactionConnection(Connection conn, boolean abortTransaction) {
-        if (conn != null) {
+        if (conn != null && conn == threadConnection()) {
+            closeThreadTransactionConnection(abortTransaction);
+            return;
+        }
 
+        if (conn != null) {
             try {
                 if (abortTransaction) {
                     conn.rollback();
@@ -166,17 +827,37 @@ public final class DbConnectionManager {
     }
 
     /**
-     * 关闭当前线程中的事务连接
-     * 并将线程中的连接对象设置为null
+     * 结束openTransactionConnection开启的事务，提交或回滚后归还连接
+     * 与加入事务的openTransactionConnection对应时只减少计数，abortTransaction为true时将事务标记为只能回滚
      * @param abortTransaction
      */
     public void closeThreadTransactionConnection(boolean abortTransaction) {
-        Connection connection = threadLocal.get();
+        Transaction tx = current.get();
+        if (tx == null || tx.connection == null)
+            return;
 
-        if (connection != null)
-            closeTransactionConnection(connection, abortTransaction);
+        if (tx.legacyOpens > 0) {
+            tx.legacyOpens--;
+            if (abortTransaction)
+                tx.rollbackOnly = true;
+            return;
+        }
+        if (tx.kind != Transaction.NEW) {
+            Log.warn("closeThreadTransactionConnection called without openTransactionConnection", new Exception());
+            return;
+        }
 
-        threadLocal.set(null);
+        try {
+            if (abortTransaction) {
+                rollback(tx);
+            } else {
+                commit(tx);
+            }
+        } catch (SQLException e) {
+            Log.error(e.getMessage(), e);
+        } finally {
+            endTransaction(tx);
+        }
     }
 
     /**
@@ -191,6 +872,7 @@ public final class DbConnectionManager {
         closeTransactionConnection(conn, abortTransaction);
     }
 
+
     /**
      * 关闭连接
      * @param conn  Connection
@@ -1,22 +1,40 @@
 package com.mlongbo.sunflower.commondb;
 
+import com.mlongbo.sunflower.commondb.cache.QueryCache;
+import com.mlongbo.sunflower.commondb.exception.DbRuntimeException;
+import com.mlongbo.sunflower.commondb.mapper.RowMapper;
+import com.mlongbo.sunflower.commondb.metrics.DbListener;
+import com.mlongbo.sunflower.commondb.metrics.SqlKind;
 import org.apache.commons.dbutils.QueryRunner;
 import org.apache.commons.dbutils.ResultSetHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * 数据库操作工具
  * @author malongbo
  */
 public final class DbKit {
+    private static final Logger Log = LoggerFactory.getLogger(DbKit.class);
     private DbKit(){}
     private static DbConnectionManager connectionManager = DbConnectionManager.getInstance();
     private static QueryRunner runner = null;
 
     static {
-        runner = new QueryRunner();
+        runner = new CachingQueryRunner();
     }
 
     /**
@@ -27,19 +45,35 @@ public final class DbKit {
      * @throws java.sql.SQLException
      */
     public static int execute(String sql, Object... params) throws SQLException {
+        DbListener listener = Database.me.getListener();
+        long start = listener == null ? 0 : System.nanoTime();
         Connection connection = null;
+        int rows = 0;
+        Throwable error = null;
         try {
-            connection = connectionManager.getThreadConnection();
-            return runner.update(connection, sql, params);
+            connection = connectionManager.acquire();
+            return rows = runner.update(connection, sql, params);
+        } catch (SQLException e) {
+            error = e;
+            throw e;
+        } catch (RuntimeException e) {
+            error = e;
+            throw e;
         } finally {
-            if (connection.getAutoCommit())
-                connectionManager.close(connection);
+            if (connection != null) {
+                invalidateQueryCache(sql, connection);
+                connectionManager.release(connection);
+            }
+            if (listener != null)
+                listener.statementExecuted(SqlKind.UPDATE, sql, System.nanoTime() - start, rows, error);
         }
     }
 
     /**
      * 自定义查询
-     ** @param rsh 自定义实现的ResultSetHandler
+     * 当前线程处于事务中时使用事务连接，可读到事务中未提交的写入；处于连接作用域中时使用作用域的连接；
+     * 其他情况配置了从库时使用从库
+     * @param rsh 自定义实现的ResultSetHandler
      * @param sql  全sql命令
      * @param params 预编译填充参数
      * @param <T>
@@ -47,12 +81,24 @@ public final class DbKit {
      * @throws java.sql.SQLException
      */
     public static <T> T query(ResultSetHandler<T> rsh,String sql, Object... params) throws SQLException {
+        DbListener listener = Database.me.getListener();
+        long start = listener == null ? 0 : System.nanoTime();
         Connection connection = null;
+        T result = null;
+        Throwable error = null;
         try {
-            connection = connectionManager.newConnection();
-            return runner.query(connection, sql, rsh, params);
+            connection = connectionManager.acquireRead();
+            return result = runner.query(connection, sql, rsh, params);
+        } catch (SQLException e) {
+            error = e;
+            throw e;
+        } catch (RuntimeException e) {
+            error = e;
+            throw e;
         } finally {
-            connectionManager.close(connection);
+            connectionManager.release(connection);
+            if (listener != null)
+                listener.statementExecuted(SqlKind.QUERY, sql, System.nanoTime() - start, rowCount(result), error);
         }
     }
 
@@ -64,13 +110,349 @@ public final class DbKit {
      * @throws java.sql.SQLException
      */
     public static int[] batch(String sql, Object[][] params) throws SQLException {
+        DbListener listener = Database.me.getListener();
+        long start = listener == null ? 0 : System.nanoTime();
         Connection connection = null;
+        Throwable error = null;
         try {
-            connection = connectionManager.getThreadConnection();
+            connection = connectionManager.acquire();
             return runner.batch(connection, sql, params);
+        } catch (SQLException e) {
+            error = e;
+            throw e;
+        } catch (RuntimeException e) {
+            error = e;
+            throw e;
         } finally {
-            if (connection.getAutoCommit())
-                connectionManager.close(connection);
+            if (connection != null) {
+                invalidateQueryCache(sql, connection);
+                connectionManager.release(connection);
+            }
+            if (listener != null)
+                listener.statementExecuted(SqlKind.BATCH, sql, System.nanoTime() - start, params.length, error);
+        }
+    }
+
+    /**
+     * 批量插入
+     * MySQL连接未开启rewriteBatchedStatements=true时，驱动会将批处理中的语句逐条发送，
+     * 此时将VALUES子句展开为多行后一次发送；其他情况使用JDBC批处理
+     * @param sql 单行INSERT语句，如INSERT INTO t (a,b) VALUES (?,?)，可带ON DUPLICATE KEY UPDATE子句
+     * @param params 每行的预编译填充参数
+     * @param generatedKeys 不为null时按插入顺序填充数据库生成的主键
+     * @return 影响的行数
+     * @throws java.sql.SQLException
+     */
+    public static int insertBatch(String sql, Object[][] params, List<Object> generatedKeys) throws SQLException {
+        if (params.length == 0)
+            return 0;
+
+        DbListener listener = Database.me.getListener();
+        long start = listener == null ? 0 : System.nanoTime();
+        Connection connection = null;
+        PreparedStatement stat = null;
+        Throwable error = null;
+        try {
+            connection = connectionManager.acquire();
+            int autoKeys = generatedKeys == null ? Statement.NO_GENERATED_KEYS : Statement.RETURN_GENERATED_KEYS;
+            int rows = 0;
+            if (params.length > 1 && !rewritesBatchedStatements(connection)) {
+                int width = params[0].length;
+                Object[] flat = new Object[params.length * width];
+                for (int i = 0; i < params.length; i++) {
+                    System.arraycopy(params[i], 0, flat, i * width, width);
+                }
+                stat = connection.prepareStatement(multiRowSql(sql, params.length), autoKeys);
+                applyQueryTimeout(stat);
+                runner.fillStatement(stat, flat);
+                rows = stat.executeUpdate();
+            } else {
+                stat = connection.prepareStatement(sql, autoKeys);
+                applyQueryTimeout(stat);
+                for (Object[] row : params) {
+                    runner.fillStatement(stat, row);
+                    stat.addBatch();
+                }
+                for (int count : stat.executeBatch()) {
+                    rows += count == Statement.SUCCESS_NO_INFO ? 1 : Math.max(count, 0);
+                }
+            }
+
+            if (generatedKeys != null) {
+                ResultSet rs = stat.getGeneratedKeys();
+                try {
+                    while (rs.next()) {
+                        generatedKeys.add(rs.getObject(1));
+                    }
+                } finally {
+                    connectionManager.close(rs);
+                }
+            }
+            return rows;
+        } catch (SQLException e) {
+            error = e;
+            throw e;
+        } catch (RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            connectionManager.close(stat);
+            if (connection != null) {
+                invalidateQueryCache(sql, connection);
+                connectionManager.release(connection);
+            }
+            if (listener != null)
+                listener.statementExecuted(SqlKind.BATCH, sql, System.nanoTime() - start, params.length, error);
+        }
+    }
+
+    /**
+     * 查询结果映射的行数，用于统计
+     * @param result
+     * @return 结果为Collection时为其大小，否则非null为1
+     */
+    private static int rowCount(Object result) {
+        if (result == null)
+            return 0;
+        if (result instanceof Collection)
+            return ((Collection<?>) result).size();
+        return 1;
+    }
+
+    /**
+     * 写操作后使查询结果缓存中对应表的缓存失效
+     * 事务中的写操作在事务结束时会再次失效，避免提交前其他线程查询到的旧数据被缓存
+     * @param sql 写操作的sql
+     * @param connection 执行写操作的连接
+     * @throws SQLException
+     */
+    private static void invalidateQueryCache(String sql, Connection connection) throws SQLException {
+        QueryCache queryCache = Database.me.getQueryCache();
+        if (queryCache == null)
+            return;
+
+        queryCache.invalidateBySql(sql);
+        if (connection != null && !connection.getAutoCommit())
+            connectionManager.addTransactionWrite(sql);
+    }
+
+    /**
+     * 直接创建的语句不经过CachingQueryRunner，在此设置当前事务剩余时间的超时
+     * @param stat
+     * @throws SQLException 事务已超时
+     */
+    private static void applyQueryTimeout(PreparedStatement stat) throws SQLException {
+        int timeout = connectionManager.queryTimeout();
+        if (timeout > 0)
+            stat.setQueryTimeout(timeout);
+    }
+
+    /**
+     * 驱动是否会将批处理改写为多行语句，MySQL需在连接串中开启rewriteBatchedStatements=true
+     * @param connection
+     * @return
+     * @throws SQLException
+     */
+    private static boolean rewritesBatchedStatements(Connection connection) throws SQLException {
+        String driver = connection.getMetaData().getDriverName();
+        if (driver == null || !driver.toLowerCase().contains("mysql"))
+            return true;
+
+        String url = connection.getMetaData().getURL();
+        return url != null && url.toLowerCase().contains("rewritebatchedstatements=true");
+    }
+
+    /**
+     * 将单行INSERT语句的VALUES子句展开为多行
+     * @param sql 单行INSERT语句
+     * @param rows 行数
+     * @return
+     */
+    static String multiRowSql(String sql, int rows) {
+        int values = sql.toUpperCase().indexOf(" VALUES");
+        int start = values < 0 ? -1 : sql.indexOf('(', values);
+        if (start < 0)
+            throw new IllegalArgumentException("Not an INSERT ... VALUES statement: " + sql);
+
+        int end = start;
+        for (int depth = 0; end < sql.length(); end++) {
+            char c = sql.charAt(end);
+            if (c == '(') {
+                depth++;
+            } else if (c == ')' && --depth == 0) {
+                break;
+            }
+        }
+
+        String row = sql.substring(start, end + 1);
+        StringBuilder builder = new StringBuilder(sql.length() + (row.length() + 1) * rows);
+        builder.append(sql, 0, start).append(row);
+        for (int i = 1; i < rows; i++) {
+            builder.append(',').append(row);
+        }
+        return builder.append(sql, end + 1, sql.length()).toString();
+    }
+
+    /**
+     * 流式查询，结果集逐行读取，内存占用与结果集大小无关
+     * 使用只进只读的Statement，fetchSize由Database.me.setFetchSize配置；
+     * 与query相同，事务中使用事务连接(可读到未提交的写入)，事务外可路由到从库；
+     * 读取完毕或关闭Stream时释放连接，事务连接与作用域连接不关闭，请使用try-with-resources确保Stream被关闭
+     * MySQL逐行读取期间同一连接不能执行其他语句，事务中请读取完毕后再执行其他操作
+     * 注册了监听器时在Stream关闭时回调，耗时与行数包括读取的全过程
+     * 读取过程中的SQLException将包装为DbRuntimeException抛出
+     * @param mapper 行映射器
+     * @param sql  全sql命令
+     * @param params 预编译填充参数
+     * @param <T>
+     * @return
+     * @throws java.sql.SQLException
+     */
+    public static <T> Stream<T> stream(RowMapper<T> mapper, String sql, Object... params) throws SQLException {
+        DbListener listener = Database.me.getListener();
+        long start = listener == null ? 0 : System.nanoTime();
+        Connection connection = null;
+        boolean held = false;
+        PreparedStatement stat = null;
+        ResultSet rs = null;
+        try {
+            connection = connectionManager.acquireRead();
+            held = connectionManager.isHeld(connection);
+            stat = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            applyQueryTimeout(stat);
+            stat.setFetchSize(fetchSize(connection));
+            runner.fillStatement(stat, params);
+            rs = stat.executeQuery();
+        } catch (SQLException e) {
+            connectionManager.close(rs);
+            connectionManager.close(stat);
+            if (!held)
+                connectionManager.release(connection);
+            if (listener != null)
+                listener.statementExecuted(SqlKind.QUERY, sql, System.nanoTime() - start, 0, e);
+            throw e;
+        }
+
+        final RowSpliterator<T> spliterator = new RowSpliterator<T>(mapper, connection, held, stat, rs, listener, sql, start);
+        return StreamSupport.stream(spliterator, false).onClose(new Runnable() {
+            @Override
+            public void run() {
+                spliterator.close();
+            }
+        });
+    }
+
+    /**
+     * 流式查询，逐行回调
+     * @param mapper 行映射器
+     * @param action 每行数据的处理
+     * @param sql  全sql命令
+     * @param params 预编译填充参数
+     * @param <T>
+     * @throws java.sql.SQLException
+     */
+    public static <T> void forEach(RowMapper<T> mapper, Consumer<? super T> action, String sql, Object... params) throws SQLException {
+        Stream<T> stream = stream(mapper, sql, params);
+        try {
+            stream.forEach(action);
+        } catch (DbRuntimeException e) {
+            if (e.getCause() instanceof SQLException)
+                throw (SQLException) e.getCause();
+            throw e;
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * 流式查询的fetchSize，未配置时MySQL使用Integer.MIN_VALUE开启逐行流式读取
+     * @param connection
+     * @return
+     * @throws SQLException
+     */
+    private static int fetchSize(Connection connection) throws SQLException {
+        Integer fetchSize = Database.me.getFetchSize();
+        if (fetchSize != null)
+            return fetchSize;
+
+        String driver = connection.getMetaData().getDriverName();
+        if (driver != null && driver.toLowerCase().contains("mysql"))
+            return Integer.MIN_VALUE;
+        return 1000;
+    }
+
+    /**
+     * 逐行读取ResultSet，读取完毕后立即释放资源
+     */
+    private static final class RowSpliterator<T> extends Spliterators.AbstractSpliterator<T> {
+        private final RowMapper<T> mapper;
+        private final boolean held;
+        private final DbListener listener;
+        private final String sql;
+        private final long start;
+        private Connection connection;
+        private PreparedStatement stat;
+        private ResultSet rs;
+        private int rows;
+
+        /**
+         * @param held 连接是否由事务或连接作用域持有，持有时读取完毕后不释放
+         */
+        RowSpliterator(RowMapper<T> mapper, Connection connection, boolean held, PreparedStatement stat, ResultSet rs,
+                       DbListener listener, String sql, long start) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+            this.mapper = mapper;
+            this.connection = connection;
+            this.held = held;
+            this.stat = stat;
+            this.rs = rs;
+            this.listener = listener;
+            this.sql = sql;
+            this.start = start;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            if (rs == null)
+                return false;
+
+            try {
+                if (!rs.next()) {
+                    close();
+                    return false;
+                }
+                T row = mapper.mapRow(rs);
+                rows++;
+                action.accept(row);
+                return true;
+            } catch (SQLException e) {
+                close(e);
+                throw new DbRuntimeException(e);
+            }
+        }
+
+        void close() {
+            close(null);
+        }
+
+        private void close(Throwable error) {
+            if (rs == null)
+                return;
+
+            connectionManager.close(rs);
+            connectionManager.close(stat);
+            try {
+                if (!held)
+                    connectionManager.release(connection);
+            } catch (SQLException e) {
+                Log.error(e.getMessage(), e);
+            } finally {
+                rs = null;
+                stat = null;
+                connection = null;
+                if (listener != null)
+                    listener.statementExecuted(SqlKind.QUERY, sql, System.nanoTime() - start, rows, error);
+            }
         }
     }
 }
@@ -0,0 +1,66 @@
+package com.mlongbo.sunflower.commondb;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 实体加载时的字段快照，用于update时找出修改过的字段
+ * 按对象身份(而非equals)查找，实体不再被引用后快照随之回收
+ * @author malongbo
+ */
+final class EntitySnapshots {
+    private final ConcurrentMap<Key, Object[]> snapshots = new ConcurrentHashMap<Key, Object[]>();
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+
+    void put(Object entity, Object[] values) {
+        expunge();
+        snapshots.put(new Key(entity, queue), values);
+    }
+
+    /**
+     * @param entity
+     * @return 没有快照时返回null
+     */
+    Object[] get(Object entity) {
+        return snapshots.get(new Key(entity, null));
+    }
+
+    int size() {
+        expunge();
+        return snapshots.size();
+    }
+
+    private void expunge() {
+        Reference<?> key;
+        while ((key = queue.poll()) != null) {
+            snapshots.remove(key);
+        }
+    }
+
+    private static final class Key extends WeakReference<Object> {
+        private final int hash;
+
+        Key(Object referent, ReferenceQueue<Object> queue) {
+            super(referent, queue);
+            this.hash = System.identityHashCode(referent);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            Object referent = get();
+            return referent != null && referent == ((Key) o).get();
+        }
+    }
+}
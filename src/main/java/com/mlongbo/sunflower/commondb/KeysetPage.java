@@ -0,0 +1,44 @@
+package com.mlongbo.sunflower.commondb;
+
+import java.util.List;
+
+/**
+ * 键集分页(seek)的查询结果
+ * @author malongbo
+ */
+public class KeysetPage<T> {
+    private final List<T> list;
+    private final Object nextKey;
+    private final boolean hasNext;
+
+    public KeysetPage(List<T> list, Object nextKey, boolean hasNext) {
+        this.list = list;
+        this.nextKey = nextKey;
+        this.hasNext = hasNext;
+    }
+
+    /**
+     * 当前页数据
+     * @return bean列表
+     */
+    public List<T> getList() {
+        return list;
+    }
+
+    /**
+     * 查询下一页时传入的游标，即当前页最后一条记录的排序键;
+     * 单字段排序键为字段值，多字段排序键为Object[]
+     * @return 当前页为空时返回null
+     */
+    public Object getNextKey() {
+        return nextKey;
+    }
+
+    /**
+     * 是否还有下一页
+     * @return
+     */
+    public boolean hasNext() {
+        return hasNext;
+    }
+}
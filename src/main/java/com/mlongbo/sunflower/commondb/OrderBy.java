@@ -0,0 +1,176 @@
+package com.mlongbo.sunflower.commondb;
+
+import com.mlongbo.sunflower.commondb.mapper.BeanMapper;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 条件中的排序子句，用于按相同顺序归并各分片已排序的查询结果
+ * 只支持按字段排序，字段须包含在查询字段中；字符串按Java的字典序比较，与数据库的排序规则可能不同
+ * @author malongbo
+ */
+final class OrderBy {
+    private static final Pattern ORDER_BY = Pattern.compile("\\border\\s+by\\b", Pattern.CASE_INSENSITIVE);
+    private static final Pattern DIRECTION = Pattern.compile("\\s+(asc|desc)$", Pattern.CASE_INSENSITIVE);
+
+    private final String[] columns;
+    private final boolean[] descending;
+
+    private OrderBy(String[] columns, boolean[] descending) {
+        this.columns = columns;
+        this.descending = descending;
+    }
+
+    /**
+     * 按字段升序
+     * @param columns
+     * @return
+     */
+    static OrderBy ascending(String... columns) {
+        return new OrderBy(columns, new boolean[columns.length]);
+    }
+
+    /**
+     * 解析条件末尾的ORDER BY子句
+     * @param condition where语句后的sql,可为null
+     * @return 没有排序子句时返回null
+     */
+    static OrderBy parse(String condition) {
+        if (condition == null)
+            return null;
+
+        //取括号外的最后一个ORDER BY，子查询中的排序与结果顺序无关
+        int start = -1;
+        Matcher matcher = ORDER_BY.matcher(condition);
+        while (matcher.find()) {
+            if (depth(condition, matcher.start()) == 0)
+                start = matcher.end();
+        }
+        if (start < 0)
+            return null;
+
+        List<String> items = new ArrayList<String>();
+        int depth = 0;
+        int from = start;
+        for (int i = start; i < condition.length(); i++) {
+            char c = condition.charAt(i);
+            if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == ',' && depth == 0) {
+                items.add(condition.substring(from, i));
+                from = i + 1;
+            }
+        }
+        items.add(condition.substring(from));
+
+        String[] columns = new String[items.size()];
+        boolean[] descending = new boolean[items.size()];
+        for (int i = 0; i < columns.length; i++) {
+            String item = items.get(i).trim();
+            Matcher direction = DIRECTION.matcher(item);
+            if (direction.find()) {
+                descending[i] = "desc".equalsIgnoreCase(direction.group(1));
+                item = item.substring(0, direction.start()).trim();
+            }
+            if (item.isEmpty() || item.indexOf('(') >= 0 || item.indexOf(' ') >= 0)
+                throw new IllegalArgumentException("Can not merge shards ordered by expression: " + item);
+            item = item.replace("`", "");
+            columns[i] = item.substring(item.lastIndexOf('.') + 1);
+        }
+        return new OrderBy(columns, descending);
+    }
+
+    private static int depth(String sql, int end) {
+        int depth = 0;
+        for (int i = 0; i < end; i++) {
+            char c = sql.charAt(i);
+            if (c == '(')
+                depth++;
+            else if (c == ')')
+                depth--;
+        }
+        return depth;
+    }
+
+    /**
+     * 按排序字段比较bean，null排在最前(降序时最后)，与MySQL一致
+     * @param mapper
+     * @param <T>
+     * @return
+     */
+    <T> Comparator<T> comparator(final BeanMapper<T> mapper) {
+        final int[] indexes = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            indexes[i] = mapper.indexOf(columns[i]);
+            if (indexes[i] < 0 || !mapper.isReadable(indexes[i]))
+                throw new IllegalArgumentException("Order column " + columns[i] + " is not a readable property of "
+                        + mapper.getType().getName());
+        }
+
+        return new Comparator<T>() {
+            @Override
+            public int compare(T a, T b) {
+                for (int i = 0; i < indexes.length; i++) {
+                    int result = compareValues(mapper.getProperty(a, indexes[i]), mapper.getProperty(b, indexes[i]));
+                    if (result != 0)
+                        return descending[i] ? -result : result;
+                }
+                return 0;
+            }
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compareValues(Object a, Object b) {
+        if (a == b)
+            return 0;
+        if (a == null)
+            return -1;
+        if (b == null)
+            return 1;
+        if (a instanceof Number && b instanceof Number && a.getClass() != b.getClass())
+            return new BigDecimal(a.toString()).compareTo(new BigDecimal(b.toString()));
+        return ((Comparable<Object>) a).compareTo(b);
+    }
+
+    /**
+     * 归并各分片已排序的结果，相等时靠前的分片优先
+     * @param sorted 各分片按同一顺序排序的结果
+     * @param comparator 排序
+     * @param from 跳过的条数
+     * @param count 最多返回的条数
+     * @param <T>
+     * @return
+     */
+    static <T> List<T> merge(List<List<T>> sorted, Comparator<? super T> comparator, int from, int count) {
+        int[] heads = new int[sorted.size()];
+        List<T> list = new ArrayList<T>(Math.max(0, Math.min(count, 1024)));
+        int skipped = 0;
+        while (list.size() < count) {
+            int min = -1;
+            for (int i = 0; i < heads.length; i++) {
+                List<T> shard = sorted.get(i);
+                if (heads[i] < shard.size() && (min < 0
+                        || comparator.compare(shard.get(heads[i]), sorted.get(min).get(heads[min])) < 0))
+                    min = i;
+            }
+            if (min < 0)
+                break;
+
+            T next = sorted.get(min).get(heads[min]++);
+            if (skipped < from) {
+                skipped++;
+            } else {
+                list.add(next);
+            }
+        }
+        return list;
+    }
+}
@@ -0,0 +1,281 @@
+package com.mlongbo.sunflower.commondb;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 查询条件构造器，生成只含占位符的条件sql，值全部作为预编译参数
+ * 条件的形状(操作与字段的序列)相同时返回同一个sql字符串，命中后不再拼接，
+ * 可配合CommonDb的sql缓存与连接池的语句缓存复用预编译语句；IN列表的长度补齐到2的幂以减少形状
+ * <pre>
+ * Query query = new Query().eq("status", 1).in("type", types).ge("age", 18).orderByDesc("id").limit(20);
+ * List&lt;User&gt; users = userDb.fetchListByQuery(query);
+ * </pre>
+ * 字段名只能包含字母、数字、下划线、点与反引号，不能来自用户输入
+ * 多个条件之间为AND关系，实例不是线程安全的
+ * @author malongbo
+ */
+public final class Query {
+    /**
+     * 最多缓存的条件形状数，超出后不再缓存
+     */
+    static final int MAX_SHAPES = 1024;
+
+    private static final ConcurrentMap<List<Object>, Compiled> shapes = new ConcurrentHashMap<List<Object>, Compiled>();
+
+    private enum Op {
+        EQ(" = ?"), NE(" <> ?"), GT(" > ?"), GE(" >= ?"), LT(" < ?"), LE(" <= ?"), LIKE(" LIKE ?"),
+        IS_NULL(" IS NULL"), IS_NOT_NULL(" IS NOT NULL"), BETWEEN(" BETWEEN ? AND ?"),
+        IN(" IN ("), NOT_IN(" NOT IN ("), ASC(""), DESC(" DESC");
+
+        private final String sql;
+
+        Op(String sql) {
+            this.sql = sql;
+        }
+    }
+
+    /**
+     * 条件形状：操作、字段名，IN操作之后还有补齐后的列表长度
+     */
+    private final List<Object> shape = new ArrayList<Object>();
+    private final List<Object> params = new ArrayList<Object>();
+    private int limit = -1;
+    private Compiled compiled;
+
+    /**
+     * 等于，值为null时为IS NULL
+     */
+    public Query eq(String field, Object value) {
+        return value == null ? isNull(field) : predicate(Op.EQ, field, value);
+    }
+
+    /**
+     * 不等于，值为null时为IS NOT NULL
+     */
+    public Query ne(String field, Object value) {
+        return value == null ? isNotNull(field) : predicate(Op.NE, field, value);
+    }
+
+    public Query gt(String field, Object value) {
+        return predicate(Op.GT, field, value);
+    }
+
+    public Query ge(String field, Object value) {
+        return predicate(Op.GE, field, value);
+    }
+
+    public Query lt(String field, Object value) {
+        return predicate(Op.LT, field, value);
+    }
+
+    public Query le(String field, Object value) {
+        return predicate(Op.LE, field, value);
+    }
+
+    /**
+     * LIKE，通配符由调用方写在值中，如"abc%"
+     */
+    public Query like(String field, String pattern) {
+        return predicate(Op.LIKE, field, pattern);
+    }
+
+    public Query isNull(String field) {
+        return op(Op.IS_NULL, field);
+    }
+
+    public Query isNotNull(String field) {
+        return op(Op.IS_NOT_NULL, field);
+    }
+
+    /**
+     * 闭区间[from, to]
+     */
+    public Query between(String field, Object from, Object to) {
+        op(Op.BETWEEN, field);
+        params.add(from);
+        params.add(to);
+        return this;
+    }
+
+    /**
+     * IN列表，列表为空时条件恒为假
+     */
+    public Query in(String field, Collection<?> values) {
+        return in(Op.IN, field, values.toArray());
+    }
+
+    public Query in(String field, Object... values) {
+        return in(Op.IN, field, values);
+    }
+
+    /**
+     * NOT IN列表，列表为空时忽略该条件
+     */
+    public Query notIn(String field, Collection<?> values) {
+        return in(Op.NOT_IN, field, values.toArray());
+    }
+
+    public Query notIn(String field, Object... values) {
+        return in(Op.NOT_IN, field, values);
+    }
+
+    /**
+     * 按字段升序
+     */
+    public Query orderBy(String field) {
+        return op(Op.ASC, field);
+    }
+
+    /**
+     * 按字段降序
+     */
+    public Query orderByDesc(String field) {
+        return op(Op.DESC, field);
+    }
+
+    /**
+     * 最多返回的记录数，只用于CommonDb.fetchListByQuery
+     * @param limit 小于0时不限制
+     */
+    public Query limit(int limit) {
+        this.limit = limit < 0 ? -1 : limit;
+        return this;
+    }
+
+    /**
+     * @return 未设置时返回-1
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * where语句后的sql，含排序子句，不含LIMIT
+     * @return 没有条件与排序时返回null
+     */
+    public String getCondition() {
+        return compile().condition;
+    }
+
+    /**
+     * where语句后的sql，不含排序，用于countByCondition
+     * @return 没有条件时返回null
+     */
+    public String getWhere() {
+        return compile().where;
+    }
+
+    /**
+     * 预编译参数，按条件的顺序排列
+     * @return
+     */
+    public Object[] getParams() {
+        return params.toArray();
+    }
+
+    private Query predicate(Op op, String field, Object value) {
+        op(op, field);
+        params.add(value);
+        return this;
+    }
+
+    private Query op(Op op, String field) {
+        shape.add(op);
+        shape.add(field);
+        compiled = null;
+        return this;
+    }
+
+    private Query in(Op op, String field, Object[] values) {
+        int size = values.length <= 1 ? values.length : Integer.highestOneBit(values.length - 1) << 1;
+        op(op, field);
+        shape.add(size);
+        for (int i = 0; i < size; i++) {
+            //以最后一个值补齐，不改变IN的结果
+            params.add(values[Math.min(i, values.length - 1)]);
+        }
+        return this;
+    }
+
+    private Compiled compile() {
+        Compiled result = compiled;
+        if (result != null)
+            return result;
+
+        result = shapes.get(shape);
+        if (result == null) {
+            result = build(shape);
+            if (shapes.size() < MAX_SHAPES) {
+                Compiled old = shapes.putIfAbsent(new ArrayList<Object>(shape), result);
+                if (old != null)
+                    result = old;
+            }
+        }
+        return compiled = result;
+    }
+
+    private static Compiled build(List<Object> shape) {
+        StringBuilder where = new StringBuilder(64);
+        StringBuilder order = new StringBuilder(32);
+        for (int i = 0; i < shape.size(); i += 2) {
+            Op op = (Op) shape.get(i);
+            String field = checkField((String) shape.get(i + 1));
+            if (op == Op.ASC || op == Op.DESC) {
+                order.append(order.length() == 0 ? " ORDER BY " : ", ").append(field).append(op.sql);
+                continue;
+            }
+
+            if (where.length() > 0)
+                where.append(" AND ");
+            if (op == Op.IN || op == Op.NOT_IN) {
+                int size = (Integer) shape.get(i + 2);
+                i++;
+                if (size == 0) {
+                    where.append(op == Op.IN ? "1=0" : "1=1");
+                    continue;
+                }
+                where.append(field).append(op.sql).append('?');
+                for (int j = 1; j < size; j++) {
+                    where.append(",?");
+                }
+                where.append(')');
+            } else {
+                where.append(field).append(op.sql);
+            }
+        }
+
+        String whereSql = where.length() == 0 ? null : where.toString();
+        String condition;
+        if (order.length() == 0) {
+            condition = whereSql;
+        } else {
+            condition = (whereSql == null ? "1=1" : whereSql) + order;
+        }
+        return new Compiled(whereSql, condition);
+    }
+
+    private static String checkField(String field) {
+        if (field == null || field.isEmpty())
+            throw new IllegalArgumentException("field can not be empty");
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '_' || c == '.' || c == '`'))
+                throw new IllegalArgumentException("Illegal field name: " + field);
+        }
+        return field;
+    }
+
+    private static final class Compiled {
+        private final String where;
+        private final String condition;
+
+        Compiled(String where, String condition) {
+            this.where = where;
+            this.condition = condition;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package com.mlongbo.sunflower.commondb;
+
+import com.mlongbo.sunflower.commondb.util.StringUtils;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * 指定了查询字段的CommonDb查询视图，由CommonDb.includeField创建
+ * 视图不可变，只持有CommonDb与拼接好的查询字段，sql由CommonDb按查询字段缓存；
+ * 可以保存在常量中重复使用，也可以在线程间或异步任务中共享
+ * <pre>
+ * private static final QueryView&lt;User&gt; NAMES = userDb.includeField("id", "name");
+ * User user = NAMES.getById(id);
+ * </pre>
+ * 只查询部分字段的结果不读写实体缓存
+ * @author malongbo
+ */
+public final class QueryView<T> {
+    private final CommonDb<T> db;
+    private final String fields;
+
+    /**
+     * @param db
+     * @param fields 以逗号分隔的查询字段，为空时使用CommonDb的默认查询字段
+     */
+    QueryView(CommonDb<T> db, String fields) {
+        this.db = db;
+        this.fields = StringUtils.isEmpty(fields) ? null : fields;
+    }
+
+    /**
+     * 查询字段
+     * @return 以逗号分隔，未指定时返回null
+     */
+    public String getFields() {
+        return fields;
+    }
+
+    /**
+     * @see CommonDb#getById(Object)
+     */
+    public T getById(Object id) throws Exception {
+        return db.selectById(fields, id);
+    }
+
+    /**
+     * @see CommonDb#findFirst(String, Object...)
+     */
+    public T findFirst(String condition, Object... params) throws Exception {
+        return db.selectFirst(fields, SqlCache.Operation.SELECT_FIRST, condition, params);
+    }
+
+    /**
+     * @see CommonDb#findFirstByQuery(Query)
+     */
+    public T findFirstByQuery(Query query) throws Exception {
+        return findFirst(query.getCondition(), query.getParams());
+    }
+
+    /**
+     * @see CommonDb#getMulti(Object...)
+     */
+    public List<T> getMulti(Object... id) throws Exception {
+        return db.selectMulti(fields, id);
+    }
+
+    /**
+     * @see CommonDb#fetchList()
+     */
+    public List<T> fetchList() throws Exception {
+        return db.selectList(fields, null);
+    }
+
+    /**
+     * @see CommonDb#fetchListByCondition(String, Object...)
+     */
+    public List<T> fetchListByCondition(String condition, Object... params) throws Exception {
+        return db.selectList(fields, condition, params);
+    }
+
+    /**
+     * @see CommonDb#fetchListByQuery(Query)
+     */
+    public List<T> fetchListByQuery(Query query) throws Exception {
+        if (query.getLimit() >= 0)
+            return paginateByQuery(query, 0, query.getLimit());
+        return fetchListByCondition(query.getCondition(), query.getParams());
+    }
+
+    /**
+     * @see CommonDb#stream(String, Object...)
+     */
+    public Stream<T> stream(String condition, Object... params) throws Exception {
+        return db.selectStream(fields, condition, params);
+    }
+
+    /**
+     * @see CommonDb#forEach(String, Consumer, Object...)
+     */
+    public void forEach(String condition, Consumer<? super T> action, Object... params) throws Exception {
+        db.selectEach(fields, condition, action, params);
+    }
+
+    /**
+     * @see CommonDb#paginate(Integer, Integer)
+     */
+    public List<T> paginate(Integer start, Integer count) throws Exception {
+        return paginate(null, start, count);
+    }
+
+    /**
+     * @see CommonDb#paginate(String, Integer, Integer, Object...)
+     */
+    public List<T> paginate(String condition, Integer start, Integer count, Object... params) throws Exception {
+        return db.selectPage(fields, condition, start, count, params);
+    }
+
+    /**
+     * @see CommonDb#paginateByQuery(Query, Integer, Integer)
+     */
+    public List<T> paginateByQuery(Query query, Integer start, Integer count) throws Exception {
+        return paginate(query.getCondition(), start, count, query.getParams());
+    }
+
+    /**
+     * @see CommonDb#seek(Object, Integer)
+     */
+    public KeysetPage<T> seek(Object lastId, Integer count) throws Exception {
+        return seekByCondition(null, lastId, count);
+    }
+
+    /**
+     * @see CommonDb#seekByCondition(String, Object, Integer, Object...)
+     */
+    public KeysetPage<T> seekByCondition(String condition, Object lastId, Integer count, Object... params) throws Exception {
+        return db.selectSeek(fields, condition, lastId, count, params);
+    }
+
+    /**
+     * @see CommonDb#seekByKeys(String, String[], Object[], Integer, Object...)
+     */
+    public KeysetPage<T> seekByKeys(String condition, String[] keyFields, Object[] lastKey, Integer count, Object... params) throws Exception {
+        return db.selectSeekByKeys(fields, condition, keyFields, lastKey, count, params);
+    }
+
+    /**
+     * @see CommonDb#getByIdAsync(Object)
+     */
+    public CompletableFuture<T> getByIdAsync(final Object id) {
+        return db.async(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                return getById(id);
+            }
+        });
+    }
+
+    /**
+     * @see CommonDb#getMultiAsync(Object...)
+     */
+    public CompletableFuture<List<T>> getMultiAsync(final Object... id) {
+        return db.async(new Callable<List<T>>() {
+            @Override
+            public List<T> call() throws Exception {
+                return getMulti(id);
+            }
+        });
+    }
+
+    /**
+     * @see CommonDb#findFirstAsync(String, Object...)
+     */
+    public CompletableFuture<T> findFirstAsync(final String condition, final Object... params) {
+        return db.async(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                return findFirst(condition, params);
+            }
+        });
+    }
+
+    /**
+     * @see CommonDb#fetchListByConditionAsync(String, Object...)
+     */
+    public CompletableFuture<List<T>> fetchListByConditionAsync(final String condition, final Object... params) {
+        return db.async(new Callable<List<T>>() {
+            @Override
+            public List<T> call() throws Exception {
+                return fetchListByCondition(condition, params);
+            }
+        });
+    }
+
+    /**
+     * @see CommonDb#paginateAsync(String, Integer, Integer, Object...)
+     */
+    public CompletableFuture<List<T>> paginateAsync(final String condition, final Integer start, final Integer count, final Object... params) {
+        return db.async(new Callable<List<T>>() {
+            @Override
+            public List<T> call() throws Exception {
+                return paginate(condition, start, count, params);
+            }
+        });
+    }
+}
@@ -0,0 +1,197 @@
+package com.mlongbo.sunflower.commondb;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * CommonDb实例的sql模板缓存
+ * 表名称、主键字段在实例生命周期内不会改变，按(操作, 查询字段, 条件)缓存拼接好的sql，
+ * 命中时直接返回缓存的字符串，不再产生临时对象
+ * @author malongbo
+ */
+final class SqlCache {
+    /**
+     * 最多缓存的sql条数，条件中直接拼接了字面量时每次sql都不同，超出后不再缓存
+     */
+    static final int MAX_ENTRIES = 512;
+
+    /**
+     * sql操作类型
+     */
+    enum Operation {
+        SELECT(true), SELECT_BY_ID(true), SELECT_FIRST(true), PAGINATE(true),
+        SEEK(true), SEEK_START(true), SELECT_IN(true),
+        COUNT(false), DELETE(false), DELETE_BY_ID(false);
+
+        private final boolean usesFields;
+
+        Operation(boolean usesFields) {
+            this.usesFields = usesFields;
+        }
+
+        /**
+         * 拼接sql
+         * @param tableName 表名称
+         * @param tableId 主键字段，SEEK操作中为排序键，多个字段以逗号分隔
+         * @param fields 查询字段
+         * @param condition where语句后的sql,可为null；SELECT_IN操作中为IN列表的参数个数
+         * @return sql字符串
+         */
+        String build(String tableName, Object tableId, String fields, String condition) {
+            StringBuilder builder = new StringBuilder(64);
+            switch (this) {
+                case COUNT:
+                    builder.append("SELECT COUNT(*) `count` FROM `").append(tableName).append('`');
+                    break;
+                case DELETE:
+                case DELETE_BY_ID:
+                    builder.append("DELETE FROM `").append(tableName).append('`');
+                    break;
+                default:
+                    builder.append("SELECT ").append(fields).append(" FROM `").append(tableName).append('`');
+            }
+
+            if (this == SELECT_BY_ID || this == DELETE_BY_ID) {
+                builder.append(" WHERE ").append(tableId).append("=?");
+            } else if (this == SELECT_IN) {
+                builder.append(" WHERE ").append(tableId).append(" IN (?");
+                for (int i = Integer.parseInt(condition); i > 1; i--) {
+                    builder.append(",?");
+                }
+                builder.append(')');
+            } else if (this == SEEK) {
+                builder.append(" WHERE ");
+                if (condition != null)
+                    builder.append('(').append(condition).append(") AND ");
+                appendKeyPredicate(builder, tableId.toString());
+            } else if (condition != null) {
+                builder.append(" WHERE ").append(condition);
+            }
+
+            if (this == SELECT_FIRST) {
+                builder.append(" LIMIT 1");
+            } else if (this == PAGINATE) {
+                builder.append(" LIMIT ?,?");
+            } else if (this == SEEK || this == SEEK_START) {
+                builder.append(" ORDER BY ").append(tableId).append(" LIMIT ?");
+            }
+            return builder.toString();
+        }
+
+        /**
+         * 单字段排序键为key > ?，多字段排序键使用行比较(a,b) > (?,?)
+         */
+        private static void appendKeyPredicate(StringBuilder builder, String key) {
+            if (key.indexOf(',') < 0) {
+                builder.append(key).append(" > ?");
+                return;
+            }
+
+            builder.append('(').append(key).append(") > (?");
+            for (int i = 0; i < key.length(); i++) {
+                if (key.charAt(i) == ',')
+                    builder.append(",?");
+            }
+            builder.append(')');
+        }
+    }
+
+    private static final Operation[] OPERATIONS = Operation.values();
+
+    /**
+     * 每种操作的sql, 下标为操作类型
+     */
+    private final Entries[] entries = new Entries[OPERATIONS.length];
+    private final AtomicInteger size = new AtomicInteger();
+
+    SqlCache() {
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            entries[i] = new Entries();
+        }
+    }
+
+    /**
+     * 获取sql，未命中时拼接并缓存
+     * @param op 操作类型
+     * @param tableName 表名称
+     * @param tableId 主键字段
+     * @param fields 查询字段
+     * @param condition where语句后的sql,可为null
+     * @return sql字符串
+     */
+    String get(Operation op, String tableName, Object tableId, String fields, String condition) {
+        String fieldKey = op.usesFields ? fields : "";
+        //按主键操作的sql与条件无关
+        if (op == Operation.SELECT_BY_ID || op == Operation.DELETE_BY_ID)
+            condition = null;
+
+        if (condition == null) {
+            ConcurrentMap<String, String> cache = entries[op.ordinal()].plain;
+            String sql = cache.get(fieldKey);
+            if (sql == null) {
+                sql = op.build(tableName, tableId, fieldKey, null);
+                if (reserve()) {
+                    String old = cache.putIfAbsent(fieldKey, sql);
+                    if (old != null) {
+                        size.decrementAndGet();
+                        sql = old;
+                    }
+                }
+            }
+            return sql;
+        }
+
+        ConcurrentMap<String, ConcurrentMap<String, String>> byFields = entries[op.ordinal()].conditional;
+        ConcurrentMap<String, String> cache = byFields.get(fieldKey);
+        String sql = cache == null ? null : cache.get(condition);
+        if (sql == null) {
+            sql = op.build(tableName, tableId, fieldKey, condition);
+            if (reserve()) {
+                if (cache == null) {
+                    cache = new ConcurrentHashMap<String, String>(8);
+                    ConcurrentMap<String, String> old = byFields.putIfAbsent(fieldKey, cache);
+                    if (old != null)
+                        cache = old;
+                }
+                String old = cache.putIfAbsent(condition, sql);
+                if (old != null) {
+                    size.decrementAndGet();
+                    sql = old;
+                }
+            }
+        }
+        return sql;
+    }
+
+    /**
+     * 当前缓存的sql条数
+     * @return
+     */
+    int size() {
+        return size.get();
+    }
+
+    private boolean reserve() {
+        if (size.incrementAndGet() > MAX_ENTRIES) {
+            size.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 一种操作缓存的sql
+     */
+    private static final class Entries {
+        /**
+         * 无条件的sql, key为查询字段
+         */
+        final ConcurrentMap<String, String> plain = new ConcurrentHashMap<String, String>(4);
+        /**
+         * 带条件的sql, key依次为查询字段与条件
+         */
+        final ConcurrentMap<String, ConcurrentMap<String, String>> conditional =
+                new ConcurrentHashMap<String, ConcurrentMap<String, String>>(4);
+    }
+}
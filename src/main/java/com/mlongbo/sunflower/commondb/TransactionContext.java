@@ -0,0 +1,171 @@
+package com.mlongbo.sunflower.commondb;
+
+import com.mlongbo.sunflower.commondb.metrics.DbListener;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 显式事务，事务连接由该对象持有而不是绑定在开启事务的线程上，可以在异步任务中传递
+ * 同一事务中的任务依次执行，执行期间事务连接绑定到执行任务的线程
+ * <pre>
+ * try (TransactionContext tx = TransactionContext.begin()) {
+ *     CompletableFuture&lt;Integer&gt; a = db.async(tx, () -&gt; db.execute(...));
+ *     CompletableFuture&lt;Integer&gt; b = DbAsync.supply(tx, () -&gt; DbKit.execute(...));
+ *     CompletableFuture.allOf(a, b).join();
+ *     tx.commit();
+ * }
+ * </pre>
+ * @author malongbo
+ */
+public final class TransactionContext implements AutoCloseable {
+    private final Connection connection;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final List<String> writes = new ArrayList<String>();
+    private final long startNanos = System.nanoTime();
+    private boolean rollbackOnly;
+    private boolean completed;
+    private boolean closed;
+
+    private TransactionContext(Connection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * 从主库获取连接并开启事务
+     * @return
+     * @throws SQLException
+     */
+    public static TransactionContext begin() throws SQLException {
+        Connection connection = DbConnectionManager.getInstance().connect();
+        try {
+            connection.setAutoCommit(false);
+        } catch (SQLException e) {
+            DbConnectionManager.getInstance().close(connection);
+            throw e;
+        }
+        return new TransactionContext(connection);
+    }
+
+    /**
+     * 在当前线程中执行事务中的任务
+     * @param task
+     * @param <V>
+     * @return 任务的结果
+     * @throws Exception 任务抛出的异常，事务已结束时抛出IllegalStateException
+     */
+    public <V> V call(Callable<V> task) throws Exception {
+        DbConnectionManager manager = DbConnectionManager.getInstance();
+        lock.lock();
+        try {
+            checkActive();
+            DbConnectionManager.Transaction binding = manager.bind(connection);
+            try {
+                return task.call();
+            } finally {
+                List<String> taskWrites = manager.unbind(binding);
+                if (binding.isRollbackOnly())
+                    rollbackOnly = true;
+                if (taskWrites != null)
+                    writes.addAll(taskWrites);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 提交事务，任务中加入该事务的TransactionProxy代理方法抛出过异常时回滚并抛出SQLException
+     * @throws SQLException
+     */
+    public void commit() throws SQLException {
+        complete(true);
+    }
+
+    /**
+     * 回滚事务
+     * @throws SQLException
+     */
+    public void rollback() throws SQLException {
+        complete(false);
+    }
+
+    /**
+     * 事务是否未提交也未回滚
+     * @return
+     */
+    public boolean isActive() {
+        lock.lock();
+        try {
+            return !completed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 归还连接，未提交的事务将被回滚
+     */
+    @Override
+    public void close() {
+        DbConnectionManager manager = DbConnectionManager.getInstance();
+        lock.lock();
+        try {
+            if (closed)
+                return;
+            closed = true;
+            if (!completed) {
+                try {
+                    complete(false);
+                } catch (SQLException e) {
+                    //回滚失败时连接仍将被关闭
+                }
+            }
+            try {
+                connection.setAutoCommit(true);
+            } catch (SQLException e) {
+                //忽略，连接池归还时会重置
+            }
+            manager.close(connection);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void complete(boolean commit) throws SQLException {
+        lock.lock();
+        try {
+            checkActive();
+            completed = true;
+            try {
+                if (commit && rollbackOnly) {
+                    connection.rollback();
+                    commit = false;
+                    throw new SQLException("Transaction rolled back because it has been marked as rollback-only");
+                }
+                if (commit) {
+                    connection.commit();
+                } else {
+                    connection.rollback();
+                }
+            } finally {
+                DbConnectionManager.getInstance().invalidateQueryCache(writes);
+                writes.clear();
+                DbListener listener = Database.me.getListener();
+                if (listener != null)
+                    listener.transactionCompleted(System.nanoTime() - startNanos, !commit);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkActive() {
+        if (completed)
+            throw new IllegalStateException("Transaction has already been completed");
+    }
+}
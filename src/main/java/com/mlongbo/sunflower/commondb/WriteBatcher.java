@@ -0,0 +1,296 @@
+package com.mlongbo.sunflower.commondb;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 合并提交的写入器，适用于大量互不相关的小写入
+ * 提交的写入由后台线程收集，第一条写入等待maxDelay或收集满maxBatchSize条后，
+ * 在一个事务中执行：连续的相同sql合并为一次DbKit.batch，整批只提交一次；
+ * 为保证写入顺序，不相邻的相同sql不会合并，不同sql交替提交(如A,B,A,B)时每条单独执行，只节省提交次数，
+ * 需要合并为批处理时应让同一种sql连续提交，或为每种sql使用单独的WriteBatcher
+ * 执行sql时失败的整批已回滚，逐条重新执行，每条写入的结果或异常通过各自的future返回；
+ * 提交时失败(如网络中断)无法确定数据库是否已提交，整批的future均以异常完成，不再重试，
+ * 此时调用方若自行重试，visits = visits + 1这类非幂等写入可能被执行两次
+ * 队列满时submit阻塞，直到后台线程腾出空间
+ * future在DbAsync的执行器上完成，依赖的回调不在后台线程执行，回调中可以继续submit或close；
+ * 在后台线程上调用submit、close会抛出IllegalStateException
+ * 与同步的DbKit调用使用不同的连接，两者之间不保证顺序，需要读到写入结果时请等待future完成
+ * <pre>
+ * WriteBatcher batcher = new WriteBatcher(256, 5, 10000);
+ * CompletableFuture&lt;Integer&gt; rows = batcher.submit("UPDATE user SET visits = visits + 1 WHERE id = ?", id);
+ * ...
+ * batcher.close();
+ * </pre>
+ * @author malongbo
+ */
+public final class WriteBatcher implements AutoCloseable {
+    private static final Logger Log = LoggerFactory.getLogger(WriteBatcher.class);
+    private static final AtomicInteger NUMBER = new AtomicInteger();
+    private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+    private final BlockingQueue<Write> queue;
+    private final Thread worker;
+    private volatile boolean closed;
+    private volatile boolean terminated;
+
+    /**
+     * 每批最多256条，最多等待5毫秒，队列容量10000
+     */
+    public WriteBatcher() {
+        this(256, 5, 10000);
+    }
+
+    /**
+     * @param maxBatchSize 每批最多的写入数
+     * @param maxDelayMillis 每批第一条写入最多等待的时间，毫秒
+     * @param queueCapacity 等待执行的写入数上限，超出时submit阻塞
+     */
+    public WriteBatcher(int maxBatchSize, long maxDelayMillis, int queueCapacity) {
+        if (maxBatchSize < 1)
+            throw new IllegalArgumentException("maxBatchSize must be positive");
+        if (maxDelayMillis < 0)
+            throw new IllegalArgumentException("maxDelayMillis must not be negative");
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.queue = new ArrayBlockingQueue<Write>(queueCapacity);
+        this.worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, "sunflower-write-batcher-" + NUMBER.incrementAndGet());
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * 提交写入，队列满时阻塞
+     * @param sql 写操作的sql
+     * @param params 预编译填充参数
+     * @return 影响的行数，驱动未返回行数时为Statement.SUCCESS_NO_INFO
+     * @throws IllegalStateException 已关闭，或在后台线程上调用
+     */
+    public CompletableFuture<Integer> submit(String sql, Object... params) {
+        checkNotWorker();
+        if (closed)
+            throw new IllegalStateException("WriteBatcher has been closed");
+
+        Write write = new Write(sql, params);
+        try {
+            queue.put(write);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            write.future.completeExceptionally(e);
+            return write.future;
+        }
+        //后台线程已退出时不会再处理队列中的写入
+        if (terminated && queue.remove(write))
+            write.future.completeExceptionally(new IllegalStateException("WriteBatcher has been closed"));
+        return write.future;
+    }
+
+    /**
+     * 等待执行的写入数
+     * @return
+     */
+    public int getPendingWrites() {
+        return queue.size();
+    }
+
+    /**
+     * 不再接受新的写入，等待已提交的写入执行完毕，各写入的future随后在DbAsync的执行器上完成
+     * @throws IllegalStateException 在后台线程上调用
+     */
+    @Override
+    public void close() {
+        checkNotWorker();
+        closed = true;
+        boolean interrupted = false;
+        while (worker.isAlive()) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private void work() {
+        List<Write> batch = new ArrayList<Write>(maxBatchSize);
+        try {
+            while (true) {
+                Write first = queue.poll(POLL_NANOS, TimeUnit.NANOSECONDS);
+                if (first == null) {
+                    if (closed)
+                        break;
+                    continue;
+                }
+
+                batch.add(first);
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (batch.size() < maxBatchSize) {
+                    Write next = queue.poll();
+                    if (next == null) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0 || closed)
+                            break;
+                        next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                        if (next == null)
+                            break;
+                    }
+                    batch.add(next);
+                }
+
+                flush(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Log.warn("WriteBatcher interrupted, failing pending writes");
+        } catch (RuntimeException e) {
+            Log.error("WriteBatcher stopped unexpectedly", e);
+        } finally {
+            terminated = true;
+            List<Write> pending = new ArrayList<Write>(batch);
+            queue.drainTo(pending);
+            if (!pending.isEmpty()) {
+                Object[] results = new Object[pending.size()];
+                Arrays.fill(results, new IllegalStateException("WriteBatcher has been closed"));
+                complete(pending, results);
+            }
+        }
+    }
+
+    private void flush(List<Write> batch) {
+        Object[] results = new Object[batch.size()];
+        try {
+            int[] counts = execute(batch);
+            for (int i = 0; i < counts.length; i++) {
+                results[i] = counts[i];
+            }
+        } catch (CommitFailure e) {
+            Log.error("Commit of " + batch.size() + " batched writes failed, they may or may not have been applied", e.getCause());
+            Arrays.fill(results, e.getCause());
+        } catch (Exception e) {
+            Log.warn("Batched write failed, retrying " + batch.size() + " writes one by one", e);
+            for (int i = 0; i < batch.size(); i++) {
+                Write write = batch.get(i);
+                try {
+                    results[i] = DbKit.execute(write.sql, write.params);
+                } catch (Exception ex) {
+                    results[i] = ex;
+                }
+            }
+        }
+        complete(new ArrayList<Write>(batch), results);
+    }
+
+    /**
+     * 在DbAsync的执行器上完成future，使依赖的回调不占用后台线程
+     * @param writes
+     * @param results 影响的行数或异常
+     */
+    private static void complete(final List<Write> writes, final Object[] results) {
+        Runnable completion = new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < writes.size(); i++) {
+                    if (results[i] instanceof Throwable) {
+                        writes.get(i).future.completeExceptionally((Throwable) results[i]);
+                    } else {
+                        writes.get(i).future.complete((Integer) results[i]);
+                    }
+                }
+            }
+        };
+        try {
+            DbAsync.executor().execute(completion);
+        } catch (RejectedExecutionException e) {
+            //自定义的执行器已关闭时改用公共线程池
+            ForkJoinPool.commonPool().execute(completion);
+        }
+    }
+
+    private void checkNotWorker() {
+        if (Thread.currentThread() == worker)
+            throw new IllegalStateException("WriteBatcher cannot be used from its own worker thread");
+    }
+
+    /**
+     * 在一个事务中执行整批写入，连续的相同sql合并为一次批处理
+     * @param batch
+     * @return 每条写入影响的行数
+     * @throws CommitFailure 提交失败，整批是否已写入未知
+     * @throws Exception 提交前失败，整批已回滚
+     */
+    private int[] execute(List<Write> batch) throws Exception {
+        int[] counts = new int[batch.size()];
+        DbConnectionManager manager = DbConnectionManager.getInstance();
+        DbConnectionManager.Transaction tx = manager.beginTransaction(false, -1, 0);
+        try {
+            int start = 0;
+            while (start < batch.size()) {
+                String sql = batch.get(start).sql;
+                int end = start + 1;
+                while (end < batch.size() && sql.equals(batch.get(end).sql)) {
+                    end++;
+                }
+
+                if (end - start == 1) {
+                    counts[start] = DbKit.execute(sql, batch.get(start).params);
+                } else {
+                    Object[][] params = new Object[end - start][];
+                    for (int i = start; i < end; i++) {
+                        params[i - start] = batch.get(i).params;
+                    }
+                    System.arraycopy(DbKit.batch(sql, params), 0, counts, start, end - start);
+                }
+                start = end;
+            }
+            try {
+                manager.commit(tx);
+            } catch (SQLException e) {
+                throw new CommitFailure(e);
+            }
+            return counts;
+        } finally {
+            manager.endTransaction(tx);
+        }
+    }
+
+    /**
+     * 提交阶段的失败，与执行sql时的失败区分
+     */
+    private static final class CommitFailure extends Exception {
+        CommitFailure(SQLException cause) {
+            super(cause);
+        }
+    }
+
+    private static final class Write {
+        private final String sql;
+        private final Object[] params;
+        private final CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+
+        Write(String sql, Object[] params) {
+            this.sql = sql;
+            this.params = params;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.mlongbo.sunflower.commondb.aop;
+
+import java.sql.Connection;
+
+/**
+ * 事务隔离级别
+ * @author malongbo
+ */
+public enum Isolation {
+    /**
+     * 使用连接的默认隔离级别
+     */
+    DEFAULT(-1),
+    READ_UNCOMMITTED(Connection.TRANSACTION_READ_UNCOMMITTED),
+    READ_COMMITTED(Connection.TRANSACTION_READ_COMMITTED),
+    REPEATABLE_READ(Connection.TRANSACTION_REPEATABLE_READ),
+    SERIALIZABLE(Connection.TRANSACTION_SERIALIZABLE);
+
+    private final int level;
+
+    Isolation(int level) {
+        this.level = level;
+    }
+
+    /**
+     * Connection.TRANSACTION_*常量，DEFAULT为-1
+     * @return
+     */
+    public int level() {
+        return level;
+    }
+}
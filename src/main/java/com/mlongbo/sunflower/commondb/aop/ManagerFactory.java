@@ -4,30 +4,107 @@ import net.sf.cglib.proxy.Callback;
 import net.sf.cglib.proxy.Enhancer;
 import net.sf.cglib.proxy.NoOp;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 
 /**
+ * 获取事务代理对象，每个类只创建一个代理对象
+ * 代理对象的创建任务由ClassValue保存，不加锁也不计算hash，也不阻止类的卸载；
+ * 并发首次获取同一个类时ClassValue只发布一个任务，只有一个线程执行创建，其他线程等待其结果
+ * 每个类的代理类只生成一次，拦截器注册为代理类的静态回调，create只需调用代理类的构造方法
  * @author malongbo
  */
 final public class ManagerFactory {
-    private static final Map<Class, Object> managers = new HashMap<Class, Object>();
+    private static final Callback[] CALLBACKS = new Callback[] {
+            new TransactionProxy(), NoOp.INSTANCE
+    };
 
-    public static <T> T getManager(Class<T> target) {
-        if (!managers.containsKey(target)) {
-            loadManager(target);
+    private static final ClassValue<Constructor<?>> proxyConstructors = new ClassValue<Constructor<?>>() {
+        @Override
+        protected Constructor<?> computeValue(Class<?> type) {
+            Enhancer en = new Enhancer();
+            en.setSuperclass(type);
+            en.setCallbackTypes(new Class<?>[] {TransactionProxy.class, NoOp.class});
+            en.setCallbackFilter(new TransactionProxyFilter());
+            Class<?> proxyClass = en.createClass();
+            Enhancer.registerStaticCallbacks(proxyClass, CALLBACKS);
+            try {
+                Constructor<?> constructor = proxyClass.getDeclaredConstructor();
+                constructor.setAccessible(true);
+                return constructor;
+            } catch (NoSuchMethodException e) {
+                throw new IllegalArgumentException(type.getName() + " has no default constructor", e);
+            }
+        }
+    };
+
+    /**
+     * 每个类的代理对象创建任务，computeValue可能并发执行，但所有线程拿到的是同一个已发布的任务
+     */
+    private static final ClassValue<FutureTask<Object>> managers = new ClassValue<FutureTask<Object>>() {
+        @Override
+        protected FutureTask<Object> computeValue(final Class<?> type) {
+            return new FutureTask<Object>(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    return proxy(type);
+                }
+            });
         }
-        return (T) managers.get(target);
+    };
+
+    public static <T> T getManager(Class<T> target) {
+        return target.cast(load(target));
     }
 
     public static <T> void loadManager(Class<T>... targets) {
         for (Class<T> target : targets) {
-            if (managers.containsKey(target))
-                continue;
+            load(target);
+        }
+    }
 
-            T proxy = proxy(target);
+    /**
+     * 启动时并行创建代理对象，避免第一次请求时创建
+     * cglib 2.2生成代理类时持有全局锁，类的生成仍是串行的，并行的是代理对象的创建与初始化
+     * @param targets
+     */
+    public static void preload(Class<?>... targets) {
+        if (targets.length == 0)
+            return;
 
-            managers.put(target, proxy);
+        int threads = Math.min(targets.length, Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "sunflower-manager-preload");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            List<Future<Object>> futures = new ArrayList<Future<Object>>(targets.length);
+            for (final Class<?> target : targets) {
+                futures.add(executor.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        return load(target);
+                    }
+                }));
+            }
+            for (Future<Object> future : futures) {
+                unwrap(future);
+            }
+        } finally {
+            executor.shutdown();
         }
     }
 
@@ -35,16 +112,64 @@ final public class ManagerFactory {
         return proxy(target);
     }
 
+    private static Object load(Class<?> target) {
+        FutureTask<Object> task = managers.get(target);
+        //已完成或其他线程正在执行时run直接返回
+        task.run();
+        try {
+            return unwrap(task);
+        } catch (RuntimeException e) {
+            failed(target, task);
+            throw e;
+        } catch (Error e) {
+            failed(target, task);
+            throw e;
+        }
+    }
+
+    /**
+     * 创建失败时移除任务以允许重试，已被其他线程替换的任务保留
+     */
+    private static void failed(Class<?> target, FutureTask<Object> task) {
+        if (managers.get(target) == task)
+            managers.remove(target);
+    }
+
+    private static Object unwrap(Future<Object> future) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException)
+                        throw (RuntimeException) cause;
+                    if (cause instanceof Error)
+                        throw (Error) cause;
+                    throw new IllegalStateException(cause);
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
     private static <T> T proxy(Class<T> target) {
-        TransactionProxy proxy = new TransactionProxy();
-        Callback[] callbacks = new Callback[] {
-                proxy, NoOp.INSTANCE
-        };
-        Enhancer en = new Enhancer();
-        en.setSuperclass(target);
-        en.setCallbacks(callbacks);
-        en.setCallbackFilter(new TransactionProxyFilter());
-
-        return (T) en.create();
+        try {
+            return target.cast(proxyConstructors.get(target).newInstance());
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IllegalStateException(cause);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Failed to create proxy of " + target.getName(), e);
+        }
     }
 }
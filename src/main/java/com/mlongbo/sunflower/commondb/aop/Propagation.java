@@ -0,0 +1,24 @@
+package com.mlongbo.sunflower.commondb.aop;
+
+/**
+ * 事务传播方式
+ * @author malongbo
+ */
+public enum Propagation {
+    /**
+     * 当前线程已在事务中时加入该事务，否则开启新事务；加入的方法抛出异常时整个事务只能回滚
+     */
+    REQUIRED,
+    /**
+     * 挂起当前线程的事务并开启新事务，新事务结束后恢复
+     */
+    REQUIRES_NEW,
+    /**
+     * 挂起当前线程的事务，以自动提交方式执行，结束后恢复
+     */
+    NOT_SUPPORTED,
+    /**
+     * 当前线程已在事务中时在该事务中创建保存点，抛出异常时只回滚到保存点；否则开启新事务
+     */
+    NESTED
+}
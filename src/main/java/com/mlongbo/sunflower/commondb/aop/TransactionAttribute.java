@@ -0,0 +1,101 @@
+package com.mlongbo.sunflower.commondb.aop;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 方法的事务属性，每个Method只解析一次
+ * 依次使用方法上、方法所在类上的Transactional注解，都没有时方法名以增删改前缀开头的方法使用默认属性的事务
+ * @author malongbo
+ */
+final class TransactionAttribute {
+    private static final String[] TRANSACTIONAL_PREFIXES = new String[]{
+            "add","create","put","insert",
+            "delete","remove",
+            "update","change","edit"};     //增删改操作
+
+    private static final ConcurrentMap<Method, TransactionAttribute> attributes = new ConcurrentHashMap<Method, TransactionAttribute>();
+
+    private final boolean transactional;
+    private final Propagation propagation;
+    private final int isolation;
+    private final int timeout;
+    private final boolean readOnly;
+
+    private TransactionAttribute(Method method) {
+        Transactional annotation = method.getAnnotation(Transactional.class);
+        if (annotation == null)
+            annotation = method.getDeclaringClass().getAnnotation(Transactional.class);
+
+        if (annotation != null) {
+            this.transactional = true;
+            this.propagation = annotation.propagation();
+            this.isolation = annotation.isolation().level();
+            this.timeout = annotation.timeout();
+            this.readOnly = annotation.readOnly();
+        } else {
+            this.transactional = hasTransactionalPrefix(method.getName());
+            this.propagation = Propagation.REQUIRED;
+            this.isolation = Isolation.DEFAULT.level();
+            this.timeout = -1;
+            this.readOnly = false;
+        }
+    }
+
+    /**
+     * 获取方法的事务属性
+     * @param method
+     * @return
+     */
+    static TransactionAttribute of(Method method) {
+        TransactionAttribute attribute = attributes.get(method);
+        if (attribute == null) {
+            attribute = new TransactionAttribute(method);
+            TransactionAttribute old = attributes.putIfAbsent(method, attribute);
+            if (old != null)
+                attribute = old;
+        }
+        return attribute;
+    }
+
+    /**
+     * 是否需要事务
+     * @return
+     */
+    boolean isTransactional() {
+        return transactional;
+    }
+
+    Propagation getPropagation() {
+        return propagation;
+    }
+
+    /**
+     * 隔离级别，-1为连接的默认隔离级别
+     * @return
+     */
+    int getIsolation() {
+        return isolation;
+    }
+
+    /**
+     * 超时时间，秒，小于等于0时不限制
+     * @return
+     */
+    int getTimeout() {
+        return timeout;
+    }
+
+    boolean isReadOnly() {
+        return readOnly;
+    }
+
+    private static boolean hasTransactionalPrefix(String name) {
+        for (String prefix : TRANSACTIONAL_PREFIXES) {
+            if (name.startsWith(prefix))
+                return true;
+        }
+        return false;
+    }
+}
@@ -5,46 +5,47 @@ import net.sf.cglib.proxy.MethodInterceptor;
 import net.sf.cglib.proxy.MethodProxy;
 
 import java.lang.reflect.Method;
+import java.sql.SQLException;
 
 /**
+ * 事务拦截器，不保存状态，所有代理对象共用一个实例
+ * 按方法的TransactionAttribute加入、新开启、嵌套或挂起事务，方法抛出异常时回滚，无论如何都会在返回前结束事务
  * @author malongbo
  */
 public class TransactionProxy implements MethodInterceptor {
     @Override
     public Object intercept(Object o, Method method, Object[] objects, MethodProxy methodProxy) throws Throwable {
-        /*String name = method.getDeclaringClass().getName();
-        name += "." + method.getName();
-
-        for (Class clazz : method.getParameterTypes()) {
-            name += "."+clazz.getName();
+        TransactionAttribute attribute = TransactionAttribute.of(method);
+        DbConnectionManager manager = DbConnectionManager.getInstance();
+
+        DbConnectionManager.Transaction tx;
+        switch (attribute.getPropagation()) {
+            case REQUIRED:
+                tx = manager.inTransaction() ? manager.joinTransaction() : begin(manager, attribute);
+                break;
+            case NESTED:
+                tx = manager.inTransaction() ? manager.nestedTransaction() : begin(manager, attribute);
+                break;
+            case NOT_SUPPORTED:
+                tx = manager.suspendTransaction();
+                break;
+            default:
+                tx = begin(manager, attribute);
         }
 
-        System.out.println(method.toString());
-        System.out.println(method.hashCode());*/
-        String name = new StringBuffer().append(method.hashCode()).toString();
-        boolean isException = false;
-        boolean firstTransact = DbConnectionManager.getInstance().isFirstTransact(name);
-        if (firstTransact)
-            DbConnectionManager.getInstance().openTransactionConnection();
-
         try {
             Object invokeResult = methodProxy.invokeSuper(o, objects);
-
-            if (firstTransact)
-                DbConnectionManager.getInstance().getTransactionConnection().commit();
-
+            manager.commit(tx);
             return invokeResult;
         } catch (Exception e) {
-//            if (firstTransact)
-                DbConnectionManager.getInstance().getTransactionConnection().rollback();
-            DbConnectionManager.getInstance().closeThreadTransactionConnection(true);
-            isException = true;
+            //未提交的事务由endTransaction回滚
             throw new Exception(e);
         } finally {
-            if (!isException) {
-                if (firstTransact)
-                    DbConnectionManager.getInstance().closeThreadTransactionConnection(false);
-            }
+            manager.endTransaction(tx);
         }
     }
+
+    private static DbConnectionManager.Transaction begin(DbConnectionManager manager, TransactionAttribute attribute) throws SQLException {
+        return manager.beginTransaction(attribute.isReadOnly(), attribute.getIsolation(), attribute.getTimeout());
+    }
 }
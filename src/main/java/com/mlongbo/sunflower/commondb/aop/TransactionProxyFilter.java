@@ -5,26 +5,25 @@ import net.sf.cglib.proxy.CallbackFilter;
 import java.lang.reflect.Method;
 
 /**
+ * 需要事务的方法使用TransactionProxy，其他方法不拦截
  * @author malongbo
  */
 public class TransactionProxyFilter implements CallbackFilter {
-    private final String[] filterPrefixNames = new String[]{
-            "add","create","put","insert",
-            "delete","remove",
-            "update","change","edit"};     //增删改操作
-
     @Override
     public int accept(Method method) {
-        return isFilter(method.getName()) ? 0 : 1;
+        return TransactionAttribute.of(method).isTransactional() ? 0 : 1;
     }
 
-    private boolean isFilter (String name) {
-
-        for (String tmpName : this.filterPrefixNames) {
-            if (name.startsWith(tmpName))//需要被代理
-                return true;
-        }
-        return false;
+    /**
+     * 所有实例等价，使cglib可以复用生成的代理类
+     */
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof TransactionProxyFilter;
     }
 
+    @Override
+    public int hashCode() {
+        return TransactionProxyFilter.class.hashCode();
+    }
 }
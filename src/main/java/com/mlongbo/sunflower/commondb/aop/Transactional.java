@@ -0,0 +1,49 @@
+package com.mlongbo.sunflower.commondb.aop;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 声明ManagerFactory代理对象的方法的事务属性
+ * 标注在类上时对该类声明的所有方法生效，方法上的注解优先；
+ * 方法与类都没有注解时，方法名以add、update、delete等增删改前缀开头的方法使用默认属性的事务，其他方法不使用事务
+ * <pre>
+ * public class UserManager {
+ *     &#64;Transactional(readOnly = true)
+ *     public User getUser(long id) { ... }
+ *
+ *     &#64;Transactional(propagation = Propagation.REQUIRES_NEW, timeout = 5)
+ *     public void writeAuditLog(...) { ... }
+ * }
+ * </pre>
+ * @author malongbo
+ */
+@Documented
+@Inherited
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.TYPE, ElementType.METHOD})
+public @interface Transactional {
+    /**
+     * 传播方式
+     */
+    Propagation propagation() default Propagation.REQUIRED;
+
+    /**
+     * 隔离级别，只对新开启的事务生效
+     */
+    Isolation isolation() default Isolation.DEFAULT;
+
+    /**
+     * 超时时间，秒，小于等于0时不限制；事务中每条语句的超时为事务的剩余时间，提交时已超时则回滚
+     */
+    int timeout() default -1;
+
+    /**
+     * 只读事务，配置了从库时使用从库连接，并设置Connection.setReadOnly(true)，只对新开启的事务生效
+     */
+    boolean readOnly() default false;
+}
@@ -0,0 +1,66 @@
+package com.mlongbo.sunflower.commondb.cache;
+
+/**
+ * 缓存统计快照
+ * @author malongbo
+ */
+public final class CacheStats {
+    private final long hitCount;
+    private final long missCount;
+    private final long evictionCount;
+    private final long size;
+
+    public CacheStats(long hitCount, long missCount, long evictionCount, long size) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.evictionCount = evictionCount;
+        this.size = size;
+    }
+
+    /**
+     * 命中次数
+     * @return
+     */
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * 未命中次数
+     * @return
+     */
+    public long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * 因容量或过期被淘汰的条数，不包含主动失效的条数
+     * @return
+     */
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * 当前缓存条数
+     * @return
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * 命中率，没有请求时为1
+     * @return
+     */
+    public double hitRate() {
+        long requests = hitCount + missCount;
+        return requests == 0 ? 1.0 : (double) hitCount / requests;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{hitCount=" + hitCount + ", missCount=" + missCount
+                + ", evictionCount=" + evictionCount + ", size=" + size + "}";
+    }
+}
@@ -0,0 +1,39 @@
+package com.mlongbo.sunflower.commondb.cache;
+
+/**
+ * 实体缓存，以主键值缓存CommonDb查询出的bean
+ * 实现必须是线程安全的，可以实现该接口接入其他缓存
+ * @author malongbo
+ */
+public interface EntityCache<K, V> {
+    /**
+     * 获取缓存的实体
+     * @param key 主键值
+     * @return 未命中或已过期时返回null
+     */
+    public V get(K key);
+
+    /**
+     * 缓存实体
+     * @param key 主键值
+     * @param value
+     */
+    public void put(K key, V value);
+
+    /**
+     * 使指定主键的缓存失效
+     * @param key 主键值
+     */
+    public void invalidate(K key);
+
+    /**
+     * 使全部缓存失效
+     */
+    public void invalidateAll();
+
+    /**
+     * 缓存统计
+     * @return
+     */
+    public CacheStats stats();
+}
@@ -0,0 +1,156 @@
+package com.mlongbo.sunflower.commondb.cache;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 进程内的LRU实体缓存，支持容量与存活时间淘汰
+ * 按key的hash分段加锁，每段是一个按访问顺序排列的LinkedHashMap，段之间互不阻塞
+ * @author malongbo
+ */
+public class LruEntityCache<K, V> implements EntityCache<K, V> {
+    private static final int SEGMENTS = 16;
+
+    private final List<Segment<K, V>> segments;
+    private final long ttlNanos;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * 创建不过期的缓存
+     * @param maximumSize 最大缓存条数
+     */
+    public LruEntityCache(int maximumSize) {
+        this(maximumSize, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param maximumSize 最大缓存条数
+     * @param ttl 写入后的存活时间，小于等于0时不过期
+     * @param unit 时间单位
+     */
+    public LruEntityCache(int maximumSize, long ttl, TimeUnit unit) {
+        if (maximumSize < 1)
+            throw new IllegalArgumentException("maximumSize must be positive");
+
+        this.ttlNanos = ttl > 0 ? unit.toNanos(ttl) : 0;
+        int count = Math.min(SEGMENTS, maximumSize);
+        List<Segment<K, V>> segments = new ArrayList<Segment<K, V>>(count);
+        for (int i = 0; i < count; i++) {
+            //余数分摊到前几段，保证总容量等于maximumSize
+            segments.add(new Segment<K, V>(maximumSize / count + (i < maximumSize % count ? 1 : 0)));
+        }
+        this.segments = segments;
+    }
+
+    @Override
+    public V get(K key) {
+        Segment<K, V> segment = segmentFor(key);
+        segment.lock.lock();
+        try {
+            Entry<V> entry = segment.map.get(key);
+            if (entry != null && ttlNanos > 0 && System.nanoTime() - entry.writeTime > ttlNanos) {
+                segment.map.remove(key);
+                evictions.increment();
+                entry = null;
+            }
+
+            if (entry == null) {
+                misses.increment();
+                return null;
+            }
+            hits.increment();
+            return entry.value;
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(K key, V value) {
+        Segment<K, V> segment = segmentFor(key);
+        segment.lock.lock();
+        try {
+            segment.map.put(key, new Entry<V>(value, ttlNanos > 0 ? System.nanoTime() : 0));
+            Iterator<Map.Entry<K, Entry<V>>> iterator = segment.map.entrySet().iterator();
+            while (segment.map.size() > segment.capacity && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+                evictions.increment();
+            }
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    @Override
+    public void invalidate(K key) {
+        Segment<K, V> segment = segmentFor(key);
+        segment.lock.lock();
+        try {
+            segment.map.remove(key);
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    @Override
+    public void invalidateAll() {
+        for (Segment<K, V> segment : segments) {
+            segment.lock.lock();
+            try {
+                segment.map.clear();
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public CacheStats stats() {
+        long size = 0;
+        for (Segment<K, V> segment : segments) {
+            segment.lock.lock();
+            try {
+                size += segment.map.size();
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return new CacheStats(hits.sum(), misses.sum(), evictions.sum(), size);
+    }
+
+    private Segment<K, V> segmentFor(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments.get((h & 0x7fffffff) % segments.size());
+    }
+
+    private static final class Segment<K, V> {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final int capacity;
+        private final LinkedHashMap<K, Entry<V>> map;
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+            this.map = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+        }
+    }
+
+    private static final class Entry<V> {
+        private final V value;
+        private final long writeTime;
+
+        Entry(V value, long writeTime) {
+            this.value = value;
+            this.writeTime = writeTime;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package com.mlongbo.sunflower.commondb.cache;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 查询结果缓存，以(表名, sql, 参数)为key缓存count与列表查询的结果
+ * 通过DbKit写入某张表时使该表的缓存失效；同一key并发未命中时只有一个线程查询数据库，其余线程等待其结果
+ * 失效只递增表的版本号，不遍历缓存，版本号过期的结果在下次查询时移除，或按写入顺序被淘汰
+ * 容量按权重限制，列表的权重为行数，其他结果为1，超出时按写入顺序淘汰
+ * @author malongbo
+ */
+public class QueryCache {
+    private static final Pattern WRITE_TABLE = Pattern.compile(
+            "^\\s*(?:INSERT\\s+(?:IGNORE\\s+)?INTO|REPLACE\\s+(?:INTO\\s+)?|UPDATE\\s+(?:IGNORE\\s+)?|DELETE\\s+FROM)\\s*`?(\\w+)`?",
+            Pattern.CASE_INSENSITIVE);
+    private static final String[] TABLE_LIST_END = {" SET ", " WHERE ", " VALUES", " SELECT ", "(", " ON "};
+    private static final int MAX_PARSED_SQL = 1024;
+
+    private final long ttlNanos;
+    private final long maximumWeight;
+    private final ConcurrentMap<Key, Entry> entries = new ConcurrentHashMap<Key, Entry>();
+    /**
+     * 已加载完成的结果，按写入顺序排列，与weight一起由writeOrder自身的锁保护
+     */
+    private final LinkedHashMap<Key, Entry> writeOrder = new LinkedHashMap<Key, Entry>();
+    private long weight;
+    private final ConcurrentMap<String, AtomicLong> versions = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, String> parsedTables = new ConcurrentHashMap<String, String>();
+    private final AtomicLong globalVersion = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * 加载查询结果
+     */
+    public interface Loader<V> {
+        public V load() throws SQLException;
+    }
+
+    /**
+     * @param ttl 结果的存活时间，小于等于0时不过期
+     * @param unit 时间单位
+     * @param maximumWeight 最大权重，即最多缓存的行数
+     */
+    public QueryCache(long ttl, TimeUnit unit, long maximumWeight) {
+        if (maximumWeight < 1)
+            throw new IllegalArgumentException("maximumWeight must be positive");
+        this.ttlNanos = ttl > 0 ? unit.toNanos(ttl) : 0;
+        this.maximumWeight = maximumWeight;
+    }
+
+    /**
+     * 获取缓存的查询结果，未命中时调用loader查询并缓存
+     * @param table 查询的表名
+     * @param sql 全sql命令，应包含查询字段
+     * @param params 预编译填充参数
+     * @param loader 未命中时的查询
+     * @return 查询结果，多个调用方可能拿到同一个对象，不应修改
+     * @throws SQLException
+     */
+    @SuppressWarnings("unchecked")
+    public <V> V get(String table, String sql, Object[] params, Loader<V> loader) throws SQLException {
+        table = table.toLowerCase();
+        Key key = new Key(table, sql, params);
+        while (true) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (!entry.future.isDone()) {
+                    //其他线程正在查询同一key，等待其结果
+                    hits.increment();
+                    return (V) await(entry.future);
+                }
+                if (!entry.isExpired(ttlNanos) && entry.version == version(table)) {
+                    hits.increment();
+                    return (V) entry.future.getNow(null);
+                }
+                if (remove(key, entry))
+                    evictions.increment();
+                continue;
+            }
+
+            Entry created = new Entry(version(table));
+            if (entries.putIfAbsent(key, created) != null)
+                continue;
+
+            misses.increment();
+            V value;
+            try {
+                value = loader.load();
+            } catch (SQLException e) {
+                entries.remove(key, created);
+                created.future.completeExceptionally(e);
+                throw e;
+            } catch (RuntimeException e) {
+                entries.remove(key, created);
+                created.future.completeExceptionally(e);
+                throw e;
+            }
+
+            created.loaded(value);
+            created.future.complete(value);
+            if (created.version != version(table)) {
+                //查询期间表被写入，结果可能已过期，不缓存
+                entries.remove(key, created);
+            } else {
+                synchronized (writeOrder) {
+                    //加载期间可能已被invalidate移除，只记录仍在缓存中的结果
+                    if (entries.get(key) == created) {
+                        writeOrder.put(key, created);
+                        weight += created.weight;
+                        evict();
+                    }
+                }
+            }
+            return value;
+        }
+    }
+
+    /**
+     * 使某张表的全部缓存失效
+     * @param table 表名
+     */
+    public void invalidate(String table) {
+        counter(table.toLowerCase()).incrementAndGet();
+    }
+
+    /**
+     * 使全部缓存失效
+     */
+    public void invalidateAll() {
+        globalVersion.incrementAndGet();
+    }
+
+    /**
+     * 根据写操作的sql使对应表的缓存失效，无法识别表名时使全部缓存失效
+     * @param sql INSERT/REPLACE/UPDATE/DELETE语句
+     */
+    public void invalidateBySql(String sql) {
+        String table = writeTable(sql);
+        if (table == null) {
+            invalidateAll();
+        } else {
+            invalidate(table);
+        }
+    }
+
+    /**
+     * 解析写操作的表名，多表语句返回null
+     * @param sql
+     * @return
+     */
+    public String writeTable(String sql) {
+        String table = parsedTables.get(sql);
+        if (table != null)
+            return table.length() == 0 ? null : table;
+
+        Matcher matcher = WRITE_TABLE.matcher(sql);
+        table = "";
+        if (matcher.find()) {
+            //表名之后到SET/WHERE等子句之前出现逗号、JOIN或USING时为多表语句
+            String upper = sql.toUpperCase();
+            int end = upper.length();
+            for (String stop : TABLE_LIST_END) {
+                int index = upper.indexOf(stop, matcher.end(1));
+                if (index >= 0 && index < end)
+                    end = index;
+            }
+            String tables = upper.substring(matcher.end(1), end);
+            if (tables.indexOf(',') < 0 && !tables.contains("JOIN") && !tables.contains("USING"))
+                table = matcher.group(1).toLowerCase();
+        }
+        if (parsedTables.size() < MAX_PARSED_SQL)
+            parsedTables.put(sql, table);
+        return table.length() == 0 ? null : table;
+    }
+
+    /**
+     * 缓存统计，结果数包含已失效但尚未移除的结果
+     * @return
+     */
+    public CacheStats stats() {
+        return new CacheStats(hits.sum(), misses.sum(), evictions.sum(), entries.size());
+    }
+
+    private long version(String table) {
+        return counter(table).get() + globalVersion.get();
+    }
+
+    private AtomicLong counter(String table) {
+        AtomicLong counter = versions.get(table);
+        if (counter == null) {
+            counter = new AtomicLong();
+            AtomicLong old = versions.putIfAbsent(table, counter);
+            if (old != null)
+                counter = old;
+        }
+        return counter;
+    }
+
+    /**
+     * 移除已加载完成的结果，同时移出写入顺序
+     * @return 是否由当前调用移除
+     */
+    private boolean remove(Key key, Entry entry) {
+        if (!entries.remove(key, entry))
+            return false;
+        synchronized (writeOrder) {
+            if (writeOrder.remove(key, entry))
+                weight -= entry.weight;
+        }
+        return true;
+    }
+
+    /**
+     * 超出最大权重时按写入顺序淘汰，调用方持有writeOrder的锁
+     */
+    private void evict() {
+        Iterator<Map.Entry<Key, Entry>> iterator = writeOrder.entrySet().iterator();
+        while (weight > maximumWeight && iterator.hasNext()) {
+            Map.Entry<Key, Entry> eldest = iterator.next();
+            iterator.remove();
+            weight -= eldest.getValue().weight;
+            if (entries.remove(eldest.getKey(), eldest.getValue()))
+                evictions.increment();
+        }
+    }
+
+    /**
+     * 记录了写入顺序的结果数
+     * @return
+     */
+    int orderSize() {
+        synchronized (writeOrder) {
+            return writeOrder.size();
+        }
+    }
+
+    private static Object await(CompletableFuture<Object> future) throws SQLException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for query result", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException)
+                throw (SQLException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new SQLException(cause);
+        }
+    }
+
+    private static final class Key {
+        private final String table;
+        private final String sql;
+        private final Object[] params;
+        private final int hash;
+
+        Key(String table, String sql, Object[] params) {
+            this.table = table;
+            this.sql = sql;
+            this.params = params == null || params.length == 0 ? null : params.clone();
+            this.hash = 31 * sql.hashCode() + Arrays.hashCode(this.params);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return hash == key.hash && sql.equals(key.sql) && table.equals(key.table)
+                    && Arrays.equals(params, key.params);
+        }
+    }
+
+    private static final class Entry {
+        private final CompletableFuture<Object> future = new CompletableFuture<Object>();
+        private final long version;
+        private long loadedAt;
+        private long weight;
+
+        Entry(long version) {
+            this.version = version;
+        }
+
+        void loaded(Object value) {
+            this.loadedAt = System.nanoTime();
+            this.weight = value instanceof Collection ? Math.max(1, ((Collection<?>) value).size()) : 1;
+        }
+
+        boolean isExpired(long ttlNanos) {
+            return ttlNanos > 0 && System.nanoTime() - loadedAt > ttlNanos;
+        }
+    }
+}
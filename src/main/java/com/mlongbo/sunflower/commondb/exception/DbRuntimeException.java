@@ -0,0 +1,22 @@
+package com.mlongbo.sunflower.commondb.exception;
+
+/**
+ * 无法抛出受检异常的场景(如Stream)中包装数据库异常
+ * @author malongbo
+ */
+public class DbRuntimeException extends RuntimeException {
+    public DbRuntimeException() {
+    }
+
+    public DbRuntimeException(String message) {
+        super(message);
+    }
+
+    public DbRuntimeException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    public DbRuntimeException(Throwable cause) {
+        super(cause);
+    }
+}
@@ -0,0 +1,11 @@
+package com.mlongbo.sunflower.commondb.exception;
+
+/**
+ * 乐观锁冲突，更新时记录的版本号已被其他写入修改或记录已被删除
+ * @author malongbo
+ */
+public class StaleEntityException extends DbException {
+    public StaleEntityException(String message) {
+        super(message);
+    }
+}
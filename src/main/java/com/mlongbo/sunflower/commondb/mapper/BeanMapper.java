@@ -0,0 +1,323 @@
+package com.mlongbo.sunflower.commondb.mapper;
+
+import org.apache.commons.dbutils.ResultSetHandler;
+
+import java.beans.BeanInfo;
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * 实体类的行映射器，每个实体类只生成一次
+ * 构造函数与setter通过LambdaMetafactory生成，列序号与属性的对应关系按ResultSetMetaData的列结构缓存，
+ * 映射每一行时不再有内省与反射调用
+ * 列名与属性名的匹配规则与commons-dbutils BeanProcessor一致(忽略大小写)
+ * @author malongbo
+ */
+public final class BeanMapper<T> {
+    private static final ClassValue<BeanMapper<?>> MAPPERS = new ClassValue<BeanMapper<?>>() {
+        @Override
+        @SuppressWarnings("unchecked")
+        protected BeanMapper<?> computeValue(Class<?> type) {
+            return new BeanMapper<Object>((Class<Object>) type);
+        }
+    };
+
+    /**
+     * 同一实体类最多缓存的列结构数
+     */
+    private static final int MAX_SHAPES = 64;
+
+    private final Class<T> type;
+    private final Supplier<Object> constructor;
+    private final String constructorError;
+    private final BeanProperty[] properties;
+    private final ConcurrentMap<List<String>, Shape<T>> shapes = new ConcurrentHashMap<List<String>, Shape<T>>();
+    private volatile Shape<T> lastShape;
+    private final ResultSetHandler<T> beanHandler;
+    private final ResultSetHandler<List<T>> beanListHandler;
+
+    /**
+     * 获取实体类的映射器
+     * @param type 实体类
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> BeanMapper<T> of(Class<T> type) {
+        return (BeanMapper<T>) MAPPERS.get(type);
+    }
+
+    private BeanMapper(Class<T> type) {
+        this.type = type;
+
+        MethodHandles.Lookup lookup;
+        try {
+            lookup = MethodHandles.privateLookupIn(type, MethodHandles.lookup());
+        } catch (IllegalAccessException e) {
+            lookup = MethodHandles.lookup();
+        }
+
+        Supplier<Object> ctor = null;
+        String ctorError = null;
+        try {
+            ctor = constructor(lookup, type);
+        } catch (Throwable e) {
+            ctorError = "Cannot create " + type.getName() + ": " + e.getMessage();
+        }
+        this.constructor = ctor;
+        this.constructorError = ctorError;
+
+        List<BeanProperty> list = new ArrayList<BeanProperty>();
+        try {
+            BeanInfo info = Introspector.getBeanInfo(type);
+            for (PropertyDescriptor descriptor : info.getPropertyDescriptors()) {
+                if (descriptor.getWriteMethod() == null)
+                    continue;
+                list.add(new BeanProperty(lookup, descriptor));
+            }
+        } catch (IntrospectionException e) {
+            throw new IllegalArgumentException("Bean introspection failed: " + type.getName(), e);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Bean introspection failed: " + type.getName(), e);
+        }
+        this.properties = list.toArray(new BeanProperty[list.size()]);
+
+        this.beanHandler = new ResultSetHandler<T>() {
+            @Override
+            public T handle(ResultSet rs) throws SQLException {
+                return rs.next() ? bind(rs.getMetaData()).mapRow(rs) : null;
+            }
+        };
+        this.beanListHandler = new ResultSetHandler<List<T>>() {
+            @Override
+            public List<T> handle(ResultSet rs) throws SQLException {
+                List<T> rows = new ArrayList<T>();
+                if (!rs.next())
+                    return rows;
+
+                RowMapper<T> mapper = bind(rs.getMetaData());
+                do {
+                    rows.add(mapper.mapRow(rs));
+                } while (rs.next());
+                return rows;
+            }
+        };
+    }
+
+    /**
+     * 实体类
+     * @return
+     */
+    public Class<T> getType() {
+        return type;
+    }
+
+    /**
+     * 查询单个bean的ResultSetHandler, 替代BeanHandler
+     * @return
+     */
+    public ResultSetHandler<T> beanHandler() {
+        return beanHandler;
+    }
+
+    /**
+     * 查询bean列表的ResultSetHandler, 替代BeanListHandler
+     * @return
+     */
+    public ResultSetHandler<List<T>> beanListHandler() {
+        return beanListHandler;
+    }
+
+    /**
+     * 创建在首次映射时按结果集列结构绑定的行映射器，适用于逐行读取的场景
+     * 返回的对象只能用于同一个结果集
+     * @return
+     */
+    public RowMapper<T> rowMapper() {
+        return new RowMapper<T>() {
+            private RowMapper<T> bound;
+
+            @Override
+            public T mapRow(ResultSet rs) throws SQLException {
+                if (bound == null)
+                    bound = bind(rs.getMetaData());
+                return bound.mapRow(rs);
+            }
+        };
+    }
+
+    /**
+     * 获取指定列结构的行映射器，同一列结构只解析一次
+     * @param metaData 结果集的列信息
+     * @return
+     * @throws SQLException
+     */
+    public RowMapper<T> bind(ResultSetMetaData metaData) throws SQLException {
+        int count = metaData.getColumnCount();
+        String[] labels = new String[count];
+        for (int i = 0; i < count; i++) {
+            String label = metaData.getColumnLabel(i + 1);
+            if (label == null || label.length() == 0)
+                label = metaData.getColumnName(i + 1);
+            labels[i] = label;
+        }
+
+        Shape<T> shape = lastShape;
+        if (shape != null && Arrays.equals(shape.labels, labels))
+            return shape;
+
+        List<String> key = Arrays.asList(labels);
+        shape = shapes.get(key);
+        if (shape == null) {
+            shape = new Shape<T>(this, labels);
+            if (shapes.size() < MAX_SHAPES) {
+                Shape<T> old = shapes.putIfAbsent(key, shape);
+                if (old != null)
+                    shape = old;
+            }
+        }
+        lastShape = shape;
+        return shape;
+    }
+
+    /**
+     * 读取bean中与列名对应的属性值(忽略大小写)
+     * @param bean
+     * @param column 列名
+     * @return 属性值，不存在对应的可读属性时返回null
+     */
+    public Object getProperty(T bean, String column) {
+        int index = indexOf(column);
+        return index < 0 || !isReadable(index) ? null : getProperty(bean, index);
+    }
+
+    /**
+     * 可写属性的名称，下标即属性序号
+     * @return
+     */
+    public String[] getPropertyNames() {
+        String[] names = new String[properties.length];
+        for (int i = 0; i < properties.length; i++) {
+            names[i] = properties[i].getName();
+        }
+        return names;
+    }
+
+    /**
+     * 获取与列名对应的属性序号(忽略大小写)
+     * @param column 列名
+     * @return 不存在对应的可写属性时返回-1
+     */
+    public int indexOf(String column) {
+        for (int i = 0; i < properties.length; i++) {
+            if (properties[i].getName().equalsIgnoreCase(column))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * 属性声明的类型
+     * @param index 属性序号
+     * @return
+     */
+    public Class<?> getPropertyType(int index) {
+        return properties[index].getType();
+    }
+
+    /**
+     * 属性是否有getter
+     * @param index 属性序号
+     * @return
+     */
+    public boolean isReadable(int index) {
+        return properties[index].isReadable();
+    }
+
+    /**
+     * 按属性序号读取属性值
+     * @param bean
+     * @param index 属性序号
+     * @return
+     */
+    public Object getProperty(T bean, int index) {
+        return properties[index].read(bean);
+    }
+
+    /**
+     * 按属性序号赋值，数值类型会转换为属性的类型(如自增主键的Long转换为Integer)
+     * @param bean
+     * @param index 属性序号
+     * @param value
+     */
+    public void setProperty(T bean, int index, Object value) {
+        properties[index].write(bean, value);
+    }
+
+    @SuppressWarnings("unchecked")
+    private T newInstance() throws SQLException {
+        if (constructor == null)
+            throw new SQLException(constructorError);
+        return (T) constructor.get();
+    }
+
+    private BeanProperty property(String column) {
+        int index = indexOf(column);
+        return index < 0 ? null : properties[index];
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Supplier<Object> constructor(MethodHandles.Lookup lookup, Class<?> type) throws Throwable {
+        MethodHandle handle = lookup.findConstructor(type, MethodType.methodType(void.class));
+        CallSite site = LambdaMetafactory.metafactory(lookup, "get",
+                MethodType.methodType(Supplier.class),
+                MethodType.methodType(Object.class),
+                handle,
+                MethodType.methodType(type));
+        return (Supplier<Object>) site.getTarget().invokeExact();
+    }
+
+    /**
+     * 一种列结构对应的映射关系，下标为列序号减一
+     */
+    private static final class Shape<T> implements RowMapper<T> {
+        private final String[] labels;
+        private final BeanProperty[] columns;
+        private final BeanMapper<T> mapper;
+
+        Shape(BeanMapper<T> mapper, String[] labels) {
+            this.mapper = mapper;
+            this.labels = labels;
+            this.columns = new BeanProperty[labels.length];
+            for (int i = 0; i < labels.length; i++) {
+                columns[i] = mapper.property(labels[i]);
+            }
+        }
+
+        @Override
+        public T mapRow(ResultSet rs) throws SQLException {
+            T bean = mapper.newInstance();
+            BeanProperty[] columns = this.columns;
+            for (int i = 0; i < columns.length; i++) {
+                BeanProperty property = columns[i];
+                if (property != null)
+                    property.write(bean, rs, i + 1);
+            }
+            return bean;
+        }
+    }
+}
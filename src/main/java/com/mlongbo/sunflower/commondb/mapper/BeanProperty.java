@@ -0,0 +1,165 @@
+package com.mlongbo.sunflower.commondb.mapper;
+
+import java.beans.PropertyDescriptor;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * bean的属性，getter与setter在创建时生成为lambda，读写时不再经过反射
+ * @author malongbo
+ */
+final class BeanProperty {
+    private final String name;
+    private final Class<?> type;
+    private final ColumnReader reader;
+    private final BiConsumer<Object, Object> setter;
+    private final Function<Object, Object> getter;
+
+    BeanProperty(MethodHandles.Lookup lookup, PropertyDescriptor descriptor) throws ReflectiveOperationException {
+        this.name = descriptor.getName();
+        this.type = descriptor.getPropertyType();
+        this.reader = ColumnReader.forType(type);
+        this.setter = setter(lookup, lookup.unreflect(descriptor.getWriteMethod()), wrap(type));
+        this.getter = descriptor.getReadMethod() == null ? null : getter(lookup, lookup.unreflect(descriptor.getReadMethod()));
+    }
+
+    String getName() {
+        return name;
+    }
+
+    Class<?> getType() {
+        return type;
+    }
+
+    boolean isReadable() {
+        return getter != null;
+    }
+
+    /**
+     * 读取bean的属性值，基本类型将被装箱
+     * @param bean
+     * @return
+     */
+    Object read(Object bean) {
+        return getter.apply(bean);
+    }
+
+    /**
+     * 读取列值并赋给bean，NULL值不会覆盖基本类型属性的默认值
+     * @param bean 目标bean
+     * @param rs ResultSet
+     * @param index 列序号,从1开始
+     * @throws SQLException
+     */
+    void write(Object bean, ResultSet rs, int index) throws SQLException {
+        Object value = reader.read(rs, index);
+        if (value == null && type.isPrimitive())
+            return;
+
+        try {
+            setter.accept(bean, value);
+        } catch (ClassCastException e) {
+            throw new SQLException("Cannot set " + name + ": incompatible types, cannot convert "
+                    + value.getClass().getName() + " to " + type.getName(), e);
+        }
+    }
+
+    /**
+     * 为bean赋值，数值类型会转换为属性的类型
+     * @param bean 目标bean
+     * @param value 属性值
+     */
+    void write(Object bean, Object value) {
+        if (value == null && type.isPrimitive())
+            return;
+        if (value instanceof Number)
+            value = convert((Number) value, wrap(type));
+        setter.accept(bean, value);
+    }
+
+    private static Object convert(Number value, Class<?> type) {
+        if (type.isInstance(value)) return value;
+        if (type == Long.class) return value.longValue();
+        if (type == Integer.class) return value.intValue();
+        if (type == Short.class) return value.shortValue();
+        if (type == Byte.class) return value.byteValue();
+        if (type == Double.class) return value.doubleValue();
+        if (type == Float.class) return value.floatValue();
+        if (type == java.math.BigInteger.class) return new java.math.BigInteger(value.toString());
+        if (type == java.math.BigDecimal.class) return new java.math.BigDecimal(value.toString());
+        if (type == String.class) return value.toString();
+        return value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static BiConsumer<Object, Object> setter(MethodHandles.Lookup lookup, MethodHandle handle, Class<?> valueType) {
+        try {
+            CallSite site = LambdaMetafactory.metafactory(lookup, "accept",
+                    MethodType.methodType(BiConsumer.class),
+                    MethodType.methodType(void.class, Object.class, Object.class),
+                    handle,
+                    MethodType.methodType(void.class, handle.type().parameterType(0), valueType));
+            return (BiConsumer<Object, Object>) site.getTarget().invokeExact();
+        } catch (Throwable e) {
+            //无法生成lambda时(如类加载器不可见)退化为MethodHandle调用
+            final MethodHandle generic = handle.asType(MethodType.methodType(void.class, Object.class, Object.class));
+            return new BiConsumer<Object, Object>() {
+                @Override
+                public void accept(Object bean, Object value) {
+                    try {
+                        generic.invokeExact(bean, value);
+                    } catch (RuntimeException e) {
+                        throw e;
+                    } catch (Throwable e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            };
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Function<Object, Object> getter(MethodHandles.Lookup lookup, MethodHandle handle) {
+        try {
+            CallSite site = LambdaMetafactory.metafactory(lookup, "apply",
+                    MethodType.methodType(Function.class),
+                    MethodType.methodType(Object.class, Object.class),
+                    handle,
+                    MethodType.methodType(wrap(handle.type().returnType()), handle.type().parameterType(0)));
+            return (Function<Object, Object>) site.getTarget().invokeExact();
+        } catch (Throwable e) {
+            final MethodHandle generic = handle.asType(MethodType.methodType(Object.class, Object.class));
+            return new Function<Object, Object>() {
+                @Override
+                public Object apply(Object bean) {
+                    try {
+                        return generic.invokeExact(bean);
+                    } catch (RuntimeException e) {
+                        throw e;
+                    } catch (Throwable e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            };
+        }
+    }
+
+    static Class<?> wrap(Class<?> type) {
+        if (!type.isPrimitive()) return type;
+        if (type == Integer.TYPE) return Integer.class;
+        if (type == Long.TYPE) return Long.class;
+        if (type == Double.TYPE) return Double.class;
+        if (type == Boolean.TYPE) return Boolean.class;
+        if (type == Float.TYPE) return Float.class;
+        if (type == Short.TYPE) return Short.class;
+        if (type == Byte.TYPE) return Byte.class;
+        return Character.class;
+    }
+}
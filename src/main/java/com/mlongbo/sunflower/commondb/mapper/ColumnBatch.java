@@ -0,0 +1,260 @@
+package com.mlongbo.sunflower.commondb.mapper;
+
+import org.apache.commons.dbutils.ResultSetHandler;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * 按列存储的查询结果，每列为一个基本类型数组，适用于统计、报表等读取大量数值行的场景
+ * 整数列(含小数位为0的DECIMAL)存为long，浮点与小数列存为double，日期时间列存为毫秒时间戳；
+ * NULL值在数组中为0，通过isNull区分
+ * getLongs、getDoubles返回内部数组，调用方不应修改
+ * @author malongbo
+ */
+public final class ColumnBatch {
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * 列的读取方式
+     */
+    private static final int LONG = 0;
+    private static final int DOUBLE = 1;
+    private static final int TIME = 2;
+
+    private static final ResultSetHandler<ColumnBatch> HANDLER = new ResultSetHandler<ColumnBatch>() {
+        @Override
+        public ColumnBatch handle(ResultSet rs) throws SQLException {
+            return read(rs);
+        }
+    };
+
+    private final String[] columns;
+    private final long[][] longs;
+    private final double[][] doubles;
+    private final BitSet[] nulls;
+    private final int size;
+
+    private ColumnBatch(String[] columns, long[][] longs, double[][] doubles, BitSet[] nulls, int size) {
+        this.columns = columns;
+        this.longs = longs;
+        this.doubles = doubles;
+        this.nulls = nulls;
+        this.size = size;
+    }
+
+    /**
+     * 将结果集读取为ColumnBatch的ResultSetHandler
+     * @return
+     */
+    public static ResultSetHandler<ColumnBatch> handler() {
+        return HANDLER;
+    }
+
+    /**
+     * 按顺序拼接列相同的多个结果，用于合并各分片的查询结果
+     * @param batches 至少一个
+     * @return
+     */
+    public static ColumnBatch concat(List<ColumnBatch> batches) {
+        if (batches.size() == 1)
+            return batches.get(0);
+
+        ColumnBatch first = batches.get(0);
+        int total = 0;
+        for (ColumnBatch batch : batches) {
+            if (!Arrays.equals(first.columns, batch.columns))
+                throw new IllegalArgumentException("Columns differ: " + Arrays.toString(batch.columns));
+            total += batch.size;
+        }
+
+        int width = first.columns.length;
+        long[][] longs = new long[width][];
+        double[][] doubles = new double[width][];
+        BitSet[] nulls = new BitSet[width];
+        for (int c = 0; c < width; c++) {
+            nulls[c] = new BitSet();
+            if (first.longs[c] != null) {
+                longs[c] = new long[total];
+            } else {
+                doubles[c] = new double[total];
+            }
+        }
+
+        int offset = 0;
+        for (ColumnBatch batch : batches) {
+            for (int c = 0; c < width; c++) {
+                if (longs[c] != null) {
+                    System.arraycopy(batch.getLongs(c), 0, longs[c], offset, batch.size);
+                } else {
+                    System.arraycopy(batch.getDoubles(c), 0, doubles[c], offset, batch.size);
+                }
+                BitSet shardNulls = batch.nulls[c];
+                for (int row = shardNulls.nextSetBit(0); row >= 0; row = shardNulls.nextSetBit(row + 1)) {
+                    nulls[c].set(offset + row);
+                }
+            }
+            offset += batch.size;
+        }
+        return new ColumnBatch(first.columns, longs, doubles, nulls, total);
+    }
+
+    /**
+     * 行数
+     * @return
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 列名，按查询字段的顺序排列
+     * @return
+     */
+    public String[] getColumns() {
+        return columns.clone();
+    }
+
+    /**
+     * 整数或日期时间列的值
+     * @param column 列名，不区分大小写
+     * @return
+     */
+    public long[] getLongs(String column) {
+        return getLongs(indexOf(column));
+    }
+
+    /**
+     * 浮点或小数列的值
+     * @param column 列名，不区分大小写
+     * @return
+     */
+    public double[] getDoubles(String column) {
+        return getDoubles(indexOf(column));
+    }
+
+    /**
+     * 指定行的值是否为NULL
+     * @param column 列名，不区分大小写
+     * @param row 从0开始的行号
+     * @return
+     */
+    public boolean isNull(String column, int row) {
+        if (row < 0 || row >= size)
+            throw new IndexOutOfBoundsException("row: " + row + ", size: " + size);
+        return nulls[indexOf(column)].get(row);
+    }
+
+    private long[] getLongs(int index) {
+        if (longs[index] == null)
+            throw new IllegalArgumentException("Column " + columns[index] + " is not an integer column, use getDoubles");
+        return longs[index];
+    }
+
+    private double[] getDoubles(int index) {
+        if (doubles[index] == null)
+            throw new IllegalArgumentException("Column " + columns[index] + " is an integer column, use getLongs");
+        return doubles[index];
+    }
+
+    private int indexOf(String column) {
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].equalsIgnoreCase(column))
+                return i;
+        }
+        throw new IllegalArgumentException("No such column: " + column);
+    }
+
+    private static ColumnBatch read(ResultSet rs) throws SQLException {
+        ResultSetMetaData meta = rs.getMetaData();
+        int width = meta.getColumnCount();
+        String[] columns = new String[width];
+        int[] kinds = new int[width];
+        long[][] longs = new long[width][];
+        double[][] doubles = new double[width][];
+        BitSet[] nulls = new BitSet[width];
+        for (int c = 0; c < width; c++) {
+            columns[c] = meta.getColumnLabel(c + 1);
+            kinds[c] = kindOf(meta, c + 1);
+            nulls[c] = new BitSet();
+            if (kinds[c] == DOUBLE) {
+                doubles[c] = new double[INITIAL_CAPACITY];
+            } else {
+                longs[c] = new long[INITIAL_CAPACITY];
+            }
+        }
+
+        int size = 0;
+        int capacity = INITIAL_CAPACITY;
+        while (rs.next()) {
+            if (size == capacity) {
+                capacity <<= 1;
+                for (int c = 0; c < width; c++) {
+                    if (longs[c] != null) {
+                        longs[c] = Arrays.copyOf(longs[c], capacity);
+                    } else {
+                        doubles[c] = Arrays.copyOf(doubles[c], capacity);
+                    }
+                }
+            }
+            for (int c = 0; c < width; c++) {
+                int index = c + 1;
+                switch (kinds[c]) {
+                    case LONG:
+                        longs[c][size] = rs.getLong(index);
+                        break;
+                    case DOUBLE:
+                        doubles[c][size] = rs.getDouble(index);
+                        break;
+                    default:
+                        Timestamp timestamp = rs.getTimestamp(index);
+                        longs[c][size] = timestamp == null ? 0L : timestamp.getTime();
+                }
+                if (rs.wasNull())
+                    nulls[c].set(size);
+            }
+            size++;
+        }
+
+        for (int c = 0; c < width; c++) {
+            if (longs[c] != null) {
+                longs[c] = Arrays.copyOf(longs[c], size);
+            } else {
+                doubles[c] = Arrays.copyOf(doubles[c], size);
+            }
+        }
+        return new ColumnBatch(columns, longs, doubles, nulls, size);
+    }
+
+    private static int kindOf(ResultSetMetaData meta, int index) throws SQLException {
+        switch (meta.getColumnType(index)) {
+            case Types.BIGINT:
+            case Types.INTEGER:
+            case Types.SMALLINT:
+            case Types.TINYINT:
+            case Types.BIT:
+            case Types.BOOLEAN:
+                return LONG;
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                return meta.getScale(index) == 0 ? LONG : DOUBLE;
+            case Types.FLOAT:
+            case Types.REAL:
+            case Types.DOUBLE:
+                return DOUBLE;
+            case Types.DATE:
+            case Types.TIME:
+            case Types.TIMESTAMP:
+            case Types.TIMESTAMP_WITH_TIMEZONE:
+                return TIME;
+            default:
+                throw new SQLException("Column " + meta.getColumnLabel(index) + " is not numeric: " + meta.getColumnTypeName(index));
+        }
+    }
+}
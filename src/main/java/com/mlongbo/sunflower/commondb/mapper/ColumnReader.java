@@ -0,0 +1,158 @@
+package com.mlongbo.sunflower.commondb.mapper;
+
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+
+/**
+ * 按属性类型读取列值，与commons-dbutils BeanProcessor的取值规则一致
+ * @author malongbo
+ */
+abstract class ColumnReader {
+
+    /**
+     * 读取列值
+     * @param rs ResultSet
+     * @param index 列序号,从1开始
+     * @return 列值，数据库中为NULL时返回null
+     * @throws SQLException
+     */
+    abstract Object read(ResultSet rs, int index) throws SQLException;
+
+    /**
+     * 根据属性类型选择读取方式
+     * @param type 属性类型
+     * @return
+     */
+    static ColumnReader forType(final Class<?> type) {
+        if (type == String.class) return STRING;
+        if (type == Integer.class || type == Integer.TYPE) return INT;
+        if (type == Long.class || type == Long.TYPE) return LONG;
+        if (type == Double.class || type == Double.TYPE) return DOUBLE;
+        if (type == Boolean.class || type == Boolean.TYPE) return BOOLEAN;
+        if (type == Float.class || type == Float.TYPE) return FLOAT;
+        if (type == Short.class || type == Short.TYPE) return SHORT;
+        if (type == Byte.class || type == Byte.TYPE) return BYTE;
+        if (type == BigDecimal.class) return BIG_DECIMAL;
+        if (type == Timestamp.class || type == java.util.Date.class) return TIMESTAMP;
+        if (type == java.sql.Date.class) return DATE;
+        if (type == Time.class) return TIME;
+        if (type == byte[].class) return BYTES;
+        if (type.getName().startsWith("java.time.")) {
+            return new ColumnReader() {
+                @Override
+                Object read(ResultSet rs, int index) throws SQLException {
+                    return rs.getObject(index, type);
+                }
+            };
+        }
+        return OBJECT;
+    }
+
+    private static final ColumnReader STRING = new ColumnReader() {
+        @Override
+        Object read(ResultSet rs, int index) throws SQLException {
+            return rs.getString(index);
+        }
+    };
+
+    private static final ColumnReader INT = new ColumnReader() {
+        @Override
+        Object read(ResultSet rs, int index) throws SQLException {
+            int value = rs.getInt(index);
+            return rs.wasNull() ? null : value;
+        }
+    };
+
+    private static final ColumnReader LONG = new ColumnReader() {
+        @Override
+        Object read(ResultSet rs, int index) throws SQLException {
+            long value = rs.getLong(index);
+            return rs.wasNull() ? null : value;
+        }
+    };
+
+    private static final ColumnReader DOUBLE = new ColumnReader() {
+        @Override
+        Object read(ResultSet rs, int index) throws SQLException {
+            double value = rs.getDouble(index);
+            return rs.wasNull() ? null : value;
+        }
+    };
+
+    private static final ColumnReader BOOLEAN = new ColumnReader() {
+        @Override
+        Object read(ResultSet rs, int index) throws SQLException {
+            boolean value = rs.getBoolean(index);
+            return rs.wasNull() ? null : value;
+        }
+    };
+
+    private static final ColumnReader FLOAT = new ColumnReader() {
+        @Override
+        Object read(ResultSet rs, int index) throws SQLException {
+            float value = rs.getFloat(index);
+            return rs.wasNull() ? null : value;
+        }
+    };
+
+    private static final ColumnReader SHORT = new ColumnReader() {
+        @Override
+        Object read(ResultSet rs, int index) throws SQLException {
+            short value = rs.getShort(index);
+            return rs.wasNull() ? null : value;
+        }
+    };
+
+    private static final ColumnReader BYTE = new ColumnReader() {
+        @Override
+        Object read(ResultSet rs, int index) throws SQLException {
+            byte value = rs.getByte(index);
+            return rs.wasNull() ? null : value;
+        }
+    };
+
+    private static final ColumnReader BIG_DECIMAL = new ColumnReader() {
+        @Override
+        Object read(ResultSet rs, int index) throws SQLException {
+            return rs.getBigDecimal(index);
+        }
+    };
+
+    private static final ColumnReader TIMESTAMP = new ColumnReader() {
+        @Override
+        Object read(ResultSet rs, int index) throws SQLException {
+            return rs.getTimestamp(index);
+        }
+    };
+
+    private static final ColumnReader DATE = new ColumnReader() {
+        @Override
+        Object read(ResultSet rs, int index) throws SQLException {
+            return rs.getDate(index);
+        }
+    };
+
+    private static final ColumnReader TIME = new ColumnReader() {
+        @Override
+        Object read(ResultSet rs, int index) throws SQLException {
+            return rs.getTime(index);
+        }
+    };
+
+    private static final ColumnReader BYTES = new ColumnReader() {
+        @Override
+        Object read(ResultSet rs, int index) throws SQLException {
+            return rs.getBytes(index);
+        }
+    };
+
+    private static final ColumnReader OBJECT = new ColumnReader() {
+        @Override
+        Object read(ResultSet rs, int index) throws SQLException {
+            return rs.getObject(index);
+        }
+    };
+}
@@ -0,0 +1,85 @@
+package com.mlongbo.sunflower.commondb.mapper;
+
+import org.apache.commons.dbutils.ResultSetHandler;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+/**
+ * 将结果集的第一列读取为基本类型数组的ResultSetHandler，每行不创建包装对象，
+ * 适用于批量读取id、计数等数值列；数据库中为NULL的值读取为0
+ * @author malongbo
+ */
+public final class PrimitiveColumns {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private static final ResultSetHandler<long[]> LONGS = new ResultSetHandler<long[]>() {
+        @Override
+        public long[] handle(ResultSet rs) throws SQLException {
+            long[] values = new long[INITIAL_CAPACITY];
+            int size = 0;
+            while (rs.next()) {
+                if (size == values.length)
+                    values = Arrays.copyOf(values, size << 1);
+                values[size++] = rs.getLong(1);
+            }
+            return Arrays.copyOf(values, size);
+        }
+    };
+
+    private static final ResultSetHandler<int[]> INTS = new ResultSetHandler<int[]>() {
+        @Override
+        public int[] handle(ResultSet rs) throws SQLException {
+            int[] values = new int[INITIAL_CAPACITY];
+            int size = 0;
+            while (rs.next()) {
+                if (size == values.length)
+                    values = Arrays.copyOf(values, size << 1);
+                values[size++] = rs.getInt(1);
+            }
+            return Arrays.copyOf(values, size);
+        }
+    };
+
+    private static final ResultSetHandler<double[]> DOUBLES = new ResultSetHandler<double[]>() {
+        @Override
+        public double[] handle(ResultSet rs) throws SQLException {
+            double[] values = new double[INITIAL_CAPACITY];
+            int size = 0;
+            while (rs.next()) {
+                if (size == values.length)
+                    values = Arrays.copyOf(values, size << 1);
+                values[size++] = rs.getDouble(1);
+            }
+            return Arrays.copyOf(values, size);
+        }
+    };
+
+    private PrimitiveColumns() {
+    }
+
+    /**
+     * 第一列读取为long数组
+     * @return
+     */
+    public static ResultSetHandler<long[]> longs() {
+        return LONGS;
+    }
+
+    /**
+     * 第一列读取为int数组
+     * @return
+     */
+    public static ResultSetHandler<int[]> ints() {
+        return INTS;
+    }
+
+    /**
+     * 第一列读取为double数组
+     * @return
+     */
+    public static ResultSetHandler<double[]> doubles() {
+        return DOUBLES;
+    }
+}
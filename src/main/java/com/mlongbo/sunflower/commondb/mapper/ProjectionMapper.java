@@ -0,0 +1,245 @@
+package com.mlongbo.sunflower.commondb.mapper;
+
+import org.apache.commons.dbutils.ResultSetHandler;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.RecordComponent;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 投影查询的行映射器，将查询字段直接映射为record或接口，每个类型只解析一次
+ * record按组件名、接口按getter的属性名(getName/isName/name)确定查询字段，字段按声明顺序读取，不匹配列名；
+ * 接口的实现为只保存列值数组的动态代理，默认方法可正常调用
+ * 数据库中为NULL的列映射到基本类型时为0或false
+ * @author malongbo
+ */
+public final class ProjectionMapper<P> {
+    private static final ClassValue<ProjectionMapper<?>> MAPPERS = new ClassValue<ProjectionMapper<?>>() {
+        @Override
+        @SuppressWarnings("unchecked")
+        protected ProjectionMapper<?> computeValue(Class<?> type) {
+            return new ProjectionMapper<Object>((Class<Object>) type);
+        }
+    };
+
+    private final Class<P> type;
+    private final String[] columns;
+    private final String selectList;
+    private final ColumnReader[] readers;
+    private final Object[] defaults;
+    private final MethodHandle constructor;
+    private final Map<Method, Integer> getters;
+    private final RowMapper<P> rowMapper;
+    private final ResultSetHandler<List<P>> listHandler;
+
+    /**
+     * 获取record或接口的映射器
+     * @param type record或接口
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public static <P> ProjectionMapper<P> of(Class<P> type) {
+        return (ProjectionMapper<P>) MAPPERS.get(type);
+    }
+
+    private ProjectionMapper(Class<P> type) {
+        this.type = type;
+        List<String> names = new ArrayList<String>();
+        List<Class<?>> types = new ArrayList<Class<?>>();
+        if (type.isRecord()) {
+            RecordComponent[] components = type.getRecordComponents();
+            Class<?>[] parameterTypes = new Class<?>[components.length];
+            for (int i = 0; i < components.length; i++) {
+                names.add(components[i].getName());
+                types.add(components[i].getType());
+                parameterTypes[i] = components[i].getType();
+            }
+            try {
+                MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(type, MethodHandles.lookup());
+                this.constructor = lookup.findConstructor(type, java.lang.invoke.MethodType.methodType(void.class, parameterTypes))
+                        .asSpreader(Object[].class, components.length);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalArgumentException("No canonical constructor accessible: " + type.getName(), e);
+            }
+            this.getters = null;
+        } else if (type.isInterface()) {
+            this.constructor = null;
+            this.getters = new HashMap<Method, Integer>();
+            for (Method method : type.getMethods()) {
+                if (method.isDefault() || Modifier.isStatic(method.getModifiers()) || method.getParameterCount() != 0
+                        || method.getReturnType() == Void.TYPE)
+                    continue;
+                getters.put(method, names.size());
+                names.add(propertyName(method));
+                types.add(method.getReturnType());
+            }
+        } else {
+            throw new IllegalArgumentException("Projection type must be a record or an interface: " + type.getName());
+        }
+        if (names.isEmpty())
+            throw new IllegalArgumentException("Projection type has no column: " + type.getName());
+
+        this.columns = names.toArray(new String[names.size()]);
+        StringBuilder builder = new StringBuilder();
+        for (String column : columns) {
+            builder.append(builder.length() == 0 ? "" : ",").append(column);
+        }
+        this.selectList = builder.toString();
+        this.readers = new ColumnReader[columns.length];
+        this.defaults = new Object[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            readers[i] = ColumnReader.forType(types.get(i));
+            defaults[i] = defaultValue(types.get(i));
+        }
+
+        this.rowMapper = new RowMapper<P>() {
+            @Override
+            public P mapRow(ResultSet rs) throws SQLException {
+                return map(rs);
+            }
+        };
+        this.listHandler = new ResultSetHandler<List<P>>() {
+            @Override
+            public List<P> handle(ResultSet rs) throws SQLException {
+                List<P> rows = new ArrayList<P>();
+                while (rs.next()) {
+                    rows.add(map(rs));
+                }
+                return rows;
+            }
+        };
+    }
+
+    /**
+     * 查询字段，以逗号分隔，按声明顺序排列
+     * @return
+     */
+    public String getSelectList() {
+        return selectList;
+    }
+
+    /**
+     * 查询字段名
+     * @return
+     */
+    public String[] getColumns() {
+        return columns.clone();
+    }
+
+    /**
+     * 按列序号映射当前行的行映射器，结果集的列须按getSelectList的顺序排列
+     * @return
+     */
+    public RowMapper<P> rowMapper() {
+        return rowMapper;
+    }
+
+    /**
+     * 查询列表的ResultSetHandler
+     * @return
+     */
+    public ResultSetHandler<List<P>> listHandler() {
+        return listHandler;
+    }
+
+    private P map(ResultSet rs) throws SQLException {
+        Object[] values = new Object[readers.length];
+        for (int i = 0; i < readers.length; i++) {
+            Object value = readers[i].read(rs, i + 1);
+            values[i] = value == null ? defaults[i] : value;
+        }
+        if (constructor == null)
+            return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, new Values(values)));
+
+        try {
+            return type.cast(constructor.invoke(values));
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new SQLException("Failed to create " + type.getName(), e);
+        }
+    }
+
+    private static String propertyName(Method method) {
+        String name = method.getName();
+        int prefix = 0;
+        if (name.startsWith("get") && name.length() > 3) {
+            prefix = 3;
+        } else if (name.startsWith("is") && name.length() > 2
+                && (method.getReturnType() == Boolean.TYPE || method.getReturnType() == Boolean.class)) {
+            prefix = 2;
+        }
+        if (prefix == 0)
+            return name;
+        return Character.toLowerCase(name.charAt(prefix)) + name.substring(prefix + 1);
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (!type.isPrimitive())
+            return null;
+        if (type == Boolean.TYPE)
+            return false;
+        if (type == Character.TYPE)
+            return (char) 0;
+        if (type == Long.TYPE)
+            return 0L;
+        if (type == Double.TYPE)
+            return 0D;
+        if (type == Float.TYPE)
+            return 0F;
+        if (type == Short.TYPE)
+            return (short) 0;
+        if (type == Byte.TYPE)
+            return (byte) 0;
+        return 0;
+    }
+
+    /**
+     * 接口投影的实现，只持有列值数组
+     */
+    private final class Values implements InvocationHandler {
+        private final Object[] values;
+
+        Values(Object[] values) {
+            this.values = values;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            Integer index = getters.get(method);
+            if (index != null)
+                return values[index];
+            if (method.isDefault())
+                return InvocationHandler.invokeDefault(proxy, method, args);
+
+            String name = method.getName();
+            if ("equals".equals(name) && args != null && args.length == 1) {
+                Object other = args[0];
+                return other != null && Proxy.isProxyClass(other.getClass())
+                        && Proxy.getInvocationHandler(other) instanceof ProjectionMapper.Values
+                        && Arrays.equals(values, ((ProjectionMapper<?>.Values) Proxy.getInvocationHandler(other)).values);
+            }
+            if ("hashCode".equals(name))
+                return Arrays.hashCode(values);
+            if ("toString".equals(name)) {
+                StringBuilder builder = new StringBuilder(type.getSimpleName()).append('[');
+                for (int i = 0; i < columns.length; i++) {
+                    builder.append(i == 0 ? "" : ", ").append(columns[i]).append('=').append(values[i]);
+                }
+                return builder.append(']').toString();
+            }
+            throw new UnsupportedOperationException(method.toString());
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.mlongbo.sunflower.commondb.mapper;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * 将ResultSet当前行转换为对象
+ * @author malongbo
+ */
+public interface RowMapper<T> {
+    /**
+     * 转换当前行，不会移动游标
+     * @param rs 已定位到某一行的ResultSet
+     * @return 当前行对应的对象
+     * @throws java.sql.SQLException
+     */
+    public T mapRow(ResultSet rs) throws SQLException;
+}
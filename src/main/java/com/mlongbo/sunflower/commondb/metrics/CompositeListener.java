@@ -0,0 +1,52 @@
+package com.mlongbo.sunflower.commondb.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+/**
+ * 依次回调多个监听器，单个监听器抛出的异常不影响其他监听器与数据库操作
+ * @author malongbo
+ */
+public final class CompositeListener implements DbListener {
+    private static final Logger Log = LoggerFactory.getLogger(CompositeListener.class);
+    private final DbListener[] listeners;
+
+    public CompositeListener(List<DbListener> listeners) {
+        this.listeners = listeners.toArray(new DbListener[listeners.size()]);
+    }
+
+    @Override
+    public void connectionAcquired(long elapsedNanos) {
+        for (DbListener listener : listeners) {
+            try {
+                listener.connectionAcquired(elapsedNanos);
+            } catch (RuntimeException e) {
+                Log.warn("DbListener failed", e);
+            }
+        }
+    }
+
+    @Override
+    public void statementExecuted(SqlKind kind, String sql, long elapsedNanos, int rows, Throwable error) {
+        for (DbListener listener : listeners) {
+            try {
+                listener.statementExecuted(kind, sql, elapsedNanos, rows, error);
+            } catch (RuntimeException e) {
+                Log.warn("DbListener failed", e);
+            }
+        }
+    }
+
+    @Override
+    public void transactionCompleted(long elapsedNanos, boolean rolledBack) {
+        for (DbListener listener : listeners) {
+            try {
+                listener.transactionCompleted(elapsedNanos, rolledBack);
+            } catch (RuntimeException e) {
+                Log.warn("DbListener failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.mlongbo.sunflower.commondb.metrics;
+
+/**
+ * 数据库操作的监听器，用于统计指标、记录慢查询或上报调用链
+ * 通过Database.me.addListener注册，未注册任何监听器时DbKit不计时也不回调；
+ * 回调在执行数据库操作的线程中同步调用，实现应足够轻量且线程安全，不应抛出异常
+ * @author malongbo
+ */
+public interface DbListener {
+    /**
+     * 从连接池获取了连接，复用事务连接、连接作用域的连接时不回调
+     * @param elapsedNanos 获取连接的耗时，包括等待连接池的时间
+     */
+    void connectionAcquired(long elapsedNanos);
+
+    /**
+     * DbKit执行了一条sql
+     * @param kind 调用类型
+     * @param sql 预编译的sql，同一形态的sql参数不同时sql相同
+     * @param elapsedNanos 耗时，包括获取连接与映射结果的时间
+     * @param rows QUERY为映射的行数(结果为Collection时为其大小，否则非null为1)，UPDATE为影响的行数，BATCH为批处理的行数
+     * @param error 执行失败时的异常，成功时为null
+     */
+    void statementExecuted(SqlKind kind, String sql, long elapsedNanos, int rows, Throwable error);
+
+    /**
+     * 事务结束，TransactionProxy代理的最外层方法返回或抛出异常时、TransactionContext提交或回滚时回调
+     * @param elapsedNanos 从开启事务到提交或回滚完成的耗时
+     * @param rolledBack 是否回滚
+     */
+    void transactionCompleted(long elapsedNanos, boolean rolledBack);
+}
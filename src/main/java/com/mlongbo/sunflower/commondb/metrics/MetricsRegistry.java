@@ -0,0 +1,111 @@
+package com.mlongbo.sunflower.commondb.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 内存中的指标统计，按sql形态统计耗时、行数与失败次数，另统计获取连接的耗时与事务耗时、回滚次数
+ * 由监控系统定期读取：
+ * <pre>
+ * MetricsRegistry metrics = new MetricsRegistry();
+ * Database.me.addListener(metrics);
+ * for (SqlMetrics m : metrics.getSqlMetrics().values()) {
+ *     m.getLatency().getPercentile(99);
+ * }
+ * </pre>
+ * @author malongbo
+ */
+public final class MetricsRegistry implements DbListener {
+    /**
+     * 超出maxSqlShapes后的sql统计到该形态下
+     */
+    public static final String OTHER_SQL = "<other>";
+
+    private final int maxSqlShapes;
+    private final ConcurrentMap<String, SqlMetrics> sqlMetrics = new ConcurrentHashMap<String, SqlMetrics>();
+    private final Histogram acquireLatency = new Histogram();
+    private final Histogram transactionLatency = new Histogram();
+    private final LongAdder rollbacks = new LongAdder();
+
+    public MetricsRegistry() {
+        this(1000);
+    }
+
+    /**
+     * @param maxSqlShapes 最多单独统计的sql形态数，避免拼接参数的sql无限占用内存
+     */
+    public MetricsRegistry(int maxSqlShapes) {
+        this.maxSqlShapes = maxSqlShapes;
+    }
+
+    @Override
+    public void connectionAcquired(long elapsedNanos) {
+        acquireLatency.record(elapsedNanos);
+    }
+
+    @Override
+    public void statementExecuted(SqlKind kind, String sql, long elapsedNanos, int rows, Throwable error) {
+        SqlMetrics metrics = sqlMetrics.get(sql);
+        if (metrics == null) {
+            if (sqlMetrics.size() >= maxSqlShapes)
+                sql = OTHER_SQL;
+            metrics = new SqlMetrics(kind, sql);
+            SqlMetrics old = sqlMetrics.putIfAbsent(sql, metrics);
+            if (old != null)
+                metrics = old;
+        }
+        metrics.record(elapsedNanos, rows, error);
+    }
+
+    @Override
+    public void transactionCompleted(long elapsedNanos, boolean rolledBack) {
+        transactionLatency.record(elapsedNanos);
+        if (rolledBack)
+            rollbacks.increment();
+    }
+
+    /**
+     * 各形态sql的统计
+     * @return 以sql为key
+     */
+    public Map<String, SqlMetrics> getSqlMetrics() {
+        return Collections.unmodifiableMap(sqlMetrics);
+    }
+
+    /**
+     * 获取连接的耗时，纳秒
+     * @return
+     */
+    public Histogram getAcquireLatency() {
+        return acquireLatency;
+    }
+
+    /**
+     * 事务耗时，纳秒，包括提交与回滚的事务
+     * @return
+     */
+    public Histogram getTransactionLatency() {
+        return transactionLatency;
+    }
+
+    /**
+     * 回滚的事务数
+     * @return
+     */
+    public long getRollbackCount() {
+        return rollbacks.sum();
+    }
+
+    /**
+     * 清空所有统计
+     */
+    public void reset() {
+        sqlMetrics.clear();
+        acquireLatency.reset();
+        transactionLatency.reset();
+        rollbacks.reset();
+    }
+}
@@ -0,0 +1,41 @@
+package com.mlongbo.sunflower.commondb.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 慢查询日志，耗时超过阈值的sql以WARN级别输出到com.mlongbo.sunflower.commondb.metrics.SlowQueryLog
+ * <pre>
+ * Database.me.addListener(new SlowQueryLog(200));
+ * </pre>
+ * @author malongbo
+ */
+public final class SlowQueryLog implements DbListener {
+    private static final Logger Log = LoggerFactory.getLogger(SlowQueryLog.class);
+    private final long thresholdNanos;
+
+    /**
+     * @param thresholdMillis 阈值，毫秒
+     */
+    public SlowQueryLog(long thresholdMillis) {
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+    }
+
+    @Override
+    public void connectionAcquired(long elapsedNanos) {
+    }
+
+    @Override
+    public void statementExecuted(SqlKind kind, String sql, long elapsedNanos, int rows, Throwable error) {
+        if (elapsedNanos < thresholdNanos || !Log.isWarnEnabled())
+            return;
+        Log.warn("Slow " + kind + " took " + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + "ms, rows=" + rows
+                + (error == null ? "" : ", error=" + error) + ": " + sql);
+    }
+
+    @Override
+    public void transactionCompleted(long elapsedNanos, boolean rolledBack) {
+    }
+}
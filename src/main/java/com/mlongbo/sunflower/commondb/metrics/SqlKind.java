@@ -0,0 +1,20 @@
+package com.mlongbo.sunflower.commondb.metrics;
+
+/**
+ * DbKit调用的类型
+ * @author malongbo
+ */
+public enum SqlKind {
+    /**
+     * DbKit.query
+     */
+    QUERY,
+    /**
+     * DbKit.execute
+     */
+    UPDATE,
+    /**
+     * DbKit.batch、DbKit.insertBatch
+     */
+    BATCH
+}
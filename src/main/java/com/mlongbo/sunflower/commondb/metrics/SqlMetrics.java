@@ -0,0 +1,66 @@
+package com.mlongbo.sunflower.commondb.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 同一形态sql的统计
+ * @author malongbo
+ */
+public final class SqlMetrics {
+    private final SqlKind kind;
+    private final String sql;
+    private final Histogram latency = new Histogram();
+    private final Histogram rows = new Histogram();
+    private final LongAdder errors = new LongAdder();
+
+    SqlMetrics(SqlKind kind, String sql) {
+        this.kind = kind;
+        this.sql = sql;
+    }
+
+    void record(long elapsedNanos, int rows, Throwable error) {
+        latency.record(elapsedNanos);
+        if (error == null) {
+            this.rows.record(rows);
+        } else {
+            errors.increment();
+        }
+    }
+
+    public SqlKind getKind() {
+        return kind;
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    /**
+     * 耗时，纳秒
+     * @return
+     */
+    public Histogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * 成功执行时的行数，QUERY为映射的行数，UPDATE为影响的行数，BATCH为批处理大小
+     * @return
+     */
+    public Histogram getRows() {
+        return rows;
+    }
+
+    /**
+     * 失败次数
+     * @return
+     */
+    public long getErrorCount() {
+        return errors.sum();
+    }
+
+    @Override
+    public String toString() {
+        return kind + " " + sql + " latency=" + latency + ", rows=" + rows + ", errors=" + getErrorCount();
+    }
+}
@@ -0,0 +1,60 @@
+package com.mlongbo.sunflower.commondb.pool;
+
+import com.mchange.v2.c3p0.ComboPooledDataSource;
+import com.mlongbo.sunflower.commondb.ConnectionProvider;
+
+import java.beans.PropertyVetoException;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * 基于c3p0的ConnectionProvider
+ * @author malongbo
+ */
+public class C3p0ConnectionProvider implements ConnectionProvider {
+    private final ComboPooledDataSource dataSource;
+
+    public C3p0ConnectionProvider(ComboPooledDataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * 使用与内置连接池相同的配置创建c3p0连接池
+     * @param config
+     */
+    public C3p0ConnectionProvider(PoolConfig config) {
+        dataSource = new ComboPooledDataSource();
+        if (config.getDriverClassName() != null) {
+            try {
+                dataSource.setDriverClass(config.getDriverClassName());
+            } catch (PropertyVetoException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+        if (config.getDataSourceProperties() != null && !config.getDataSourceProperties().isEmpty())
+            dataSource.setProperties(config.getDataSourceProperties());
+        dataSource.setJdbcUrl(config.getJdbcUrl());
+        dataSource.setUser(config.getUsername());
+        dataSource.setPassword(config.getPassword());
+        dataSource.setMinPoolSize(config.getMinimumIdle());
+        dataSource.setInitialPoolSize(config.getMinimumIdle());
+        dataSource.setMaxPoolSize(config.getMaximumPoolSize());
+        dataSource.setCheckoutTimeout((int) config.getConnectionTimeout());
+        dataSource.setMaxIdleTime((int) (config.getIdleTimeout() / 1000));
+        dataSource.setMaxConnectionAge((int) (config.getMaxLifetime() / 1000));
+    }
+
+    public ComboPooledDataSource getDataSource() {
+        return dataSource;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return dataSource.getConnection();
+    }
+
+    @Override
+    public void destroy() {
+        dataSource.close();
+    }
+}
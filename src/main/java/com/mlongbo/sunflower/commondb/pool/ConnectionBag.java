@@ -0,0 +1,181 @@
+package com.mlongbo.sunflower.commondb.pool;
+
+import java.lang.ref.WeakReference;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 存放连接的容器，借出与归还均无锁
+ * 借出时依次尝试：当前线程最近归还的连接、通过CAS抢占共享列表中的空闲连接、创建新连接、等待其他线程归还的连接；
+ * 归还时若有线程在等待则直接交给等待的线程，否则记入当前线程的最近归还列表，同一线程再次借出时优先复用
+ * @author malongbo
+ */
+final class ConnectionBag {
+    private static final int THREAD_LIST_SIZE = 16;
+    private static final long WAIT_SLICE = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final CopyOnWriteArrayList<PoolEntry> shared = new CopyOnWriteArrayList<PoolEntry>();
+    private final ThreadLocal<List<WeakReference<PoolEntry>>> threadList = new ThreadLocal<List<WeakReference<PoolEntry>>>() {
+        @Override
+        protected List<WeakReference<PoolEntry>> initialValue() {
+            return new ArrayList<WeakReference<PoolEntry>>(THREAD_LIST_SIZE);
+        }
+    };
+    private final SynchronousQueue<PoolEntry> handoff = new SynchronousQueue<PoolEntry>(true);
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    /**
+     * 创建连接
+     */
+    interface EntryFactory {
+        /**
+         * 未达到最大连接数时创建状态为IN_USE的连接并加入容器
+         * @return 已达到最大连接数时返回null
+         */
+        PoolEntry tryCreate() throws SQLException;
+    }
+
+    /**
+     * 借出连接
+     * @param timeoutNanos 最长等待时间
+     * @param factory 没有空闲连接时用于创建连接
+     * @return 超时返回null
+     * @throws InterruptedException
+     * @throws SQLException 创建连接失败
+     */
+    PoolEntry borrow(long timeoutNanos, EntryFactory factory) throws InterruptedException, SQLException {
+        List<WeakReference<PoolEntry>> list = threadList.get();
+        for (int i = list.size() - 1; i >= 0; i--) {
+            PoolEntry entry = list.remove(i).get();
+            if (entry != null && entry.compareAndSet(PoolEntry.NOT_IN_USE, PoolEntry.IN_USE))
+                return entry;
+        }
+
+        waiters.incrementAndGet();
+        try {
+            long deadline = System.nanoTime() + timeoutNanos;
+            while (true) {
+                for (PoolEntry entry : shared) {
+                    if (entry.compareAndSet(PoolEntry.NOT_IN_USE, PoolEntry.IN_USE))
+                        return entry;
+                }
+
+                PoolEntry created = factory.tryCreate();
+                if (created != null)
+                    return created;
+
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                    return null;
+
+                //分段等待，期间有连接被移除时可以重新尝试创建
+                PoolEntry entry = handoff.poll(Math.min(remaining, WAIT_SLICE), TimeUnit.NANOSECONDS);
+                if (entry != null && entry.compareAndSet(PoolEntry.NOT_IN_USE, PoolEntry.IN_USE))
+                    return entry;
+            }
+        } finally {
+            waiters.decrementAndGet();
+        }
+    }
+
+    /**
+     * 归还连接
+     * @param entry
+     */
+    void requite(PoolEntry entry) {
+        entry.setState(PoolEntry.NOT_IN_USE);
+
+        for (int i = 0; waiters.get() > 0; i++) {
+            if (entry.getState() != PoolEntry.NOT_IN_USE || handoff.offer(entry))
+                return;
+            if ((i & 0xff) == 0xff) {
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(10));
+            } else {
+                Thread.yield();
+            }
+        }
+
+        List<WeakReference<PoolEntry>> list = threadList.get();
+        if (list.size() < THREAD_LIST_SIZE)
+            list.add(new WeakReference<PoolEntry>(entry));
+    }
+
+    /**
+     * 加入连接，entry的状态为NOT_IN_USE时可立即被借出
+     * @param entry
+     */
+    void add(PoolEntry entry) {
+        shared.add(entry);
+        if (entry.getState() == PoolEntry.NOT_IN_USE) {
+            while (waiters.get() > 0 && entry.getState() == PoolEntry.NOT_IN_USE && !handoff.offer(entry)) {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * 移除借出或预留的连接
+     * @param entry
+     * @return
+     */
+    boolean remove(PoolEntry entry) {
+        if (!entry.compareAndSet(PoolEntry.IN_USE, PoolEntry.REMOVED)
+                && !entry.compareAndSet(PoolEntry.RESERVED, PoolEntry.REMOVED))
+            return false;
+        return shared.remove(entry);
+    }
+
+    /**
+     * 预留空闲连接，预留后不会被借出，用于回收空闲连接
+     * @param entry
+     * @return
+     */
+    boolean reserve(PoolEntry entry) {
+        return entry.compareAndSet(PoolEntry.NOT_IN_USE, PoolEntry.RESERVED);
+    }
+
+    /**
+     * 取消预留
+     * @param entry
+     */
+    void unreserve(PoolEntry entry) {
+        if (entry.compareAndSet(PoolEntry.RESERVED, PoolEntry.IN_USE))
+            requite(entry);
+    }
+
+    /**
+     * 所有连接的快照
+     * @return
+     */
+    List<PoolEntry> values() {
+        return new ArrayList<PoolEntry>(shared);
+    }
+
+    /**
+     * 指定状态的连接数
+     * @param state
+     * @return
+     */
+    int count(int state) {
+        int count = 0;
+        for (PoolEntry entry : shared) {
+            if (entry.getState() == state)
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * 正在等待连接的线程数
+     * @return
+     */
+    int getWaiters() {
+        return waiters.get();
+    }
+}
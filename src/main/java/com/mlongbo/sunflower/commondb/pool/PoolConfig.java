@@ -0,0 +1,203 @@
+package com.mlongbo.sunflower.commondb.pool;
+
+import java.util.Properties;
+
+/**
+ * 连接池配置，时间单位均为毫秒
+ * @author malongbo
+ */
+public class PoolConfig {
+    private String jdbcUrl;
+    private String username;
+    private String password;
+    private String driverClassName;
+    private Properties dataSourceProperties = new Properties();
+    private int minimumIdle = 2;
+    private int maximumPoolSize = 10;
+    private long connectionTimeout = 30000;
+    private long idleTimeout = 600000;
+    private long maxLifetime = 1800000;
+    private long validationTimeout = 5000;
+    private long aliveBypassWindow = 500;
+    private long leakDetectionThreshold = 0;
+    private long housekeepingPeriod = 30000;
+    private int statementCacheSize = 0;
+
+    public PoolConfig() {
+    }
+
+    public PoolConfig(String jdbcUrl, String username, String password) {
+        this.jdbcUrl = jdbcUrl;
+        this.username = username;
+        this.password = password;
+    }
+
+    public String getJdbcUrl() {
+        return jdbcUrl;
+    }
+
+    public void setJdbcUrl(String jdbcUrl) {
+        this.jdbcUrl = jdbcUrl;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
+    public void setPassword(String password) {
+        this.password = password;
+    }
+
+    public String getDriverClassName() {
+        return driverClassName;
+    }
+
+    /**
+     * 驱动类名，驱动已通过SPI注册时可不设置
+     * @param driverClassName
+     */
+    public void setDriverClassName(String driverClassName) {
+        this.driverClassName = driverClassName;
+    }
+
+    public Properties getDataSourceProperties() {
+        return dataSourceProperties;
+    }
+
+    /**
+     * 传给驱动的连接属性，如MySQL的rewriteBatchedStatements、cachePrepStmts
+     * @param dataSourceProperties
+     */
+    public void setDataSourceProperties(Properties dataSourceProperties) {
+        this.dataSourceProperties = dataSourceProperties;
+    }
+
+    public int getMinimumIdle() {
+        return minimumIdle;
+    }
+
+    /**
+     * 最小空闲连接数，默认2
+     * @param minimumIdle
+     */
+    public void setMinimumIdle(int minimumIdle) {
+        this.minimumIdle = minimumIdle;
+    }
+
+    public int getMaximumPoolSize() {
+        return maximumPoolSize;
+    }
+
+    /**
+     * 最大连接数，默认10
+     * @param maximumPoolSize
+     */
+    public void setMaximumPoolSize(int maximumPoolSize) {
+        this.maximumPoolSize = maximumPoolSize;
+    }
+
+    public long getConnectionTimeout() {
+        return connectionTimeout;
+    }
+
+    /**
+     * 获取连接的最长等待时间，默认30秒
+     * @param connectionTimeout
+     */
+    public void setConnectionTimeout(long connectionTimeout) {
+        this.connectionTimeout = connectionTimeout;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * 超过最小空闲连接数的连接空闲多久后关闭，默认10分钟，0为不关闭
+     * @param idleTimeout
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public long getMaxLifetime() {
+        return maxLifetime;
+    }
+
+    /**
+     * 连接的最长存活时间，应小于数据库的wait_timeout，默认30分钟，0为不限制
+     * @param maxLifetime
+     */
+    public void setMaxLifetime(long maxLifetime) {
+        this.maxLifetime = maxLifetime;
+    }
+
+    public long getValidationTimeout() {
+        return validationTimeout;
+    }
+
+    /**
+     * Connection.isValid校验的超时时间，默认5秒
+     * @param validationTimeout
+     */
+    public void setValidationTimeout(long validationTimeout) {
+        this.validationTimeout = validationTimeout;
+    }
+
+    public long getAliveBypassWindow() {
+        return aliveBypassWindow;
+    }
+
+    /**
+     * 连接在该时间内使用过时借出不再校验，默认500毫秒
+     * @param aliveBypassWindow
+     */
+    public void setAliveBypassWindow(long aliveBypassWindow) {
+        this.aliveBypassWindow = aliveBypassWindow;
+    }
+
+    public long getLeakDetectionThreshold() {
+        return leakDetectionThreshold;
+    }
+
+    /**
+     * 连接借出超过该时间未归还时输出借出时的调用栈，0为关闭，默认关闭
+     * @param leakDetectionThreshold
+     */
+    public void setLeakDetectionThreshold(long leakDetectionThreshold) {
+        this.leakDetectionThreshold = leakDetectionThreshold;
+    }
+
+    public long getHousekeepingPeriod() {
+        return housekeepingPeriod;
+    }
+
+    /**
+     * 回收空闲连接、补充最小空闲连接的执行间隔，默认30秒
+     * @param housekeepingPeriod
+     */
+    public void setHousekeepingPeriod(long housekeepingPeriod) {
+        this.housekeepingPeriod = housekeepingPeriod;
+    }
+
+    public int getStatementCacheSize() {
+        return statementCacheSize;
+    }
+
+    /**
+     * 每个物理连接缓存的PreparedStatement数，0为不缓存，默认不缓存
+     * 只缓存DbKit执行的sql；MySQL需在连接串中开启useServerPrepStmts=true才使用服务端预编译
+     * @param statementCacheSize
+     */
+    public void setStatementCacheSize(int statementCacheSize) {
+        this.statementCacheSize = statementCacheSize;
+    }
+}
@@ -0,0 +1,91 @@
+package com.mlongbo.sunflower.commondb.pool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * 连接池中的一个物理连接及其状态
+ * @author malongbo
+ */
+final class PoolEntry {
+    static final int NOT_IN_USE = 0;
+    static final int IN_USE = 1;
+    static final int REMOVED = -1;
+    static final int RESERVED = -2;
+
+    private static final AtomicIntegerFieldUpdater<PoolEntry> STATE =
+            AtomicIntegerFieldUpdater.newUpdater(PoolEntry.class, "state");
+
+    final Connection connection;
+    final long createTime;
+    /**
+     * 到期时间，0为不过期
+     */
+    final long expireTime;
+    final int defaultIsolation;
+    final String defaultCatalog;
+    final String defaultSchema;
+    volatile long lastAccessed;
+    private volatile int state;
+
+    /**
+     * PreparedStatement缓存，未开启时为null
+     */
+    StatementCache statementCache;
+
+    /**
+     * 连接泄露检测的定时任务及借出时的调用栈
+     */
+    ScheduledFuture<?> leakTask;
+
+    /**
+     * @param connection 物理连接
+     * @param maxLifetimeNanos 最长存活时间，0为不限制；实际到期时间随机提前至多2.5%，避免同时创建的连接同时到期
+     * @throws SQLException
+     */
+    PoolEntry(Connection connection, long maxLifetimeNanos) throws SQLException {
+        this.connection = connection;
+        this.createTime = System.nanoTime();
+        this.lastAccessed = createTime;
+        if (maxLifetimeNanos > 0) {
+            long variance = maxLifetimeNanos / 40;
+            this.expireTime = createTime + maxLifetimeNanos
+                    - (variance > 0 ? ThreadLocalRandom.current().nextLong(variance) : 0);
+        } else {
+            this.expireTime = 0;
+        }
+        this.defaultIsolation = connection.getTransactionIsolation();
+        this.defaultCatalog = connection.getCatalog();
+        this.defaultSchema = schema(connection);
+    }
+
+    boolean isExpired(long now) {
+        return expireTime != 0 && now - expireTime >= 0;
+    }
+
+    private static String schema(Connection connection) {
+        try {
+            return connection.getSchema();
+        } catch (SQLException e) {
+            return null;
+        } catch (AbstractMethodError e) {
+            //JDBC4.1之前的驱动
+            return null;
+        }
+    }
+
+    boolean compareAndSet(int expect, int update) {
+        return STATE.compareAndSet(this, expect, update);
+    }
+
+    int getState() {
+        return state;
+    }
+
+    void setState(int state) {
+        this.state = state;
+    }
+}
@@ -0,0 +1,380 @@
+package com.mlongbo.sunflower.commondb.pool;
+
+import com.mlongbo.sunflower.commondb.ConnectionProvider;
+import com.mlongbo.sunflower.commondb.cache.CacheStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.Properties;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 内置连接池
+ * 借出连接不加锁：优先复用当前线程最近归还的连接，其次CAS抢占空闲连接，连接数未达上限时创建新连接，否则等待其他线程归还；
+ * 连接在aliveBypassWindow内使用过时借出不校验，否则使用Connection.isValid校验
+ * <pre>
+ * PoolConfig config = new PoolConfig("jdbc:mysql://localhost:3306/test", "root", "");
+ * config.setMaximumPoolSize(20);
+ * Database.me.setConnectionProvider(new PooledConnectionProvider(config));
+ * </pre>
+ * @author malongbo
+ */
+public class PooledConnectionProvider implements ConnectionProvider {
+    private static final Logger Log = LoggerFactory.getLogger(PooledConnectionProvider.class);
+    private static final AtomicInteger POOL_NUMBER = new AtomicInteger();
+
+    private final PoolConfig config;
+    private final Properties connectProperties;
+    private final ConnectionBag bag = new ConnectionBag();
+    private final AtomicInteger totalConnections = new AtomicInteger();
+    private final StatementCache.Counters statementCounters = new StatementCache.Counters();
+    private final ScheduledThreadPoolExecutor housekeeper;
+    private final long aliveBypassNanos;
+    private final long idleTimeoutNanos;
+    private final long maxLifetimeNanos;
+    private final int validationSeconds;
+    private volatile Driver driver;
+    private volatile boolean shutdown;
+
+    private final ConnectionBag.EntryFactory factory = new ConnectionBag.EntryFactory() {
+        @Override
+        public PoolEntry tryCreate() throws SQLException {
+            if (!reserveSlot())
+                return null;
+            PoolEntry entry = createEntry(PoolEntry.IN_USE);
+            bag.add(entry);
+            return entry;
+        }
+    };
+
+    public PooledConnectionProvider(PoolConfig config) {
+        if (config.getJdbcUrl() == null)
+            throw new IllegalArgumentException("jdbcUrl is required");
+        if (config.getMaximumPoolSize() < 1)
+            throw new IllegalArgumentException("maximumPoolSize must be positive");
+        if (config.getMinimumIdle() < 0 || config.getMinimumIdle() > config.getMaximumPoolSize())
+            throw new IllegalArgumentException("minimumIdle must be between 0 and maximumPoolSize");
+
+        this.config = config;
+        this.connectProperties = new Properties();
+        if (config.getDataSourceProperties() != null)
+            connectProperties.putAll(config.getDataSourceProperties());
+        if (config.getUsername() != null)
+            connectProperties.put("user", config.getUsername());
+        if (config.getPassword() != null)
+            connectProperties.put("password", config.getPassword());
+
+        this.aliveBypassNanos = TimeUnit.MILLISECONDS.toNanos(config.getAliveBypassWindow());
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getIdleTimeout());
+        this.maxLifetimeNanos = TimeUnit.MILLISECONDS.toNanos(config.getMaxLifetime());
+        this.validationSeconds = (int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(config.getValidationTimeout() + 999));
+
+        final String threadName = "sunflower-pool-" + POOL_NUMBER.incrementAndGet() + "-housekeeper";
+        this.housekeeper = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, threadName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        housekeeper.setRemoveOnCancelPolicy(true);
+        housekeeper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                housekeep();
+            }
+        }, 0, config.getHousekeepingPeriod(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 借出连接，使用完毕后须调用close归还
+     * @return
+     * @throws SQLException 等待超过connectionTimeout时抛出SQLTimeoutException
+     */
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (shutdown)
+            throw new SQLException("Pool has been shut down", "08003");
+
+        long timeout = TimeUnit.MILLISECONDS.toNanos(config.getConnectionTimeout());
+        long start = System.nanoTime();
+        try {
+            while (true) {
+                long remaining = timeout - (System.nanoTime() - start);
+                PoolEntry entry = bag.borrow(Math.max(0, remaining), factory);
+                if (entry == null)
+                    break;
+
+                long now = System.nanoTime();
+                if (entry.isExpired(now) || (now - entry.lastAccessed > aliveBypassNanos && !isAlive(entry))) {
+                    retire(entry);
+                    continue;
+                }
+
+                if (config.getLeakDetectionThreshold() > 0)
+                    scheduleLeakTask(entry);
+                return new ProxyConnection(this, entry);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for connection", e);
+        }
+
+        throw new SQLTimeoutException("Connection is not available, request timed out after "
+                + config.getConnectionTimeout() + "ms (total=" + getTotalConnections()
+                + ", active=" + getActiveConnections() + ", idle=" + getIdleConnections()
+                + ", waiting=" + getPendingThreads() + ")");
+    }
+
+    /**
+     * 关闭连接池，正在使用的连接归还时关闭
+     */
+    @Override
+    public void destroy() {
+        shutdown = true;
+        housekeeper.shutdownNow();
+        for (PoolEntry entry : bag.values()) {
+            if (bag.reserve(entry) && bag.remove(entry))
+                closeConnection(entry);
+        }
+    }
+
+    /**
+     * 借出时开始泄漏检测，并发destroy关闭了housekeeper时不再借出，连接随即关闭
+     * @param entry 已借出的连接
+     * @throws SQLException 连接池已关闭
+     */
+    private void scheduleLeakTask(PoolEntry entry) throws SQLException {
+        if (!shutdown) {
+            try {
+                entry.leakTask = housekeeper.schedule(new LeakTask(), config.getLeakDetectionThreshold(), TimeUnit.MILLISECONDS);
+                return;
+            } catch (RejectedExecutionException e) {
+                //destroy已关闭housekeeper
+            }
+        }
+        if (shutdown) {
+            retire(entry);
+        } else {
+            bag.requite(entry);
+        }
+        throw new SQLException("Pool has been shut down", "08003");
+    }
+
+    /**
+     * 已借出的连接数
+     * @return
+     */
+    public int getActiveConnections() {
+        return bag.count(PoolEntry.IN_USE);
+    }
+
+    /**
+     * 空闲连接数
+     * @return
+     */
+    public int getIdleConnections() {
+        return bag.count(PoolEntry.NOT_IN_USE);
+    }
+
+    /**
+     * 连接总数，包括正在创建的连接
+     * @return
+     */
+    public int getTotalConnections() {
+        return totalConnections.get();
+    }
+
+    /**
+     * 等待连接的线程数
+     * @return
+     */
+    public int getPendingThreads() {
+        return bag.getWaiters();
+    }
+
+    /**
+     * PreparedStatement缓存的统计，size为所有连接缓存的PreparedStatement总数
+     * @return
+     */
+    public CacheStats getStatementCacheStats() {
+        long size = 0;
+        for (PoolEntry entry : bag.values()) {
+            if (entry.statementCache != null)
+                size += entry.statementCache.size();
+        }
+        return new CacheStats(statementCounters.hits.sum(), statementCounters.misses.sum(),
+                statementCounters.evictions.sum(), size);
+    }
+
+    /**
+     * 归还连接
+     * @param proxy
+     * @param entry
+     */
+    void release(ProxyConnection proxy, PoolEntry entry) {
+        if (entry.leakTask != null) {
+            entry.leakTask.cancel(false);
+            entry.leakTask = null;
+        }
+
+        boolean evict = proxy.isEvicted();
+        if (!evict) {
+            try {
+                proxy.reset();
+            } catch (SQLException e) {
+                Log.warn("Failed to reset connection, closing it", e);
+                evict = true;
+            }
+        }
+
+        long now = System.nanoTime();
+        entry.lastAccessed = now;
+        if (evict || shutdown || entry.isExpired(now)) {
+            retire(entry);
+        } else {
+            bag.requite(entry);
+        }
+    }
+
+    /**
+     * 回收空闲超时与到期的连接，补充空闲连接至minimumIdle
+     */
+    void housekeep() {
+        if (shutdown)
+            return;
+
+        long now = System.nanoTime();
+        int idle = getIdleConnections();
+        for (PoolEntry entry : bag.values()) {
+            if (entry.getState() != PoolEntry.NOT_IN_USE)
+                continue;
+            boolean idleTimeout = idleTimeoutNanos > 0 && idle > config.getMinimumIdle()
+                    && now - entry.lastAccessed > idleTimeoutNanos;
+            if ((idleTimeout || entry.isExpired(now)) && bag.reserve(entry) && bag.remove(entry)) {
+                closeConnection(entry);
+                idle--;
+            }
+        }
+
+        fillPool();
+    }
+
+    private void fillPool() {
+        while (!shutdown && getIdleConnections() < config.getMinimumIdle() && reserveSlot()) {
+            try {
+                bag.add(createEntry(PoolEntry.NOT_IN_USE));
+            } catch (SQLException e) {
+                Log.warn("Failed to create connection while filling pool", e);
+                return;
+            }
+        }
+    }
+
+    private boolean reserveSlot() {
+        while (true) {
+            int total = totalConnections.get();
+            if (total >= config.getMaximumPoolSize())
+                return false;
+            if (totalConnections.compareAndSet(total, total + 1))
+                return true;
+        }
+    }
+
+    /**
+     * 创建连接，调用前须已通过reserveSlot占用连接数，失败时释放
+     */
+    private PoolEntry createEntry(int state) throws SQLException {
+        Connection connection = null;
+        try {
+            if (shutdown)
+                throw new SQLException("Pool has been shut down", "08003");
+            connection = driver().connect(config.getJdbcUrl(), connectProperties);
+            if (connection == null)
+                throw new SQLException("Driver does not accept url " + config.getJdbcUrl(), "08001");
+            if (!connection.getAutoCommit())
+                connection.setAutoCommit(true);
+            PoolEntry entry = new PoolEntry(connection, maxLifetimeNanos);
+            if (config.getStatementCacheSize() > 0)
+                entry.statementCache = new StatementCache(connection, config.getStatementCacheSize(), statementCounters);
+            entry.setState(state);
+            return entry;
+        } catch (SQLException e) {
+            totalConnections.decrementAndGet();
+            closeQuietly(connection);
+            throw e;
+        } catch (RuntimeException e) {
+            totalConnections.decrementAndGet();
+            closeQuietly(connection);
+            throw e;
+        }
+    }
+
+    private Driver driver() throws SQLException {
+        Driver d = driver;
+        if (d == null) {
+            if (config.getDriverClassName() != null) {
+                try {
+                    Class.forName(config.getDriverClassName());
+                } catch (ClassNotFoundException e) {
+                    throw new SQLException("Driver class not found: " + config.getDriverClassName(), e);
+                }
+            }
+            d = driver = DriverManager.getDriver(config.getJdbcUrl());
+        }
+        return d;
+    }
+
+    private boolean isAlive(PoolEntry entry) {
+        try {
+            return entry.connection.isValid(validationSeconds);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void retire(PoolEntry entry) {
+        if (bag.remove(entry))
+            closeConnection(entry);
+    }
+
+    private void closeConnection(PoolEntry entry) {
+        totalConnections.decrementAndGet();
+        if (entry.statementCache != null)
+            entry.statementCache.closeAll();
+        closeQuietly(entry.connection);
+    }
+
+    private static void closeQuietly(Connection connection) {
+        if (connection == null)
+            return;
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            Log.debug("Failed to close connection", e);
+        }
+    }
+
+    /**
+     * 连接借出超过leakDetectionThreshold未归还时输出借出时的调用栈
+     */
+    private static final class LeakTask implements Runnable {
+        private final Exception trace = new Exception("Apparent connection leak detected");
+        private final String threadName = Thread.currentThread().getName();
+
+        @Override
+        public void run() {
+            Log.warn("Connection leak detection triggered for connection borrowed by thread " + threadName, trace);
+        }
+    }
+}
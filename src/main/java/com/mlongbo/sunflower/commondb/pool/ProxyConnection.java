@@ -0,0 +1,577 @@
+package com.mlongbo.sunflower.commondb.pool;
+
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.CallableStatement;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.NClob;
+import java.sql.PreparedStatement;
+import java.sql.SQLClientInfoException;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.SQLWarning;
+import java.sql.SQLXML;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.sql.Struct;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+
+/**
+ * 借出给调用方的连接，close时归还连接池而不关闭物理连接
+ * 记录调用方修改过的连接状态，归还时只重置修改过的状态；出现连接类错误时归还后关闭物理连接
+ * @author malongbo
+ */
+final class ProxyConnection implements Connection {
+    private final PooledConnectionProvider pool;
+    private final PoolEntry entry;
+    private boolean closed;
+    private boolean evict;
+    private boolean autoCommit = true;
+    private boolean readOnlyDirty;
+    private boolean isolationDirty;
+    private boolean catalogDirty;
+    private boolean schemaDirty;
+
+    ProxyConnection(PooledConnectionProvider pool, PoolEntry entry) {
+        this.pool = pool;
+        this.entry = entry;
+    }
+
+    /**
+     * 物理连接上的PreparedStatement缓存
+     * @return 连接已关闭或未开启缓存时返回null
+     */
+    StatementCache statementCache() {
+        return closed ? null : entry.statementCache;
+    }
+
+    /**
+     * 归还前重置连接状态，未提交的事务将被回滚
+     * @throws SQLException
+     */
+    void reset() throws SQLException {
+        Connection connection = entry.connection;
+        if (entry.statementCache != null)
+            entry.statementCache.releaseAll();
+        if (!autoCommit) {
+            connection.rollback();
+            connection.setAutoCommit(true);
+        }
+        if (readOnlyDirty)
+            connection.setReadOnly(false);
+        if (isolationDirty)
+            connection.setTransactionIsolation(entry.defaultIsolation);
+        if (catalogDirty && entry.defaultCatalog != null)
+            connection.setCatalog(entry.defaultCatalog);
+        if (schemaDirty && entry.defaultSchema != null)
+            connection.setSchema(entry.defaultSchema);
+    }
+
+    /**
+     * 归还后是否应关闭物理连接
+     * @return
+     */
+    boolean isEvicted() {
+        return evict;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        if (closed)
+            return;
+        closed = true;
+        pool.release(this, entry);
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return closed;
+    }
+
+    @Override
+    public void abort(Executor executor) throws SQLException {
+        if (closed)
+            return;
+        closed = true;
+        evict = true;
+        entry.connection.abort(executor);
+        pool.release(this, entry);
+    }
+
+    @Override
+    public void setAutoCommit(boolean autoCommit) throws SQLException {
+        try {
+            delegate().setAutoCommit(autoCommit);
+            this.autoCommit = autoCommit;
+        } catch (SQLException e) {
+            throw checkException(e);
+        }
+    }
+
+    @Override
+    public void setReadOnly(boolean readOnly) throws SQLException {
+        try {
+            delegate().setReadOnly(readOnly);
+            readOnlyDirty = true;
+        } catch (SQLException e) {
+            throw checkException(e);
+        }
+    }
+
+    @Override
+    public void setTransactionIsolation(int level) throws SQLException {
+        try {
+            delegate().setTransactionIsolation(level);
+            isolationDirty = true;
+        } catch (SQLException e) {
+            throw checkException(e);
+        }
+    }
+
+    @Override
+    public void setCatalog(String catalog) throws SQLException {
+        try {
+            delegate().setCatalog(catalog);
+            catalogDirty = true;
+        } catch (SQLException e) {
+            throw checkException(e);
+        }
+    }
+
+    @Override
+    public void setSchema(String schema) throws SQLException {
+        try {
+            delegate().setSchema(schema);
+            schemaDirty = true;
+        } catch (SQLException e) {
+            throw checkException(e);
+        }
+    }
+
+    @Override
+    public void setNetworkTimeout(Executor executor, int milliseconds) throws SQLException {
+        try {
+            delegate().setNetworkTimeout(executor, milliseconds);
+            //无法可靠地恢复，归还后关闭
+            evict = true;
+        } catch (SQLException e) {
+            throw checkException(e);
+        }
+    }
+
+    @Override
+    public void setClientInfo(String name, String value) throws SQLClientInfoException {
+        entry.connection.setClientInfo(name, value);
+    }
+
+    @Override
+    public void setClientInfo(Properties properties) throws SQLClientInfoException {
+        entry.connection.setClientInfo(properties);
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this))
+            return iface.cast(this);
+        return delegate().unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || delegate().isWrapperFor(iface);
+    }
+
+    @Override
+    public Statement createStatement() throws SQLException {
+        try {
+            return delegate().createStatement();
+        } catch (SQLException e) {
+            throw checkException(e);
+        }
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        try {
+            return delegate().prepareStatement(sql);
+        } catch (SQLException e) {
+            throw checkException(e);
+        }
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql) throws SQLException {
+        try {
+            return delegate().prepareCall(sql);
+        } catch (SQLException e) {
+            throw checkException(e);
+        }
+    }
+
+    @Override
+    public String nativeSQL(String sql) throws SQLException {
+        try {
+            return delegate().nativeSQL(sql);
+        } catch (SQLException e) {
+            throw checkException(e);
+        }
+    }
+
+    @Override
+    public boolean getAutoCommit() throws SQLException {
+        try {
+            return delegate().getAutoCommit();
+        } catch (SQLException e) {
+            throw checkException(e);
+        }
+    }
+
+    @Override
+    public void commit() throws SQLException {
+        try {
+            delegate().commit();
+        } catch (SQLException e) {
+            throw checkException(e);
+        }
+    }
+
+    @Override
+    public void rollback() throws SQLException {
+        try {
+            delegate().rollback();
+        } catch (SQLException e) {
+            throw checkException(e);
+        }
+    }
+
+    @Override
+    public DatabaseMetaData getMetaData() throws SQLException {
+        try {
+            return delegate().getMetaData();
+        } catch (SQLException e) {
+            throw checkException(e);
+        }
+    }
+
+    @Override
+    public boolean isReadOnly() throws SQLException {
+        try {
+            return delegate().isReadOnly();
+        } catch (SQLException e) {
+            throw checkException(e);
+        }
+    }
+
+    @Override
+    public String getCatalog() throws SQLException {
+        try {
+            return delegate().getCatalog();
+        } catch (SQLException e) {
+            throw checkException(e);
+        }
+    }
+
+    @Override
+    public int getTransactionIsolation() throws SQLException {
+        try {
+            return delegate().getTransactionIsolation();
+        } catch (SQLException e) {
+            throw checkException(e);
+        }
+    }
+
+    @Override
+    public SQLWarning getWarnings() throws SQLException {
+        try {
+            return delegate().getWarnings();
+        } catch (SQLException e) {
+            throw checkException(e);
+        }
+    }
+
+    @Override
+    public void clearWarnings() throws SQLException {
+        try {
+            delegate().clearWarnings();
+        } catch (SQLException e) {
+            throw checkException(e);
+        }
+    }
+
+    @Override
+    public Statement createStatement(int resultSetType, int resultSetConcurrency) throws SQLException {
+        try {
+            return delegate().createStatement(resultSetType, resultSetConcurrency);
+        } catch (SQLException e) {
+            throw checkException(e);
+        }
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+        try {
+            return delegate().prepareStatement(sql, resultSetType, resultSetConcurrency);
+        } catch (SQLException e) {
+            throw checkException(e);
+        }
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+        try {
+            return delegate().prepareCall(sql, resultSetType, resultSetConcurrency);
+        } catch (SQLException e) {
+            throw checkException(e);
+        }
+    }
+
+    @Override
+    public Map<String, Class<?>> getTypeMap() throws SQLException {
+        try {
+            return delegate().getTypeMap();
+        } catch (SQLException e) {
+            throw checkException(e);
+        }
+    }
+
+    @Override
+    public void setTypeMap(Map<String, Class<?>> map) throws SQLException {
+        try {
+            delegate().setTypeMap(map);
+        } catch (SQLException e) {
+            throw checkException(e);
+        }
+    }
+
+    @Override
+    public void setHoldability(int holdability) throws SQLException {
+        try {
+            delegate().setHoldability(holdability);
+        } catch (SQLException e) {
+            throw checkException(e);
+        }
+    }
+
+    @Override
+    public int getHoldability() throws SQLException {
+        try {
+            return delegate().getHoldability();
+        } catch (SQLException e) {
+            throw checkException(e);
+        }
+    }
+
+    @Override
+    public Savepoint setSavepoint() throws SQLException {
+        try {
+            return delegate().setSavepoint();
+        } catch (SQLException e) {
+            throw checkException(e);
+        }
+    }
+
+    @Override
+    public Savepoint setSavepoint(String name) throws SQLException {
+        try {
+            return delegate().setSavepoint(name);
+        } catch (SQLException e) {
+            throw checkException(e);
+        }
+    }
+
+    @Override
+    public void rollback(Savepoint savepoint) throws SQLException {
+        try {
+            delegate().rollback(savepoint);
+        } catch (SQLException e) {
+            throw checkException(e);
+        }
+    }
+
+    @Override
+    public void releaseSavepoint(Savepoint savepoint) throws SQLException {
+        try {
+            delegate().releaseSavepoint(savepoint);
+        } catch (SQLException e) {
+            throw checkException(e);
+        }
+    }
+
+    @Override
+    public Statement createStatement(int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        try {
+            return delegate().createStatement(resultSetType, resultSetConcurrency, resultSetHoldability);
+        } catch (SQLException e) {
+            throw checkException(e);
+        }
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        try {
+            return delegate().prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+        } catch (SQLException e) {
+            throw checkException(e);
+        }
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        try {
+            return delegate().prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+        } catch (SQLException e) {
+            throw checkException(e);
+        }
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
+        try {
+            return delegate().prepareStatement(sql, autoGeneratedKeys);
+        } catch (SQLException e) {
+            throw checkException(e);
+        }
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int[] columnIndexes) throws SQLException {
+        try {
+            return delegate().prepareStatement(sql, columnIndexes);
+        } catch (SQLException e) {
+            throw checkException(e);
+        }
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, String[] columnNames) throws SQLException {
+        try {
+            return delegate().prepareStatement(sql, columnNames);
+        } catch (SQLException e) {
+            throw checkException(e);
+        }
+    }
+
+    @Override
+    public Clob createClob() throws SQLException {
+        try {
+            return delegate().createClob();
+        } catch (SQLException e) {
+            throw checkException(e);
+        }
+    }
+
+    @Override
+    public Blob createBlob() throws SQLException {
+        try {
+            return delegate().createBlob();
+        } catch (SQLException e) {
+            throw checkException(e);
+        }
+    }
+
+    @Override
+    public NClob createNClob() throws SQLException {
+        try {
+            return delegate().createNClob();
+        } catch (SQLException e) {
+            throw checkException(e);
+        }
+    }
+
+    @Override
+    public SQLXML createSQLXML() throws SQLException {
+        try {
+            return delegate().createSQLXML();
+        } catch (SQLException e) {
+            throw checkException(e);
+        }
+    }
+
+    @Override
+    public boolean isValid(int timeout) throws SQLException {
+        try {
+            return delegate().isValid(timeout);
+        } catch (SQLException e) {
+            throw checkException(e);
+        }
+    }
+
+    @Override
+    public String getClientInfo(String name) throws SQLException {
+        try {
+            return delegate().getClientInfo(name);
+        } catch (SQLException e) {
+            throw checkException(e);
+        }
+    }
+
+    @Override
+    public Properties getClientInfo() throws SQLException {
+        try {
+            return delegate().getClientInfo();
+        } catch (SQLException e) {
+            throw checkException(e);
+        }
+    }
+
+    @Override
+    public Array createArrayOf(String typeName, Object[] elements) throws SQLException {
+        try {
+            return delegate().createArrayOf(typeName, elements);
+        } catch (SQLException e) {
+            throw checkException(e);
+        }
+    }
+
+    @Override
+    public Struct createStruct(String typeName, Object[] attributes) throws SQLException {
+        try {
+            return delegate().createStruct(typeName, attributes);
+        } catch (SQLException e) {
+            throw checkException(e);
+        }
+    }
+
+    @Override
+    public String getSchema() throws SQLException {
+        try {
+            return delegate().getSchema();
+        } catch (SQLException e) {
+            throw checkException(e);
+        }
+    }
+
+    @Override
+    public int getNetworkTimeout() throws SQLException {
+        try {
+            return delegate().getNetworkTimeout();
+        } catch (SQLException e) {
+            throw checkException(e);
+        }
+    }
+
+    private Connection delegate() throws SQLException {
+        if (closed)
+            throw new SQLException("Connection is closed", "08003");
+        return entry.connection;
+    }
+
+    /**
+     * 连接类错误(SQLState以08开头)说明物理连接已不可用
+     * @param e
+     * @return
+     */
+    private SQLException checkException(SQLException e) {
+        String state = e.getSQLState();
+        if ((state != null && state.startsWith("08"))
+                || e instanceof SQLNonTransientConnectionException
+                || e instanceof SQLTransientConnectionException)
+            evict = true;
+        return e;
+    }
+}
@@ -0,0 +1,205 @@
+package com.mlongbo.sunflower.commondb.pool;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 物理连接上的PreparedStatement缓存，以sql为key按LRU淘汰
+ * 连接归还连接池时不关闭缓存的PreparedStatement，下次借出同一物理连接时直接复用，
+ * MySQL连接串开启useServerPrepStmts=true时可省去服务端的预编译
+ * 同一时刻只有借出连接的线程访问，无需加锁
+ * @author malongbo
+ */
+public final class StatementCache {
+    /**
+     * 物理连接对应的缓存，用于根据PreparedStatement找到所属的缓存
+     */
+    private static final ConcurrentMap<Connection, StatementCache> registry = new ConcurrentHashMap<Connection, StatementCache>();
+
+    private final Connection connection;
+    private final int maximumSize;
+    private final Counters counters;
+    private final LinkedHashMap<String, Holder> statements;
+    private final Map<PreparedStatement, Holder> holders = new IdentityHashMap<PreparedStatement, Holder>();
+    private volatile int size;
+
+    /**
+     * 连接池中所有缓存共享的统计
+     */
+    static final class Counters {
+        final LongAdder hits = new LongAdder();
+        final LongAdder misses = new LongAdder();
+        final LongAdder evictions = new LongAdder();
+    }
+
+    StatementCache(Connection connection, int maximumSize, Counters counters) {
+        this.connection = connection;
+        this.maximumSize = maximumSize;
+        this.counters = counters;
+        this.statements = new LinkedHashMap<String, Holder>(maximumSize * 4 / 3 + 1, 0.75f, true);
+        registry.put(connection, this);
+    }
+
+    /**
+     * 借出的连接对应的缓存
+     * @param connection PooledConnectionProvider借出的连接
+     * @return 不是内置连接池的连接或未开启缓存时返回null
+     */
+    public static StatementCache of(Connection connection) {
+        if (connection instanceof ProxyConnection)
+            return ((ProxyConnection) connection).statementCache();
+        return null;
+    }
+
+    /**
+     * 根据PreparedStatement找到所属的缓存
+     * @param statement
+     * @return 不是缓存的PreparedStatement时返回null
+     */
+    public static StatementCache owner(Statement statement) {
+        if (registry.isEmpty() || !(statement instanceof PreparedStatement))
+            return null;
+        try {
+            return registry.get(statement.getConnection());
+        } catch (SQLException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 获取sql对应的PreparedStatement，使用完毕后须通过release归还
+     * 同一sql的PreparedStatement正在使用时(如嵌套查询)创建不缓存的PreparedStatement
+     * @param sql
+     * @return
+     * @throws SQLException
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+        Holder holder = statements.get(sql);
+        if (holder != null && !holder.inUse) {
+            holder.inUse = true;
+            counters.hits.increment();
+            return holder.statement;
+        }
+
+        counters.misses.increment();
+        PreparedStatement statement = connection.prepareStatement(sql);
+        if (holder != null)
+            return statement;
+
+        holder = new Holder(sql, statement);
+        holder.inUse = true;
+        statements.put(sql, holder);
+        holders.put(statement, holder);
+        evict();
+        size = statements.size();
+        return statement;
+    }
+
+    /**
+     * 归还prepare获取的PreparedStatement
+     * @param statement
+     * @return 不是缓存的PreparedStatement时返回false，调用方应自行关闭
+     */
+    public boolean release(Statement statement) {
+        Holder holder = holders.get(statement);
+        if (holder == null)
+            return false;
+
+        holder.inUse = false;
+        if (holder.evicted) {
+            remove(holder);
+            return true;
+        }
+        try {
+            holder.statement.clearParameters();
+            holder.statement.clearBatch();
+        } catch (SQLException e) {
+            statements.remove(holder.sql);
+            remove(holder);
+        }
+        return true;
+    }
+
+    /**
+     * 缓存的PreparedStatement数
+     * @return
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 连接归还连接池时调用，未归还的PreparedStatement视为已归还
+     */
+    void releaseAll() {
+        if (holders.isEmpty())
+            return;
+        for (Holder holder : holders.values().toArray(new Holder[holders.size()])) {
+            if (holder.inUse)
+                release(holder.statement);
+        }
+    }
+
+    /**
+     * 物理连接关闭前调用
+     */
+    void closeAll() {
+        registry.remove(connection, this);
+        for (Holder holder : holders.values()) {
+            closeQuietly(holder.statement);
+        }
+        statements.clear();
+        holders.clear();
+        size = 0;
+    }
+
+    private void evict() {
+        Iterator<Holder> iterator = statements.values().iterator();
+        while (statements.size() > maximumSize && iterator.hasNext()) {
+            Holder eldest = iterator.next();
+            iterator.remove();
+            counters.evictions.increment();
+            if (eldest.inUse) {
+                //正在使用，归还时关闭
+                eldest.evicted = true;
+            } else {
+                remove(eldest);
+            }
+        }
+    }
+
+    private void remove(Holder holder) {
+        holders.remove(holder.statement);
+        closeQuietly(holder.statement);
+        size = statements.size();
+    }
+
+    private static void closeQuietly(Statement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            //忽略
+        }
+    }
+
+    private static final class Holder {
+        private final String sql;
+        private final PreparedStatement statement;
+        private boolean inUse;
+        private boolean evicted;
+
+        Holder(String sql, PreparedStatement statement) {
+            this.sql = sql;
+            this.statement = statement;
+        }
+    }
+}
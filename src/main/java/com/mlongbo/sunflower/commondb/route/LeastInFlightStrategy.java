@@ -0,0 +1,27 @@
+package com.mlongbo.sunflower.commondb.route;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 选择正在执行的查询最少的从库，数量相同时随机选择
+ * @author malongbo
+ */
+public class LeastInFlightStrategy implements RoutingStrategy {
+    @Override
+    public Replica select(List<Replica> replicas) {
+        int size = replicas.size();
+        int start = size == 1 ? 0 : ThreadLocalRandom.current().nextInt(size);
+        Replica selected = null;
+        int least = Integer.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            Replica replica = replicas.get((start + i) % size);
+            int inFlight = replica.getInFlight();
+            if (inFlight < least) {
+                least = inFlight;
+                selected = replica;
+            }
+        }
+        return selected;
+    }
+}
@@ -0,0 +1,63 @@
+package com.mlongbo.sunflower.commondb.route;
+
+import com.mlongbo.sunflower.commondb.ConnectionProvider;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 从库
+ * @author malongbo
+ */
+public final class Replica {
+    private final ConnectionProvider connectionProvider;
+    private final int weight;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile boolean healthy = true;
+
+    /**
+     * @param connectionProvider 从库的连接
+     * @param weight 权重，用于WeightedStrategy
+     */
+    public Replica(ConnectionProvider connectionProvider, int weight) {
+        if (weight < 1)
+            throw new IllegalArgumentException("weight must be positive");
+        this.connectionProvider = connectionProvider;
+        this.weight = weight;
+    }
+
+    public ConnectionProvider getConnectionProvider() {
+        return connectionProvider;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * 正在使用的连接数
+     * @return
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * 是否可用，获取连接失败或健康检查失败时被剔除，健康检查成功后恢复
+     * @return
+     */
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    void setHealthy(boolean healthy) {
+        this.healthy = healthy;
+    }
+
+    void acquired() {
+        inFlight.incrementAndGet();
+    }
+
+    void released() {
+        inFlight.decrementAndGet();
+    }
+}
@@ -0,0 +1,247 @@
+package com.mlongbo.sunflower.commondb.route;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 将读操作路由到从库
+ * 获取从库连接时发生连接类错误(SQLNonTransientConnectionException或SQLState为08开头)立即剔除该从库并尝试其他从库；
+ * 其他错误(如连接池等待超时的SQLTimeoutException)只说明从库繁忙，本次改用其他从库但不剔除，
+ * 以免负载高峰时剔除所有从库使读操作全部压到主库；后台定期检查所有从库，检查通过的从库恢复使用
+ * @author malongbo
+ */
+public final class ReplicaRouter {
+    private static final Logger Log = LoggerFactory.getLogger(ReplicaRouter.class);
+    private static final int VALIDATION_TIMEOUT_SECONDS = 3;
+
+    private final List<Replica> replicas;
+    private final RoutingStrategy strategy;
+    private final ScheduledExecutorService healthChecker;
+    private volatile List<Replica> healthy;
+
+    /**
+     * 借出的从库连接，按连接对象的identity记录所属从库，连接可以在其他线程归还
+     */
+    private final ConcurrentMap<Lease, Replica> leases = new ConcurrentHashMap<Lease, Replica>();
+
+    /**
+     * @param replicas 从库
+     * @param strategy 选择策略
+     * @param healthCheckPeriod 健康检查间隔，毫秒，小于等于0时不检查，被剔除的从库不再恢复
+     */
+    public ReplicaRouter(List<Replica> replicas, RoutingStrategy strategy, long healthCheckPeriod) {
+        this.replicas = Collections.unmodifiableList(new ArrayList<Replica>(replicas));
+        this.strategy = strategy;
+        this.healthy = this.replicas;
+
+        if (healthCheckPeriod > 0) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "sunflower-replica-health-check");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    checkHealth();
+                }
+            }, healthCheckPeriod, healthCheckPeriod, TimeUnit.MILLISECONDS);
+            this.healthChecker = executor;
+        } else {
+            this.healthChecker = null;
+        }
+    }
+
+    /**
+     * 从健康的从库获取连接，须通过release归还
+     * @return 没有可用的从库时返回null
+     */
+    public Connection getConnection() {
+        List<Replica> candidates = healthy;
+        List<Replica> busy = null;
+        while (!candidates.isEmpty()) {
+            Replica replica = strategy.select(candidates);
+            try {
+                Connection connection = replica.getConnectionProvider().getConnection();
+                replica.acquired();
+                leases.put(new Lease(connection), replica);
+                return connection;
+            } catch (SQLException e) {
+                if (isConnectionFailure(e)) {
+                    Log.warn("Failed to connect to replica, ejecting it", e);
+                    eject(replica);
+                } else {
+                    Log.warn("Failed to get connection from replica, trying another one", e);
+                    busy = skip(busy, replica);
+                }
+            } catch (RuntimeException e) {
+                Log.warn("Failed to get connection from replica, trying another one", e);
+                busy = skip(busy, replica);
+            }
+            candidates = busy == null ? healthy : without(healthy, busy);
+        }
+        return null;
+    }
+
+    /**
+     * 归还getConnection获取的连接
+     * @param connection
+     * @return 不是从库连接时返回false
+     */
+    public boolean release(Connection connection) {
+        Replica replica = leases.remove(new Lease(connection));
+        if (replica == null)
+            return false;
+
+        replica.released();
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            Log.error(e.getMessage(), e);
+        }
+        return true;
+    }
+
+    /**
+     * 借出未归还的连接数
+     * @return
+     */
+    int getLeased() {
+        return leases.size();
+    }
+
+    /**
+     * 所有从库
+     * @return
+     */
+    public List<Replica> getReplicas() {
+        return replicas;
+    }
+
+    /**
+     * 检查所有从库，isValid校验失败的剔除，通过的恢复
+     */
+    public void checkHealth() {
+        for (Replica replica : replicas) {
+            boolean valid = validate(replica);
+            if (valid && !replica.isHealthy()) {
+                Log.info("Replica recovered");
+                replica.setHealthy(true);
+                refresh();
+            } else if (!valid && replica.isHealthy()) {
+                Log.warn("Replica failed health check, ejecting it");
+                eject(replica);
+            }
+        }
+    }
+
+    /**
+     * 停止健康检查并关闭所有从库的连接
+     */
+    public void destroy() {
+        if (healthChecker != null)
+            healthChecker.shutdownNow();
+        for (Replica replica : replicas) {
+            replica.getConnectionProvider().destroy();
+        }
+    }
+
+    private boolean validate(Replica replica) {
+        Connection connection = null;
+        try {
+            connection = replica.getConnectionProvider().getConnection();
+            return connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        } catch (RuntimeException e) {
+            return false;
+        } finally {
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (SQLException e) {
+                    Log.debug(e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 是否为连接类错误，即从库不可达而不是繁忙
+     * @param e
+     * @return
+     */
+    static boolean isConnectionFailure(SQLException e) {
+        if (e instanceof SQLNonTransientConnectionException)
+            return true;
+        String state = e.getSQLState();
+        return state != null && state.startsWith("08");
+    }
+
+    private static List<Replica> skip(List<Replica> busy, Replica replica) {
+        if (busy == null)
+            busy = new ArrayList<Replica>(2);
+        busy.add(replica);
+        return busy;
+    }
+
+    private static List<Replica> without(List<Replica> candidates, List<Replica> busy) {
+        List<Replica> list = new ArrayList<Replica>(candidates.size());
+        for (Replica replica : candidates) {
+            if (!busy.contains(replica))
+                list.add(replica);
+        }
+        return list;
+    }
+
+    private void eject(Replica replica) {
+        replica.setHealthy(false);
+        refresh();
+    }
+
+    private synchronized void refresh() {
+        List<Replica> list = new ArrayList<Replica>(replicas.size());
+        for (Replica replica : replicas) {
+            if (replica.isHealthy())
+                list.add(replica);
+        }
+        healthy = Collections.unmodifiableList(list);
+    }
+
+    /**
+     * 以identity比较的连接，不依赖连接实现的equals
+     */
+    private static final class Lease {
+        private final Connection connection;
+
+        Lease(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(connection);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Lease && ((Lease) o).connection == connection;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.mlongbo.sunflower.commondb.route;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 轮询选择从库
+ * @author malongbo
+ */
+public class RoundRobinStrategy implements RoutingStrategy {
+    private final AtomicInteger counter = new AtomicInteger();
+
+    @Override
+    public Replica select(List<Replica> replicas) {
+        return replicas.get(Math.floorMod(counter.getAndIncrement(), replicas.size()));
+    }
+}
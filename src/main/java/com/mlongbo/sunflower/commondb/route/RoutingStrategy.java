@@ -0,0 +1,16 @@
+package com.mlongbo.sunflower.commondb.route;
+
+import java.util.List;
+
+/**
+ * 从库选择策略
+ * @author malongbo
+ */
+public interface RoutingStrategy {
+    /**
+     * 从健康的从库中选择一个
+     * @param replicas 健康的从库，不为空
+     * @return
+     */
+    public Replica select(List<Replica> replicas);
+}
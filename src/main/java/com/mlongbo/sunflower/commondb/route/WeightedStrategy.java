@@ -0,0 +1,26 @@
+package com.mlongbo.sunflower.commondb.route;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 按权重随机选择从库
+ * @author malongbo
+ */
+public class WeightedStrategy implements RoutingStrategy {
+    @Override
+    public Replica select(List<Replica> replicas) {
+        int total = 0;
+        for (Replica replica : replicas) {
+            total += replica.getWeight();
+        }
+
+        int point = ThreadLocalRandom.current().nextInt(total);
+        for (Replica replica : replicas) {
+            point -= replica.getWeight();
+            if (point < 0)
+                return replica;
+        }
+        return replicas.get(replicas.size() - 1);
+    }
+}
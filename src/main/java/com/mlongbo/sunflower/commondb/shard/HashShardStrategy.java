@@ -0,0 +1,17 @@
+package com.mlongbo.sunflower.commondb.shard;
+
+/**
+ * 取模分片，整数键按值对分片数取模，其他键按hashCode取模
+ * 非整数键的hashCode须稳定(如String、UUID)，分片数变化时大部分数据需要迁移
+ * @author malongbo
+ */
+public class HashShardStrategy implements ShardStrategy {
+    @Override
+    public int shard(Object key, int shards) {
+        if (shards < 1)
+            throw new IllegalStateException("No shard configured");
+        Object value = ShardKeys.normalize(key);
+        long hash = value instanceof Long ? (Long) value : value.hashCode();
+        return (int) Math.floorMod(hash, (long) shards);
+    }
+}
@@ -0,0 +1,58 @@
+package com.mlongbo.sunflower.commondb.shard;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 查表分片，逐个键指定所在的分片，适用于按租户等少量键分布数据或迁移个别键
+ * 未指定的键使用备用策略，没有备用策略时抛出异常
+ * @author malongbo
+ */
+public class LookupShardStrategy implements ShardStrategy {
+    private final ConcurrentMap<Object, Integer> shards = new ConcurrentHashMap<Object, Integer>();
+    private final ShardStrategy fallback;
+
+    public LookupShardStrategy() {
+        this(null);
+    }
+
+    /**
+     * @param fallback 未指定的键使用的策略，可为null
+     */
+    public LookupShardStrategy(ShardStrategy fallback) {
+        this.fallback = fallback;
+    }
+
+    /**
+     * 指定键所在的分片，可在运行时修改
+     * @param key 分片键的值
+     * @param shard 分片下标
+     * @return
+     */
+    public LookupShardStrategy put(Object key, int shard) {
+        if (shard < 0)
+            throw new IllegalArgumentException("shard must not be negative");
+        shards.put(ShardKeys.normalize(key), shard);
+        return this;
+    }
+
+    /**
+     * 移除键的分片映射
+     * @param key 分片键的值
+     */
+    public void remove(Object key) {
+        shards.remove(ShardKeys.normalize(key));
+    }
+
+    @Override
+    public int shard(Object key, int shards) {
+        Integer shard = this.shards.get(ShardKeys.normalize(key));
+        if (shard == null) {
+            if (fallback == null)
+                throw new IllegalArgumentException("No shard mapped for key " + key);
+            return fallback.shard(key, shards);
+        }
+        ShardKeys.check(shard, shards);
+        return shard;
+    }
+}
@@ -0,0 +1,38 @@
+package com.mlongbo.sunflower.commondb.shard;
+
+import java.util.Arrays;
+
+/**
+ * 范围分片，分片键须为整数
+ * new RangeShardStrategy(1000000, 2000000) 表示小于1000000的键在分片0，
+ * [1000000, 2000000)在分片1，其余在分片2，分片数须为上界个数加1
+ * @author malongbo
+ */
+public class RangeShardStrategy implements ShardStrategy {
+    private final long[] upperBounds;
+
+    /**
+     * @param upperBounds 各分片的上界(不含)，须严格递增
+     */
+    public RangeShardStrategy(long... upperBounds) {
+        for (int i = 1; i < upperBounds.length; i++) {
+            if (upperBounds[i] <= upperBounds[i - 1])
+                throw new IllegalArgumentException("upperBounds must be strictly increasing");
+        }
+        this.upperBounds = upperBounds.clone();
+    }
+
+    @Override
+    public int shard(Object key, int shards) {
+        if (shards != upperBounds.length + 1)
+            throw new IllegalStateException(upperBounds.length + " upper bounds require " + (upperBounds.length + 1)
+                    + " shards, but " + shards + " shards configured");
+        Object value = ShardKeys.normalize(key);
+        if (!(value instanceof Long))
+            throw new IllegalArgumentException("RangeShardStrategy requires an integer shard key: " + key);
+
+        int index = Arrays.binarySearch(upperBounds, (Long) value);
+        //等于上界的键属于下一个分片
+        return index >= 0 ? index + 1 : -(index + 1);
+    }
+}
@@ -0,0 +1,38 @@
+package com.mlongbo.sunflower.commondb.shard;
+
+import java.math.BigInteger;
+
+/**
+ * 分片键的归一化，整数与数字字符串统一为Long，使42与"42"落在同一个分片
+ * @author malongbo
+ */
+final class ShardKeys {
+    private ShardKeys(){}
+
+    static Object normalize(Object key) {
+        if (key == null)
+            throw new IllegalArgumentException("The shard key can not be null");
+        if (key instanceof Long)
+            return key;
+        if (key instanceof Integer || key instanceof Short || key instanceof Byte || key instanceof BigInteger)
+            return ((Number) key).longValue();
+        if (key instanceof String) {
+            String value = (String) key;
+            int length = value.length();
+            if (length > 0 && length < 19) {
+                for (int i = 0; i < length; i++) {
+                    char c = value.charAt(i);
+                    if (c < '0' || c > '9')
+                        return key;
+                }
+                return Long.parseLong(value);
+            }
+        }
+        return key;
+    }
+
+    static void check(int shard, int shards) {
+        if (shard < 0 || shard >= shards)
+            throw new IllegalStateException("Shard " + shard + " is out of range, " + shards + " shards configured");
+    }
+}
@@ -0,0 +1,16 @@
+package com.mlongbo.sunflower.commondb.shard;
+
+/**
+ * 分片策略，根据分片键的值计算数据所在的分片
+ * 实现类须线程安全，同一个键每次都应返回同一个分片
+ * @author malongbo
+ */
+public interface ShardStrategy {
+    /**
+     * 计算分片键所在的分片
+     * @param key 分片键的值
+     * @param shards 分片数，即Database.me.addShard添加的库的个数
+     * @return 分片下标，0到shards - 1
+     */
+    int shard(Object key, int shards);
+}
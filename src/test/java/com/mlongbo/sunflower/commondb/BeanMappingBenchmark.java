@@ -0,0 +1,59 @@
+package com.mlongbo.sunflower.commondb;
+
+import com.mlongbo.sunflower.commondb.mapper.BeanMapper;
+import org.apache.commons.dbutils.ResultSetHandler;
+import org.apache.commons.dbutils.handlers.BeanListHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 同一查询分别使用dbutils的BeanListHandler与BeanMapper映射100行的耗时，差值即映射开销
+ * @author malongbo
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BeanMappingBenchmark {
+    private static final String SQL = "SELECT * FROM member WHERE id <= ?";
+
+    private final ResultSetHandler<List<CommonDbTest.Member>> dbutils =
+            new BeanListHandler<CommonDbTest.Member>(CommonDbTest.Member.class);
+    private final ResultSetHandler<List<CommonDbTest.Member>> mapper =
+            BeanMapper.of(CommonDbTest.Member.class).beanListHandler();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchmarkDatabase.start("mapping_bench", 1000);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkDatabase.stop();
+    }
+
+    @Benchmark
+    public List<CommonDbTest.Member> beanListHandler() throws Exception {
+        return DbKit.query(dbutils, SQL, 100L);
+    }
+
+    @Benchmark
+    public List<CommonDbTest.Member> beanMapper() throws Exception {
+        return DbKit.query(mapper, SQL, 100L);
+    }
+}
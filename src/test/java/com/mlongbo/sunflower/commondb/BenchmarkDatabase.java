@@ -0,0 +1,65 @@
+package com.mlongbo.sunflower.commondb;
+
+import com.mlongbo.sunflower.commondb.pool.PoolConfig;
+import com.mlongbo.sunflower.commondb.pool.PooledConnectionProvider;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * 基准测试使用的内存数据库，使用内置连接池，member表的age为id对100取余
+ * @author malongbo
+ */
+public final class BenchmarkDatabase {
+    private BenchmarkDatabase(){}
+
+    /**
+     * 创建数据库并设置为Database.me的连接
+     * @param name 数据库名
+     * @param rows member表的行数
+     * @return
+     * @throws SQLException
+     */
+    public static PooledConnectionProvider start(String name, int rows) throws SQLException {
+        PoolConfig config = new PoolConfig("jdbc:h2:mem:" + name + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1", "sa", "");
+        config.setMinimumIdle(4);
+        config.setMaximumPoolSize(8);
+        config.setStatementCacheSize(32);
+        PooledConnectionProvider provider = new PooledConnectionProvider(config);
+        Database.me.setConnectionProvider(provider);
+        DbConnectionManager.getInstance().destroyConnectionProvider();
+
+        Connection connection = provider.getConnection();
+        try {
+            Statement stat = connection.createStatement();
+            stat.execute("DROP TABLE IF EXISTS member");
+            stat.execute("CREATE TABLE member (id BIGINT AUTO_INCREMENT PRIMARY KEY, name VARCHAR(32), age INT)");
+            stat.execute("CREATE INDEX member_age ON member (age)");
+            stat.close();
+
+            PreparedStatement insert = connection.prepareStatement("INSERT INTO member (name, age) VALUES (?, ?)");
+            for (int i = 1; i <= rows; i++) {
+                insert.setString(1, "m" + i);
+                insert.setInt(2, i % 100);
+                insert.addBatch();
+                if (i % 1000 == 0)
+                    insert.executeBatch();
+            }
+            insert.executeBatch();
+            insert.close();
+        } finally {
+            connection.close();
+        }
+        return provider;
+    }
+
+    /**
+     * 关闭连接池
+     */
+    public static void stop() {
+        DbConnectionManager.getInstance().destroyConnectionProvider();
+        Database.me.setConnectionProvider(null);
+    }
+}
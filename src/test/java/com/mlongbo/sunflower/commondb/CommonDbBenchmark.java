@@ -0,0 +1,60 @@
+package com.mlongbo.sunflower.commondb;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CommonDb常用查询的耗时
+ * @author malongbo
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommonDbBenchmark {
+    private static final int ROWS = 10000;
+
+    private CommonDbTest.MemberDb db;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchmarkDatabase.start("commondb_bench", ROWS);
+        db = new CommonDbTest.MemberDb();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkDatabase.stop();
+    }
+
+    @Benchmark
+    public CommonDbTest.Member getById() throws Exception {
+        return db.getById((long) ThreadLocalRandom.current().nextInt(1, ROWS + 1));
+    }
+
+    @Benchmark
+    public List<CommonDbTest.Member> fetchListByCondition() throws Exception {
+        return db.fetchListByCondition("age = ?", ThreadLocalRandom.current().nextInt(100));
+    }
+
+    @Benchmark
+    public List<CommonDbTest.Member> paginate() throws Exception {
+        return db.paginate("age < ?", ThreadLocalRandom.current().nextInt(100) * 20, 20, 50);
+    }
+}
@@ -0,0 +1,520 @@
+package com.mlongbo.sunflower.commondb;
+
+import com.mlongbo.sunflower.commondb.cache.LruEntityCache;
+import com.mlongbo.sunflower.commondb.cache.QueryCache;
+import com.mlongbo.sunflower.commondb.exception.DbException;
+import com.mlongbo.sunflower.commondb.metrics.DbListener;
+import com.mlongbo.sunflower.commondb.metrics.MetricsRegistry;
+import com.mlongbo.sunflower.commondb.metrics.SqlMetrics;
+import com.mlongbo.sunflower.commondb.metrics.SqlKind;
+import junit.framework.TestCase;
+
+import java.sql.Connection;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * CommonDb在内存数据库上的测试
+ */
+public class CommonDbTest extends TestCase {
+    private static final H2ConnectionProvider provider = new H2ConnectionProvider("commondb");
+
+    public static class Member {
+        private Long id;
+        private String name;
+        private int age;
+
+        public Long getId() { return id; }
+        public void setId(Long id) { this.id = id; }
+        public String getName() { return name; }
+        public void setName(String name) { this.name = name; }
+        public int getAge() { return age; }
+        public void setAge(int age) { this.age = age; }
+    }
+
+    public static class MemberDb extends CommonDb<Member> {
+        public MemberDb() {
+            super("member");
+        }
+    }
+
+    public static class Code {
+        private String id;
+        private String name;
+
+        public String getId() { return id; }
+        public void setId(String id) { this.id = id; }
+        public String getName() { return name; }
+        public void setName(String name) { this.name = name; }
+    }
+
+    private MemberDb db;
+
+    protected void setUp() throws Exception {
+        Database.me.setConnectionProvider(provider);
+        DbConnectionManager.getInstance().destroyConnectionProvider();
+
+        Connection connection = provider.getConnection();
+        Statement stat = connection.createStatement();
+        stat.execute("DROP TABLE IF EXISTS member");
+        stat.execute("CREATE TABLE member (id BIGINT AUTO_INCREMENT PRIMARY KEY, name VARCHAR(32), age INT)");
+        for (int i = 1; i <= 20; i++) {
+            stat.execute("INSERT INTO member (name, age) VALUES ('m" + i + "', " + i + ")");
+        }
+        stat.close();
+        connection.close();
+
+        db = new MemberDb();
+    }
+
+    public void testQueries() throws Exception {
+        assertEquals("m3", db.getById(3L).getName());
+        assertEquals(Integer.valueOf(20), db.count());
+        assertEquals(Integer.valueOf(5), db.countByCondition("age > ?", 15));
+        assertEquals(10, db.fetchListByCondition("age <= ?", 10).size());
+        assertEquals(20, db.fetchList().size());
+        assertEquals("m1", db.findFirst("age = ?", 1).getName());
+
+        List<Member> page = db.paginate("age > ?", 2, 3, 10);
+        assertEquals(3, page.size());
+        assertEquals(13, page.get(0).getAge());
+
+        Member partial = db.includeField("id").getById(4L);
+        assertNull(partial.getName());
+        assertEquals("m4", db.getById(4L).getName());
+        assertEquals(0, provider.getOpened());
+    }
+
+    public void testQueryView() throws Exception {
+        QueryView<Member> ids = db.includeField("id", "age");
+        assertEquals("id,age", ids.getFields());
+
+        //未使用的视图不影响后续查询
+        db.includeField("id");
+        assertEquals("m5", db.getById(5L).getName());
+
+        List<Member> list = ids.fetchListByCondition("age <= ?", 3);
+        assertEquals(3, list.size());
+        assertNull(list.get(0).getName());
+        assertEquals(2, ids.getMulti(1L, 2L).size());
+        assertNull(ids.paginate(0, 1).get(0).getName());
+        assertEquals(Long.valueOf(2), ids.seek(1L, 1).getList().get(0).getId());
+
+        //视图可以在线程间共享
+        CompletableFuture<Member> other = ids.findFirstAsync("age = ?", 7);
+        assertEquals("m7", db.findFirst("age = ?", 7).getName());
+        assertNull(other.get().getName());
+        assertNull(db.includeField().getFields());
+    }
+
+    public void testStream() throws Exception {
+        Stream<Member> stream = db.stream("age > ?", 10);
+        try {
+            assertEquals(10, stream.collect(Collectors.toList()).size());
+        } finally {
+            stream.close();
+        }
+        assertEquals(0, provider.getOpened());
+
+        stream = db.stream(null);
+        try {
+            assertEquals("m1", stream.findFirst().get().getName());
+            assertEquals(1, provider.getOpened());
+        } finally {
+            stream.close();
+        }
+        assertEquals(0, provider.getOpened());
+
+        final List<String> names = new ArrayList<String>();
+        db.forEach("age <= ?", new Consumer<Member>() {
+            @Override
+            public void accept(Member member) {
+                names.add(member.getName());
+            }
+        }, 2);
+        assertEquals(2, names.size());
+        assertEquals(0, provider.getOpened());
+    }
+
+    public void testStreamInTransaction() throws Exception {
+        MetricsRegistry metrics = new MetricsRegistry();
+        Database.me.addListener(metrics);
+        DbConnectionManager manager = DbConnectionManager.getInstance();
+        DbConnectionManager.Transaction tx = manager.beginTransaction(false, -1, 0);
+        try {
+            db.execute("INSERT INTO member (name, age) VALUES (?, ?)", "uncommitted", 99);
+            try (Stream<Member> stream = db.stream("age = ?", 99)) {
+                assertEquals("uncommitted", stream.findFirst().get().getName());
+            }
+            //关闭Stream不关闭事务连接
+            assertEquals(1, db.countByCondition("age = ?", 99).intValue());
+            assertEquals(1, provider.getOpened());
+            manager.rollback(tx);
+        } finally {
+            manager.endTransaction(tx);
+            Database.me.removeListener(metrics);
+        }
+        assertEquals(0, provider.getOpened());
+        assertEquals(0, db.countByCondition("age = ?", 99).intValue());
+
+        SqlMetrics streamed = metrics.getSqlMetrics().get("SELECT * FROM `member` WHERE age = ?");
+        assertEquals(1, streamed.getLatency().getCount());
+        assertEquals(1, streamed.getRows().getTotal());
+    }
+
+    public void testSeek() throws Exception {
+        KeysetPage<Member> page = db.seek(null, 8);
+        assertEquals(8, page.getList().size());
+        assertTrue(page.hasNext());
+        assertEquals(8L, page.getNextKey());
+
+        page = db.seekByCondition("age > ?", page.getNextKey(), 8, 4);
+        assertEquals(9L, page.getList().get(0).getId().longValue());
+        assertTrue(page.hasNext());
+
+        page = db.seekByCondition("age > ?", page.getNextKey(), 8, 4);
+        assertEquals(4, page.getList().size());
+        assertFalse(page.hasNext());
+
+        KeysetPage<Member> byKeys = db.seekByKeys(null, new String[]{"age", "id"}, new Object[]{18, 18L}, 5);
+        assertEquals(2, byKeys.getList().size());
+        assertFalse(byKeys.hasNext());
+        assertEquals(20, ((Object[]) byKeys.getNextKey())[0]);
+
+        //查询字段不含键字段时自动追加，翻页能够结束
+        QueryView<Member> names = db.includeField("name");
+        int pages = 0;
+        int rows = 0;
+        Object next = null;
+        do {
+            page = names.seek(next, 6);
+            next = page.getNextKey();
+            rows += page.getList().size();
+            pages++;
+        } while (page.hasNext() && pages < 10);
+        assertEquals(4, pages);
+        assertEquals(20, rows);
+        assertEquals("m1", names.seek(null, 1).getList().get(0).getName());
+
+        byKeys = db.includeField("`name`").seekByKeys(null, new String[]{"age", "id"}, new Object[]{18, 18L}, 5);
+        assertEquals(Arrays.asList(20, 20L), Arrays.asList((Object[]) byKeys.getNextKey()));
+    }
+
+    public void testInsertAll() throws Exception {
+        List<Member> members = new ArrayList<Member>();
+        for (int i = 0; i < 7; i++) {
+            Member member = new Member();
+            member.setName("n" + i);
+            member.setAge(100 + i);
+            members.add(member);
+        }
+        db.setBatchSize(3);
+        assertEquals(Integer.valueOf(7), db.insertAll(members, true));
+        assertEquals(21L, members.get(0).getId().longValue());
+        assertEquals(27L, members.get(6).getId().longValue());
+        assertEquals("n6", db.getById(27L).getName());
+
+        members.get(0).setName("changed");
+        Member extra = new Member();
+        extra.setId(50L);
+        extra.setName("extra");
+        db.upsertAll(Arrays.asList(members.get(0), extra));
+        assertEquals("changed", db.getById(21L).getName());
+        assertEquals("extra", db.getById(50L).getName());
+        assertEquals(Integer.valueOf(28), db.count());
+        assertEquals(0, provider.getOpened());
+    }
+
+    public void testInsertAllTransactionTimeout() throws Exception {
+        Member member = new Member();
+        member.setName("late");
+        DbConnectionManager manager = DbConnectionManager.getInstance();
+        DbConnectionManager.Transaction tx = manager.beginTransaction(false, -1, 1);
+        try {
+            Thread.sleep(1100);
+            db.insertAll(Arrays.asList(member), false);
+            fail();
+        } catch (DbException e) {
+            //事务已超时
+            assertTrue(e.getCause() instanceof SQLTimeoutException);
+        } finally {
+            manager.endTransaction(tx);
+        }
+        assertEquals(Integer.valueOf(0), db.countByCondition("name = ?", "late"));
+        assertEquals(0, provider.getOpened());
+    }
+
+    public void testMultiRowSql() {
+        assertEquals("INSERT INTO t (a,b) VALUES (?,?),(?,?),(?,?) ON DUPLICATE KEY UPDATE a=VALUES(a)",
+                DbKit.multiRowSql("INSERT INTO t (a,b) VALUES (?,?) ON DUPLICATE KEY UPDATE a=VALUES(a)", 3));
+    }
+
+    public void testGetMulti() throws Exception {
+        List<Member> list = db.getMulti(5L, 3, "1", 3L, 9999L);
+        assertEquals(3, list.size());
+        assertEquals("m5", list.get(0).getName());
+        assertEquals("m3", list.get(1).getName());
+        assertEquals("m1", list.get(2).getName());
+
+        Object[][] rows = new Object[280][];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = new Object[]{"m" + (i + 21), i + 21};
+        }
+        DbKit.batch("INSERT INTO member (name, age) VALUES (?, ?)", rows);
+
+        //300个id分为128、128、32、8四块
+        Object[] ids = new Object[300];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = (long) (300 - i);
+        }
+        db.setMultiParallelism(3);
+        list = db.getMulti(ids);
+        assertEquals(300, list.size());
+        for (int i = 0; i < list.size(); i++) {
+            assertEquals(Long.valueOf(300 - i), list.get(i).getId());
+        }
+        assertEquals(0, provider.getOpened());
+        assertEquals("SELECT * FROM `member` WHERE id IN (?,?,?,?,?,?,?,?)",
+                SqlCache.Operation.SELECT_IN.build("member", "id", "*", "8"));
+    }
+
+    public void testGetMultiStringIds() throws Exception {
+        DbKit.execute("DROP TABLE IF EXISTS code");
+        DbKit.execute("CREATE TABLE code (id VARCHAR(8) PRIMARY KEY, name VARCHAR(32))");
+        DbKit.execute("INSERT INTO code (id, name) VALUES ('007', 'a'), ('7', 'b')");
+        CommonDb<Code> codes = new CommonDb<Code>("code") {
+        };
+
+        //字符串主键不转换为数值，"007"与"7"是两个id
+        List<Code> list = codes.getMulti("7", "007", "7");
+        assertEquals(2, list.size());
+        assertEquals("b", list.get(0).getName());
+        assertEquals("a", list.get(1).getName());
+        assertEquals("b", codes.getMulti(7).get(0).getName());
+    }
+
+    public void testEntityCache() throws Exception {
+        LruEntityCache<Object, Member> cache = new LruEntityCache<Object, Member>(100);
+        db.setEntityCache(cache);
+
+        Member first = db.getById(1);
+        assertSame(first, db.getById(1L));
+        assertEquals(1, cache.stats().getHitCount());
+
+        assertEquals(3, db.getMulti(1L, 2L, 3L).size());
+        assertEquals(2, cache.stats().getHitCount());
+        assertEquals(3, cache.stats().getSize());
+
+        assertNull(db.includeField("id").getById(2L).getName());
+        assertEquals("m2", db.getById(2L).getName());
+
+        db.deleteById(1L);
+        assertNull(db.getById(1L));
+
+        db.execute("UPDATE member SET name = ? WHERE id = ?", "renamed", 2L);
+        assertEquals("renamed", db.getById(2L).getName());
+    }
+
+    public void testEntityCacheInvalidatedDuringLoad() throws Exception {
+        final LruEntityCache<Object, Member> cache = new LruEntityCache<Object, Member>(100);
+        db.setEntityCache(cache);
+        //查询完成、写回缓存之前该记录被修改并失效
+        DbListener listener = new DbListener() {
+            @Override
+            public void connectionAcquired(long elapsedNanos) {
+            }
+
+            @Override
+            public void statementExecuted(SqlKind kind, String sql, long elapsedNanos, int rows, Throwable error) {
+                if (kind == SqlKind.QUERY)
+                    db.invalidateCachedEntity(6L);
+            }
+
+            @Override
+            public void transactionCompleted(long elapsedNanos, boolean rolledBack) {
+            }
+        };
+        Database.me.addListener(listener);
+        try {
+            assertEquals("m6", db.getById(6L).getName());
+            assertEquals(2, db.getMulti(6L, 7L).size());
+        } finally {
+            Database.me.removeListener(listener);
+        }
+        assertEquals(0, cache.stats().getSize());
+
+        db.getById(6L);
+        assertEquals(1, cache.stats().getSize());
+    }
+
+    public void testQueryCache() throws Exception {
+        QueryCache cache = new QueryCache(1, TimeUnit.MINUTES, 1000);
+        Database.me.setQueryCache(cache);
+        try {
+            db.setQueryCacheEnabled(true);
+            assertEquals(Integer.valueOf(5), db.countByCondition("age > ?", 15));
+            assertEquals(Integer.valueOf(5), db.countByCondition("age > ?", 15));
+            assertEquals(5, db.fetchListByCondition("age > ?", 15).size());
+            assertEquals(5, db.fetchListByCondition("age > ?", 15).size());
+            assertEquals(2, cache.stats().getHitCount());
+            assertEquals(2, cache.stats().getMissCount());
+
+            DbKit.execute("INSERT INTO member (name, age) VALUES (?, ?)", "new", 30);
+            assertEquals(Integer.valueOf(6), db.countByCondition("age > ?", 15));
+            assertEquals(6, db.fetchListByCondition("age > ?", 15).size());
+        } finally {
+            Database.me.setQueryCache(null);
+        }
+    }
+
+    public void testConnectionScope() throws Exception {
+        DbConnectionManager manager = DbConnectionManager.getInstance();
+        DbConnectionManager.ConnectionScope scope = manager.openScope();
+        try {
+            assertEquals(0, provider.getOpened());
+            assertEquals("m1", db.getById(1L).getName());
+            assertEquals(1, provider.getOpened());
+
+            DbConnectionManager.ConnectionScope nested = manager.openScope();
+            db.execute("UPDATE member SET age = ? WHERE id = ?", 99, 1L);
+            assertEquals(Integer.valueOf(1), db.countByCondition("age = ?", 99));
+            nested.close();
+            assertEquals(1, provider.getOpened());
+        } finally {
+            scope.close();
+        }
+        assertEquals(0, provider.getOpened());
+    }
+
+    public void testReadInTransaction() throws Exception {
+        LruEntityCache<Object, Member> cache = new LruEntityCache<Object, Member>(100);
+        db.setEntityCache(cache);
+        DbConnectionManager manager = DbConnectionManager.getInstance();
+
+        manager.openTransactionConnection();
+        try {
+            db.execute("UPDATE member SET name = ? WHERE id = ?", "uncommitted", 1L);
+            //读操作使用事务连接，可读到未提交的写入，且不写入实体缓存
+            assertEquals("uncommitted", db.getById(1L).getName());
+            assertEquals(1, provider.getOpened());
+            assertEquals(0, cache.stats().getSize());
+        } finally {
+            manager.closeThreadTransactionConnection(true);
+        }
+        assertEquals("m1", db.getById(1L).getName());
+        assertEquals(0, provider.getOpened());
+    }
+
+    public void testAsync() throws Exception {
+        List<CompletableFuture<Member>> futures = new ArrayList<CompletableFuture<Member>>();
+        for (long id = 1; id <= 10; id++) {
+            futures.add(db.getByIdAsync(id));
+        }
+        CompletableFuture<Integer> count = db.countByConditionAsync("age > ?", 15);
+        CompletableFuture<Member> partial = db.includeField("id").getByIdAsync(3L);
+        for (int i = 0; i < futures.size(); i++) {
+            assertEquals("m" + (i + 1), futures.get(i).get().getName());
+        }
+        assertEquals(Integer.valueOf(5), count.get());
+        assertNull(partial.get().getName());
+        assertEquals("m3", db.getById(3L).getName());
+
+        TransactionContext tx = TransactionContext.begin();
+        try {
+            db.async(tx, new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return db.execute("UPDATE member SET name = ? WHERE id = ?", "tx", 1L);
+                }
+            }).get();
+            Member inTx = db.async(tx, new Callable<Member>() {
+                @Override
+                public Member call() throws Exception {
+                    return db.getById(1L);
+                }
+            }).get();
+            assertEquals("tx", inTx.getName());
+            assertFalse(DbConnectionManager.getInstance().inTransaction());
+        } finally {
+            tx.close();
+        }
+        assertEquals("m1", db.getById(1L).getName());
+        assertEquals(0, provider.getOpened());
+    }
+
+    public void testAsyncRejected() throws Exception {
+        final Thread caller = Thread.currentThread();
+        final AtomicInteger ranOnCaller = new AtomicInteger();
+        Database.me.setAsyncExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                throw new RejectedExecutionException("shut down");
+            }
+        });
+        try {
+            CompletableFuture<Integer> future = DbAsync.supply(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    if (Thread.currentThread() == caller)
+                        ranOnCaller.incrementAndGet();
+                    return 1;
+                }
+            });
+            try {
+                future.get();
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof RejectedExecutionException);
+            }
+            assertEquals(0, ranOnCaller.get());
+        } finally {
+            Database.me.setAsyncExecutor(null);
+        }
+        //拒绝后归还了并发数，之后的任务正常执行
+        assertEquals(Integer.valueOf(20), db.countByConditionAsync(null).get());
+    }
+
+    public void testAsyncConcurrencyLimit() throws Exception {
+        Database.me.setAsyncConcurrency(2);
+        Database.me.setConnectionProvider(new H2ConnectionProvider("async-limit"));
+        DbConnectionManager.getInstance().destroyConnectionProvider();
+        try {
+            final AtomicInteger running = new AtomicInteger();
+            final AtomicInteger max = new AtomicInteger();
+            List<CompletableFuture<Integer>> futures = new ArrayList<CompletableFuture<Integer>>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(DbAsync.supply(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        int current = running.incrementAndGet();
+                        max.accumulateAndGet(current, Math::max);
+                        Thread.sleep(20);
+                        running.decrementAndGet();
+                        return current;
+                    }
+                }));
+            }
+            for (CompletableFuture<Integer> future : futures) {
+                future.get();
+            }
+            assertEquals(2, max.get());
+        } finally {
+            Database.me.setAsyncConcurrency(16);
+            Database.me.setConnectionProvider(provider);
+            DbConnectionManager.getInstance().destroyConnectionProvider();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.mlongbo.sunflower.commondb;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DbKit写操作的耗时，batch每次插入batchSize行，每轮迭代前清空插入的数据
+ * @author malongbo
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DbKitBenchmark {
+    private static final int ROWS = 10000;
+
+    @Param({"100"})
+    public int batchSize;
+
+    private Object[][] rows;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchmarkDatabase.start("dbkit_bench", ROWS);
+        rows = new Object[batchSize][];
+        for (int i = 0; i < batchSize; i++) {
+            rows[i] = new Object[]{"batch" + i, i % 100};
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void truncate() throws Exception {
+        DbKit.execute("DELETE FROM member WHERE id > ?", ROWS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkDatabase.stop();
+    }
+
+    @Benchmark
+    public int execute() throws Exception {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return DbKit.execute("UPDATE member SET age = ? WHERE id = ?", random.nextInt(100), (long) random.nextInt(1, ROWS + 1));
+    }
+
+    @Benchmark
+    public int[] batch() throws Exception {
+        return DbKit.batch("INSERT INTO member (name, age) VALUES (?, ?)", rows);
+    }
+}
@@ -0,0 +1,154 @@
+package com.mlongbo.sunflower.commondb;
+
+import com.mlongbo.sunflower.commondb.cache.LruEntityCache;
+import com.mlongbo.sunflower.commondb.exception.StaleEntityException;
+import com.mlongbo.sunflower.commondb.metrics.MetricsRegistry;
+import com.mlongbo.sunflower.commondb.metrics.SqlKind;
+import com.mlongbo.sunflower.commondb.metrics.SqlMetrics;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * update与脏字段跟踪测试
+ */
+public class DirtyTrackingTest extends TestCase {
+    public static class Article {
+        private Long id;
+        private String title;
+        private String body;
+        private Integer version;
+
+        public Long getId() { return id; }
+        public void setId(Long id) { this.id = id; }
+        public String getTitle() { return title; }
+        public void setTitle(String title) { this.title = title; }
+        public String getBody() { return body; }
+        public void setBody(String body) { this.body = body; }
+        public Integer getVersion() { return version; }
+        public void setVersion(Integer version) { this.version = version; }
+    }
+
+    public static class ArticleDb extends CommonDb<Article> {
+        public ArticleDb() {
+            super("article");
+        }
+    }
+
+    private static final String TITLE_UPDATE = "UPDATE `article` SET `title`=?,`version`=`version`+1 WHERE id=? AND `version`=?";
+
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private ArticleDb db;
+
+    @Override
+    protected void setUp() throws Exception {
+        Database.me.setConnectionProvider(new H2ConnectionProvider("dirty"));
+        DbConnectionManager.getInstance().destroyConnectionProvider();
+        DbKit.execute("DROP TABLE IF EXISTS article");
+        DbKit.execute("CREATE TABLE article (id BIGINT PRIMARY KEY, title VARCHAR(64), body TEXT, version INT)");
+        for (long id = 1; id <= 3; id++) {
+            DbKit.execute("INSERT INTO article VALUES (?, ?, ?, 0)", id, "t" + id, "body " + id);
+        }
+
+        db = new ArticleDb();
+        db.setDirtyTracking(true).setVersionField("version");
+        Database.me.addListener(metrics);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Database.me.removeListener(metrics);
+        DbConnectionManager.getInstance().destroyConnectionProvider();
+    }
+
+    public void testOnlyChangedColumns() throws Exception {
+        List<Article> articles = db.fetchList();
+        articles.get(0).setTitle("new 1");
+        articles.get(2).setTitle("new 3");
+
+        assertEquals(2, db.updateAll(articles).intValue());
+        SqlMetrics update = metrics.getSqlMetrics().get(TITLE_UPDATE);
+        assertEquals(SqlKind.BATCH, update.getKind());
+        assertEquals(1, update.getLatency().getCount());
+        assertEquals(Integer.valueOf(1), articles.get(0).getVersion());
+        assertEquals(Integer.valueOf(0), articles.get(1).getVersion());
+
+        Article reloaded = db.getById(3L);
+        assertEquals("new 3", reloaded.getTitle());
+        assertEquals("body 3", reloaded.getBody());
+        assertEquals(Integer.valueOf(1), reloaded.getVersion());
+
+        //没有修改时不执行sql
+        assertEquals(0, db.update(reloaded).intValue());
+        assertEquals(1, update.getLatency().getCount());
+
+        reloaded.setBody("changed");
+        assertEquals(1, db.update(reloaded).intValue());
+        assertEquals("changed", db.getById(3L).getBody());
+    }
+
+    public void testOptimisticLock() throws Exception {
+        Article first = db.getById(1L);
+        Article second = db.getById(1L);
+        first.setTitle("first");
+        second.setTitle("second");
+
+        assertEquals(1, db.update(first).intValue());
+        try {
+            db.update(second);
+            fail();
+        } catch (StaleEntityException e) {
+            //版本号已被修改
+        }
+        assertEquals("first", db.getById(1L).getTitle());
+    }
+
+    public void testWithoutSnapshot() throws Exception {
+        Article article = new Article();
+        article.setId(2L);
+        article.setTitle("full");
+        article.setBody("full body");
+        article.setVersion(0);
+
+        assertEquals(1, db.update(article).intValue());
+        assertTrue(metrics.getSqlMetrics().containsKey(
+                "UPDATE `article` SET `body`=?,`title`=?,`version`=`version`+1 WHERE id=? AND `version`=?"));
+
+        //插入的实体同样记录快照
+        Article inserted = new Article();
+        inserted.setId(4L);
+        inserted.setTitle("t4");
+        inserted.setBody("body 4");
+        inserted.setVersion(0);
+        db.insertAll(new ArrayList<Article>(Arrays.asList(inserted)));
+        inserted.setTitle("t4 changed");
+        assertEquals(1, db.update(inserted).intValue());
+        assertEquals(1, metrics.getSqlMetrics().get(TITLE_UPDATE).getLatency().getCount());
+    }
+
+    public void testWithEntityCache() throws Exception {
+        LruEntityCache<Object, Article> cache = new LruEntityCache<Object, Article>(10);
+        db.setEntityCache(cache);
+
+        //跟踪的实体不共享，修改只对自己可见
+        Article first = db.getById(1L);
+        Article second = db.getById(1L);
+        assertNotSame(first, second);
+        first.setTitle("edited");
+        assertEquals("t1", second.getTitle());
+        assertEquals("t1", db.getMulti(1L).get(0).getTitle());
+        assertEquals(0, cache.stats().getSize());
+
+        assertEquals(1, db.update(first).intValue());
+        second.setTitle("second");
+        try {
+            db.update(second);
+            fail();
+        } catch (StaleEntityException e) {
+            //各自的快照与版本号
+        }
+        assertEquals("edited", db.getById(1L).getTitle());
+    }
+}
@@ -0,0 +1,61 @@
+package com.mlongbo.sunflower.commondb;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 测试用的内存数据库连接，MySQL兼容模式，记录未关闭的连接数
+ */
+public class H2ConnectionProvider implements ConnectionProvider {
+    private final String url;
+    private final AtomicInteger opened = new AtomicInteger();
+
+    public H2ConnectionProvider(String name) {
+        this.url = "jdbc:h2:mem:" + name + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1";
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * 尚未关闭的连接数
+     * @return
+     */
+    public int getOpened() {
+        return opened.get();
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        final Connection target = DriverManager.getConnection(url);
+        opened.incrementAndGet();
+        return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{Connection.class},
+                new InvocationHandler() {
+                    private boolean closed;
+
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if ("close".equals(method.getName()) && !closed) {
+                            closed = true;
+                            opened.decrementAndGet();
+                        }
+                        try {
+                            return method.invoke(target, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
@@ -0,0 +1,75 @@
+package com.mlongbo.sunflower.commondb;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对比不同翻页深度下LIMIT offset分页与键集分页的耗时
+ * @author malongbo
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeysetPaginationBenchmark {
+    private static final int ROWS = 200000;
+    private static final int PAGE_SIZE = 20;
+
+    @Param({"0", "10000", "100000", "190000"})
+    public int depth;
+
+    private CommonDbTest.MemberDb db;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        H2ConnectionProvider provider = new H2ConnectionProvider("keyset");
+        Database.me.setConnectionProvider(provider);
+        DbConnectionManager.getInstance().destroyConnectionProvider();
+
+        Connection connection = provider.getConnection();
+        Statement stat = connection.createStatement();
+        stat.execute("DROP TABLE IF EXISTS member");
+        stat.execute("CREATE TABLE member (id BIGINT AUTO_INCREMENT PRIMARY KEY, name VARCHAR(32), age INT)");
+        stat.close();
+        PreparedStatement insert = connection.prepareStatement("INSERT INTO member (name, age) VALUES (?, ?)");
+        for (int i = 1; i <= ROWS; i++) {
+            insert.setString(1, "m" + i);
+            insert.setInt(2, i % 100);
+            insert.addBatch();
+            if (i % 1000 == 0)
+                insert.executeBatch();
+        }
+        insert.close();
+        connection.close();
+
+        db = new CommonDbTest.MemberDb();
+    }
+
+    @Benchmark
+    public List<CommonDbTest.Member> offset() throws Exception {
+        return db.paginate(depth, PAGE_SIZE);
+    }
+
+    @Benchmark
+    public KeysetPage<CommonDbTest.Member> keyset() throws Exception {
+        return db.seek(depth == 0 ? null : (long) depth, PAGE_SIZE);
+    }
+}
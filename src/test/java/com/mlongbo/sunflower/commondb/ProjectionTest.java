@@ -0,0 +1,103 @@
+package com.mlongbo.sunflower.commondb;
+
+import com.mlongbo.sunflower.commondb.CommonDbTest.MemberDb;
+import com.mlongbo.sunflower.commondb.mapper.ColumnBatch;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 投影查询与基本类型列查询测试
+ */
+public class ProjectionTest extends TestCase {
+    public record MemberName(long id, String name) {
+    }
+
+    public interface MemberAge {
+        long getId();
+
+        int getAge();
+
+        default boolean isAdult() {
+            return getAge() >= 18;
+        }
+    }
+
+    private MemberDb db;
+
+    @Override
+    protected void setUp() throws Exception {
+        Database.me.setConnectionProvider(new H2ConnectionProvider("projection"));
+        DbConnectionManager.getInstance().destroyConnectionProvider();
+        DbKit.execute("DROP TABLE IF EXISTS member");
+        DbKit.execute("CREATE TABLE member (id BIGINT AUTO_INCREMENT PRIMARY KEY, name VARCHAR(32), age INT)");
+        for (int i = 1; i <= 200; i++) {
+            DbKit.execute("INSERT INTO member (name, age) VALUES (?, ?)", "m" + i, i % 10 == 0 ? null : i % 40);
+        }
+        db = new MemberDb();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        DbConnectionManager.getInstance().destroyConnectionProvider();
+    }
+
+    public void testRecordAndInterface() throws Exception {
+        List<MemberName> names = db.fetchProjections(MemberName.class, "id <= ? ORDER BY id", 3);
+        assertEquals(Arrays.asList(new MemberName(1, "m1"), new MemberName(2, "m2"), new MemberName(3, "m3")), names);
+
+        List<MemberAge> ages = db.fetchProjections(MemberAge.class, "id IN (?, ?) ORDER BY id", 19, 20);
+        assertEquals(19, ages.get(0).getAge());
+        assertTrue(ages.get(0).isAdult());
+        //NULL映射到基本类型为0
+        assertEquals(0, ages.get(1).getAge());
+        assertEquals(20L, ages.get(1).getId());
+        assertTrue(ages.get(1).toString().contains("id=20"));
+        assertEquals(ages.get(0), db.fetchProjections(MemberAge.class, "id = ?", 19).get(0));
+
+        try {
+            db.fetchProjections(String.class, null);
+            fail();
+        } catch (IllegalArgumentException e) {
+            //只支持record与接口
+        }
+    }
+
+    public void testPrimitiveColumns() throws Exception {
+        long[] ids = db.fetchLongs("id", "age > ? ORDER BY id", 30);
+        assertEquals(45, ids.length);
+        assertEquals(31, ids[0]);
+        assertEquals(199, ids[44]);
+        assertEquals(200, db.fetchLongs("MAX(id)", null)[0]);
+
+        int[] ages = db.fetchInts("age", "id <= ? ORDER BY id", 10);
+        assertEquals(10, ages.length);
+        assertEquals(9, ages[8]);
+        assertEquals(0, ages[9]);
+        assertEquals(0, db.fetchDoubles("age", "id > ?", 200).length);
+    }
+
+    public void testColumnBatch() throws Exception {
+        ColumnBatch batch = db.fetchColumns("id, age, age / 4.0 quarter", "id <= ? ORDER BY id", 100);
+        assertEquals(100, batch.size());
+        assertEquals(100, batch.getLongs("ID")[99]);
+        assertEquals(7, batch.getLongs("age")[6]);
+        assertEquals(1.75, batch.getDoubles("quarter")[6], 1e-9);
+        assertTrue(batch.isNull("age", 9));
+        assertFalse(batch.isNull("age", 8));
+
+        try {
+            batch.getDoubles("id");
+            fail();
+        } catch (IllegalArgumentException e) {
+            //整数列
+        }
+        try {
+            db.fetchColumns("name", null);
+            fail();
+        } catch (Exception e) {
+            //非数值列
+        }
+    }
+}
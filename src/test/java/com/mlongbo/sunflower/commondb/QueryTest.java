@@ -0,0 +1,73 @@
+package com.mlongbo.sunflower.commondb;
+
+import com.mlongbo.sunflower.commondb.CommonDbTest.Member;
+import com.mlongbo.sunflower.commondb.CommonDbTest.MemberDb;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 查询条件构造器测试
+ */
+public class QueryTest extends TestCase {
+    private MemberDb db;
+
+    @Override
+    protected void setUp() throws Exception {
+        Database.me.setConnectionProvider(new H2ConnectionProvider("query"));
+        DbConnectionManager.getInstance().destroyConnectionProvider();
+        DbKit.execute("DROP TABLE IF EXISTS member");
+        DbKit.execute("CREATE TABLE member (id BIGINT AUTO_INCREMENT PRIMARY KEY, name VARCHAR(32), age INT)");
+        for (int i = 1; i <= 20; i++) {
+            DbKit.execute("INSERT INTO member (name, age) VALUES (?, ?)", "m" + i, i);
+        }
+        db = new MemberDb();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        DbConnectionManager.getInstance().destroyConnectionProvider();
+    }
+
+    public void testShape() {
+        Query query = new Query().eq("name", "a").in("age", 1, 2, 3).between("id", 1, 9).orderByDesc("age").orderBy("id");
+        assertEquals("name = ? AND age IN (?,?,?,?) AND id BETWEEN ? AND ? ORDER BY age DESC, id", query.getCondition());
+        assertEquals("name = ? AND age IN (?,?,?,?) AND id BETWEEN ? AND ?", query.getWhere());
+        assertEquals(Arrays.asList("a", 1, 2, 3, 3, 1, 9), Arrays.asList(query.getParams()));
+
+        //相同形状返回同一个字符串
+        Query other = new Query().eq("name", "b").in("age", 4, 5, 6, 7).between("id", 2, 3).orderByDesc("age").orderBy("id");
+        assertSame(query.getCondition(), other.getCondition());
+
+        assertEquals("name IS NULL", new Query().eq("name", null).getCondition());
+        assertEquals("1=0", new Query().in("age").getCondition());
+        assertEquals("1=1 ORDER BY id", new Query().orderBy("id").getCondition());
+        assertNull(new Query().orderBy("id").getWhere());
+        assertNull(new Query().getCondition());
+
+        try {
+            new Query().eq("1=1 OR name", "x").getCondition();
+            fail();
+        } catch (IllegalArgumentException e) {
+            //非法字段名
+        }
+    }
+
+    public void testCommonDb() throws Exception {
+        Query query = new Query().ge("age", 5).lt("age", 15).orderByDesc("age");
+        assertEquals(10, db.countByQuery(query).intValue());
+        List<Member> list = db.fetchListByQuery(query);
+        assertEquals(10, list.size());
+        assertEquals(14, list.get(0).getAge());
+
+        List<Member> limited = db.fetchListByQuery(query.limit(3));
+        assertEquals(3, limited.size());
+        assertEquals(12, limited.get(2).getAge());
+
+        List<Member> page = db.paginateByQuery(query, 2, 2);
+        assertEquals(12, page.get(0).getAge());
+        assertEquals("m14", db.findFirstByQuery(query).getName());
+        assertEquals(3, db.fetchListByQuery(new Query().in("name", "m1", "m2", "m3", "nobody", "m4").notIn("age", 4)).size());
+    }
+}
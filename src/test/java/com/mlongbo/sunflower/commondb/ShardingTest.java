@@ -0,0 +1,195 @@
+package com.mlongbo.sunflower.commondb;
+
+import com.mlongbo.sunflower.commondb.CommonDbTest.Member;
+import com.mlongbo.sunflower.commondb.CommonDbTest.MemberDb;
+import com.mlongbo.sunflower.commondb.shard.HashShardStrategy;
+import com.mlongbo.sunflower.commondb.shard.LookupShardStrategy;
+import com.mlongbo.sunflower.commondb.shard.RangeShardStrategy;
+import junit.framework.TestCase;
+import org.apache.commons.dbutils.handlers.ScalarHandler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 分片测试，3个内存数据库按id取模分片
+ */
+public class ShardingTest extends TestCase {
+    private static final int SHARDS = 3;
+
+    private final H2ConnectionProvider primary = new H2ConnectionProvider("shard_primary");
+    private final List<H2ConnectionProvider> shards = new ArrayList<H2ConnectionProvider>();
+    private MemberDb db;
+
+    @Override
+    protected void setUp() throws Exception {
+        Database.me.setConnectionProvider(primary);
+        DbConnectionManager.getInstance().destroyConnectionProvider();
+        for (int i = 0; i < SHARDS; i++) {
+            H2ConnectionProvider shard = new H2ConnectionProvider("shard" + i);
+            shards.add(shard);
+            Database.me.addShard(shard);
+            DbConnectionManager.getInstance().onShard(i, new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    DbKit.execute("DROP TABLE IF EXISTS member");
+                    DbKit.execute("CREATE TABLE member (id BIGINT PRIMARY KEY, name VARCHAR(32), age INT)");
+                    return null;
+                }
+            });
+        }
+
+        db = new MemberDb();
+        db.setSharding(null, new HashShardStrategy());
+        List<Member> members = new ArrayList<Member>();
+        for (long id = 1; id <= 30; id++) {
+            Member member = new Member();
+            member.setId(id);
+            member.setName("m" + id);
+            member.setAge((int) (id * 7 % 31));
+            members.add(member);
+        }
+        assertEquals(30, db.insertAll(members).intValue());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        DbConnectionManager.getInstance().destroyConnectionProvider();
+        Database.me.clearShards();
+    }
+
+    private long countOnShard(int shard) throws Exception {
+        return DbConnectionManager.getInstance().onShard(shard, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return ((Number) DbKit.query(new ScalarHandler(), "SELECT COUNT(*) FROM member")).longValue();
+            }
+        });
+    }
+
+    public void testRouteById() throws Exception {
+        for (int shard = 0; shard < SHARDS; shard++) {
+            assertEquals(10, countOnShard(shard));
+        }
+
+        assertEquals("m7", db.getById(7L).getName());
+        assertEquals("m8", db.getById("8").getName());
+        List<Member> multi = db.getMulti(5L, 1L, 9L, 100L);
+        assertEquals(3, multi.size());
+        assertEquals(Long.valueOf(5), multi.get(0).getId());
+        assertEquals(Long.valueOf(9), multi.get(2).getId());
+
+        assertTrue(db.deleteById(7L));
+        assertNull(db.getById(7L));
+        assertEquals(9, countOnShard(1));
+
+        int rows = db.withShardKey(3L, new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return db.countByCondition(null);
+            }
+        });
+        assertEquals(10, rows);
+        for (H2ConnectionProvider shard : shards) {
+            assertEquals(0, shard.getOpened());
+        }
+    }
+
+    public void testFanOut() throws Exception {
+        assertEquals(30, db.count().intValue());
+        assertEquals(15, db.countByCondition("age > ?", 15).intValue());
+        assertEquals(15, db.fetchListByCondition("age > ?", 15).size());
+        assertEquals("m12", db.findFirst("name = ?", "m12").getName());
+
+        List<Member> page = db.paginate("age > ? ORDER BY age DESC", 2, 5, 0);
+        List<Integer> ages = new ArrayList<Integer>();
+        for (Member member : page) {
+            ages.add(member.getAge());
+        }
+        //id * 7 % 31在1..30上取遍1..30
+        assertEquals(Arrays.asList(28, 27, 26, 25, 24), ages);
+
+        List<Member> byId = db.paginate(10, 3);
+        assertEquals(Long.valueOf(11), byId.get(0).getId());
+        assertEquals(Long.valueOf(13), byId.get(2).getId());
+
+        KeysetPage<Member> first = db.seek(null, 4);
+        assertEquals(4, first.getList().size());
+        assertEquals(4L, ((Number) first.getNextKey()).longValue());
+        KeysetPage<Member> second = db.seek(first.getNextKey(), 4);
+        assertEquals(Long.valueOf(5), second.getList().get(0).getId());
+
+        long[] ids = db.fetchLongs("id", "age > ?", 25);
+        assertEquals(5, ids.length);
+        assertEquals(1, db.fetchColumns("id, age", "name = ?", "m9").size());
+
+        try (Stream<Member> stream = db.stream("age <= ?", 3)) {
+            assertEquals(3, stream.collect(Collectors.toList()).size());
+        }
+
+        assertEquals(10, db.deleteByCondition("age > ?", 20).intValue());
+        assertEquals(20, db.count().intValue());
+    }
+
+    public void testTransactionCanNotSpanShards() throws Exception {
+        DbConnectionManager manager = DbConnectionManager.getInstance();
+        DbConnectionManager.Transaction tx = manager.beginTransaction(false, -1, 0);
+        try {
+            db.getById(1L);
+            fail();
+        } catch (IllegalStateException e) {
+            //事务在主库上
+        } finally {
+            manager.endTransaction(tx);
+        }
+
+        db.withShardKey(2L, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                DbConnectionManager manager = DbConnectionManager.getInstance();
+                DbConnectionManager.Transaction tx = manager.beginTransaction(false, -1, 0);
+                try {
+                    db.deleteById(2L);
+                    db.deleteById(5L);
+                    manager.rollback(tx);
+                } finally {
+                    manager.endTransaction(tx);
+                }
+                return null;
+            }
+        });
+        assertNotNull(db.getById(2L));
+        assertNotNull(db.getById(5L));
+    }
+
+    public void testStrategies() {
+        HashShardStrategy hash = new HashShardStrategy();
+        assertEquals(hash.shard(42L, 4), hash.shard("42", 4));
+        assertEquals(2, hash.shard(-2, 4));
+
+        RangeShardStrategy range = new RangeShardStrategy(100, 200);
+        assertEquals(0, range.shard(99, 3));
+        assertEquals(1, range.shard(100, 3));
+        assertEquals(2, range.shard("5000", 3));
+        try {
+            range.shard(1, 2);
+            fail();
+        } catch (IllegalStateException e) {
+            //分片数与上界不符
+        }
+
+        LookupShardStrategy lookup = new LookupShardStrategy(hash).put("tenant-a", 3);
+        assertEquals(3, lookup.shard("tenant-a", 4));
+        assertEquals(hash.shard("tenant-b", 4), lookup.shard("tenant-b", 4));
+        try {
+            new LookupShardStrategy().shard(1, 4);
+            fail();
+        } catch (IllegalArgumentException e) {
+            //未映射的键
+        }
+    }
+}
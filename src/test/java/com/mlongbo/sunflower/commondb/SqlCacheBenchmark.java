@@ -0,0 +1,77 @@
+package com.mlongbo.sunflower.commondb;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对比每次拼接sql与SqlCache缓存sql的开销
+ * @author malongbo
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SqlCacheBenchmark {
+    private final String tableName = "user";
+    private final Object tableId = "id";
+    private final String fields = "id,name,email";
+    private final String condition = "name=? AND status=?";
+    private final SqlCache cache = new SqlCache();
+
+    @Benchmark
+    public String legacyGetById() {
+        return new StringBuffer("SELECT ").append(fields).
+                append(" FROM `").append(this.tableName).append("` WHERE ")
+                .append(this.tableId).append("=?").toString();
+    }
+
+    @Benchmark
+    public String cachedGetById() {
+        return cache.get(SqlCache.Operation.SELECT_BY_ID, tableName, tableId, fields, null);
+    }
+
+    @Benchmark
+    public String legacyPaginate() {
+        String sql = new StringBuffer("SELECT ").append(fields).
+                append(" FROM `").append(this.tableName)
+                .append("`").toString();
+
+        if (condition != null) {
+            sql = new StringBuffer(sql).append(" WHERE ")
+                    .append(condition).toString();
+        }
+
+        return new StringBuffer(sql).append(" LIMIT ?,?").toString();
+    }
+
+    @Benchmark
+    public String cachedPaginate() {
+        return cache.get(SqlCache.Operation.PAGINATE, tableName, tableId, fields, condition);
+    }
+
+    @Benchmark
+    public String legacyCount() {
+        String sql = new StringBuffer("SELECT COUNT(*) `count` FROM ").append(this.tableName).toString();
+
+        if (condition != null) {
+            sql = new StringBuffer(sql).append(" WHERE ").append(condition).toString();
+        }
+        return sql;
+    }
+
+    @Benchmark
+    public String cachedCount() {
+        return cache.get(SqlCache.Operation.COUNT, tableName, tableId, fields, condition);
+    }
+}
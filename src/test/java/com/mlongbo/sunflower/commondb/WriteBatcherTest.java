@@ -0,0 +1,203 @@
+package com.mlongbo.sunflower.commondb;
+
+import com.mlongbo.sunflower.commondb.metrics.MetricsRegistry;
+import com.mlongbo.sunflower.commondb.metrics.SqlKind;
+import com.mlongbo.sunflower.commondb.metrics.SqlMetrics;
+import junit.framework.TestCase;
+import org.apache.commons.dbutils.handlers.ScalarHandler;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * 合并提交测试
+ */
+public class WriteBatcherTest extends TestCase {
+    private static final String INSERT = "INSERT INTO counter (id, hits) VALUES (?, ?)";
+
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private H2ConnectionProvider provider;
+
+    @Override
+    protected void setUp() throws Exception {
+        provider = new H2ConnectionProvider("batcher");
+        Database.me.setConnectionProvider(provider);
+        DbConnectionManager.getInstance().destroyConnectionProvider();
+        DbKit.execute("DROP TABLE IF EXISTS counter");
+        DbKit.execute("CREATE TABLE counter (id INT PRIMARY KEY, hits INT)");
+        Database.me.addListener(metrics);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Database.me.removeListener(metrics);
+        DbConnectionManager.getInstance().destroyConnectionProvider();
+    }
+
+    public void testCoalesce() throws Exception {
+        WriteBatcher batcher = new WriteBatcher(64, 50, 1000);
+        List<CompletableFuture<Integer>> futures = new ArrayList<CompletableFuture<Integer>>();
+        try {
+            for (int i = 0; i < 200; i++) {
+                futures.add(batcher.submit(INSERT, i, 0));
+            }
+            futures.add(batcher.submit("UPDATE counter SET hits = hits + 1 WHERE id < ?", 10));
+        } finally {
+            batcher.close();
+        }
+
+        for (CompletableFuture<Integer> future : futures.subList(0, 200)) {
+            assertEquals(1, future.get().intValue());
+        }
+        assertEquals(10, futures.get(200).get().intValue());
+        assertEquals(200L, ((Number) DbKit.query(new ScalarHandler(), "SELECT COUNT(*) FROM counter")).longValue());
+
+        SqlMetrics batches = metrics.getSqlMetrics().get(INSERT);
+        assertEquals(SqlKind.BATCH, batches.getKind());
+        assertTrue(batches.getLatency().getCount() < 200);
+        assertEquals(0, provider.getOpened());
+    }
+
+    public void testInterleavedShapes() throws Exception {
+        String update = "UPDATE counter SET hits = hits + 1 WHERE id = ?";
+        DbKit.execute(INSERT, 0, 0);
+        metrics.reset();
+
+        WriteBatcher batcher = new WriteBatcher(64, 50, 1000);
+        List<CompletableFuture<Integer>> futures = new ArrayList<CompletableFuture<Integer>>();
+        try {
+            //A,B,A,B交替提交，不相邻的相同sql不合并
+            for (int i = 1; i <= 10; i++) {
+                futures.add(batcher.submit(INSERT, i, 0));
+                futures.add(batcher.submit(update, 0));
+            }
+        } finally {
+            batcher.close();
+        }
+        for (CompletableFuture<Integer> future : futures) {
+            assertEquals(1, future.get().intValue());
+        }
+        assertEquals(10, ((Number) DbKit.query(new ScalarHandler(), "SELECT hits FROM counter WHERE id = 0")).intValue());
+
+        SqlMetrics inserts = metrics.getSqlMetrics().get(INSERT);
+        assertEquals(SqlKind.UPDATE, inserts.getKind());
+        assertEquals(10, inserts.getLatency().getCount());
+        assertEquals(SqlKind.UPDATE, metrics.getSqlMetrics().get(update).getKind());
+    }
+
+    public void testFailureIsIsolated() throws Exception {
+        DbKit.execute(INSERT, 1, 0);
+
+        WriteBatcher batcher = new WriteBatcher(16, 50, 100);
+        CompletableFuture<Integer> first = batcher.submit(INSERT, 0, 0);
+        CompletableFuture<Integer> duplicate = batcher.submit(INSERT, 1, 0);
+        CompletableFuture<Integer> last = batcher.submit(INSERT, 2, 0);
+        batcher.close();
+
+        assertEquals(1, first.get().intValue());
+        assertEquals(1, last.get().intValue());
+        try {
+            duplicate.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof SQLException);
+        }
+        assertEquals(3L, ((Number) DbKit.query(new ScalarHandler(), "SELECT COUNT(*) FROM counter")).longValue());
+    }
+
+    public void testCommitFailureIsNotRetried() throws Exception {
+        DbKit.execute(INSERT, 1, 0);
+        final AtomicBoolean failCommit = new AtomicBoolean(true);
+        Database.me.setConnectionProvider(new ConnectionProvider() {
+            @Override
+            public Connection getConnection() throws SQLException {
+                final Connection target = provider.getConnection();
+                return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{Connection.class},
+                        new InvocationHandler() {
+                            @Override
+                            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                                try {
+                                    Object result = method.invoke(target, args);
+                                    //已提交但应答丢失
+                                    if ("commit".equals(method.getName()) && failCommit.getAndSet(false))
+                                        throw new SQLException("connection reset");
+                                    return result;
+                                } catch (InvocationTargetException e) {
+                                    throw e.getCause();
+                                }
+                            }
+                        });
+            }
+
+            @Override
+            public void destroy() {
+            }
+        });
+        DbConnectionManager.getInstance().destroyConnectionProvider();
+
+        WriteBatcher batcher = new WriteBatcher(16, 50, 100);
+        CompletableFuture<Integer> first = batcher.submit("UPDATE counter SET hits = hits + 1 WHERE id = ?", 1);
+        CompletableFuture<Integer> second = batcher.submit("UPDATE counter SET hits = hits + 1 WHERE id = ?", 1);
+        batcher.close();
+
+        for (CompletableFuture<Integer> future : Arrays.asList(first, second)) {
+            try {
+                future.get();
+                fail();
+            } catch (ExecutionException e) {
+                assertEquals("connection reset", e.getCause().getMessage());
+            }
+        }
+        //没有逐条重试，每条写入只执行一次
+        assertEquals(2, ((Number) DbKit.query(new ScalarHandler(), "SELECT hits FROM counter WHERE id = 1")).intValue());
+        assertEquals(0, provider.getOpened());
+    }
+
+    public void testCallbacksRunOffWorker() throws Exception {
+        final WriteBatcher batcher = new WriteBatcher(1, 0, 1);
+        final List<CompletableFuture<Integer>> nested = new CopyOnWriteArrayList<CompletableFuture<Integer>>();
+        final List<String> threads = new CopyOnWriteArrayList<String>();
+        //回调中在队列满时继续提交并关闭，不会阻塞后台线程
+        CompletableFuture<Void> done = batcher.submit(INSERT, 1, 0).thenAccept(new Consumer<Integer>() {
+            @Override
+            public void accept(Integer rows) {
+                threads.add(Thread.currentThread().getName());
+                for (int i = 2; i <= 5; i++) {
+                    nested.add(batcher.submit(INSERT, i, 0));
+                }
+                batcher.close();
+            }
+        });
+        done.get(10, TimeUnit.SECONDS);
+
+        for (CompletableFuture<Integer> future : nested) {
+            assertEquals(1, future.get(10, TimeUnit.SECONDS).intValue());
+        }
+        assertFalse(threads.get(0).startsWith("sunflower-write-batcher"));
+        assertEquals(5L, ((Number) DbKit.query(new ScalarHandler(), "SELECT COUNT(*) FROM counter")).longValue());
+    }
+
+    public void testSubmitAfterClose() {
+        WriteBatcher batcher = new WriteBatcher();
+        batcher.close();
+        try {
+            batcher.submit(INSERT, 1, 0);
+            fail();
+        } catch (IllegalStateException e) {
+            //已关闭
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.mlongbo.sunflower.commondb.aop;
+
+import com.mlongbo.sunflower.commondb.Database;
+import com.mlongbo.sunflower.commondb.DbConnectionManager;
+import com.mlongbo.sunflower.commondb.H2ConnectionProvider;
+import junit.framework.TestCase;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ManagerFactory测试
+ */
+public class ManagerFactoryTest extends TestCase {
+    private static final AtomicInteger created = new AtomicInteger();
+
+    public static class CountedManager {
+        public CountedManager() {
+            created.incrementAndGet();
+        }
+
+        public String getName() {
+            return "counted";
+        }
+    }
+
+    public static class FirstManager {
+        public boolean addInTransaction() {
+            return DbConnectionManager.getInstance().inTransaction();
+        }
+
+        public boolean getInTransaction() {
+            return DbConnectionManager.getInstance().inTransaction();
+        }
+    }
+
+    public static class SecondManager {
+    }
+
+    private static final AtomicInteger failures = new AtomicInteger(1);
+
+    public static class FailingManager {
+        public FailingManager() {
+            if (failures.getAndDecrement() > 0)
+                throw new IllegalStateException("not ready");
+        }
+    }
+
+    public void testConcurrentGetManager() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        try {
+            Future<?>[] futures = new Future<?>[16];
+            for (int i = 0; i < futures.length; i++) {
+                futures[i] = executor.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        start.await();
+                        return ManagerFactory.getManager(CountedManager.class);
+                    }
+                });
+            }
+            start.countDown();
+
+            Object first = futures[0].get();
+            for (Future<?> future : futures) {
+                assertSame(first, future.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(1, created.get());
+        assertEquals("counted", ManagerFactory.getManager(CountedManager.class).getName());
+    }
+
+    public void testRetryAfterFailure() {
+        try {
+            ManagerFactory.getManager(FailingManager.class);
+            fail();
+        } catch (IllegalStateException e) {
+            //第一次创建失败
+        }
+        FailingManager manager = ManagerFactory.getManager(FailingManager.class);
+        assertSame(manager, ManagerFactory.getManager(FailingManager.class));
+    }
+
+    public void testPreload() {
+        ManagerFactory.preload(FirstManager.class, SecondManager.class);
+        FirstManager first = ManagerFactory.getManager(FirstManager.class);
+        assertTrue(first.getClass() != FirstManager.class);
+        assertSame(first, ManagerFactory.getManager(FirstManager.class));
+        assertNotNull(ManagerFactory.getManager(SecondManager.class));
+    }
+
+    public void testCreateReusesProxyClass() {
+        FirstManager a = ManagerFactory.create(FirstManager.class);
+        FirstManager b = ManagerFactory.create(FirstManager.class);
+        assertNotSame(a, b);
+        assertSame(a.getClass(), b.getClass());
+        assertSame(a.getClass(), ManagerFactory.getManager(FirstManager.class).getClass());
+    }
+
+    public void testInterception() {
+        Database.me.setConnectionProvider(new H2ConnectionProvider("manager"));
+        DbConnectionManager.getInstance().destroyConnectionProvider();
+        try {
+            FirstManager manager = ManagerFactory.create(FirstManager.class);
+            assertTrue(manager.addInTransaction());
+            assertFalse(manager.getInTransaction());
+            assertFalse(DbConnectionManager.getInstance().inTransaction());
+        } finally {
+            DbConnectionManager.getInstance().destroyConnectionProvider();
+        }
+    }
+}
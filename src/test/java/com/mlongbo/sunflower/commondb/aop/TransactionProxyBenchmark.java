@@ -0,0 +1,76 @@
+package com.mlongbo.sunflower.commondb.aop;
+
+import com.mlongbo.sunflower.commondb.BenchmarkDatabase;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ManagerFactory获取代理对象与TransactionProxy拦截的开销
+ * 事务方法不访问数据库，耗时即开启、提交事务与拦截本身的开销
+ * @author malongbo
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-opens=java.base/java.lang=ALL-UNNAMED")
+public class TransactionProxyBenchmark {
+    public static class Manager {
+        public int addOne(int value) {
+            return value + 1;
+        }
+
+        public int getOne(int value) {
+            return value + 1;
+        }
+    }
+
+    private Manager direct;
+    private Manager proxied;
+    private int value;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchmarkDatabase.start("proxy_bench", 0);
+        direct = new Manager();
+        proxied = ManagerFactory.getManager(Manager.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkDatabase.stop();
+    }
+
+    @Benchmark
+    public Manager getManager() {
+        return ManagerFactory.getManager(Manager.class);
+    }
+
+    @Benchmark
+    public int directCall() {
+        return direct.addOne(value);
+    }
+
+    @Benchmark
+    public int proxiedNonTransactional() {
+        return proxied.getOne(value);
+    }
+
+    @Benchmark
+    public int proxiedTransactional() {
+        return proxied.addOne(value);
+    }
+}
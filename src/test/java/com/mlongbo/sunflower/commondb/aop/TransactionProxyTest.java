@@ -0,0 +1,217 @@
+package com.mlongbo.sunflower.commondb.aop;
+
+import com.mlongbo.sunflower.commondb.ConnectionProvider;
+import com.mlongbo.sunflower.commondb.Database;
+import com.mlongbo.sunflower.commondb.DbConnectionManager;
+import com.mlongbo.sunflower.commondb.DbKit;
+import com.mlongbo.sunflower.commondb.H2ConnectionProvider;
+import junit.framework.TestCase;
+import org.apache.commons.dbutils.ResultSetHandler;
+import org.apache.commons.dbutils.handlers.ColumnListHandler;
+import org.apache.commons.dbutils.handlers.ScalarHandler;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 注解声明的事务属性测试，主库与从库是两个内存数据库
+ */
+public class TransactionProxyTest extends TestCase {
+    private final H2ConnectionProvider primary = new H2ConnectionProvider("tx_primary");
+    private final H2ConnectionProvider replica = new H2ConnectionProvider("tx_replica");
+
+    public static class LogManager {
+        @Transactional(propagation = Propagation.REQUIRES_NEW)
+        public void log(String name) throws SQLException {
+            DbKit.execute("INSERT INTO node (name) VALUES (?)", name);
+        }
+
+        @Transactional(propagation = Propagation.NOT_SUPPORTED)
+        public boolean inTransaction() {
+            return DbConnectionManager.getInstance().inTransaction();
+        }
+
+        @Transactional(propagation = Propagation.NESTED)
+        public void nestedFail(String name) throws SQLException {
+            DbKit.execute("INSERT INTO node (name) VALUES (?)", name);
+            throw new IllegalStateException("fail");
+        }
+
+        public void addFail(String name) throws SQLException {
+            DbKit.execute("INSERT INTO node (name) VALUES (?)", name);
+            throw new IllegalStateException("fail");
+        }
+    }
+
+    public static class NodeManager {
+        public void addAndFail(String name) throws SQLException {
+            DbKit.execute("INSERT INTO node (name) VALUES (?)", name);
+            ManagerFactory.getManager(LogManager.class).log("log");
+            throw new IllegalStateException("fail");
+        }
+
+        public void addWithNested() throws SQLException {
+            DbKit.execute("INSERT INTO node (name) VALUES (?)", "outer");
+            try {
+                ManagerFactory.getManager(LogManager.class).nestedFail("nested");
+            } catch (Exception e) {
+                //只回滚到保存点
+            }
+        }
+
+        public void addSwallowingFailure() throws SQLException {
+            DbKit.execute("INSERT INTO node (name) VALUES (?)", "outer");
+            try {
+                ManagerFactory.getManager(LogManager.class).addFail("joined");
+            } catch (Exception e) {
+                //事务已被标记为只能回滚
+            }
+        }
+
+        public int addRecursive(int depth) throws SQLException {
+            if (depth == 0)
+                return DbConnectionManager.getInstance().inTransaction() ? 1 : 0;
+            return addRecursive(depth - 1);
+        }
+
+        public boolean addWithSuspended() {
+            return !ManagerFactory.getManager(LogManager.class).inTransaction()
+                    && DbConnectionManager.getInstance().inTransaction();
+        }
+
+        @Transactional(isolation = Isolation.SERIALIZABLE, timeout = 30)
+        public int[] getSettings() throws SQLException {
+            int isolation = DbConnectionManager.getInstance().getThreadConnection().getTransactionIsolation();
+            int timeout = DbKit.query(new ResultSetHandler<Integer>() {
+                @Override
+                public Integer handle(ResultSet rs) throws SQLException {
+                    return rs.getStatement().getQueryTimeout();
+                }
+            }, "SELECT name FROM node");
+            return new int[]{isolation, timeout};
+        }
+    }
+
+    @Transactional(readOnly = true)
+    public static class ReadManager {
+        public String node() throws SQLException {
+            return (String) DbKit.query(new ScalarHandler(), "SELECT name FROM node ORDER BY name");
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        init(primary, "primary");
+        init(replica, "replica");
+        Database.me.setConnectionProvider(primary);
+        Database.me.addReplica(replica);
+        Database.me.setReplicaHealthCheckPeriod(0);
+        DbConnectionManager.getInstance().destroyConnectionProvider();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Database.me.clearReplicas();
+        Database.me.setReplicaHealthCheckPeriod(5000);
+        DbConnectionManager.getInstance().destroyConnectionProvider();
+    }
+
+    private static void init(ConnectionProvider provider, String name) throws SQLException {
+        Connection connection = provider.getConnection();
+        Statement stat = connection.createStatement();
+        stat.execute("DROP TABLE IF EXISTS node");
+        stat.execute("CREATE TABLE node (name VARCHAR(32))");
+        stat.execute("INSERT INTO node (name) VALUES ('" + name + "')");
+        stat.close();
+        connection.close();
+    }
+
+    private List<Object> primaryNodes() throws SQLException {
+        DbConnectionManager.Transaction tx = DbConnectionManager.getInstance().beginTransaction(false, -1, 0);
+        try {
+            return DbKit.query(new ColumnListHandler(), "SELECT name FROM node ORDER BY name");
+        } finally {
+            DbConnectionManager.getInstance().endTransaction(tx);
+        }
+    }
+
+    public void testReadOnlyUsesReplica() throws Exception {
+        assertEquals("replica", ManagerFactory.getManager(ReadManager.class).node());
+        assertEquals(0, primary.getOpened());
+        assertEquals(0, replica.getOpened());
+    }
+
+    public void testRequiresNew() throws Exception {
+        try {
+            ManagerFactory.getManager(NodeManager.class).addAndFail("outer");
+            fail();
+        } catch (Exception e) {
+            //外层事务回滚
+        }
+        assertEquals(Arrays.<Object>asList("log", "primary"), primaryNodes());
+        assertFalse(DbConnectionManager.getInstance().inTransaction());
+        assertEquals(0, primary.getOpened());
+    }
+
+    public void testNotSupported() {
+        assertTrue(ManagerFactory.getManager(NodeManager.class).addWithSuspended());
+        assertEquals(0, primary.getOpened());
+    }
+
+    public void testIsolationAndTimeout() throws Exception {
+        int[] settings = ManagerFactory.getManager(NodeManager.class).getSettings();
+        assertEquals(Connection.TRANSACTION_SERIALIZABLE, settings[0]);
+        assertTrue(settings[1] > 0 && settings[1] <= 30);
+    }
+
+    public void testNested() throws Exception {
+        ManagerFactory.getManager(NodeManager.class).addWithNested();
+        assertEquals(Arrays.<Object>asList("outer", "primary"), primaryNodes());
+        assertEquals(0, primary.getOpened());
+    }
+
+    public void testRollbackOnly() throws Exception {
+        try {
+            ManagerFactory.getManager(NodeManager.class).addSwallowingFailure();
+            fail();
+        } catch (Exception e) {
+            //提交时回滚
+        }
+        assertEquals(Arrays.<Object>asList("primary"), primaryNodes());
+        assertEquals(0, primary.getOpened());
+    }
+
+    public void testRecursive() throws Exception {
+        assertEquals(1, ManagerFactory.getManager(NodeManager.class).addRecursive(5));
+        assertFalse(DbConnectionManager.getInstance().inTransaction());
+        assertEquals(0, primary.getOpened());
+    }
+
+    public void testLegacyNesting() throws Exception {
+        DbConnectionManager manager = DbConnectionManager.getInstance();
+        Connection outer = manager.openTransactionConnection();
+        assertSame(outer, manager.openTransactionConnection());
+        DbKit.execute("INSERT INTO node (name) VALUES (?)", "legacy");
+        manager.closeThreadTransactionConnection(false);
+        assertTrue(manager.inTransaction());
+        manager.closeThreadTransactionConnection(false);
+        assertFalse(manager.inTransaction());
+        assertEquals(Arrays.<Object>asList("legacy", "primary"), primaryNodes());
+        assertEquals(0, primary.getOpened());
+    }
+
+    public void testUnendedInnerTransactionIsCleanedUp() throws Exception {
+        DbConnectionManager manager = DbConnectionManager.getInstance();
+        DbConnectionManager.Transaction outer = manager.beginTransaction(false, -1, 0);
+        manager.beginTransaction(false, -1, 0);
+        DbKit.execute("INSERT INTO node (name) VALUES (?)", "leaked");
+        manager.endTransaction(outer);
+        assertFalse(manager.inTransaction());
+        assertEquals(0, primary.getOpened());
+        assertEquals(Arrays.<Object>asList("primary"), primaryNodes());
+    }
+}
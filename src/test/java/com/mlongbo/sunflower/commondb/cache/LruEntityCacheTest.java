@@ -0,0 +1,47 @@
+package com.mlongbo.sunflower.commondb.cache;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LruEntityCache淘汰与统计测试
+ */
+public class LruEntityCacheTest extends TestCase {
+
+    public void testSizeEviction() {
+        LruEntityCache<Long, String> cache = new LruEntityCache<Long, String>(1);
+        cache.put(1L, "a");
+        cache.put(2L, "b");
+        assertNull(cache.get(1L));
+        assertEquals("b", cache.get(2L));
+
+        CacheStats stats = cache.stats();
+        assertEquals(1, stats.getHitCount());
+        assertEquals(1, stats.getMissCount());
+        assertEquals(1, stats.getEvictionCount());
+        assertEquals(1, stats.getSize());
+    }
+
+    public void testLeastRecentlyUsedIsEvicted() {
+        LruEntityCache<Long, String> cache = new LruEntityCache<Long, String>(200);
+        for (long i = 0; i < 200; i++) {
+            cache.put(i, "v" + i);
+        }
+        cache.get(0L);
+        for (long i = 200; i < 400; i++) {
+            cache.put(i, "v" + i);
+        }
+        assertEquals(200, cache.stats().getSize());
+        assertNull(cache.get(1L));
+    }
+
+    public void testTtl() throws Exception {
+        LruEntityCache<Long, String> cache = new LruEntityCache<Long, String>(10, 20, TimeUnit.MILLISECONDS);
+        cache.put(1L, "a");
+        assertEquals("a", cache.get(1L));
+        Thread.sleep(40);
+        assertNull(cache.get(1L));
+        assertEquals(1, cache.stats().getEvictionCount());
+    }
+}
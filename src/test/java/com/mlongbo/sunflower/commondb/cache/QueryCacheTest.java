@@ -0,0 +1,142 @@
+package com.mlongbo.sunflower.commondb.cache;
+
+import junit.framework.TestCase;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * QueryCache失效、合并并发查询与容量测试
+ */
+public class QueryCacheTest extends TestCase {
+
+    public void testWriteTable() {
+        QueryCache cache = new QueryCache(0, TimeUnit.SECONDS, 10);
+        assertEquals("user", cache.writeTable("INSERT INTO `user` (a) VALUES (?)"));
+        assertEquals("user", cache.writeTable("update User set a=? where id=?"));
+        assertEquals("user", cache.writeTable("DELETE FROM user WHERE id=?"));
+        assertEquals("user", cache.writeTable("REPLACE INTO user (a) VALUES (?)"));
+        assertNull(cache.writeTable("UPDATE user u JOIN log l ON u.id=l.uid SET u.a=?"));
+        assertNull(cache.writeTable("TRUNCATE user"));
+    }
+
+    public void testInvalidateTable() throws Exception {
+        QueryCache cache = new QueryCache(0, TimeUnit.SECONDS, 10);
+        final AtomicInteger loads = new AtomicInteger();
+        QueryCache.Loader<Integer> loader = new QueryCache.Loader<Integer>() {
+            @Override
+            public Integer load() {
+                return loads.incrementAndGet();
+            }
+        };
+
+        assertEquals(Integer.valueOf(1), cache.get("user", "SELECT COUNT(*) FROM user", null, loader));
+        assertEquals(Integer.valueOf(1), cache.get("USER", "SELECT COUNT(*) FROM user", new Object[0], loader));
+        cache.invalidate("order");
+        assertEquals(Integer.valueOf(1), cache.get("user", "SELECT COUNT(*) FROM user", null, loader));
+        cache.invalidateBySql("DELETE FROM user WHERE id=?");
+        assertEquals(Integer.valueOf(2), cache.get("user", "SELECT COUNT(*) FROM user", null, loader));
+    }
+
+    public void testConcurrentMissesAreCoalesced() throws Exception {
+        final QueryCache cache = new QueryCache(0, TimeUnit.SECONDS, 10);
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final QueryCache.Loader<Integer> loader = new QueryCache.Loader<Integer>() {
+            @Override
+            public Integer load() throws SQLException {
+                loads.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new SQLException(e);
+                }
+                return 7;
+            }
+        };
+
+        Thread[] threads = new Thread[8];
+        final AtomicInteger results = new AtomicInteger();
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        results.addAndGet(cache.get("user", "SELECT 1", new Object[]{1}, loader));
+                    } catch (SQLException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        Thread.sleep(100);
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(1, loads.get());
+        assertEquals(56, results.get());
+    }
+
+    public void testWeightBound() throws Exception {
+        QueryCache cache = new QueryCache(0, TimeUnit.SECONDS, 3);
+        final List<Integer> rows = Arrays.asList(1, 2);
+        QueryCache.Loader<List<Integer>> loader = new QueryCache.Loader<List<Integer>>() {
+            @Override
+            public List<Integer> load() {
+                return rows;
+            }
+        };
+        cache.get("t", "SELECT a", null, loader);
+        cache.get("t", "SELECT b", null, loader);
+        assertEquals(1, cache.stats().getSize());
+        assertEquals(1, cache.stats().getEvictionCount());
+    }
+
+    public void testWriteOrderBoundedAfterInvalidation() throws Exception {
+        QueryCache cache = new QueryCache(0, TimeUnit.SECONDS, 100);
+        QueryCache.Loader<Integer> loader = new QueryCache.Loader<Integer>() {
+            @Override
+            public Integer load() {
+                return 1;
+            }
+        };
+        for (int i = 0; i < 1000; i++) {
+            cache.get("t", "SELECT COUNT(*) FROM t", null, loader);
+            if (i % 2 == 0) {
+                cache.invalidate("t");
+            } else {
+                cache.invalidateAll();
+            }
+        }
+        //失效不遍历缓存，每个key至多留下一个尚未移除的过期结果
+        assertEquals(1, cache.stats().getSize());
+        assertEquals(1, cache.orderSize());
+        assertEquals(1000, cache.stats().getMissCount());
+
+        //重新加载的结果按新的写入顺序淘汰
+        cache = new QueryCache(0, TimeUnit.SECONDS, 2);
+        cache.get("t", "SELECT a", null, loader);
+        cache.get("t", "SELECT b", null, loader);
+        cache.invalidate("t");
+        cache.get("t", "SELECT b", null, loader);
+        cache.get("t", "SELECT a", null, loader);
+        cache.get("t", "SELECT c", null, loader);
+        assertEquals(2, cache.orderSize());
+        final int[] loads = new int[1];
+        cache.get("t", "SELECT a", null, new QueryCache.Loader<Integer>() {
+            @Override
+            public Integer load() {
+                loads[0]++;
+                return 1;
+            }
+        });
+        assertEquals(0, loads[0]);
+    }
+}
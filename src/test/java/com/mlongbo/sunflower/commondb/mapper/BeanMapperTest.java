@@ -0,0 +1,82 @@
+package com.mlongbo.sunflower.commondb.mapper;
+
+import junit.framework.TestCase;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.List;
+
+/**
+ * BeanMapper映射测试
+ */
+public class BeanMapperTest extends TestCase {
+    private Connection connection;
+
+    public static class User {
+        private long id;
+        private String name;
+        private Integer age;
+        private int score;
+        private java.util.Date created;
+
+        public long getId() { return id; }
+        public void setId(long id) { this.id = id; }
+        public String getName() { return name; }
+        public void setName(String name) { this.name = name; }
+        public Integer getAge() { return age; }
+        public void setAge(Integer age) { this.age = age; }
+        public int getScore() { return score; }
+        public void setScore(int score) { this.score = score; }
+        public java.util.Date getCreated() { return created; }
+        public void setCreated(java.util.Date created) { this.created = created; }
+    }
+
+    protected void setUp() throws Exception {
+        connection = DriverManager.getConnection("jdbc:h2:mem:mapper;MODE=MySQL;DB_CLOSE_DELAY=-1");
+        Statement stat = connection.createStatement();
+        stat.execute("CREATE TABLE member (id BIGINT PRIMARY KEY, name VARCHAR(32), age INT, score INT, created TIMESTAMP)");
+        stat.execute("INSERT INTO member VALUES (1, 'a', 20, 5, '2014-01-01 00:00:00'), (2, 'b', NULL, NULL, NULL)");
+        stat.close();
+    }
+
+    protected void tearDown() throws Exception {
+        connection.createStatement().execute("DROP TABLE member");
+        connection.close();
+    }
+
+    public void testMapRows() throws Exception {
+        Statement stat = connection.createStatement();
+        ResultSet rs = stat.executeQuery("SELECT ID, name, age, score, created, 1 AS extra FROM member ORDER BY id");
+        List<User> users = BeanMapper.of(User.class).beanListHandler().handle(rs);
+        stat.close();
+
+        assertEquals(2, users.size());
+        assertEquals(1L, users.get(0).getId());
+        assertEquals("a", users.get(0).getName());
+        assertEquals(Integer.valueOf(20), users.get(0).getAge());
+        assertEquals(5, users.get(0).getScore());
+        assertEquals(Timestamp.valueOf("2014-01-01 00:00:00").getTime(), users.get(0).getCreated().getTime());
+
+        assertNull(users.get(1).getAge());
+        assertEquals(0, users.get(1).getScore());
+        assertNull(users.get(1).getCreated());
+    }
+
+    public void testShapeIsReused() throws Exception {
+        BeanMapper<User> mapper = BeanMapper.of(User.class);
+        Statement stat = connection.createStatement();
+        ResultSet first = stat.executeQuery("SELECT id, name FROM member");
+        RowMapper<User> a = mapper.bind(first.getMetaData());
+        first.close();
+        ResultSet second = stat.executeQuery("SELECT id, name FROM member");
+        RowMapper<User> b = mapper.bind(second.getMetaData());
+        second.close();
+        stat.close();
+
+        assertSame(a, b);
+        assertSame(mapper, BeanMapper.of(User.class));
+    }
+}
@@ -0,0 +1,89 @@
+package com.mlongbo.sunflower.commondb.metrics;
+
+import com.mlongbo.sunflower.commondb.Database;
+import com.mlongbo.sunflower.commondb.DbConnectionManager;
+import com.mlongbo.sunflower.commondb.DbKit;
+import com.mlongbo.sunflower.commondb.H2ConnectionProvider;
+import com.mlongbo.sunflower.commondb.TransactionContext;
+import junit.framework.TestCase;
+import org.apache.commons.dbutils.handlers.ArrayListHandler;
+
+import java.sql.SQLException;
+
+/**
+ * 指标统计测试
+ */
+public class MetricsRegistryTest extends TestCase {
+    private final MetricsRegistry metrics = new MetricsRegistry();
+
+    @Override
+    protected void setUp() throws Exception {
+        Database.me.setConnectionProvider(new H2ConnectionProvider("metrics"));
+        DbConnectionManager.getInstance().destroyConnectionProvider();
+        DbKit.execute("DROP TABLE IF EXISTS metric");
+        DbKit.execute("CREATE TABLE metric (id INT PRIMARY KEY)");
+        Database.me.addListener(metrics);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Database.me.removeListener(metrics);
+        DbConnectionManager.getInstance().destroyConnectionProvider();
+    }
+
+    public void testHistogram() {
+        Histogram histogram = new Histogram();
+        for (long i = 1; i <= 10000; i++) {
+            histogram.record(i * 1000);
+        }
+        assertEquals(10000, histogram.getCount());
+        assertEquals(10000000, histogram.getMax());
+        assertEquals(5000500.0, histogram.getMean(), 0.001);
+        assertWithin(5000000, histogram.getPercentile(50));
+        assertWithin(9900000, histogram.getPercentile(99));
+        assertEquals(10000000, histogram.getPercentile(100));
+
+        for (long v = 0; v < 1 << 20; v += 7) {
+            int index = Histogram.index(v);
+            assertTrue(Histogram.lowerBound(index) <= v && v < Histogram.lowerBound(index + 1));
+        }
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("expected about " + expected + " but was " + actual, Math.abs(actual - expected) <= expected / 16);
+    }
+
+    public void testDbKitCalls() throws Exception {
+        String insert = "INSERT INTO metric (id) VALUES (?)";
+        DbKit.execute(insert, 1);
+        DbKit.batch("INSERT INTO metric VALUES (?)", new Object[][]{{2}, {3}, {4}});
+        DbKit.query(new ArrayListHandler(), "SELECT id FROM metric");
+        try {
+            DbKit.execute(insert, 1);
+            fail();
+        } catch (SQLException e) {
+            //主键冲突
+        }
+
+        SqlMetrics update = metrics.getSqlMetrics().get(insert);
+        assertEquals(SqlKind.UPDATE, update.getKind());
+        assertEquals(2, update.getLatency().getCount());
+        assertEquals(1, update.getErrorCount());
+        assertEquals(1, update.getRows().getTotal());
+
+        SqlMetrics batch = metrics.getSqlMetrics().get("INSERT INTO metric VALUES (?)");
+        assertEquals(SqlKind.BATCH, batch.getKind());
+        assertEquals(3, batch.getRows().getMax());
+
+        SqlMetrics query = metrics.getSqlMetrics().get("SELECT id FROM metric");
+        assertEquals(SqlKind.QUERY, query.getKind());
+        assertEquals(4, query.getRows().getMax());
+        assertEquals(4, metrics.getAcquireLatency().getCount());
+
+        TransactionContext tx = TransactionContext.begin();
+        tx.rollback();
+        tx.close();
+        assertEquals(1, metrics.getTransactionLatency().getCount());
+        assertEquals(1, metrics.getRollbackCount());
+    }
+}
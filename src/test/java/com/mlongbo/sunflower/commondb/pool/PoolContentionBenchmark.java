@@ -0,0 +1,80 @@
+package com.mlongbo.sunflower.commondb.pool;
+
+import com.mlongbo.sunflower.commondb.ConnectionProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 多线程争用下内置连接池与c3p0借出、归还连接的吞吐量，线程数大于连接数以覆盖等待路径
+ * @author malongbo
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(16)
+@Fork(1)
+public class PoolContentionBenchmark {
+    @Param({"builtin", "c3p0"})
+    public String pool;
+
+    private ConnectionProvider provider;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        PoolConfig config = new PoolConfig("jdbc:h2:mem:contention;DB_CLOSE_DELAY=-1", "sa", "");
+        config.setMinimumIdle(8);
+        config.setMaximumPoolSize(8);
+        if ("builtin".equals(pool)) {
+            provider = new PooledConnectionProvider(config);
+        } else {
+            provider = new C3p0ConnectionProvider(config);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        provider.destroy();
+    }
+
+    @Benchmark
+    public boolean borrow() throws Exception {
+        Connection connection = provider.getConnection();
+        boolean autoCommit = connection.getAutoCommit();
+        connection.close();
+        return autoCommit;
+    }
+
+    @Benchmark
+    public int borrowAndQuery() throws Exception {
+        Connection connection = provider.getConnection();
+        try {
+            Statement stat = connection.createStatement();
+            ResultSet rs = stat.executeQuery("SELECT 1");
+            rs.next();
+            int value = rs.getInt(1);
+            stat.close();
+            return value;
+        } finally {
+            connection.close();
+        }
+    }
+}
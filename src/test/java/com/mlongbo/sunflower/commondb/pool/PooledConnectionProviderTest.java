@@ -0,0 +1,171 @@
+package com.mlongbo.sunflower.commondb.pool;
+
+import com.mlongbo.sunflower.commondb.Database;
+import com.mlongbo.sunflower.commondb.DbConnectionManager;
+import com.mlongbo.sunflower.commondb.DbKit;
+import junit.framework.TestCase;
+import org.apache.commons.dbutils.handlers.ScalarHandler;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * PooledConnectionProvider测试
+ */
+public class PooledConnectionProviderTest extends TestCase {
+    private static final String URL = "jdbc:h2:mem:pool;DB_CLOSE_DELAY=-1";
+
+    private PooledConnectionProvider pool;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (pool != null)
+            pool.destroy();
+    }
+
+    private PooledConnectionProvider create(int minIdle, int max) {
+        PoolConfig config = new PoolConfig(URL, "sa", "");
+        config.setMinimumIdle(minIdle);
+        config.setMaximumPoolSize(max);
+        config.setConnectionTimeout(300);
+        pool = new PooledConnectionProvider(config);
+        return pool;
+    }
+
+    public void testReuseAndReset() throws Exception {
+        create(0, 4);
+
+        Connection connection = pool.getConnection();
+        int session = sessionId(connection);
+        connection.setAutoCommit(false);
+        connection.setReadOnly(true);
+        connection.close();
+        assertTrue(connection.isClosed());
+        connection.close();
+
+        //同一线程归还后再次借出复用同一物理连接，且状态已重置
+        connection = pool.getConnection();
+        assertEquals(session, sessionId(connection));
+        assertTrue(connection.getAutoCommit());
+        assertFalse(connection.isReadOnly());
+        assertEquals(1, pool.getTotalConnections());
+        assertEquals(1, pool.getActiveConnections());
+        connection.close();
+        assertEquals(0, pool.getActiveConnections());
+        assertEquals(1, pool.getIdleConnections());
+
+        try {
+            connection.createStatement();
+            fail();
+        } catch (SQLException e) {
+            assertEquals("08003", e.getSQLState());
+        }
+    }
+
+    public void testTimeoutAndHandoff() throws Exception {
+        create(0, 2);
+
+        Connection first = pool.getConnection();
+        Connection second = pool.getConnection();
+        long start = System.nanoTime();
+        try {
+            pool.getConnection();
+            fail();
+        } catch (SQLTimeoutException e) {
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(250));
+        }
+        assertEquals(2, pool.getTotalConnections());
+
+        //等待中的线程拿到其他线程归还的连接
+        final CountDownLatch waiting = new CountDownLatch(1);
+        final AtomicReference<Object> result = new AtomicReference<Object>();
+        Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                waiting.countDown();
+                try {
+                    Connection connection = pool.getConnection();
+                    result.set(connection);
+                    connection.close();
+                } catch (SQLException e) {
+                    result.set(e);
+                }
+            }
+        });
+        waiter.start();
+        waiting.await();
+        Thread.sleep(50);
+        first.close();
+        waiter.join();
+        assertTrue(result.get() instanceof Connection);
+        assertEquals(2, pool.getTotalConnections());
+        second.close();
+    }
+
+    public void testIdleTimeoutAndMinimumIdle() throws Exception {
+        PoolConfig config = new PoolConfig(URL, "sa", "");
+        config.setMinimumIdle(1);
+        config.setMaximumPoolSize(4);
+        config.setIdleTimeout(50);
+        config.setHousekeepingPeriod(20);
+        pool = new PooledConnectionProvider(config);
+
+        Connection[] connections = new Connection[4];
+        for (int i = 0; i < connections.length; i++)
+            connections[i] = pool.getConnection();
+        assertEquals(4, pool.getTotalConnections());
+        for (Connection connection : connections)
+            connection.close();
+
+        long deadline = System.currentTimeMillis() + 2000;
+        while (pool.getTotalConnections() > 1 && System.currentTimeMillis() < deadline)
+            Thread.sleep(20);
+        assertEquals(1, pool.getTotalConnections());
+        assertEquals(1, pool.getIdleConnections());
+    }
+
+    public void testStatementCache() throws Exception {
+        PoolConfig config = new PoolConfig(URL, "sa", "");
+        config.setMinimumIdle(0);
+        config.setMaximumPoolSize(1);
+        config.setStatementCacheSize(2);
+        pool = new PooledConnectionProvider(config);
+        Database.me.setConnectionProvider(pool);
+        DbConnectionManager.getInstance().destroyConnectionProvider();
+        try {
+            ScalarHandler handler = new ScalarHandler();
+            for (int i = 0; i < 3; i++) {
+                assertEquals(i, ((Number) DbKit.query(handler, "SELECT ?", i)).intValue());
+            }
+            //PreparedStatement在连接归还后仍可复用
+            assertEquals(2, pool.getStatementCacheStats().getHitCount());
+            assertEquals(1, pool.getStatementCacheStats().getMissCount());
+
+            DbKit.query(handler, "SELECT 1");
+            DbKit.query(handler, "SELECT 2");
+            assertEquals(1, pool.getStatementCacheStats().getEvictionCount());
+            assertEquals(2, pool.getStatementCacheStats().getSize());
+        } finally {
+            Database.me.setConnectionProvider(null);
+            DbConnectionManager.getInstance().destroyConnectionProvider();
+            pool = null;
+        }
+    }
+
+    private static int sessionId(Connection connection) throws SQLException {
+        Statement stat = connection.createStatement();
+        try {
+            ResultSet rs = stat.executeQuery("SELECT SESSION_ID()");
+            rs.next();
+            return rs.getInt(1);
+        } finally {
+            stat.close();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.mlongbo.sunflower.commondb.route;
+
+import com.mlongbo.sunflower.commondb.ConnectionProvider;
+import com.mlongbo.sunflower.commondb.Database;
+import com.mlongbo.sunflower.commondb.DbConnectionManager;
+import com.mlongbo.sunflower.commondb.DbKit;
+import com.mlongbo.sunflower.commondb.H2ConnectionProvider;
+import junit.framework.TestCase;
+import org.apache.commons.dbutils.handlers.ScalarHandler;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 读写分离测试，主库与从库是两个内存数据库，数据不同以区分查询走了哪个库
+ */
+public class ReplicaRouterTest extends TestCase {
+    private final H2ConnectionProvider primary = new H2ConnectionProvider("rw_primary");
+    private final FlakyProvider replica = new FlakyProvider(new H2ConnectionProvider("rw_replica"));
+
+    private static class FlakyProvider implements ConnectionProvider {
+        private final ConnectionProvider target;
+        private volatile boolean down;
+        private volatile boolean saturated;
+
+        FlakyProvider(ConnectionProvider target) {
+            this.target = target;
+        }
+
+        @Override
+        public Connection getConnection() throws SQLException {
+            if (down)
+                throw new SQLException("replica is down", "08001");
+            if (saturated)
+                throw new SQLTimeoutException("Connection is not available, request timed out after 30000ms");
+            return target.getConnection();
+        }
+
+        @Override
+        public void destroy() {
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        init(primary, "primary");
+        init(replica, "replica");
+        Database.me.setConnectionProvider(primary);
+        Database.me.addReplica(replica);
+        Database.me.setReplicaHealthCheckPeriod(0);
+        DbConnectionManager.getInstance().destroyConnectionProvider();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Database.me.clearReplicas();
+        Database.me.setReplicaHealthCheckPeriod(5000);
+        DbConnectionManager.getInstance().destroyConnectionProvider();
+    }
+
+    private static void init(ConnectionProvider provider, String name) throws SQLException {
+        Connection connection = provider.getConnection();
+        Statement stat = connection.createStatement();
+        stat.execute("DROP TABLE IF EXISTS node");
+        stat.execute("CREATE TABLE node (name VARCHAR(32))");
+        stat.execute("INSERT INTO node (name) VALUES ('" + name + "')");
+        stat.close();
+        connection.close();
+    }
+
+    private static String node() throws SQLException {
+        return (String) DbKit.query(new ScalarHandler(), "SELECT name FROM node");
+    }
+
+    public void testRouting() throws Exception {
+        assertEquals("replica", node());
+
+        DbKit.execute("UPDATE node SET name = ?", "written");
+        assertEquals("replica", node());
+
+        DbConnectionManager manager = DbConnectionManager.getInstance();
+        manager.openTransactionConnection();
+        try {
+            assertEquals("written", node());
+        } finally {
+            manager.closeThreadTransactionConnection(false);
+        }
+
+        //连接作用域内写入后的读操作使用主库
+        DbConnectionManager.ConnectionScope scope = manager.openScope();
+        try {
+            assertEquals("replica", node());
+            DbKit.execute("UPDATE node SET name = ?", "scoped");
+            assertEquals("scoped", node());
+        } finally {
+            scope.close();
+        }
+
+        assertEquals(0, primary.getOpened());
+        assertEquals(0, Database.me.getReplicas().get(0).getInFlight());
+    }
+
+    public void testEjectAndRecover() throws Exception {
+        Replica target = Database.me.getReplicas().get(0);
+        replica.down = true;
+        assertEquals("primary", node());
+        assertFalse(target.isHealthy());
+
+        replica.down = false;
+        assertEquals("primary", node());
+        DbConnectionManager.getInstance().getReplicaRouter().checkHealth();
+        assertTrue(target.isHealthy());
+        assertEquals("replica", node());
+    }
+
+    public void testSaturatedReplicaIsNotEjected() throws Exception {
+        Replica target = Database.me.getReplicas().get(0);
+        replica.saturated = true;
+        assertEquals("primary", node());
+        assertTrue(target.isHealthy());
+
+        replica.saturated = false;
+        assertEquals("replica", node());
+        assertTrue(ReplicaRouter.isConnectionFailure(new SQLNonTransientConnectionException("refused")));
+        assertFalse(ReplicaRouter.isConnectionFailure(new SQLTimeoutException("busy")));
+    }
+
+    public void testReleaseOnAnotherThread() throws Exception {
+        final ReplicaRouter router = DbConnectionManager.getInstance().getReplicaRouter();
+        Replica target = Database.me.getReplicas().get(0);
+        final Connection connection = router.getConnection();
+        assertEquals(1, target.getInFlight());
+
+        final boolean[] released = new boolean[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                released[0] = router.release(connection);
+            }
+        });
+        thread.start();
+        thread.join();
+
+        assertTrue(released[0]);
+        assertEquals(0, target.getInFlight());
+        assertEquals(0, router.getLeased());
+        assertFalse(router.release(connection));
+    }
+
+    public void testStrategies() {
+        Replica a = new Replica(null, 1);
+        Replica b = new Replica(null, 3);
+        List<Replica> replicas = Arrays.asList(a, b);
+
+        RoutingStrategy roundRobin = new RoundRobinStrategy();
+        assertNotSame(roundRobin.select(replicas), roundRobin.select(replicas));
+
+        a.acquired();
+        assertSame(b, new LeastInFlightStrategy().select(replicas));
+        a.released();
+
+        RoutingStrategy weighted = new WeightedStrategy();
+        int selectedB = 0;
+        for (int i = 0; i < 4000; i++) {
+            if (weighted.select(replicas) == b)
+                selectedB++;
+        }
+        assertTrue(selectedB > 2700 && selectedB < 3300);
+    }
+}